@@ -20,12 +20,20 @@ package solutions.siren.join;
 
 import org.elasticsearch.common.inject.AbstractModule;
 import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.publish.PublishedTermsService;
+import solutions.siren.join.action.terms.SegmentTermsCache;
+import solutions.siren.join.action.terms.ShardTermsCache;
+import solutions.siren.join.index.query.TermsSetCache;
 
 public class SirenJoinNodeModule extends AbstractModule {
 
   @Override
   protected void configure() {
     bind(FilterJoinCacheService.class).asEagerSingleton();
+    bind(TermsSetCache.class).asEagerSingleton();
+    bind(PublishedTermsService.class).asEagerSingleton();
+    bind(SegmentTermsCache.class).asEagerSingleton();
+    bind(ShardTermsCache.class).asEagerSingleton();
   }
 
 }
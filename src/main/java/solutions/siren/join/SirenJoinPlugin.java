@@ -20,6 +20,7 @@ package solutions.siren.join;
 
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.index.cache.IndexCacheModule;
 import org.elasticsearch.indices.IndicesModule;
@@ -32,10 +33,15 @@ import solutions.siren.join.action.admin.cache.*;
 import solutions.siren.join.action.admin.version.GetIndicesVersionAction;
 import solutions.siren.join.action.admin.version.IndexVersionShardService;
 import solutions.siren.join.action.admin.version.TransportGetIndicesVersionAction;
+import solutions.siren.join.action.cache.FilterJoinCacheAction;
+import solutions.siren.join.action.cache.TransportFilterJoinCacheAction;
 import solutions.siren.join.action.coordinate.CoordinateMultiSearchAction;
 import solutions.siren.join.action.coordinate.CoordinateSearchAction;
 import solutions.siren.join.action.coordinate.TransportCoordinateMultiSearchAction;
 import solutions.siren.join.action.coordinate.TransportCoordinateSearchAction;
+import solutions.siren.join.action.publish.PublishTermsAction;
+import solutions.siren.join.action.publish.PublishedTermsService;
+import solutions.siren.join.action.publish.TransportPublishTermsAction;
 import solutions.siren.join.action.terms.TermsByQueryAction;
 import solutions.siren.join.action.terms.TransportTermsByQueryAction;
 import solutions.siren.join.index.query.FieldDataTermsQueryParser;
@@ -47,6 +53,7 @@ import solutions.siren.join.rest.RestStatsFilterJoinCacheAction;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -55,6 +62,28 @@ import java.util.Collections;
  */
 public class SirenJoinPlugin extends Plugin {
 
+  /**
+   * The thread pool executing the shard and node operations of the terms by query action
+   */
+  public static final String TERMS_BY_QUERY_THREAD_POOL = "siren_terms_by_query";
+
+  /**
+   * The thread pool collecting the segments of a shard in parallel, and merging the terms sets in parallel, in the
+   * terms by query action
+   */
+  public static final String TERMS_COLLECT_THREAD_POOL = "siren_terms_collect";
+
+  /**
+   * The thread pool executing the coordinate search requests received from other nodes, and resuming the
+   * coordination of the filter joins
+   */
+  public static final String COORDINATE_THREAD_POOL = "siren_coordinate";
+
+  /**
+   * The default size of the queue of the thread pools of the plugin
+   */
+  public static final int DEFAULT_THREAD_POOL_QUEUE_SIZE = 1000;
+
   private final boolean isEnabled;
 
   @Inject
@@ -74,6 +103,8 @@ public class SirenJoinPlugin extends Plugin {
     module.registerAction(ClearFilterJoinCacheAction.INSTANCE, TransportClearFilterJoinCacheAction.class);
     module.registerAction(StatsFilterJoinCacheAction.INSTANCE, TransportStatsFilterJoinCacheAction.class);
     module.registerAction(GetIndicesVersionAction.INSTANCE, TransportGetIndicesVersionAction.class);
+    module.registerAction(PublishTermsAction.INSTANCE, TransportPublishTermsAction.class);
+    module.registerAction(FilterJoinCacheAction.INSTANCE, TransportFilterJoinCacheAction.class);
   }
 
   public void onModule(IndicesModule module) {
@@ -98,6 +129,18 @@ public class SirenJoinPlugin extends Plugin {
     }
   }
 
+  @Override
+  @SuppressWarnings("rawtypes") // the overridden method of Plugin returns raw LifecycleComponent classes
+  public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+    if (isEnabled) {
+      return Arrays.<Class<? extends LifecycleComponent>>asList(FilterJoinCacheService.class,
+              PublishedTermsService.class);
+    }
+    else {
+      return Collections.emptyList();
+    }
+  }
+
   @Override
   public Collection<Module> shardModules(Settings indexSettings) {
     return Collections.singletonList((Module) new SirenJoinShardModule());
@@ -120,9 +163,20 @@ public class SirenJoinPlugin extends Plugin {
     return "SIREn plugin that adds join capabilities to Elasticsearch";
   }
 
+  /**
+   * Registers the thread pools of the plugin as fixed thread pools with a bounded queue. The size of a fixed thread
+   * pool defaults to the number of processors, and its settings can be overridden in the node settings, e.g.,
+   * <code>threadpool.siren_terms_by_query.size</code>. The statistics of the thread pools, including the number of
+   * rejected executions, are reported by the node stats API.
+   */
   @Override
   public Settings additionalSettings() {
-    return Settings.builder().put(IndexCacheModule.QUERY_CACHE_EVERYTHING, true).build();
+    Settings.Builder builder = Settings.builder().put(IndexCacheModule.QUERY_CACHE_EVERYTHING, true);
+    for (String name : new String[] { TERMS_BY_QUERY_THREAD_POOL, TERMS_COLLECT_THREAD_POOL, COORDINATE_THREAD_POOL }) {
+      builder.put("threadpool." + name + ".type", "fixed");
+      builder.put("threadpool." + name + ".queue_size", DEFAULT_THREAD_POOL_QUEUE_SIZE);
+    }
+    return builder.build();
   }
 
 }
@@ -18,25 +18,268 @@
  */
 package solutions.siren.join.action.admin.cache;
 
-import org.elasticsearch.common.component.AbstractComponent;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
 import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.action.coordinate.execution.InFlightFilterJoins;
 
-public class FilterJoinCacheService extends AbstractComponent {
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Holds the node level {@link FilterJoinCache}.
+ * <br>
+ * If the persistent mode is enabled, the entries of the cache are written to a file under the node data path when the
+ * node stops, and reloaded when the node starts. The cache keys depend on the version of the lookup indices, which is
+ * stable across restarts as long as the indices do not change, see
+ * {@link solutions.siren.join.action.admin.version.IndexVersionShardService}. Therefore, a reloaded entry is only
+ * used if it is still valid, and the stale entries are never hit and eventually evicted.
+ * <br>
+ * If the distributed mode is enabled, the cache ids are partitioned across the nodes of the cluster with a consistent
+ * hashing of the cache ids, so that the coordinating nodes share their cache instead of each computing the same filter
+ * joins. The entries are retrieved from and stored on their owner node with a
+ * {@link solutions.siren.join.action.cache.FilterJoinCacheAction}. An entry which is frequently retrieved from a remote
+ * owner can be replicated in the local cache.
+ */
+public class FilterJoinCacheService extends AbstractLifecycleComponent<FilterJoinCacheService> {
+
+  public final static String SIREN_FILTERJOIN_CACHE_PERSISTENT = "siren.filterjoin.cache.persistent";
+  public final static String SIREN_FILTERJOIN_CACHE_DISTRIBUTED = "siren.filterjoin.cache.distributed";
+  public final static String SIREN_FILTERJOIN_CACHE_REPLICATE_AFTER = "siren.filterjoin.cache.distributed.replicate_after";
+
+  /**
+   * The number of points of a node on the consistent hashing ring, to balance the cache ids across the nodes
+   */
+  private static final int VIRTUAL_NODES = 64;
+
+  /**
+   * The maximum number of cache ids for which the remote hits are counted
+   */
+  private static final int MAX_TRACKED_REMOTE_HITS = 10000;
+
+  private static final String CACHE_FILE_NAME = "filterjoin_cache.dat";
+  private static final int CACHE_FILE_VERSION = 2;
 
   private final FilterJoinCache cache;
 
+  /**
+   * The file where the cache is persisted, or null if the persistent mode is disabled
+   */
+  private final Path cacheFile;
+
+  private final ClusterService clusterService;
+
+  private final boolean isDistributed;
+
+  /**
+   * The consistent hashing ring of the current nodes of the cluster
+   */
+  private volatile Ring ring;
+
+  /**
+   * The number of hits of the entries owned by a remote node, or null if the replication of the hot entries is
+   * disabled
+   */
+  private final Cache<Long, AtomicInteger> remoteHits;
+
+  /**
+   * The number of hits after which an entry owned by a remote node is replicated in the local cache
+   */
+  private final int replicateAfter;
+
+  /**
+   * The filter joins being computed by the coordinated searches of this node
+   */
+  private final InFlightFilterJoins inFlightFilterJoins = new InFlightFilterJoins();
+
   @Inject
-  public FilterJoinCacheService(Settings settings) {
+  public FilterJoinCacheService(Settings settings, NodeEnvironment nodeEnvironment, ClusterService clusterService) {
     super(settings);
     this.cache = new FilterJoinCache(settings);
+    this.clusterService = clusterService;
+
+    this.isDistributed = settings.getAsBoolean(FilterJoinCache.SIREN_FILTERJOIN_CACHE_ENABLED, true) &&
+                         settings.getAsBoolean(SIREN_FILTERJOIN_CACHE_DISTRIBUTED, false);
+    this.replicateAfter = settings.getAsInt(SIREN_FILTERJOIN_CACHE_REPLICATE_AFTER, 0);
+    if (isDistributed && replicateAfter > 0) {
+      this.remoteHits = CacheBuilder.newBuilder().maximumSize(MAX_TRACKED_REMOTE_HITS).build();
+    }
+    else {
+      this.remoteHits = null;
+    }
+
+    boolean isPersistent = settings.getAsBoolean(FilterJoinCache.SIREN_FILTERJOIN_CACHE_ENABLED, true) &&
+                           settings.getAsBoolean(SIREN_FILTERJOIN_CACHE_PERSISTENT, false);
+    if (isPersistent && nodeEnvironment.hasNodeFile()) {
+      this.cacheFile = nodeEnvironment.nodeDataPaths()[0].resolve("siren").resolve(CACHE_FILE_NAME);
+    }
+    else {
+      this.cacheFile = null;
+    }
+  }
+
+  @Override
+  protected void doStart() {
+    if (cacheFile != null && Files.exists(cacheFile)) {
+      try {
+        this.load();
+      }
+      catch (Exception e) {
+        logger.warn("Failed to load the filter join cache from [{}], starting with an empty cache", e, cacheFile);
+      }
+    }
+  }
+
+  @Override
+  protected void doStop() {
+    if (cacheFile != null) {
+      try {
+        this.persist();
+      }
+      catch (Exception e) {
+        logger.warn("Failed to persist the filter join cache to [{}]", e, cacheFile);
+      }
+    }
+  }
+
+  @Override
+  protected void doClose() {}
+
+  /**
+   * Writes the cache entries to a temporary file, then renames it atomically to not leave a partial file behind.
+   */
+  private void persist() throws IOException {
+    long start = System.nanoTime();
+    Files.createDirectories(cacheFile.getParent());
+    Path tmpFile = cacheFile.resolveSibling(CACHE_FILE_NAME + ".tmp");
+
+    int size;
+    CRC32 checksum = new CRC32();
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmpFile));
+         StreamOutput out = new OutputStreamStreamOutput(os)) {
+      StreamOutput checkedOut = new OutputStreamStreamOutput(new CheckedOutputStream(os, checksum));
+      checkedOut.writeInt(CACHE_FILE_VERSION);
+      size = cache.writeEntries(checkedOut);
+      checkedOut.flush();
+      out.writeLong(checksum.getValue());
+    }
+    Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    logger.info("Persisted {} filter join cache entries to [{}] - took {} ms", size, cacheFile,
+            (System.nanoTime() - start) / 1000000);
+  }
+
+  /**
+   * Verifies the checksum of the whole file before decoding the cache entries, so that the lengths read from a
+   * truncated or corrupted file are never used to allocate memory, and adds the entries to the cache.
+   */
+  private void load() throws IOException {
+    long start = System.nanoTime();
+
+    byte[] bytes = Files.readAllBytes(cacheFile);
+    // the version header and the checksum trailer
+    if (bytes.length < 4 + 8) {
+      throw new IOException("Corrupted filter join cache file, truncated to [" + bytes.length + "] bytes");
+    }
+    int length = bytes.length - 8;
+    CRC32 checksum = new CRC32();
+    checksum.update(bytes, 0, length);
+    if (StreamInput.wrap(bytes, length, 8).readLong() != checksum.getValue()) {
+      throw new IOException("Corrupted filter join cache file, checksum mismatch");
+    }
+
+    Map<Long, FilterJoinCache.CacheEntry> entries;
+    try (StreamInput in = StreamInput.wrap(bytes, 0, length)) {
+      int version = in.readInt();
+      if (version != CACHE_FILE_VERSION) {
+        throw new IOException("Unsupported filter join cache file version [" + version + "]");
+      }
+      entries = cache.readEntries(in);
+    }
+    cache.putAll(entries);
+
+    logger.info("Loaded {} filter join cache entries from [{}] - took {} ms", entries.size(), cacheFile,
+            (System.nanoTime() - start) / 1000000);
   }
 
   public FilterJoinCache getCacheInstance() {
     return this.cache;
   }
 
+  /**
+   * Returns the node level registry of the filter joins being computed, so that concurrent identical filter joins are
+   * computed once.
+   */
+  public InFlightFilterJoins getInFlightFilterJoins() {
+    return this.inFlightFilterJoins;
+  }
+
+  /**
+   * Returns true if the cache is distributed across the nodes of the cluster.
+   */
+  public boolean isDistributed() {
+    return isDistributed;
+  }
+
+  /**
+   * Returns the node owning the cache entry of the given cache id, or null if the entry is owned by the local node
+   * or if the cache is not distributed.
+   */
+  @Nullable
+  public DiscoveryNode getOwner(long cacheId) {
+    if (!isDistributed) {
+      return null;
+    }
+    DiscoveryNodes nodes = clusterService.state().nodes();
+    Ring current = ring;
+    if (current == null || current.nodes != nodes) {
+      current = new Ring(nodes);
+      ring = current;
+    }
+    DiscoveryNode owner = current.getOwner(cacheId);
+    return owner == null || owner.equals(nodes.localNode()) ? null : owner;
+  }
+
+  /**
+   * Records a hit of an entry owned by a remote node. Once the entry has been hit a number of times, it is replicated
+   * in the local cache.
+   */
+  public void onRemoteHit(long cacheId, FilterJoinCache.CacheEntry entry) {
+    if (remoteHits == null) {
+      return;
+    }
+    AtomicInteger hits = new AtomicInteger();
+    AtomicInteger previous = remoteHits.asMap().putIfAbsent(cacheId, hits);
+    hits = previous != null ? previous : hits;
+    if (hits.incrementAndGet() >= replicateAfter) {
+      logger.debug("Replicating hot cache entry {} in the local cache", cacheId);
+      remoteHits.invalidate(cacheId);
+      cache.put(cacheId, entry);
+    }
+  }
+
   public void clear() {
     cache.invalidateAll();
   }
@@ -45,4 +288,42 @@ public class FilterJoinCacheService extends AbstractComponent {
     return cache.getStats();
   }
 
+  /**
+   * A consistent hashing ring of the nodes of the cluster. Each node is placed at several points of the ring, and a
+   * cache id is owned by the node of the first point following the cache id on the ring. When a node joins or
+   * leaves the cluster, only the cache ids of its points change owner.
+   */
+  private static class Ring {
+
+    private final DiscoveryNodes nodes;
+    private final TreeMap<Long, DiscoveryNode> points = new TreeMap<>();
+
+    private Ring(DiscoveryNodes nodes) {
+      this.nodes = nodes;
+      for (DiscoveryNode node : nodes) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+          BytesRef bytes = new BytesRef(node.getId() + "#" + i);
+          points.put(hash(bytes.bytes, bytes.offset, bytes.length), node);
+        }
+      }
+    }
+
+    private DiscoveryNode getOwner(long cacheId) {
+      if (points.isEmpty()) {
+        return null;
+      }
+      byte[] bytes = new byte[8];
+      for (int i = 0; i < 8; i++) {
+        bytes[i] = (byte) (cacheId >>> (i * 8));
+      }
+      Map.Entry<Long, DiscoveryNode> point = points.ceilingEntry(hash(bytes, 0, bytes.length));
+      return point == null ? points.firstEntry().getValue() : point.getValue();
+    }
+
+    private static long hash(byte[] bytes, int offset, int length) {
+      return MurmurHash3.hash128(bytes, offset, length, 0, new MurmurHash3.Hash128()).h1;
+    }
+
+  }
+
 }
@@ -78,6 +78,11 @@ public class StatsFilterJoinCacheResponse extends BaseNodesResponse<StatsFilterJ
       builder.field("loadExceptionRate", node.getCacheStats().getCacheStats().loadExceptionRate());
       builder.field("totalLoadTime", node.getCacheStats().getCacheStats().totalLoadTime());
       builder.field("evictionCount", node.getCacheStats().getCacheStats().evictionCount());
+      builder.field("offHeapSize", node.getCacheStats().getOffHeapSize());
+      builder.field("offHeapSizeInBytes", node.getCacheStats().getOffHeapSizeInBytes());
+      builder.field("offHeapHitCount", node.getCacheStats().getOffHeapCacheStats().hitCount());
+      builder.field("offHeapMissCount", node.getCacheStats().getOffHeapCacheStats().missCount());
+      builder.field("offHeapEvictionCount", node.getCacheStats().getOffHeapCacheStats().evictionCount());
       builder.endObject();
       builder.endObject();
     }
@@ -27,6 +27,9 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.action.terms.SegmentTermsCache;
+import solutions.siren.join.action.terms.ShardTermsCache;
+import solutions.siren.join.index.query.TermsSetCache;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -37,16 +40,24 @@ public class TransportClearFilterJoinCacheAction extends TransportNodesAction<Cl
 
   private final ClusterService clusterService;
   private final FilterJoinCacheService cacheService;
+  private final TermsSetCache termsSetCache;
+  private final SegmentTermsCache segmentTermsCache;
+  private final ShardTermsCache shardTermsCache;
 
   @Inject
   public TransportClearFilterJoinCacheAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
                                                 ClusterService clusterService, FilterJoinCacheService cacheService,
+                                                TermsSetCache termsSetCache, SegmentTermsCache segmentTermsCache,
+                                                ShardTermsCache shardTermsCache,
                                                 TransportService transportService, ActionFilters actionFilters,
                                                 IndexNameExpressionResolver indexNameExpressionResolver) {
     super(settings, ClearFilterJoinCacheAction.NAME, clusterName, threadPool, clusterService, transportService,
             actionFilters, indexNameExpressionResolver, ClearFilterJoinCacheRequest.class,
             ClearFilterJoinCacheNodeRequest.class, ThreadPool.Names.MANAGEMENT);
     this.cacheService = cacheService;
+    this.termsSetCache = termsSetCache;
+    this.segmentTermsCache = segmentTermsCache;
+    this.shardTermsCache = shardTermsCache;
     this.clusterService = clusterService;
   }
 
@@ -76,6 +87,9 @@ public class TransportClearFilterJoinCacheAction extends TransportNodesAction<Cl
   protected ClearFilterJoinCacheNodeResponse nodeOperation(ClearFilterJoinCacheNodeRequest request) {
     logger.debug("Clearing filter join cache on node {}", clusterService.localNode());
     cacheService.clear();
+    termsSetCache.invalidateAll();
+    segmentTermsCache.invalidateAll();
+    shardTermsCache.invalidateAll();
     return new ClearFilterJoinCacheNodeResponse(clusterService.localNode(), System.currentTimeMillis());
   }
 
@@ -92,11 +92,15 @@ public class GetIndicesVersionResponse extends BroadcastResponse {
   private long getIndexVersion(List<ShardIndexVersion> shards) {
     long version = 1;
 
-    // order shards per their id before computing the hash
+    // order shards per their id, then the copies of a shard per their version, before computing the hash
     Collections.sort(shards, new Comparator<ShardIndexVersion>() {
       @Override
       public int compare(ShardIndexVersion o1, ShardIndexVersion o2) {
-        return o1.getShardRouting().id() - o2.getShardRouting().id();
+        int cmp = o1.getShardRouting().id() - o2.getShardRouting().id();
+        if (cmp != 0) {
+          return cmp;
+        }
+        return Long.compare(o1.getVersion(), o2.getVersion());
       }
     });
 
@@ -18,19 +18,31 @@
  */
 package solutions.siren.join.action.admin.version;
 
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.hash.MurmurHash3;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.engine.Engine;
-import org.elasticsearch.index.indexing.IndexingOperationListener;
 import org.elasticsearch.index.shard.AbstractIndexShardComponent;
 import org.elasticsearch.index.shard.IndexShard;
 import org.elasticsearch.index.shard.ShardId;
 
 import java.io.Closeable;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Service that tracks changes on a shard index and computes a unique version number.
+ * Service that computes a unique version number for the searchable content of a shard.
+ * <br>
+ * The version is a fingerprint of the segments of the current reader of the shard: the unique id of each segment,
+ * the generations of its deletes and updates, and its number of live documents. It only changes once a refresh makes
+ * new changes searchable, and it is stable across restarts of the node as long as the content of the shard does not
+ * change, so that entries of a persistent filter join cache remain valid.
  * <br>
  * When elasticsearch will have resolved issue #10708, we will be able to reuse the unique sequence number associated
  * to a write operations. This will allow us to compute an index version based on the primary shards only, and not
@@ -38,42 +50,94 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class IndexVersionShardService extends AbstractIndexShardComponent implements Closeable {
 
-  private final AtomicLong version;
-
   private final IndexShard indexShard;
-  private final VersioningIndexingOperationListener versioningIndexingOperationListener;
+
+  /**
+   * The version returned while no reader is available, initialised based on time to never match a cache entry
+   */
+  private final long unavailableVersion = System.nanoTime();
+
+  /**
+   * The fingerprint of the current reader, computed once per reader version
+   */
+  private volatile ReaderVersion readerVersion;
 
   @Inject
   public IndexVersionShardService(ShardId shardId, Settings indexSettings, IndexShard indexShard) {
     super(shardId, indexSettings);
     this.indexShard = indexShard;
-    this.versioningIndexingOperationListener = new VersioningIndexingOperationListener();
-    indexShard.indexingService().addListener(versioningIndexingOperationListener);
-    version = new AtomicLong(System.nanoTime()); // initialise version number based on time to ensure uniqueness even if shard restarted
   }
 
   public long getVersion() {
-    return version.get();
+    try (Engine.Searcher searcher = indexShard.acquireSearcher("siren_index_version")) {
+      return this.getVersion(searcher.getDirectoryReader());
+    }
+    catch (Exception e) {
+      // e.g., the shard is not started yet - the version must be stable until the shard is started
+      logger.debug("Failed to compute the version of the shard", e);
+      return unavailableVersion;
+    }
   }
 
-  @Override
-  public void close() {
-    indexShard.indexingService().removeListener(versioningIndexingOperationListener);
+  /**
+   * Returns the version of the given reader of the shard, e.g., the reader of a search context, so that the version
+   * matches the content searched even if the shard is refreshed concurrently.
+   */
+  public long getVersion(DirectoryReader reader) {
+    ReaderVersion current = readerVersion;
+    if (current == null || current.readerVersion != reader.getVersion()) {
+      current = new ReaderVersion(reader.getVersion(), this.computeVersion(reader));
+      readerVersion = current;
+    }
+    return current.version;
   }
 
-  private class VersioningIndexingOperationListener extends IndexingOperationListener {
+  private long computeVersion(DirectoryReader reader) {
+    BytesRefBuilder builder = new BytesRefBuilder();
+    builder.copyChars(indexSettings.get(IndexMetaData.SETTING_INDEX_UUID, IndexMetaData.INDEX_UUID_NA_VALUE));
+    builder.append((byte) shardId.id());
 
-    @Override
-    public void postIndexUnderLock(Engine.Index index) {
-      version.incrementAndGet();
+    for (LeafReaderContext context : reader.leaves()) {
+      LeafReader leaf = FilterLeafReader.unwrap(context.reader());
+      if (leaf instanceof SegmentReader) {
+        SegmentCommitInfo info = ((SegmentReader) leaf).getSegmentInfo();
+        byte[] id = info.info.getId();
+        builder.append(id, 0, id.length);
+        this.append(builder, info.getDelGen());
+        this.append(builder, info.getFieldInfosGen());
+        this.append(builder, info.getDocValuesGen());
+        // the deletes of a near real-time reader are applied in memory, without advancing the deletes generation
+        this.append(builder, leaf.numDocs());
+      }
+      else { // should not happen, the version is then only valid during the lifetime of the reader
+        this.append(builder, System.identityHashCode(leaf.getCoreCacheKey()));
+        this.append(builder, leaf.numDocs());
+      }
     }
 
-    @Override
-    public void postDeleteUnderLock(Engine.Delete delete) {
-      version.incrementAndGet();
-    }
+    MurmurHash3.Hash128 hash = MurmurHash3.hash128(builder.bytes(), 0, builder.length(), 0, new MurmurHash3.Hash128());
+    return hash.h1 ^ hash.h2;
+  }
 
+  private void append(BytesRefBuilder builder, long value) {
+    for (int i = 0; i < 8; i++) {
+      builder.append((byte) (value >>> (i * 8)));
+    }
   }
 
+  @Override
+  public void close() {}
+
+  private static class ReaderVersion {
+
+    private final long readerVersion;
+    private final long version;
+
+    private ReaderVersion(long readerVersion, long version) {
+      this.readerVersion = readerVersion;
+      this.version = version;
+    }
+
+  }
 
 }
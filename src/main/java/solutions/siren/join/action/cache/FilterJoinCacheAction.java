@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.cache;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Retrieves or stores an entry of the filter join cache on the node owning the entry, when the filter join cache is
+ * distributed across the nodes of the cluster.
+ */
+public class FilterJoinCacheAction extends Action<FilterJoinCacheRequest, FilterJoinCacheResponse, FilterJoinCacheRequestBuilder> {
+
+  public static final FilterJoinCacheAction INSTANCE = new FilterJoinCacheAction();
+  public static final String NAME = "indices:data/read/filterjoin/cache";
+
+  protected FilterJoinCacheAction() {
+    super(NAME);
+  }
+
+  @Override
+  public FilterJoinCacheRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+    return new FilterJoinCacheRequestBuilder(client, this);
+  }
+
+  @Override
+  public FilterJoinCacheResponse newResponse() {
+    return new FilterJoinCacheResponse();
+  }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.cache;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+
+import java.io.IOException;
+
+public class FilterJoinCacheNodeResponse extends BaseNodeResponse {
+
+  @Nullable
+  private FilterJoinCache.CacheEntry entry;
+
+  FilterJoinCacheNodeResponse() {}
+
+  FilterJoinCacheNodeResponse(DiscoveryNode node, @Nullable FilterJoinCache.CacheEntry entry) {
+    super(node);
+    this.entry = entry;
+  }
+
+  /**
+   * The cache entry found on the owner node, or null if none was found or if the request stored an entry.
+   */
+  @Nullable
+  public FilterJoinCache.CacheEntry getEntry() {
+    return entry;
+  }
+
+  public static FilterJoinCacheNodeResponse readNodeResponse(StreamInput in) throws IOException {
+    FilterJoinCacheNodeResponse response = new FilterJoinCacheNodeResponse();
+    response.readFrom(in);
+    return response;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    if (in.readBoolean()) {
+      entry = FilterJoinCache.CacheEntry.readCacheEntry(in);
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    if (entry == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      entry.writeTo(out);
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.cache;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+
+import java.io.IOException;
+
+/**
+ * A request to retrieve the cache entry of a filter join on the node owning the entry. A request with an entry
+ * stores the entry on the owner node instead.
+ */
+public class FilterJoinCacheRequest extends BaseNodesRequest<FilterJoinCacheRequest> {
+
+  private long cacheId;
+
+  @Nullable
+  private FilterJoinCache.CacheEntry entry;
+
+  public FilterJoinCacheRequest() {}
+
+  public FilterJoinCacheRequest(String ownerId, long cacheId) {
+    super(ownerId);
+    this.cacheId = cacheId;
+  }
+
+  /**
+   * The cache id of the filter join.
+   */
+  public long cacheId() {
+    return cacheId;
+  }
+
+  /**
+   * Sets the entry to store on the owner node.
+   */
+  public FilterJoinCacheRequest entry(FilterJoinCache.CacheEntry entry) {
+    this.entry = entry;
+    return this;
+  }
+
+  /**
+   * The entry to store on the owner node, or null if the entry must be retrieved.
+   */
+  @Nullable
+  public FilterJoinCache.CacheEntry entry() {
+    return entry;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    cacheId = in.readLong();
+    if (in.readBoolean()) {
+      entry = FilterJoinCache.CacheEntry.readCacheEntry(in);
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeLong(cacheId);
+    if (entry == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      entry.writeTo(out);
+    }
+  }
+
+}
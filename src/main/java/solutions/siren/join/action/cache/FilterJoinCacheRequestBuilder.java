@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.cache;
+
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+
+public class FilterJoinCacheRequestBuilder extends ActionRequestBuilder<FilterJoinCacheRequest, FilterJoinCacheResponse, FilterJoinCacheRequestBuilder> {
+
+  public FilterJoinCacheRequestBuilder(ElasticsearchClient client, FilterJoinCacheAction action) {
+    super(client, action, new FilterJoinCacheRequest());
+  }
+
+  public FilterJoinCacheRequestBuilder(ElasticsearchClient client, FilterJoinCacheAction action, String ownerId, long cacheId) {
+    super(client, action, new FilterJoinCacheRequest(ownerId, cacheId));
+  }
+
+  /**
+   * Sets the entry to store on the owner node. If not set, the entry is retrieved from the owner node.
+   */
+  public FilterJoinCacheRequestBuilder setEntry(FilterJoinCache.CacheEntry entry) {
+    request.entry(entry);
+    return this;
+  }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.cache;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FilterJoinCacheResponse extends BaseNodesResponse<FilterJoinCacheNodeResponse> {
+
+  private List<FailedNodeException> failures;
+
+  FilterJoinCacheResponse() {}
+
+  FilterJoinCacheResponse(ClusterName clusterName, FilterJoinCacheNodeResponse[] nodes, List<FailedNodeException> failures) {
+    super(clusterName, nodes);
+    this.failures = failures;
+  }
+
+  /**
+   * The cache entry found on the owner node, or null if none was found.
+   */
+  @Nullable
+  public FilterJoinCache.CacheEntry getEntry() {
+    for (FilterJoinCacheNodeResponse node : nodes) {
+      if (node.getEntry() != null) {
+        return node.getEntry();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The failure of the owner node, if any.
+   */
+  public List<FailedNodeException> getFailures() {
+    return failures;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    nodes = new FilterJoinCacheNodeResponse[in.readVInt()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = FilterJoinCacheNodeResponse.readNodeResponse(in);
+    }
+    int size = in.readVInt();
+    failures = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      failures.add((FailedNodeException) in.readThrowable());
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeVInt(nodes.length);
+    for (FilterJoinCacheNodeResponse node : nodes) {
+      node.writeTo(out);
+    }
+    out.writeVInt(failures.size());
+    for (FailedNodeException failure : failures) {
+      out.writeThrowable(failure);
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.cache;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Retrieves or stores an entry in the local filter join cache of the node owning the entry.
+ */
+public class TransportFilterJoinCacheAction extends TransportNodesAction<FilterJoinCacheRequest, FilterJoinCacheResponse,
+        FilterJoinCacheNodeRequest, FilterJoinCacheNodeResponse> {
+
+  private final FilterJoinCacheService cacheService;
+
+  @Inject
+  public TransportFilterJoinCacheAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                        ClusterService clusterService, FilterJoinCacheService cacheService,
+                                        TransportService transportService, ActionFilters actionFilters,
+                                        IndexNameExpressionResolver indexNameExpressionResolver) {
+    super(settings, FilterJoinCacheAction.NAME, clusterName, threadPool, clusterService, transportService,
+            actionFilters, indexNameExpressionResolver, FilterJoinCacheRequest.class,
+            FilterJoinCacheNodeRequest.class, ThreadPool.Names.GENERIC);
+    this.cacheService = cacheService;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes") // the overridden method of TransportNodesAction takes a raw AtomicReferenceArray
+  protected FilterJoinCacheResponse newResponse(FilterJoinCacheRequest request, AtomicReferenceArray nodesResponses) {
+    final List<FilterJoinCacheNodeResponse> nodes = new ArrayList<>();
+    final List<FailedNodeException> failures = new ArrayList<>();
+    for (int i = 0; i < nodesResponses.length(); i++) {
+      Object resp = nodesResponses.get(i);
+      if (resp instanceof FilterJoinCacheNodeResponse) {
+        nodes.add((FilterJoinCacheNodeResponse) resp);
+      }
+      else if (resp instanceof FailedNodeException) {
+        failures.add((FailedNodeException) resp);
+      }
+    }
+    return new FilterJoinCacheResponse(clusterName, nodes.toArray(new FilterJoinCacheNodeResponse[nodes.size()]), failures);
+  }
+
+  @Override
+  protected FilterJoinCacheNodeRequest newNodeRequest(String nodeId, FilterJoinCacheRequest request) {
+    return new FilterJoinCacheNodeRequest(nodeId, request);
+  }
+
+  @Override
+  protected FilterJoinCacheNodeResponse newNodeResponse() {
+    return new FilterJoinCacheNodeResponse();
+  }
+
+  @Override
+  protected FilterJoinCacheNodeResponse nodeOperation(FilterJoinCacheNodeRequest nodeRequest) {
+    FilterJoinCacheRequest request = nodeRequest.getRequest();
+    FilterJoinCache cache = cacheService.getCacheInstance();
+    if (request.entry() != null) {
+      cache.put(request.cacheId(), request.entry());
+      return new FilterJoinCacheNodeResponse(clusterService.localNode(), null);
+    }
+    return new FilterJoinCacheNodeResponse(clusterService.localNode(), cache.get(request.cacheId()));
+  }
+
+  @Override
+  protected boolean accumulateExceptions() {
+    return true;
+  }
+
+}
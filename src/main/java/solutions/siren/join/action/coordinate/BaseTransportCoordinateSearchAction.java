@@ -39,6 +39,7 @@ import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportChannel;
 import org.elasticsearch.transport.TransportRequestHandler;
 import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.SirenJoinPlugin;
 
 import java.io.IOException;
 import java.util.Map;
@@ -57,8 +58,8 @@ extends TransportAction<Request,Response> {
                                                 final IndexNameExpressionResolver indexNameExpressionResolver,
                                                 final Client client, Class<Request> request) {
     super(settings, actionName, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
-    // Use the generic threadpool, as we can end up with deadlock with the SEARCH threadpool
-    transportService.registerRequestHandler(actionName, request, ThreadPool.Names.GENERIC, new TransportHandler());
+    // Use a dedicated threadpool, as we can end up with deadlock with the SEARCH threadpool
+    transportService.registerRequestHandler(actionName, request, SirenJoinPlugin.COORDINATE_THREAD_POOL, new TransportHandler());
     this.client = client;
   }
 
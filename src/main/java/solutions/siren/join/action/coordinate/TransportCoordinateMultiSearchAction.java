@@ -27,18 +27,19 @@ import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.concurrent.AtomicArray;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.SirenJoinPlugin;
 import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
 import solutions.siren.join.action.coordinate.execution.*;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -46,7 +47,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  * The transport action for a coordinated multi-search. It converts the filter joins defined in all the requests into
  * binary terms filters, reusing cached computation when possible.
  * <br>
- * The {@link #doExecuteRequest(MultiSearchRequest, ActionListener, List)} is a copy of
+ * The filter joins of the requests are converted concurrently, and each request is executed as soon as its own
+ * filter joins are converted. Identical filter joins that are computed at the same time, by the requests of this
+ * multi-search or by other coordinated searches of the node, are executed only once, see {@link InFlightFilterJoins}.
+ * <br>
+ * The {@link #doExecute(MultiSearchRequest, ActionListener)} is adapted from
  * {@link TransportMultiSearchAction#doExecute(MultiSearchRequest, ActionListener)} where we instantiate a
  * {@link CoordinateMultiSearchResponse} instead of a {@link MultiSearchResponse}.
  *
@@ -60,71 +65,40 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
 
   private final FilterJoinCacheService cacheService;
 
+  private final CircuitBreakerService breakerService;
+
   @Inject
   public TransportCoordinateMultiSearchAction(Settings settings, ThreadPool threadPool,
                                               TransportService transportService, ClusterService clusterService,
                                               FilterJoinCacheService cacheService,
                                               TransportSearchAction search, ActionFilters actionFilters,
-                                              IndexNameExpressionResolver indexNameExpressionResolver, Client client) {
+                                              IndexNameExpressionResolver indexNameExpressionResolver, Client client,
+                                              CircuitBreakerService breakerService) {
     super(settings, CoordinateMultiSearchAction.NAME, threadPool, transportService, actionFilters,
             indexNameExpressionResolver, client, MultiSearchRequest.class);
     this.searchAction = search;
     this.clusterService = clusterService;
     this.cacheService = cacheService;
+    this.breakerService = breakerService;
   }
 
   @Override
   protected void doExecute(final MultiSearchRequest request, final ActionListener<MultiSearchResponse> listener) {
     logger.debug("{}: Execute coordinated multi-search action", Thread.currentThread().getName());
 
-    List<CoordinateSearchMetadata> metadatas = new ArrayList<>(request.requests().size());
-    this.doExecuteFilterJoins(request, metadatas);
-    this.doExecuteRequest(request, listener, metadatas);
-
-    logger.debug("{}: Coordinated multi-search action completed", Thread.currentThread().getName());
-  }
-
-  private void doExecuteFilterJoins(final MultiSearchRequest request,
-                                    final List<CoordinateSearchMetadata> metadatas) {
-    FilterJoinCache cache = cacheService.getCacheInstance();
-
-    for (int i = 0; i < request.requests().size(); i++) {
-      // Parse query source
-      Tuple<XContentType, Map<String, Object>> parsedSource = this.parseSource(request.requests().get(i).source());
-      Map<String, Object> map = parsedSource.v2();
-
-      // Unwrap "wrapper" queries
-      WrapperQueryVisitor wrapperVisitor = new WrapperQueryVisitor(map);
-      wrapperVisitor.traverse();
-
-      // Query planning and execution of filter joins
-      SourceMapVisitor mapVisitor = new SourceMapVisitor(map);
-      mapVisitor.traverse();
-      FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cache, request);
-      joinVisitor.traverse();
-      metadatas.add(joinVisitor.getMetadata());
-
-      // Filter joins have been replaced by a binary terms filter
-      // Rebuild the query source, and delegate the execution of the search action
-      request.requests().get(i).source(this.buildSource(parsedSource.v1().xContent(), map));
-    }
-  }
-
-  private void doExecuteRequest(final MultiSearchRequest request, final ActionListener<MultiSearchResponse> listener,
-                                final List<CoordinateSearchMetadata> metadatas) {
     ClusterState clusterState = clusterService.state();
     clusterState.blocks().globalBlockedRaiseException(ClusterBlockLevel.READ);
 
     final AtomicArray<CoordinateMultiSearchResponse.Item> responses = new AtomicArray<>(request.requests().size());
     final AtomicInteger counter = new AtomicInteger(responses.length());
+
     for (int i = 0; i < responses.length(); i++) {
       final int index = i;
-      SearchRequest searchRequest = new SearchRequest(request.requests().get(i), request);
-      searchAction.execute(searchRequest, new ActionListener<SearchResponse>() {
+      this.doExecuteRequest(request, index, new ActionListener<CoordinateSearchResponse>() {
 
         @Override
-        public void onResponse(SearchResponse searchResponse) {
-          responses.set(index, new CoordinateMultiSearchResponse.Item(new CoordinateSearchResponse(searchResponse, metadatas.get(index)), null));
+        public void onResponse(CoordinateSearchResponse searchResponse) {
+          responses.set(index, new CoordinateMultiSearchResponse.Item(searchResponse, null));
           if (counter.decrementAndGet() == 0) {
             finishHim();
           }
@@ -139,6 +113,7 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
         }
 
         private void finishHim() {
+          logger.debug("{}: Coordinated multi-search action completed", Thread.currentThread().getName());
           listener.onResponse(new CoordinateMultiSearchResponse(responses.toArray(new CoordinateMultiSearchResponse.Item[responses.length()])));
         }
 
@@ -146,4 +121,74 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
     }
   }
 
+  /**
+   * Converts the filter joins of the request at the given position, then executes it. The terms published by the
+   * filter joins of the request are released once it is completed.
+   */
+  private void doExecuteRequest(final MultiSearchRequest request, final int index,
+                                final ActionListener<CoordinateSearchResponse> listener) {
+    final SearchRequest searchRequest = request.requests().get(index);
+    final Tuple<XContentType, Map<String, Object>> parsedSource;
+    final FilterJoinVisitor joinVisitor;
+    try {
+      // Parse query source
+      parsedSource = this.parseSource(searchRequest.source());
+      Map<String, Object> map = parsedSource.v2();
+
+      // Unwrap "wrapper" queries
+      WrapperQueryVisitor wrapperVisitor = new WrapperQueryVisitor(map);
+      wrapperVisitor.traverse();
+
+      // Query planning and execution of filter joins
+      SourceMapVisitor mapVisitor = new SourceMapVisitor(map);
+      mapVisitor.traverse();
+      joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cacheService,
+              breakerService.getBreaker(CircuitBreaker.REQUEST), request, searchRequest.indices(),
+              searchRequest.types(), threadPool.executor(SirenJoinPlugin.COORDINATE_THREAD_POOL));
+    }
+    catch (Throwable e) {
+      listener.onFailure(e);
+      return;
+    }
+
+    joinVisitor.traverse(new ActionListener<CoordinateSearchMetadata>() {
+
+      @Override
+      public void onResponse(final CoordinateSearchMetadata metadata) {
+        try {
+          // Filter joins have been replaced by a binary terms filter
+          // Rebuild the query source, and delegate the execution of the search action
+          searchRequest.source(buildSource(parsedSource.v1().xContent(), parsedSource.v2()));
+        }
+        catch (Throwable e) {
+          onFailure(e);
+          return;
+        }
+
+        searchAction.execute(new SearchRequest(searchRequest, request), new ActionListener<SearchResponse>() {
+
+          @Override
+          public void onResponse(SearchResponse searchResponse) {
+            joinVisitor.releasePublishedTerms();
+            listener.onResponse(new CoordinateSearchResponse(searchResponse, metadata));
+          }
+
+          @Override
+          public void onFailure(Throwable e) {
+            joinVisitor.releasePublishedTerms();
+            listener.onFailure(e);
+          }
+
+        });
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        joinVisitor.releasePublishedTerms();
+        listener.onFailure(e);
+      }
+
+    });
+  }
+
 }
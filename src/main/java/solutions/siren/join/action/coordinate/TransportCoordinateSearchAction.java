@@ -25,12 +25,15 @@ import org.elasticsearch.action.search.TransportSearchAction;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.SirenJoinPlugin;
 import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
 import solutions.siren.join.action.coordinate.execution.*;
 
@@ -45,56 +48,76 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
 
   private final FilterJoinCacheService cacheService;
 
+  private final CircuitBreakerService breakerService;
+
   @Inject
   public TransportCoordinateSearchAction(Settings settings, ThreadPool threadPool,
                                          TransportService transportService, FilterJoinCacheService cacheService,
                                          ActionFilters actionFilters, TransportSearchAction searchAction,
-                                         IndexNameExpressionResolver indexNameExpressionResolver, Client client) {
+                                         IndexNameExpressionResolver indexNameExpressionResolver, Client client,
+                                         CircuitBreakerService breakerService) {
     super(settings, CoordinateSearchAction.NAME, threadPool, transportService, actionFilters,
             indexNameExpressionResolver, client, SearchRequest.class);
     this.searchAction = searchAction;
     this.cacheService = cacheService;
+    this.breakerService = breakerService;
   }
 
   @Override
   protected void doExecute(final SearchRequest request, final ActionListener<SearchResponse> listener) {
     logger.debug("{}: Execute coordinated search action", Thread.currentThread().getName());
 
-    // A reference to the listener that will be used - can be overwritten to reference a CoordinateSearchListener
-    ActionListener<SearchResponse> actionListener = listener;
-
-    // Retrieve the singleton instance of the filterjoin cache
-    FilterJoinCache cache = cacheService.getCacheInstance();
-
     // Parse query source
-    Tuple<XContentType, Map<String, Object>> parsedSource = this.parseSource(request.source());
-    if (parsedSource != null) { // can be null if this is a uri search (query parameter in extraSource)
-      Map<String, Object> map = parsedSource.v2();
-
-      // Unwrap "wrapper" queries
-      WrapperQueryVisitor wrapperVisitor = new WrapperQueryVisitor(map);
-      wrapperVisitor.traverse();
-
-      // Query planning and execution of filter joins
-      SourceMapVisitor mapVisitor = new SourceMapVisitor(map);
-      mapVisitor.traverse();
-      FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cache, request);
-      joinVisitor.traverse();
-
-      // Wraps the listener with our own to inject metadata information in the response
-      CoordinateSearchListener coordinateSearchListener = new CoordinateSearchListener(listener);
-      coordinateSearchListener.setMetadata(joinVisitor.getMetadata());
-      actionListener = coordinateSearchListener;
-
-      // Filter joins have been replaced by a binary terms filter
-      // Rebuild the query source, and delegate the execution of the search action
-      request.source(this.buildSource(parsedSource.v1().xContent(), map));
+    final Tuple<XContentType, Map<String, Object>> parsedSource = this.parseSource(request.source());
+    if (parsedSource == null) { // can be null if this is a uri search (query parameter in extraSource)
+      // Delegate the execution of the request to the original search action
+      this.searchAction.execute(request, listener);
+      return;
     }
 
-    // Delegate the execution of the request to the original search action
-    this.searchAction.execute(request, actionListener);
-
-    logger.debug("{}: Coordinated search action completed", Thread.currentThread().getName());
+    final Map<String, Object> map = parsedSource.v2();
+
+    // Unwrap "wrapper" queries
+    WrapperQueryVisitor wrapperVisitor = new WrapperQueryVisitor(map);
+    wrapperVisitor.traverse();
+
+    // Query planning and execution of filter joins
+    SourceMapVisitor mapVisitor = new SourceMapVisitor(map);
+    mapVisitor.traverse();
+    final FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cacheService,
+            breakerService.getBreaker(CircuitBreaker.REQUEST), request, request.indices(), request.types(),
+            threadPool.executor(SirenJoinPlugin.COORDINATE_THREAD_POOL));
+    joinVisitor.traverse(new ActionListener<CoordinateSearchMetadata>() {
+
+      @Override
+      public void onResponse(CoordinateSearchMetadata metadata) {
+        // Wraps the listener with our own to inject metadata information in the response
+        CoordinateSearchListener coordinateSearchListener = new CoordinateSearchListener(listener);
+        coordinateSearchListener.setMetadata(metadata);
+        coordinateSearchListener.setVisitor(joinVisitor);
+
+        try {
+          // Filter joins have been replaced by a binary terms filter
+          // Rebuild the query source, and delegate the execution of the search action
+          request.source(buildSource(parsedSource.v1().xContent(), map));
+        }
+        catch (Throwable e) {
+          coordinateSearchListener.onFailure(e);
+          return;
+        }
+
+        // Delegate the execution of the request to the original search action
+        searchAction.execute(request, coordinateSearchListener);
+        logger.debug("{}: Coordinated search action completed", Thread.currentThread().getName());
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        joinVisitor.releasePublishedTerms();
+        listener.onFailure(e);
+      }
+
+    });
   }
 
   /**
@@ -107,6 +130,8 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
 
     private CoordinateSearchMetadata metadata;
 
+    private FilterJoinVisitor visitor;
+
     public CoordinateSearchListener(final ActionListener<SearchResponse> listener) {
       this.actionListener = listener;
     }
@@ -115,14 +140,29 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
       this.metadata = metadata;
     }
 
+    /**
+     * Sets the visitor whose published terms must be released once the search is completed.
+     */
+    public void setVisitor(FilterJoinVisitor visitor) {
+      this.visitor = visitor;
+    }
+
+    private void releasePublishedTerms() {
+      if (visitor != null) {
+        visitor.releasePublishedTerms();
+      }
+    }
+
     @Override
     public final void onResponse(SearchResponse response) {
+      this.releasePublishedTerms();
       CoordinateSearchResponse r = new CoordinateSearchResponse(response, metadata);
       this.actionListener.onResponse(r);
     }
 
     @Override
     public final void onFailure(Throwable e) {
+      this.releasePublishedTerms();
       this.actionListener.onFailure(e);
     }
 
@@ -97,6 +97,7 @@ public class CoordinateSearchMetadata {
     boolean cacheHit;
     long tookInMillis;
     TermsByQueryRequest.TermsEncoding termsEncoding;
+    String termsEncodingReason;
     TermsByQueryRequest.Ordering ordering;
     int maxTermsPerShard;
 
@@ -110,6 +111,7 @@ public class CoordinateSearchMetadata {
       static final XContentBuilderString CACHE_HIT = new XContentBuilderString("cache_hit");
       static final XContentBuilderString TOOK = new XContentBuilderString("took");
       static final XContentBuilderString TERMS_ENCODING = new XContentBuilderString("terms_encoding");
+      static final XContentBuilderString TERMS_ENCODING_REASON = new XContentBuilderString("terms_encoding_reason");
       static final XContentBuilderString ORDERING = new XContentBuilderString("order_by");
       static final XContentBuilderString MAX_TERMS_PER_SHARD = new XContentBuilderString("max_terms_per_shard");
     }
@@ -164,6 +166,21 @@ public class CoordinateSearchMetadata {
       this.termsEncoding = termsEncoding;
     }
 
+    /**
+     * Sets the reason of the selection of the terms encoding, if the encoding was selected by the coordinator.
+     */
+    void setTermsEncodingReason(String termsEncodingReason) {
+      this.termsEncodingReason = termsEncodingReason;
+    }
+
+    public TermsByQueryRequest.TermsEncoding termsEncoding() {
+      return termsEncoding;
+    }
+
+    public String termsEncodingReason() {
+      return termsEncodingReason;
+    }
+
     public void setMaxTermsPerShard(Integer maxTermsPerShard) {
       this.maxTermsPerShard = maxTermsPerShard == null ? -1 : maxTermsPerShard;
     }
@@ -192,6 +209,9 @@ public class CoordinateSearchMetadata {
       builder.field(Fields.IS_PRUNED, isPruned);
       builder.field(Fields.CACHE_HIT, cacheHit);
       builder.field(Fields.TERMS_ENCODING, termsEncoding.name().toLowerCase(Locale.ROOT));
+      if (termsEncodingReason != null) {
+        builder.field(Fields.TERMS_ENCODING_REASON, termsEncodingReason);
+      }
       if (ordering != null) {
         builder.field(Fields.ORDERING, ordering.name().toLowerCase(Locale.ROOT));
       }
@@ -216,6 +236,7 @@ public class CoordinateSearchMetadata {
       this.cacheHit = in.readBoolean();
       this.tookInMillis = in.readLong();
       this.termsEncoding = TermsByQueryRequest.TermsEncoding.values()[in.readVInt()];
+      this.termsEncodingReason = in.readOptionalString();
       if (in.readBoolean()) {
         this.ordering = TermsByQueryRequest.Ordering.values()[in.readVInt()];
       }
@@ -233,6 +254,7 @@ public class CoordinateSearchMetadata {
       out.writeBoolean(cacheHit);
       out.writeLong(tookInMillis);
       out.writeVInt(termsEncoding.ordinal());
+      out.writeOptionalString(termsEncodingReason);
       if (ordering == null) {
         out.writeBoolean(false);
       } else {
@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A size-bounded cache with a cost-aware admission and eviction policy. It combines the Greedy-Dual-Size-Frequency
+ * (GDSF) eviction policy with a TinyLFU admission filter.
+ * <br>
+ * Each entry has a priority <code>clock + frequency * cost / weight</code>, where the frequency is the estimated
+ * number of accesses to the key, the cost is the time it took to compute the value, and the weight is its size in
+ * bytes. The entry with the lowest priority is evicted first, and the clock is advanced to its priority, so that
+ * the entries which are not accessed anymore age over time. The access frequencies are estimated with a count-min
+ * sketch which also records the accesses to keys which are not in the cache, and which is periodically halved.
+ * <br>
+ * A new entry is only admitted if its priority is higher than the priority of all the entries it would evict. A
+ * large and rarely accessed entry cannot therefore flush many small, hot and expensive entries. The evicted entries
+ * and the rejected new entries are given to the {@link EvictionListener}.
+ * <br>
+ * The cache is thread-safe. All the operations are synchronized, which is acceptable given that the cache is accessed
+ * once per filter join.
+ */
+public class CostAwareCache<K, V> {
+
+  private final long maxWeight;
+  private final Weigher<K, V> weigher;
+  private final CostFunction<V> costFunction;
+  private final EvictionListener<K, V> listener;
+
+  private final FrequencySketch sketch;
+
+  private final Map<K, Node<K, V>> entries = new HashMap<>();
+
+  /**
+   * The entries ordered by ascending priority
+   */
+  private final TreeSet<Node<K, V>> queue = new TreeSet<>();
+
+  /**
+   * The priority of the last evicted entry
+   */
+  private double clock = 0;
+
+  private long weight = 0;
+  private long sequence = 0;
+
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+
+  /**
+   * Computes the cost of recomputing a value of the cache
+   */
+  public interface CostFunction<V> {
+
+    long cost(V value);
+
+  }
+
+  /**
+   * Notified of the entries evicted from the cache, and of the new entries that were not admitted.
+   */
+  public interface EvictionListener<K, V> {
+
+    void onEviction(K key, V value);
+
+  }
+
+  public CostAwareCache(long maxWeight, Weigher<K, V> weigher, CostFunction<V> costFunction,
+                        EvictionListener<K, V> listener) {
+    this(maxWeight, FrequencySketch.DEFAULT_WIDTH, weigher, costFunction, listener);
+  }
+
+  public CostAwareCache(long maxWeight, int sketchWidth, Weigher<K, V> weigher, CostFunction<V> costFunction,
+                        EvictionListener<K, V> listener) {
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.costFunction = costFunction;
+    this.listener = listener;
+    this.sketch = new FrequencySketch(sketchWidth);
+  }
+
+  /**
+   * Returns the value associated with the key, or null if there is no cached value for the key.
+   */
+  public V getIfPresent(K key) {
+    synchronized (this) {
+      sketch.increment(key.hashCode());
+      Node<K, V> node = entries.get(key);
+      if (node == null) {
+        missCount++;
+        return null;
+      }
+      hitCount++;
+      queue.remove(node);
+      node.priority = this.priority(key, node.cost, node.weight);
+      node.sequence = sequence++;
+      queue.add(node);
+      return node.value;
+    }
+  }
+
+  /**
+   * Associates the value with the key if it is admitted, or notifies the {@link EvictionListener} otherwise.
+   */
+  public void put(K key, V value) {
+    Map<K, V> evicted = new HashMap<>();
+    synchronized (this) {
+      Node<K, V> previous = entries.remove(key);
+      if (previous != null) {
+        queue.remove(previous);
+        weight -= previous.weight;
+      }
+
+      int valueWeight = weigher.weigh(key, value);
+      long cost = costFunction.cost(value);
+      double priority = this.priority(key, cost, valueWeight);
+
+      if (this.admit(valueWeight, priority)) {
+        while (weight + valueWeight > maxWeight) {
+          Node<K, V> victim = queue.pollFirst();
+          entries.remove(victim.key);
+          weight -= victim.weight;
+          clock = Math.max(clock, victim.priority);
+          evictionCount++;
+          evicted.put(victim.key, victim.value);
+        }
+        Node<K, V> node = new Node<>(key, value, valueWeight, cost, priority, sequence++);
+        entries.put(key, node);
+        queue.add(node);
+        weight += valueWeight;
+      }
+      else {
+        evictionCount++;
+        evicted.put(key, value);
+      }
+    }
+
+    // notifies the listener outside of the lock, as it might be expensive
+    for (Map.Entry<K, V> entry : evicted.entrySet()) {
+      listener.onEviction(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Returns true if the new entry can be added, i.e., if it fits in the cache and if its priority is higher than the
+   * priority of the entries that must be evicted to make room for it.
+   */
+  private boolean admit(int valueWeight, double priority) {
+    if (valueWeight > maxWeight) {
+      return false;
+    }
+    long freed = maxWeight - weight;
+    Iterator<Node<K, V>> it = queue.iterator();
+    while (freed < valueWeight) {
+      Node<K, V> victim = it.next();
+      if (victim.priority > priority) {
+        return false;
+      }
+      freed += victim.weight;
+    }
+    return true;
+  }
+
+  private double priority(K key, long cost, int weight) {
+    int frequency = Math.max(1, sketch.frequency(key.hashCode()));
+    return clock + ((double) frequency * (cost + 1)) / Math.max(1, weight);
+  }
+
+  /**
+   * Discards the value associated with the key. The {@link EvictionListener} is not notified.
+   */
+  public synchronized void invalidate(K key) {
+    Node<K, V> node = entries.remove(key);
+    if (node != null) {
+      queue.remove(node);
+      weight -= node.weight;
+    }
+  }
+
+  /**
+   * Discards all the entries. The {@link EvictionListener} is not notified.
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    queue.clear();
+    weight = 0;
+  }
+
+  /**
+   * Returns a copy of the entries of the cache.
+   */
+  public synchronized Map<K, V> snapshot() {
+    Map<K, V> snapshot = new HashMap<>(entries.size());
+    for (Node<K, V> node : entries.values()) {
+      snapshot.put(node.key, node.value);
+    }
+    return snapshot;
+  }
+
+  public synchronized long size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the sum of the weights of the entries.
+   */
+  public synchronized long weight() {
+    return weight;
+  }
+
+  /**
+   * Returns a snapshot of the statistics of the cache. The load statistics are not recorded and are always 0.
+   */
+  public synchronized CacheStats stats() {
+    return new CacheStats(hitCount, missCount, 0, 0, 0, evictionCount);
+  }
+
+  private static class Node<K, V> implements Comparable<Node<K, V>> {
+
+    private final K key;
+    private final V value;
+    private final int weight;
+    private final long cost;
+    private double priority;
+
+    /**
+     * Breaks ties between entries with the same priority, the least recently used one being evicted first
+     */
+    private long sequence;
+
+    private Node(K key, V value, int weight, long cost, double priority, long sequence) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+      this.cost = cost;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Node<K, V> other) {
+      int cmp = Double.compare(priority, other.priority);
+      return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+    }
+
+  }
+
+  /**
+   * A count-min sketch with 4 rows of 4-bit counters, as in TinyLFU. The counters are halved once the number of
+   * increments reaches 10 times the width of the sketch, so that the old accesses fade away.
+   */
+  static class FrequencySketch {
+
+    static final int DEFAULT_WIDTH = 1 << 16;
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = new int[] { 0x97cb3127, 0xa2d4f1b5, 0x4f2c9e3d, 0x5c9d3f17 };
+
+    private final byte[][] table;
+    private final int mask;
+    private final int resetThreshold;
+    private int additions = 0;
+
+    FrequencySketch(int width) {
+      int capacity = Integer.highestOneBit(Math.max(16, width) - 1) << 1;
+      this.table = new byte[DEPTH][capacity];
+      this.mask = capacity - 1;
+      this.resetThreshold = 10 * capacity;
+    }
+
+    void increment(int hash) {
+      boolean incremented = false;
+      for (int i = 0; i < DEPTH; i++) {
+        int index = this.index(hash, i);
+        if (table[i][index] < MAX_COUNT) {
+          table[i][index]++;
+          incremented = true;
+        }
+      }
+      if (incremented && ++additions >= resetThreshold) {
+        this.reset();
+      }
+    }
+
+    int frequency(int hash) {
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        frequency = Math.min(frequency, table[i][this.index(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      for (byte[] row : table) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] >>>= 1;
+        }
+      }
+      additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+      int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+      h ^= h >>> 16;
+      return h & mask;
+    }
+
+  }
+
+}
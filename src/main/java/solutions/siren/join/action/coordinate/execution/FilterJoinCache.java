@@ -21,6 +21,8 @@ package solutions.siren.join.action.coordinate.execution;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.io.stream.StreamInput;
@@ -29,45 +31,116 @@ import org.elasticsearch.common.io.stream.Streamable;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRefCounted;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
+import solutions.siren.join.common.DirectBuffers;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * The filter join cache. It is thread-safe (use a {@link Cache} underneath).
+ * The filter join cache. It is thread-safe (use a {@link CostAwareCache} underneath).
  * The cache is based on a unique {@link FilterJoinNode}'s cache id, computed based on the source map
  * of the filter join.
+ * <br>
+ * The eviction policy of the cache takes into account the time it took to compute a join, the frequency of the join
+ * and the size of its encoded terms, so that a large and rarely reused join does not flush the small, hot and
+ * expensive ones. See {@link CostAwareCache}.
+ * <br>
+ * The cache has an optional off-heap tier. The entries evicted from the on-heap cache because of its size are moved
+ * to the off-heap tier, where the encoded terms are stored in direct byte buffers. An entry found in the off-heap tier
+ * is copied on the heap for the duration of the request only, so that large and hot join results do not end up in the
+ * old generation. The direct buffers of the removed entries are freed explicitly, see {@link OffHeapCacheEntry}.
  */
 public class FilterJoinCache {
 
-  private final Cache<Long, CacheEntry> cache;
+  private final CostAwareCache<Long, CacheEntry> cache;
+
+  /**
+   * The off-heap tier, or null if disabled
+   */
+  private final Cache<Long, OffHeapCacheEntry> offHeapCache;
+
+  /**
+   * The size in bytes of the entries of the off-heap tier
+   */
+  private final AtomicLong offHeapSizeInBytes = new AtomicLong();
+
+  /**
+   * The maximum size (in bytes) of the off-heap tier
+   */
+  private final long offHeapSize;
 
   /**
    * The maximum size (in bytes) of the cache. Default to 256MB.
    */
-  private static final int DEFAULT_CACHE_SIZE = 268435456;
+  private static final ByteSizeValue DEFAULT_CACHE_SIZE = new ByteSizeValue(256, ByteSizeUnit.MB);
+
+  /**
+   * The maximum size (in bytes) of the off-heap tier. Default to 0, i.e., disabled.
+   */
+  private static final ByteSizeValue DEFAULT_OFF_HEAP_CACHE_SIZE = new ByteSizeValue(0);
 
   public final static String SIREN_FILTERJOIN_CACHE_ENABLED = "siren.filterjoin.cache.enabled";
   public final static String SIREN_FILTERJOIN_CACHE_SIZE = "siren.filterjoin.cache.size";
+  public final static String SIREN_FILTERJOIN_CACHE_OFF_HEAP_SIZE = "siren.filterjoin.cache.off_heap.size";
 
   private static final ESLogger logger = Loggers.getLogger(FilterJoinCache.class);
 
+  /**
+   * Records the accesses to the cache, one per line, in the format expected by the replay benchmark of the cache
+   * policy: <code>get &lt;key&gt;</code> and <code>put &lt;key&gt; &lt;bytes&gt; &lt;tookInMillis&gt;</code>.
+   */
+  private static final ESLogger traceLogger = Loggers.getLogger(logger, ".trace");
+
   public FilterJoinCache(Settings settings) {
     boolean isEnabled = settings.getAsBoolean(SIREN_FILTERJOIN_CACHE_ENABLED, true);
-    long size = settings.getAsInt(SIREN_FILTERJOIN_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    long size = settings.getAsBytesSize(SIREN_FILTERJOIN_CACHE_SIZE, DEFAULT_CACHE_SIZE).bytes();
+    this.offHeapSize = settings.getAsBytesSize(SIREN_FILTERJOIN_CACHE_OFF_HEAP_SIZE,
+            DEFAULT_OFF_HEAP_CACHE_SIZE).bytes();
 
-    if (isEnabled) {
-      this.cache = CacheBuilder.newBuilder()
+    if (isEnabled && offHeapSize > 0) {
+      // a single segment, so that the maximum weight bounds an entry instead of a fraction of it
+      this.offHeapCache = CacheBuilder.newBuilder()
               .recordStats()
-              .maximumWeight(size)
-              .weigher(new CacheEntryWeigher())
+              .concurrencyLevel(1)
+              .maximumWeight(offHeapSize)
+              .weigher(new OffHeapCacheEntryWeigher())
+              .removalListener(new RemovalListener<Long, OffHeapCacheEntry>() {
+
+                @Override
+                public void onRemoval(RemovalNotification<Long, OffHeapCacheEntry> notification) {
+                  // the direct buffer is freed once the entry is not read anymore
+                  offHeapSizeInBytes.addAndGet(-notification.getValue().buffer.capacity());
+                  notification.getValue().decRef();
+                }
+
+              })
               .build();
     }
     else {
-      this.cache = CacheBuilder.newBuilder().maximumSize(0).build();
+      this.offHeapCache = null;
     }
+
+    // if the cache is disabled, no entry is admitted
+    this.cache = new CostAwareCache<>(isEnabled ? size : 0, new CacheEntryWeigher(), new CacheEntryCostFunction(),
+            new CostAwareCache.EvictionListener<Long, CacheEntry>() {
+
+              @Override
+              public void onEviction(Long key, CacheEntry value) {
+                if (offHeapCache != null) {
+                  moveOffHeap(key, value);
+                }
+              }
+
+            });
   }
 
   /**
@@ -75,23 +148,104 @@ public class FilterJoinCache {
    */
   public void put(final long cacheKey, final FilterJoinTerms terms) {
     logger.debug("{}: New cache entry {}", Thread.currentThread().getName(), cacheKey);
-    this.cache.put(cacheKey, new CacheEntry(terms.getEncodedTerms(), terms.getSize(), terms.isPruned()));
+    traceLogger.trace("put {} {} {}", cacheKey, terms.getEncodedTerms().length, terms.getTookInMillis());
+    this.cache.put(cacheKey, new CacheEntry(terms));
+  }
+
+  /**
+   * Caches the given entry, e.g., an entry received from another node.
+   */
+  public void put(final long cacheKey, final CacheEntry entry) {
+    logger.debug("{}: New cache entry {}", Thread.currentThread().getName(), cacheKey);
+    this.cache.put(cacheKey, entry);
   }
 
   /**
    * Retrieves the list of encoded terms for the given filter join node.
    */
   public CacheEntry get(final long cacheKey) {
+    traceLogger.trace("get {}", cacheKey);
     CacheEntry entry = this.cache.getIfPresent(cacheKey);
+    if (entry == null && offHeapCache != null) {
+      OffHeapCacheEntry offHeapEntry = offHeapCache.getIfPresent(cacheKey);
+      if (offHeapEntry != null) {
+        entry = offHeapEntry.toCacheEntry();
+      }
+    }
     return entry;
   }
 
+  /**
+   * Moves an entry evicted from, or not admitted by, the on-heap cache to the off-heap tier. An entry larger than the
+   * off-heap tier is dropped before its direct buffer is allocated.
+   */
+  private void moveOffHeap(long cacheKey, CacheEntry entry) {
+    if (entry.encodedTerms.length > offHeapSize) {
+      return;
+    }
+    logger.debug("{}: Move cache entry {} off-heap", Thread.currentThread().getName(), cacheKey);
+    OffHeapCacheEntry offHeapEntry = new OffHeapCacheEntry(entry);
+    offHeapSizeInBytes.addAndGet(offHeapEntry.buffer.capacity());
+    offHeapCache.put(cacheKey, offHeapEntry);
+  }
+
+  /**
+   * Writes the entries of the cache, including the ones of the off-heap tier, so that they can be reloaded with
+   * {@link #readEntries(StreamInput)}.
+   */
+  public int writeEntries(StreamOutput out) throws IOException {
+    Map<Long, CacheEntry> entries = cache.snapshot();
+    if (offHeapCache != null) {
+      for (Map.Entry<Long, OffHeapCacheEntry> entry : offHeapCache.asMap().entrySet()) {
+        if (!entries.containsKey(entry.getKey())) {
+          CacheEntry cacheEntry = entry.getValue().toCacheEntry();
+          if (cacheEntry != null) {
+            entries.put(entry.getKey(), cacheEntry);
+          }
+        }
+      }
+    }
+
+    out.writeVInt(entries.size());
+    for (Map.Entry<Long, CacheEntry> entry : entries.entrySet()) {
+      out.writeLong(entry.getKey());
+      entry.getValue().writeTo(out);
+    }
+    return entries.size();
+  }
+
+  /**
+   * Reads the entries written by {@link #writeEntries(StreamOutput)}. The entries are not added to the cache.
+   */
+  public Map<Long, CacheEntry> readEntries(StreamInput in) throws IOException {
+    int size = in.readVInt();
+    Map<Long, CacheEntry> entries = new HashMap<>(size);
+    for (int i = 0; i < size; i++) {
+      long cacheKey = in.readLong();
+      entries.put(cacheKey, CacheEntry.readCacheEntry(in));
+    }
+    return entries;
+  }
+
+  /**
+   * Adds the entries reloaded from a previous run of the node. The cache key of an entry depends on the version of
+   * the lookup indices, therefore an entry is only used if the indices did not change since it was computed.
+   */
+  public void putAll(Map<Long, CacheEntry> entries) {
+    for (Map.Entry<Long, CacheEntry> entry : entries.entrySet()) {
+      this.cache.put(entry.getKey(), entry.getValue());
+    }
+  }
+
   /**
    * Invalidate all cache entries
    */
   public void invalidateAll() {
     logger.debug("{}: Invalidate all cache entries", Thread.currentThread().getName());
     this.cache.invalidateAll();
+    if (offHeapCache != null) {
+      this.offHeapCache.invalidateAll();
+    }
   }
 
   /**
@@ -99,7 +253,11 @@ public class FilterJoinCache {
    * to zero, and are monotonically increasing over the lifetime of the cache.
    */
   public FilterJoinCacheStats getStats() {
-    return new FilterJoinCacheStats(cache.size(), cache.stats());
+    if (offHeapCache == null) {
+      return new FilterJoinCacheStats(cache.size(), cache.stats(), 0, 0, new CacheStats(0, 0, 0, 0, 0, 0));
+    }
+    return new FilterJoinCacheStats(cache.size(), cache.stats(), offHeapCache.size(), offHeapSizeInBytes.get(),
+            offHeapCache.stats());
   }
 
   /**
@@ -111,18 +269,89 @@ public class FilterJoinCache {
 
   /**
    * A cache entry is composed of the set of terms (encoded), a flag to indicate
-   * if the set of terms has been pruned, the size in number of terms.
+   * if the set of terms has been pruned, the size in number of terms, and the time it took to compute the terms.
    */
   public static class CacheEntry {
 
     public final BytesRef encodedTerms;
     public final int size;
     public final boolean isPruned;
+    public final long tookInMillis;
 
-    private CacheEntry(BytesRef encodedTerms, int size, boolean isPruned) {
+    public CacheEntry(FilterJoinTerms terms) {
+      this(terms.getEncodedTerms(), terms.getSize(), terms.isPruned(), terms.getTookInMillis());
+    }
+
+    CacheEntry(BytesRef encodedTerms, int size, boolean isPruned, long tookInMillis) {
       this.encodedTerms = encodedTerms;
       this.size = size;
       this.isPruned = isPruned;
+      this.tookInMillis = tookInMillis;
+    }
+
+    public static CacheEntry readCacheEntry(StreamInput in) throws IOException {
+      int size = in.readVInt();
+      boolean isPruned = in.readBoolean();
+      long tookInMillis = in.readVLong();
+      return new CacheEntry(in.readBytesRef(), size, isPruned, tookInMillis);
+    }
+
+    public void writeTo(StreamOutput out) throws IOException {
+      out.writeVInt(size);
+      out.writeBoolean(isPruned);
+      out.writeVLong(tookInMillis);
+      out.writeBytesRef(encodedTerms);
+    }
+
+  }
+
+  /**
+   * A cache entry of the off-heap tier, which stores the encoded terms in a direct byte buffer. The entry is reference
+   * counted: its initial reference is owned by the off-heap tier and released on removal, and a reader holds a
+   * reference while copying the buffer. The buffer is freed with the last reference, instead of being left to the
+   * garbage collector, so that the direct memory of the evicted entries is reclaimed even if no garbage collection
+   * occurs.
+   */
+  static class OffHeapCacheEntry extends AbstractRefCounted {
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final boolean isPruned;
+    private final long tookInMillis;
+
+    private OffHeapCacheEntry(CacheEntry entry) {
+      super("off_heap_cache_entry");
+      BytesRef encodedTerms = entry.encodedTerms;
+      this.buffer = ByteBuffer.allocateDirect(encodedTerms.length);
+      this.buffer.put(encodedTerms.bytes, encodedTerms.offset, encodedTerms.length);
+      this.size = entry.size;
+      this.isPruned = entry.isPruned;
+      this.tookInMillis = entry.tookInMillis;
+    }
+
+    /**
+     * Copies the encoded terms on the heap, or returns null if the entry was removed and its buffer freed
+     * concurrently. The buffer is read through a duplicate, as it can be read concurrently.
+     */
+    private CacheEntry toCacheEntry() {
+      if (!this.tryIncRef()) {
+        return null;
+      }
+      try {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        byte[] bytes = new byte[duplicate.capacity()];
+        duplicate.get(bytes);
+        return new CacheEntry(new BytesRef(bytes), size, isPruned, tookInMillis);
+      }
+      finally {
+        this.decRef();
+      }
+    }
+
+    @Override
+    protected void closeInternal() {
+      DirectBuffers.free(buffer);
     }
 
   }
@@ -136,16 +365,41 @@ public class FilterJoinCache {
 
   }
 
+  static class CacheEntryCostFunction implements CostAwareCache.CostFunction<CacheEntry> {
+
+    @Override
+    public long cost(CacheEntry value) {
+      return value.tookInMillis;
+    }
+
+  }
+
+  static class OffHeapCacheEntryWeigher implements Weigher<Long, OffHeapCacheEntry> {
+
+    @Override
+    public int weigh(Long key, OffHeapCacheEntry value) {
+      return value.buffer.capacity();
+    }
+
+  }
+
   public static class FilterJoinCacheStats implements Streamable {
 
     private CacheStats cacheStats;
     private long size;
+    private CacheStats offHeapCacheStats;
+    private long offHeapSize;
+    private long offHeapSizeInBytes;
 
     public FilterJoinCacheStats() {}
 
-    public FilterJoinCacheStats(long size, CacheStats stats) {
+    public FilterJoinCacheStats(long size, CacheStats stats, long offHeapSize, long offHeapSizeInBytes,
+                                CacheStats offHeapStats) {
       this.cacheStats = stats;
       this.size = size;
+      this.offHeapCacheStats = offHeapStats;
+      this.offHeapSize = offHeapSize;
+      this.offHeapSizeInBytes = offHeapSizeInBytes;
     }
 
     public long getSize() {
@@ -156,29 +410,64 @@ public class FilterJoinCache {
       return cacheStats;
     }
 
+    /**
+     * Returns the number of entries in the off-heap tier
+     */
+    public long getOffHeapSize() {
+      return offHeapSize;
+    }
+
+    /**
+     * Returns the size in bytes of the entries in the off-heap tier
+     */
+    public long getOffHeapSizeInBytes() {
+      return offHeapSizeInBytes;
+    }
+
+    /**
+     * Returns the statistics of the off-heap tier. Its lookups are the misses of the on-heap cache.
+     */
+    public CacheStats getOffHeapCacheStats() {
+      return offHeapCacheStats;
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
       size = in.readVLong();
+      cacheStats = readCacheStats(in);
+      offHeapSize = in.readVLong();
+      offHeapSizeInBytes = in.readVLong();
+      offHeapCacheStats = readCacheStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      out.writeVLong(size);
+      writeCacheStats(out, cacheStats);
+      out.writeVLong(offHeapSize);
+      out.writeVLong(offHeapSizeInBytes);
+      writeCacheStats(out, offHeapCacheStats);
+    }
+
+    private static CacheStats readCacheStats(StreamInput in) throws IOException {
       long hitCount = in.readVLong();
       long misscount = in.readVLong();
       long loadSuccessCount = in.readVLong();
       long loadExceptionCount = in.readVLong();
       long totalLoadTime = in.readVLong();
       long evictionCount = in.readVLong();
-      cacheStats = new CacheStats(hitCount, misscount, loadSuccessCount, loadExceptionCount, totalLoadTime, evictionCount);
+      return new CacheStats(hitCount, misscount, loadSuccessCount, loadExceptionCount, totalLoadTime, evictionCount);
     }
 
-    @Override
-    public void writeTo(StreamOutput out) throws IOException {
-      out.writeVLong(size);
+    private static void writeCacheStats(StreamOutput out, CacheStats cacheStats) throws IOException {
       out.writeVLong(cacheStats.hitCount());
       out.writeVLong(cacheStats.missCount());
       out.writeVLong(cacheStats.loadSuccessCount());
       out.writeVLong(cacheStats.loadExceptionCount());
       out.writeVLong(cacheStats.totalLoadTime());
       out.writeVLong(cacheStats.evictionCount());
-
     }
+
   }
 
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import solutions.siren.join.action.coordinate.model.FilterJoinGroup;
+import solutions.siren.join.action.coordinate.model.FilterJoinNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Plans the execution of the nodes of a {@link FilterJoinGroup}. The number of terms of each node is estimated with a
+ * cardinality aggregation over the lookup query of the node, the estimations of the nodes of the group being executed
+ * concurrently. The nodes are then chained from the smallest estimation to the largest one: each node depends on the
+ * previous one, and its lookup is restricted by the terms of the previous one by the {@link FilterJoinVisitor}.
+ * <br>
+ * If the estimation of a node fails, the nodes of the group are executed concurrently without dependencies.
+ */
+public class FilterJoinPlanner {
+
+  private final FilterJoinVisitor visitor;
+  private final Client client;
+
+  private static final String ESTIMATION_AGGREGATION = "siren_join_estimation";
+
+  private static final ESLogger logger = Loggers.getLogger(FilterJoinPlanner.class);
+
+  public FilterJoinPlanner(Client client, FilterJoinVisitor visitor) {
+    this.client = client;
+    this.visitor = visitor;
+  }
+
+  /**
+   * Plans the execution of the group, and resumes the traversal of the visitor once the group is planned.
+   */
+  public void plan(final FilterJoinGroup group) {
+    logger.debug("Executing async estimation of {} filter joins", group.getNodes().size());
+    group.setState(FilterJoinGroup.State.PLANNING);
+
+    final List<FilterJoinNode> nodes = group.getNodes();
+    final long[] estimations = new long[nodes.size()];
+    final AtomicInteger pending = new AtomicInteger(nodes.size());
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    for (int i = 0; i < nodes.size(); i++) {
+      final int index = i;
+      final SearchRequest request;
+      try {
+        request = this.getEstimationRequest(nodes.get(i));
+      }
+      catch (Throwable e) {
+        failure.compareAndSet(null, e);
+        this.onEstimation(group, estimations, pending, failure);
+        continue;
+      }
+
+      client.execute(SearchAction.INSTANCE, request, new ActionListener<SearchResponse>() {
+
+        @Override
+        public void onResponse(SearchResponse response) {
+          Cardinality cardinality = response.getAggregations().get(ESTIMATION_AGGREGATION);
+          estimations[index] = cardinality.getValue();
+          onEstimation(group, estimations, pending, failure);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+          failure.compareAndSet(null, e);
+          onEstimation(group, estimations, pending, failure);
+        }
+
+      });
+    }
+  }
+
+  /**
+   * Chains the nodes of the group once all the estimations are received, and resumes the traversal.
+   */
+  private void onEstimation(FilterJoinGroup group, long[] estimations, AtomicInteger pending,
+                            AtomicReference<Throwable> failure) {
+    if (pending.decrementAndGet() != 0) {
+      return;
+    }
+    if (failure.get() == null) {
+      chain(group.getNodes(), estimations);
+    }
+    else {
+      logger.debug("Failed to estimate the filter joins, executing them without reordering", failure.get());
+    }
+    group.setState(FilterJoinGroup.State.PLANNED); // set state before resuming to avoid race conditions
+    visitor.resume();
+  }
+
+  /**
+   * Sets the dependencies of the nodes, from the node with the smallest estimation to the largest one.
+   */
+  static void chain(List<FilterJoinNode> nodes, final long[] estimations) {
+    List<Integer> order = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return Long.compare(estimations[o1], estimations[o2]);
+      }
+
+    });
+
+    FilterJoinNode previous = null;
+    for (int index : order) {
+      FilterJoinNode node = nodes.get(index);
+      logger.debug("Planned filter join on {} with an estimation of {} terms", node.getLookupPath(), estimations[index]);
+      node.setDependency(previous);
+      previous = node;
+    }
+  }
+
+  private SearchRequest getEstimationRequest(FilterJoinNode node) {
+    // Build the search source with the lookup query and the aggregate definition
+    SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+    sourceBuilder.size(0).aggregation(AggregationBuilders.cardinality(ESTIMATION_AGGREGATION).field(node.getLookupPath()));
+    XContentBuilder query = node.getLookupQuery();
+    if (query != null) {
+      sourceBuilder.query(query);
+    }
+
+    // Build search request with reference to the parent request
+    SearchRequest searchRequest = new SearchRequest(visitor.getParentRequest());
+    searchRequest.indices(node.getLookupIndices()).types(node.getLookupTypes()).source(sourceBuilder);
+
+    return searchRequest;
+  }
+
+}
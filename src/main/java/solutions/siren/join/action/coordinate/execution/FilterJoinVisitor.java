@@ -19,9 +19,13 @@
 package solutions.siren.join.action.coordinate.execution;
 
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.index.query.ConstantScoreQueryParser;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
 import solutions.siren.join.action.coordinate.model.AbstractNode;
+import solutions.siren.join.action.coordinate.model.FilterJoinGroup;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
 import solutions.siren.join.action.coordinate.model.RootNode;
@@ -30,8 +34,14 @@ import solutions.siren.join.action.coordinate.pipeline.NodePipelineManager;
 import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
 import solutions.siren.join.action.coordinate.tasks.CacheLookupTask;
 import solutions.siren.join.action.coordinate.tasks.CardinalityEstimationTask;
+import solutions.siren.join.action.coordinate.tasks.InFlightLookupTask;
 import solutions.siren.join.action.coordinate.tasks.IndicesVersionTask;
+import solutions.siren.join.action.coordinate.tasks.PublishTermsTask;
+import solutions.siren.join.action.coordinate.tasks.RemoteCacheLookupTask;
 import solutions.siren.join.action.coordinate.tasks.TermsByQueryTask;
+import solutions.siren.join.action.publish.PublishTermsAction;
+import solutions.siren.join.action.publish.PublishTermsRequest;
+import solutions.siren.join.action.publish.PublishTermsResponse;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.index.query.FieldDataTermsQueryParser;
 import solutions.siren.join.index.query.FilterJoinBuilder;
@@ -41,45 +51,142 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import solutions.siren.join.index.query.TermsEnumTermsQueryParser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Visitor that will traverse the tree until all the filter join nodes have been converted
  * into field data terms queries. The visitor will execute in parallel multiple async actions
  * when it is possible.
+ * <br>
+ * The visitor never blocks a thread while waiting for the async actions. It visits the tree until no more node can be
+ * converted, and resumes the traversal on the given executor each time an async action is completed. The traversals
+ * of a visitor are serialized: a completion occurring during a traversal triggers a new traversal by the same thread.
  */
 public class FilterJoinVisitor {
 
   protected final ActionRequest parentRequest;
   private final RootNode root;
+
+  /**
+   * The indices and types of the search, i.e., the target of the root filter joins
+   */
+  private final String[] indices;
+  private final String[] types;
+
   protected final Client client;
-  protected final BlockingQueue<Integer> blockingQueue = new LinkedBlockingQueue<>();
   protected final CoordinateSearchMetadata metadata;
 
+  /**
+   * The executor on which the traversal is resumed after the completion of an async action
+   */
+  private final Executor executor;
+
+  /**
+   * The number of pending traversals, used to serialize the traversals of the tree
+   */
+  private final AtomicInteger pendingTraversals = new AtomicInteger();
+
+  /**
+   * The listener notified once all the filter join nodes have been converted, or on the first failure
+   */
+  private ActionListener<CoordinateSearchMetadata> listener;
+
+  /**
+   * Set once the listener has been notified
+   */
+  private volatile boolean done = false;
+
+  /**
+   * The ids of the terms published on the data nodes, to be released once the search is completed
+   */
+  private final List<String> publishedTerms = Collections.synchronizedList(new ArrayList<String>());
+
+  /**
+   * The node level filter join cache service
+   */
+  private final FilterJoinCacheService cacheService;
+
   /**
    * The filter join cache
    */
   private final FilterJoinCache cache;
 
+  /**
+   * The filter joins being computed, shared with the visitors of the other coordinated searches of the node
+   */
+  private final InFlightFilterJoins inFlightFilterJoins;
+
+  /**
+   * The request circuit breaker of the coordinating node
+   */
+  private final CircuitBreaker breaker;
+
+  /**
+   * The planner of the execution of the groups of sibling filter joins
+   */
+  private final FilterJoinPlanner planner;
+
   private static final ESLogger logger = Loggers.getLogger(FilterJoinVisitor.class);
 
-  public FilterJoinVisitor(Client client, RootNode root, FilterJoinCache cache, ActionRequest parentRequest) {
+  public FilterJoinVisitor(Client client, RootNode root, FilterJoinCacheService cacheService, CircuitBreaker breaker,
+                           ActionRequest parentRequest, String[] indices, String[] types, Executor executor) {
     this.parentRequest = parentRequest;
+    this.indices = indices;
+    this.types = types;
     this.client = client;
     this.root = root;
-    this.cache = cache;
+    this.cacheService = cacheService;
+    this.breaker = breaker;
+    this.cache = cacheService.getCacheInstance();
+    this.inFlightFilterJoins = cacheService.getInFlightFilterJoins();
+    this.executor = executor;
+    this.planner = new FilterJoinPlanner(client, this);
     this.metadata = new CoordinateSearchMetadata();
   }
 
   /**
-   * Unblock the parent thread of the visitor
+   * Resumes the traversal of the tree on the executor, after the completion of an async action
+   */
+  public void resume() {
+    if (done) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          FilterJoinVisitor.this.run();
+        }
+
+      });
+    }
+    catch (Throwable e) { // e.g., the executor rejected the execution
+      this.finish(e);
+    }
+  }
+
+  /**
+   * Returns the node level cache service, which routes the cache entries to their owner node if the cache is
+   * distributed
    */
-  public void unblock() {
-    this.blockingQueue.offer(0);
+  public FilterJoinCacheService getCacheService() {
+    return this.cacheService;
+  }
+
+  /**
+   * Returns the request circuit breaker of the coordinating node
+   */
+  public CircuitBreaker getBreaker() {
+    return this.breaker;
   }
 
   /**
@@ -89,6 +196,13 @@ public class FilterJoinVisitor {
     return this.cache;
   }
 
+  /**
+   * Returns the registry of the filter joins being computed
+   */
+  public InFlightFilterJoins getInFlightFilterJoins() {
+    return this.inFlightFilterJoins;
+  }
+
   /**
    * Returns the parent request
    */
@@ -104,35 +218,100 @@ public class FilterJoinVisitor {
   }
 
   /**
-   * Traverse the tree until all the filter join nodes have been converted to field data terms queries.
+   * Registers the id of terms published on the data nodes.
    */
-  public void traverse() {
-    while (root.hasChildren()) {
-      this.visit(root); // traverse the tree
-      this.await(); // wait for completion of async actions
+  public void addPublishedTerms(String termsId) {
+    this.publishedTerms.add(termsId);
+  }
+
+  /**
+   * Releases the terms published on the data nodes. Must be called once the search is completed.
+   */
+  public void releasePublishedTerms() {
+    synchronized (publishedTerms) {
+      for (final String termsId : publishedTerms) {
+        client.execute(PublishTermsAction.INSTANCE, new PublishTermsRequest(termsId), new ActionListener<PublishTermsResponse>() {
+
+          @Override
+          public void onResponse(PublishTermsResponse response) {
+            logger.debug("Released published terms {}", termsId);
+          }
+
+          @Override
+          public void onFailure(Throwable e) {
+            logger.warn("Failed to release published terms {}", e, termsId);
+          }
+
+        });
+      }
+      publishedTerms.clear();
     }
   }
 
   /**
-   * Await for the completion of an async action.
+   * Traverse the tree until all the filter join nodes have been converted to field data terms queries. The listener
+   * is notified with the metadata of the execution once the tree is converted, or with the first failure.
    */
-  private void await() {
-    try {
+  public void traverse(ActionListener<CoordinateSearchMetadata> listener) {
+    this.listener = listener;
+    this.run();
+  }
+
+  /**
+   * Traverses the tree, unless another thread is already traversing it, in which case that thread will traverse the
+   * tree again once done.
+   */
+  private void run() {
+    if (pendingTraversals.getAndIncrement() != 0) {
+      return;
+    }
+    do {
+      if (!done) {
+        try {
+          this.visitTree();
+        }
+        catch (Throwable e) {
+          this.finish(e);
+        }
+      }
+    } while (pendingTraversals.decrementAndGet() != 0);
+  }
+
+  /**
+   * Visits the tree until all the filter join nodes have been converted, or until the conversion of the remaining
+   * nodes depends on running async actions.
+   */
+  private void visitTree() {
+    while (root.hasChildren()) {
+      this.visit(root);
       // Clean up all filter join leaf nodes that have been converted
       boolean nodeRemoved = this.removeConvertedNodes(root);
-      // If some nodes were removed, it means that we converted in the previous iteration
-      // at least one filter join into a field data terms query. We don't have to wait since
-      // we might have new filter join leaf nodes.
+      // If some nodes were removed, it means that we converted at least one filter join into a field data terms
+      // query, and we might have new filter join leaf nodes. Otherwise, the traversal is resumed by the completion
+      // of an async action.
       if (!nodeRemoved && root.hasChildren()) {
-        logger.debug("Visitor thread block - blocking queue size: {}", blockingQueue.size());
-        this.blockingQueue.take();   // block until one async action is completed
-        this.blockingQueue.offer(0); // add back the element to the queue, it will be removed after the node conversion
-        logger.debug("Visitor thread unblock - blocking queue size: {}", blockingQueue.size());
+        logger.debug("Visitor waiting for the completion of async actions");
+        return;
+      }
+    }
+    this.finish(null);
+  }
+
+  /**
+   * Notifies the listener, once.
+   */
+  private void finish(Throwable failure) {
+    synchronized (this) {
+      if (done) {
+        return;
       }
+      done = true;
     }
-    catch (InterruptedException e) {
-      logger.warn("Filter join visitor thread interrupted while waiting");
-      Thread.currentThread().interrupt();
+    if (failure == null) {
+      listener.onResponse(metadata);
+    }
+    else {
+      listener.onFailure(failure);
     }
   }
 
@@ -176,7 +355,9 @@ public class FilterJoinVisitor {
   private void visitLeafNode(FilterJoinNode node, FilterJoinNode parent) {
     switch (node.getState()) {
       case WAITING:
-        this.executeAsyncOperation(node);
+        if (this.isExecutable(node)) {
+          this.executeAsyncOperation(node, parent);
+        }
         return;
 
       case COMPLETED:
@@ -187,39 +368,116 @@ public class FilterJoinVisitor {
     }
   }
 
+  /**
+   * Returns true if the node can be executed. The nodes of a {@link FilterJoinGroup} are executed once the group is
+   * planned and their dependency is completed, their lookup being then restricted by the terms of the dependency. The
+   * planning of a group starts once all its nodes are leaves, i.e., once their lookup queries do not contain filter
+   * joins anymore.
+   */
+  private boolean isExecutable(FilterJoinNode node) {
+    FilterJoinGroup group = node.getGroup();
+    if (group == null) {
+      return true;
+    }
+
+    switch (group.getState()) {
+      case WAITING:
+        for (FilterJoinNode sibling : group.getNodes()) {
+          if (sibling.hasChildren()) {
+            return false;
+          }
+        }
+        planner.plan(group);
+        return false;
+
+      case PLANNING:
+        return false;
+
+      default:
+        FilterJoinNode dependency = node.getDependency();
+        if (dependency == null) {
+          return true;
+        }
+        if (dependency.getState() == FilterJoinNode.State.WAITING ||
+            dependency.getState() == FilterJoinNode.State.RUNNING) {
+          return false;
+        }
+        if (dependency.hasFailure()) { // the search fails on the conversion of the dependency
+          return false;
+        }
+        node.addLookupFilter(this.buildTermsQuery(dependency, node.getLookupPath()));
+        return true;
+    }
+  }
+
   /**
    * Executes the pipeline of async actions to compute the terms for this node.
    */
-  protected void executeAsyncOperation(final FilterJoinNode node) {
+  protected void executeAsyncOperation(final FilterJoinNode node, final FilterJoinNode parent) {
     logger.debug("Executing async actions");
     node.setState(FilterJoinNode.State.RUNNING); // set state before execution to avoid race conditions with listener
 
+    final String[] targetIndices = parent == null ? indices : parent.getLookupIndices();
+    final String[] targetTypes = parent == null ? types : parent.getLookupTypes();
+    final NodeTaskContext context = new NodeTaskContext(client, node, targetIndices, targetTypes, this);
+    final NodePipelineListener listener = new NodePipelineListener() {
+
+      @Override
+      public void onSuccess() {
+        node.setState(FilterJoinNode.State.COMPLETED); // set state before resuming to avoid race conditions
+        FilterJoinVisitor.this.resume();
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        node.setFailure(e);
+        node.setState(FilterJoinNode.State.COMPLETED); // set state before resuming to avoid race conditions
+        FilterJoinVisitor.this.resume();
+      }
+
+    };
+
     NodePipelineManager pipeline = new NodePipelineManager();
     pipeline.addListener(new NodePipelineListener() {
 
       @Override
       public void onSuccess() {
-        node.setState(FilterJoinNode.State.COMPLETED); // set state before unblocking the queue to avoid race conditions
-        FilterJoinVisitor.this.unblock();
+        // Shares the terms with the nodes waiting for them
+        inFlightFilterJoins.complete(node, null);
+
+        if (node.getPublishTerms()) {
+          // The terms are published once they are computed or retrieved from the cache - a cache hit terminates the
+          // pipeline, therefore the publication is executed by a second pipeline
+          NodePipelineManager publishPipeline = new NodePipelineManager();
+          publishPipeline.addListener(listener);
+          publishPipeline.addTask(new PublishTermsTask());
+          publishPipeline.execute(context);
+        }
+        else {
+          listener.onSuccess();
+        }
       }
 
       @Override
       public void onFailure(Throwable e) {
-        node.setFailure(e);
-        node.setState(FilterJoinNode.State.COMPLETED); // set state before unblocking the queue to avoid race conditions
-        FilterJoinVisitor.this.unblock();
+        inFlightFilterJoins.complete(node, e);
+        listener.onFailure(e);
       }
 
     });
 
     // Adds the list of tasks to be executed
     pipeline.addTask(new IndicesVersionTask());
+    pipeline.addTask(new InFlightLookupTask());
     pipeline.addTask(new CacheLookupTask());
+    if (cacheService.isDistributed()) {
+      pipeline.addTask(new RemoteCacheLookupTask());
+    }
     pipeline.addTask(new CardinalityEstimationTask());
     pipeline.addTask(new TermsByQueryTask());
 
     // Starts the execution of the pipeline
-    pipeline.execute(new NodeTaskContext(client, node, this));
+    pipeline.execute(context);
   }
 
   /**
@@ -245,7 +503,15 @@ public class FilterJoinVisitor {
     action.setSizeInBytes(terms.getEncodedTerms().length);
     action.setCacheHit(terms.cacheHit());
     action.setTookInMillis(terms.getTookInMillis());
-    action.setTermsEncoding(node.getTermsEncoding());
+    if (node.isAutoTermsEncoding() && node.getTermsEncodingReason() == null) {
+      // the terms were reused, the pipeline did not select an encoding
+      action.setTermsEncoding(TermsEncodingSelector.getTermsEncoding(terms.getEncodedTerms()));
+      action.setTermsEncodingReason(TermsEncodingSelector.Reason.REUSED.toString());
+    }
+    else {
+      action.setTermsEncoding(node.getTermsEncoding());
+      action.setTermsEncodingReason(node.getTermsEncodingReason());
+    }
     action.setOrdering(node.getOrderBy());
     action.setMaxTermsPerShard(node.getMaxTermsPerShard());
 
@@ -267,40 +533,65 @@ public class FilterJoinVisitor {
    */
   private void convertToTermsQuery(FilterJoinNode node) {
     Map<String, Object> parent = node.getParentSourceMap();
-    FilterJoinTerms terms = node.getTerms();
-    BytesRef bytes = terms.getEncodedTerms();
 
     // Remove the filter join from the parent
     parent.remove(FilterJoinBuilder.NAME);
 
+    // Create the nested object for the field data terms query
+    Map<String, Object> termsQuery = this.buildTermsQuery(node, node.getField());
+
+    // The scored terms query is added as is to the parent, as it scores the documents with the scores of the terms
+    if (node.isScored()) {
+      parent.putAll(termsQuery);
+      node.setState(FilterJoinNode.State.CONVERTED);
+      return;
+    }
+
+    // Create the object for the constant score query
+    Map<String, Object> constantScoreQueryParams = new HashMap<>();
+    constantScoreQueryParams.put("filter", termsQuery);
+
+    // Add the constant score query to the parent
+    parent.put(ConstantScoreQueryParser.NAME, constantScoreQueryParams);
+    node.setState(FilterJoinNode.State.CONVERTED);
+  }
+
+  /**
+   * Builds a field data terms query, or a terms enum terms query for the bytes encoding, on the given field with the
+   * terms of the node.
+   */
+  private Map<String, Object> buildTermsQuery(FilterJoinNode node, String field) {
+    FilterJoinTerms terms = node.getTerms();
+    BytesRef bytes = terms.getEncodedTerms();
+
     // Create the nested object for the parameters of the field data terms query
     Map<String, Object> queryParams = new HashMap<>();
-    queryParams.put("value", bytes.bytes);
+    if (terms.getPublishedTermsId() != null) {
+      // the terms were published on the data nodes, only their id is sent with the query
+      queryParams.put("_terms_id", terms.getPublishedTermsId());
+    }
+    else {
+      // the value is the whole array, it must not include more than the encoded terms
+      queryParams.put("value", bytes.offset == 0 && bytes.length == bytes.bytes.length ?
+              bytes.bytes : Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length));
+    }
     // use the hash of the filter join source map as cache key - see #170
     queryParams.put("_cache_key", node.getCacheId());
 
     // Create the nested object for the field
-    Map<String, Object> field = new HashMap<>();
-    field.put(node.getField(), queryParams);
+    Map<String, Object> fieldParams = new HashMap<>();
+    fieldParams.put(field, queryParams);
 
     // Create the nested object for the field data terms query
     Map<String, Object> termsQuery = new HashMap<>();
     // If bytes terms encoding is used, we switch to the terms enum based terms query
     if (node.getTermsEncoding().equals(TermsByQueryRequest.TermsEncoding.BYTES)) {
-      termsQuery.put(TermsEnumTermsQueryParser.NAME, field);
+      termsQuery.put(TermsEnumTermsQueryParser.NAME, fieldParams);
     }
     else {
-      termsQuery.put(FieldDataTermsQueryParser.NAME, field);
+      termsQuery.put(FieldDataTermsQueryParser.NAME, fieldParams);
     }
-
-    // Create the object for the constant score query
-    Map<String, Object> constantScoreQueryParams = new HashMap<>();
-    constantScoreQueryParams.put("filter", termsQuery);
-
-    // Add the constant score query to the parent
-    parent.put(ConstantScoreQueryParser.NAME, constantScoreQueryParams);
-    node.setState(FilterJoinNode.State.CONVERTED);
-    this.blockingQueue.poll();
+    return termsQuery;
   }
 
 }
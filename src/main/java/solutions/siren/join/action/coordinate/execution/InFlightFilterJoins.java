@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import solutions.siren.join.action.coordinate.model.FilterJoinNode;
+import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the filter joins being computed, keyed by their cache id ({@link FilterJoinNode#getCacheId()}). The
+ * first node registered for a cache id computes the terms. The nodes registered afterwards with the same cache id
+ * wait for its completion, and share its terms instead of executing the same terms by query action.
+ * <br>
+ * The registry is shared by all the coordinated searches of a node, see
+ * {@link solutions.siren.join.action.admin.cache.FilterJoinCacheService#getInFlightFilterJoins()}.
+ */
+public class InFlightFilterJoins {
+
+  /**
+   * The nodes waiting for the completion of a node, keyed by cache id
+   */
+  private final Map<Long, InFlight> inFlight = new HashMap<>();
+
+  /**
+   * Registers a node before the lookup of its terms in the cache. Returns true if the node must retrieve its terms.
+   * Otherwise, the reporter will be notified once the terms are computed by the node registered before.
+   */
+  public synchronized boolean register(FilterJoinNode node, NodeTaskReporter reporter) {
+    long cacheId = node.getCacheId();
+    InFlight entry = inFlight.get(cacheId);
+    if (entry == null) {
+      inFlight.put(cacheId, new InFlight(node));
+      return true;
+    }
+    entry.waiting.add(new Waiting(node, reporter));
+    return false;
+  }
+
+  /**
+   * Notifies the nodes waiting for the given node, once its terms are computed or its computation failed. This is a
+   * no-op if the node is not computing terms for other nodes.
+   */
+  public void complete(FilterJoinNode node, Throwable failure) {
+    InFlight entry;
+    synchronized (this) {
+      entry = inFlight.get(node.getCacheId());
+      if (entry == null || entry.node != node) {
+        return;
+      }
+      inFlight.remove(node.getCacheId());
+    }
+
+    for (Waiting waiting : entry.waiting) {
+      if (failure != null) {
+        waiting.reporter.failure(failure);
+        continue;
+      }
+      FilterJoinTerms terms = new FilterJoinTerms();
+      terms.setEncodedTerms(node.getTerms().getEncodedTerms());
+      terms.setSize(node.getTerms().getSize());
+      terms.setPruned(node.getTerms().isPruned());
+      terms.setCacheHit(true); // the terms were computed by another filter join
+      waiting.node.setTerms(terms);
+
+      // force termination of the pipeline, as for a cache hit
+      waiting.reporter.terminate();
+    }
+  }
+
+  /**
+   * Returns the number of filter joins being computed
+   */
+  public synchronized int size() {
+    return inFlight.size();
+  }
+
+  private static class InFlight {
+
+    private final FilterJoinNode node;
+    private final List<Waiting> waiting = new ArrayList<>();
+
+    private InFlight(FilterJoinNode node) {
+      this.node = node;
+    }
+
+  }
+
+  private static class Waiting {
+
+    private final FilterJoinNode node;
+    private final NodeTaskReporter reporter;
+
+    private Waiting(FilterJoinNode node, NodeTaskReporter reporter) {
+      this.node = node;
+      this.reporter = reporter;
+    }
+
+  }
+
+}
@@ -19,6 +19,7 @@
 package solutions.siren.join.action.coordinate.execution;
 
 import solutions.siren.join.action.coordinate.model.AbstractNode;
+import solutions.siren.join.action.coordinate.model.FilterJoinGroup;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.model.RootNode;
 import solutions.siren.join.index.query.FilterJoinBuilder;
@@ -28,6 +29,9 @@ import java.util.*;
 /**
  *  Visitor that will convert the source map into a tree of {@link AbstractNode}s. The tree will
  *  be composed of a root, {@link RootNode}, with one of more {@link FilterJoinNode}s as children.
+ *  <br>
+ *  The sibling filter joins on the same field that can be reordered, and that are clauses of the <code>must</code>
+ *  or <code>filter</code> of a same bool query, are attached to a {@link FilterJoinGroup}.
  */
 @SuppressWarnings("unchecked")
 public class SourceMapVisitor {
@@ -35,6 +39,12 @@ public class SourceMapVisitor {
   private final RootNode root;
   private Deque<AbstractNode> queue = new LinkedList<>();
 
+  /**
+   * The reorderable filter joins of each bool query, keyed by the clauses of the bool query
+   */
+  private final Map<Map<String, Object>, List<FilterJoinNode>> conjunctions = new IdentityHashMap<>();
+  private final List<List<FilterJoinNode>> candidates = new ArrayList<>();
+
   public SourceMapVisitor(Map map) {
     this.root = new RootNode(map);
     this.queue.offer(this.root);
@@ -46,16 +56,27 @@ public class SourceMapVisitor {
 
   public void traverse() {
     this.visit(root.getSourceMap());
+    this.groupSiblings();
   }
 
   private void visit(Map map) {
     Set<Map.Entry> entries = map.entrySet();
 
+    // if map contains a bool query, register its required clauses
+    if (map.get("bool") instanceof Map) {
+      this.registerConjunction((Map<String, Object>) map.get("bool"));
+    }
+
     // if map contains a filter join, create a filter join node
     if (map.containsKey(FilterJoinBuilder.NAME)) {
       FilterJoinNode node = new FilterJoinNode(map, (Map<String, Object>) map.get(FilterJoinBuilder.NAME));
       queue.peek().addChild(node);
       queue.addFirst(node);
+
+      List<FilterJoinNode> siblings = conjunctions.get(map);
+      if (siblings != null && node.getReorder()) {
+        siblings.add(node);
+      }
     }
 
     // traverse map
@@ -70,6 +91,51 @@ public class SourceMapVisitor {
 
   }
 
+  /**
+   * Registers the <code>must</code> and <code>filter</code> clauses of a bool query, whose filter joins are
+   * intersected.
+   */
+  private void registerConjunction(Map<String, Object> bool) {
+    List<FilterJoinNode> siblings = new ArrayList<>();
+    for (String occur : new String[] { "must", "filter" }) {
+      Object clauses = bool.get(occur);
+      if (clauses instanceof Map) {
+        conjunctions.put((Map<String, Object>) clauses, siblings);
+      }
+      else if (clauses instanceof List) {
+        for (Object clause : (List<?>) clauses) {
+          if (clause instanceof Map) {
+            conjunctions.put((Map<String, Object>) clause, siblings);
+          }
+        }
+      }
+    }
+    candidates.add(siblings);
+  }
+
+  /**
+   * Creates a {@link FilterJoinGroup} for each set of reorderable siblings on the same field.
+   */
+  private void groupSiblings() {
+    for (List<FilterJoinNode> siblings : candidates) {
+      Map<String, List<FilterJoinNode>> fields = new LinkedHashMap<>();
+      for (FilterJoinNode node : siblings) {
+        if (!fields.containsKey(node.getField())) {
+          fields.put(node.getField(), new ArrayList<FilterJoinNode>());
+        }
+        fields.get(node.getField()).add(node);
+      }
+      for (List<FilterJoinNode> nodes : fields.values()) {
+        if (nodes.size() > 1) {
+          FilterJoinGroup group = new FilterJoinGroup();
+          for (FilterJoinNode node : nodes) {
+            group.addNode(node);
+          }
+        }
+      }
+    }
+  }
+
   private void visit(List array) {
     for (Object obj : array) {
       this.visit(obj);
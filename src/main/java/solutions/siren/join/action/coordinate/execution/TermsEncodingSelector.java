@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import org.apache.lucene.util.BytesRef;
+import solutions.siren.join.action.terms.TermsByQueryRequest.TermsEncoding;
+import solutions.siren.join.common.Bytes;
+
+import java.util.Locale;
+
+/**
+ * Selects the terms encoding of a filter join using the {@link TermsEncoding#AUTO} encoding. The selection is based
+ * on the type of the lookup field and of the target field, on the estimated number of unique terms and on the range
+ * of the values of the lookup field:
+ * <ul>
+ *   <li>a small set of terms is encoded with {@link TermsEncoding#LONG}, which is exact for every type of field;</li>
+ *   <li>a dense range of integer values is encoded with {@link TermsEncoding#BITMAP}, or with
+ *   {@link TermsEncoding#PACKED} if the values do not fit in an integer or are less dense;</li>
+ *   <li>the values of an integer field are encoded with {@link TermsEncoding#INTEGER}, the values of the other
+ *   numeric fields and the hashes of the string terms with {@link TermsEncoding#LONG};</li>
+ *   <li>the integer encodings, i.e., {@link TermsEncoding#INTEGER} and {@link TermsEncoding#BITMAP}, are only selected
+ *   if the target field is an integer field, as the values of the target field are truncated to integers when they
+ *   are matched against these encodings;</li>
+ *   <li>if the exact encoding would not fit in the memory available in the request circuit breaker, the terms are
+ *   encoded with the approximate {@link TermsEncoding#BLOOM}.</li>
+ * </ul>
+ */
+public class TermsEncodingSelector {
+
+  /**
+   * Below this number of terms, the size of the encoding does not matter
+   */
+  static final long SMALL_SET_SIZE = 1024;
+
+  /**
+   * The minimum ratio of terms in the range of values for a {@link TermsEncoding#BITMAP} encoding. Above this density,
+   * the compressed bitmap stores the terms as bitsets.
+   */
+  static final double BITMAP_DENSITY = 1d / 16;
+
+  /**
+   * The minimum ratio of terms in the range of values for a {@link TermsEncoding#PACKED} encoding, i.e., the average
+   * gap between two terms is encoded with at most 8 bits.
+   */
+  static final double PACKED_DENSITY = 1d / 256;
+
+  /**
+   * The ratio of the available memory that the exact encodings may use
+   */
+  static final double MEMORY_RATIO = 0.5;
+
+  /**
+   * The type of values of the lookup field
+   */
+  public enum FieldType {
+
+    INTEGER, LONG, DOUBLE, STRING;
+
+    /**
+     * Returns the type of values of a field given its mapping type.
+     */
+    public static FieldType fromMappingType(String type) {
+      if (type == null) {
+        return STRING;
+      }
+      switch (type) {
+        case "byte":
+        case "short":
+        case "integer":
+          return INTEGER;
+        case "long":
+        case "date":
+        case "ip":
+          return LONG;
+        case "float":
+        case "double":
+          return DOUBLE;
+        default:
+          return STRING;
+      }
+    }
+
+    /**
+     * Returns the widest of two types, i.e., the type that can hold the values of both.
+     */
+    public FieldType widen(FieldType other) {
+      return other.ordinal() > this.ordinal() ? other : this;
+    }
+
+  }
+
+  /**
+   * The reasons of the selection of an encoding. The encoding of terms reused from the cache or from an identical
+   * filter join is the one selected when the terms were computed.
+   */
+  public enum Reason {
+    SMALL_SET, DENSE_RANGE, INTEGER_FIELD, LONG_FIELD, STRING_FIELD, MEMORY, REUSED;
+
+    @Override
+    public String toString() {
+      return this.name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * The selected encoding and the reason of the selection
+   */
+  public static class Selection {
+
+    private final TermsEncoding termsEncoding;
+    private final Reason reason;
+
+    Selection(TermsEncoding termsEncoding, Reason reason) {
+      this.termsEncoding = termsEncoding;
+      this.reason = reason;
+    }
+
+    public TermsEncoding getTermsEncoding() {
+      return termsEncoding;
+    }
+
+    public Reason getReason() {
+      return reason;
+    }
+
+  }
+
+  /**
+   * Selects the encoding of the terms.
+   *
+   * @param fieldType the type of values of the lookup field
+   * @param targetFieldType the type of values of the target field
+   * @param cardinality the estimated number of unique terms
+   * @param min the minimum value of a numeric field
+   * @param max the maximum value of a numeric field
+   * @param availableMemory the memory (in bytes) available in the request circuit breaker
+   */
+  public static Selection select(FieldType fieldType, FieldType targetFieldType, long cardinality, double min,
+                                 double max, long availableMemory) {
+    Selection selection = selectExact(fieldType, targetFieldType, cardinality, min, max);
+    if (cardinality * bytesPerTerm(selection.getTermsEncoding()) > availableMemory * MEMORY_RATIO) {
+      return new Selection(TermsEncoding.BLOOM, Reason.MEMORY);
+    }
+    return selection;
+  }
+
+  private static Selection selectExact(FieldType fieldType, FieldType targetFieldType, long cardinality, double min,
+                                       double max) {
+    if (cardinality <= SMALL_SET_SIZE) {
+      return new Selection(TermsEncoding.LONG, Reason.SMALL_SET);
+    }
+
+    switch (fieldType) {
+      case INTEGER:
+      case LONG:
+        boolean isInteger = targetFieldType == FieldType.INTEGER &&
+                            min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE;
+        double density = max >= min ? cardinality / (max - min + 1) : 0;
+        if (isInteger && density >= BITMAP_DENSITY) {
+          return new Selection(TermsEncoding.BITMAP, Reason.DENSE_RANGE);
+        }
+        if (density >= PACKED_DENSITY) {
+          return new Selection(TermsEncoding.PACKED, Reason.DENSE_RANGE);
+        }
+        if (isInteger) {
+          return new Selection(TermsEncoding.INTEGER, Reason.INTEGER_FIELD);
+        }
+        return new Selection(TermsEncoding.LONG, Reason.LONG_FIELD);
+
+      case DOUBLE:
+        return new Selection(TermsEncoding.LONG, Reason.LONG_FIELD);
+
+      default:
+        return new Selection(TermsEncoding.LONG, Reason.STRING_FIELD);
+    }
+  }
+
+  /**
+   * Returns the encoding of terms encoded with {@link solutions.siren.join.action.terms.collector.TermsSet#writeToBytes()}.
+   */
+  public static TermsEncoding getTermsEncoding(BytesRef encodedTerms) {
+    BytesRef bytes = new BytesRef(encodedTerms.bytes, encodedTerms.offset, encodedTerms.length);
+    return TermsEncoding.values()[Bytes.readInt(bytes)];
+  }
+
+  /**
+   * An estimate of the memory used per term by the terms sets of an encoding, including the terms sets of the shards
+   * being merged on the coordinating node.
+   */
+  private static long bytesPerTerm(TermsEncoding termsEncoding) {
+    switch (termsEncoding) {
+      case INTEGER:
+        return 12;
+      case BITMAP:
+        return 4;
+      default: // the packed terms are collected in a set of longs
+        return 24;
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.model;
+
+import solutions.siren.join.action.coordinate.execution.FilterJoinPlanner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of sibling {@link FilterJoinNode}s on the same field, under the <code>must</code> or <code>filter</code>
+ * clauses of a same bool query. The parent query matches the intersection of the terms of the nodes of the group,
+ * therefore the nodes can be executed in sequence, from the most selective one to the least selective one, each
+ * node restricting its lookup with the terms of the previous node. The order of execution is planned by the
+ * {@link FilterJoinPlanner}. A group can have multiple {@link FilterJoinGroup.State}s:
+ * <ul>
+ *   <li>WAITING: original state - the execution of the nodes has not been planned</li>
+ *   <li>PLANNING: the cardinality of the nodes is being estimated</li>
+ *   <li>PLANNED: the dependencies between the nodes have been set</li>
+ * </ul>
+ */
+public class FilterJoinGroup {
+
+  private final List<FilterJoinNode> nodes = new ArrayList<>();
+
+  private volatile State state = State.WAITING;
+
+  /**
+   * The various states of {@link FilterJoinGroup}.
+   */
+  public enum State {
+    WAITING,
+    PLANNING,
+    PLANNED
+  }
+
+  public void addNode(FilterJoinNode node) {
+    this.nodes.add(node);
+    node.setGroup(this);
+  }
+
+  public List<FilterJoinNode> getNodes() {
+    return nodes;
+  }
+
+  public void setState(State state) {
+    this.state = state;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+}
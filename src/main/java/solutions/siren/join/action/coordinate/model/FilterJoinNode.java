@@ -27,6 +27,7 @@ import org.elasticsearch.common.xcontent.XContentType;
 import solutions.siren.join.common.Collections;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -65,6 +66,23 @@ public class FilterJoinNode extends AbstractNode {
   private long cardinality = 0;
   private boolean hasCardinality = false;
 
+  /**
+   * The terms encoding selected for an {@link TermsByQueryRequest.TermsEncoding#AUTO} encoding, and the reason
+   * of the selection
+   */
+  private TermsByQueryRequest.TermsEncoding selectedTermsEncoding;
+  private String termsEncodingReason;
+
+  /**
+   * The group of sibling nodes this node belongs to, or null if it cannot be reordered
+   */
+  private FilterJoinGroup group;
+
+  /**
+   * The node whose terms restrict the lookup of this node, or null
+   */
+  private FilterJoinNode dependency;
+
   /**
    * Flag to indicate if there was a failure while processing the node
    */
@@ -72,9 +90,9 @@ public class FilterJoinNode extends AbstractNode {
   private Throwable failure;
 
   /**
-   * The state of the node
+   * The state of the node, set by the async actions once the failure or the terms are set
    */
-  private State state;
+  private volatile State state;
 
   /**
    * The results of the processing of the node
@@ -125,13 +143,17 @@ public class FilterJoinNode extends AbstractNode {
    * The cache id for this filter join node. The cache id is a unique identifier based on the source map.
    * This is currently used in {@link FilterJoinCache} to cache the list of terms resulting from a filter join,
    * and by {@link FilterJoinVisitor#convertToFieldDataTermsQuery(FilterJoinNode)} as cache key for the
-   * binary terms filter.
+   * binary terms filter. The cache id of a node restricted by the terms of a dependency depends on the cache id of
+   * the dependency.
    */
   public long getCacheId() {
     long cacheId = 1;
 
     cacheId = 31 * cacheId + queryHash;
     cacheId = 31 * cacheId + indicesVersion;
+    if (dependency != null) {
+      cacheId = 31 * cacheId + dependency.getCacheId();
+    }
 
     return cacheId;
   }
@@ -207,13 +229,135 @@ public class FilterJoinNode extends AbstractNode {
     return (Integer) conf.get("maxTermsPerShard");
   }
 
+  public Integer getMaxTerms() {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    return (Integer) conf.get("maxTerms");
+  }
+
+  public TermsByQueryRequest.ScoreMode getScoreMode() {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    String scoreMode = (String) conf.get("scoreMode");
+    if (scoreMode == null) {
+      return null;
+    }
+    return TermsByQueryRequest.ScoreMode.valueOf(scoreMode.toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Returns true if the documents matching the filter join are scored with the scores of the lookup terms.
+   */
+  public boolean isScored() {
+    return this.getScoreMode() != null;
+  }
+
+  /**
+   * Returns the terms encoding of the filter join. If the requested encoding is
+   * {@link TermsByQueryRequest.TermsEncoding#AUTO}, returns the selected encoding once it has been set with
+   * {@link #setTermsEncoding(TermsByQueryRequest.TermsEncoding, String)}.
+   */
   public TermsByQueryRequest.TermsEncoding getTermsEncoding() {
+    if (selectedTermsEncoding != null) {
+      return selectedTermsEncoding;
+    }
+    return this.getRequestedTermsEncoding();
+  }
+
+  /**
+   * Returns true if the terms encoding must be selected by the coordinator.
+   */
+  public boolean isAutoTermsEncoding() {
+    return this.getRequestedTermsEncoding() == TermsByQueryRequest.TermsEncoding.AUTO;
+  }
+
+  /**
+   * Sets the terms encoding selected for an {@link TermsByQueryRequest.TermsEncoding#AUTO} encoding, and the reason
+   * of the selection.
+   */
+  public void setTermsEncoding(TermsByQueryRequest.TermsEncoding termsEncoding, String reason) {
+    this.selectedTermsEncoding = termsEncoding;
+    this.termsEncodingReason = reason;
+  }
+
+  /**
+   * Returns the reason of the selection of the terms encoding, or null if the encoding was not selected by the
+   * coordinator.
+   */
+  public String getTermsEncodingReason() {
+    return termsEncodingReason;
+  }
+
+  /**
+   * Returns the requested terms encoding. The scored terms are only supported by the
+   * {@link TermsByQueryRequest.TermsEncoding#LONG} encoding, which is therefore used instead of an
+   * {@link TermsByQueryRequest.TermsEncoding#AUTO} encoding.
+   */
+  private TermsByQueryRequest.TermsEncoding getRequestedTermsEncoding() {
     Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
     String termsEncoding = (String) conf.get("termsEncoding");
     if (termsEncoding == null) {
       return TermsByQueryRequest.DEFAULT_TERM_ENCODING;
     }
-    return TermsByQueryRequest.TermsEncoding.valueOf(termsEncoding.toUpperCase(Locale.ROOT));
+    TermsByQueryRequest.TermsEncoding encoding = TermsByQueryRequest.TermsEncoding.valueOf(termsEncoding.toUpperCase(Locale.ROOT));
+    if (encoding == TermsByQueryRequest.TermsEncoding.AUTO && this.isScored()) {
+      return TermsByQueryRequest.TermsEncoding.LONG;
+    }
+    return encoding;
+  }
+
+  public Boolean getStreamTerms() {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    return (Boolean) conf.get("streamTerms");
+  }
+
+  public Boolean getNodeReduce() {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    return (Boolean) conf.get("nodeReduce");
+  }
+
+  public boolean getPublishTerms() {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    return Boolean.TRUE.equals(conf.get("publishTerms"));
+  }
+
+  public boolean getReorder() {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    return Boolean.TRUE.equals(conf.get("reorder"));
+  }
+
+  public void setGroup(FilterJoinGroup group) {
+    this.group = group;
+  }
+
+  public FilterJoinGroup getGroup() {
+    return group;
+  }
+
+  /**
+   * Sets the node whose terms must restrict the lookup of this node. This node must not be executed before the
+   * dependency is completed.
+   */
+  public void setDependency(FilterJoinNode dependency) {
+    this.dependency = dependency;
+  }
+
+  public FilterJoinNode getDependency() {
+    return dependency;
+  }
+
+  /**
+   * Restricts the lookup query with the given filter.
+   */
+  public void addLookupFilter(Map<String, Object> filter) {
+    Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
+    Map<String, Object> bool = new HashMap<>();
+    if (conf.get("query") != null) {
+      bool.put("must", conf.get("query"));
+    }
+    bool.put("filter", filter);
+
+    Map<String, Object> query = new HashMap<>();
+    query.put("bool", bool);
+    conf.put("query", query);
   }
 
   private XContentBuilder buildQuery(Map query) {
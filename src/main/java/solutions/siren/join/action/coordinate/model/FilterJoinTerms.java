@@ -52,6 +52,11 @@ public class FilterJoinTerms {
    */
   private boolean cacheHit = false;
 
+  /**
+   * The id under which the terms were published on the data nodes, or null if the terms were not published
+   */
+  private String publishedTermsId;
+
   /**
    * To be used by subclasses to set the encoded terms, for example if the encoded terms were
    * cached.
@@ -84,6 +89,10 @@ public class FilterJoinTerms {
     this.cacheHit = cacheHit;
   }
 
+  public void setPublishedTermsId(String publishedTermsId) {
+    this.publishedTermsId = publishedTermsId;
+  }
+
   public BytesRef getEncodedTerms() {
     return encodedTerms;
   }
@@ -104,4 +113,8 @@ public class FilterJoinTerms {
     return cacheHit;
   }
 
+  public String getPublishedTermsId() {
+    return publishedTermsId;
+  }
+
 }
\ No newline at end of file
@@ -33,9 +33,19 @@ public class NodeTaskContext {
   private FilterJoinNode node;
   private FilterJoinVisitor visitor;
 
-  public NodeTaskContext(Client client, FilterJoinNode node, FilterJoinVisitor visitor) {
+  /**
+   * The indices and types of the target field of the node, i.e., the lookup indices and types of its parent node, or
+   * the indices and types of the search for a root filter join
+   */
+  private String[] targetIndices;
+  private String[] targetTypes;
+
+  public NodeTaskContext(Client client, FilterJoinNode node, String[] targetIndices, String[] targetTypes,
+                         FilterJoinVisitor visitor) {
     this.client = client;
     this.node = node;
+    this.targetIndices = targetIndices;
+    this.targetTypes = targetTypes;
     this.visitor = visitor;
   }
 
@@ -47,6 +57,14 @@ public class NodeTaskContext {
     return node;
   }
 
+  public String[] getTargetIndices() {
+    return targetIndices;
+  }
+
+  public String[] getTargetTypes() {
+    return targetTypes;
+  }
+
   public FilterJoinVisitor getVisitor() {
     return visitor;
   }
@@ -20,48 +20,130 @@ package solutions.siren.join.action.coordinate.tasks;
 
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsAction;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsResponse;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsResponse.FieldMappingMetaData;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import solutions.siren.join.action.coordinate.execution.TermsEncodingSelector;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.pipeline.NodeTask;
 import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
 import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 
+import java.util.Map;
+
 /**
  * Task to estimate the cardinality of a {@link FilterJoinNode}. The cardinality is based on the number of unique
  * terms in the path of the lookup index.
+ * <br>
+ * For the {@link TermsByQueryRequest.TermsEncoding#AUTO} encoding, the task also retrieves the mapping of the path
+ * and the range of its values, the mapping of the target field, and selects the encoding of the terms with the
+ * {@link TermsEncodingSelector}.
  */
 public class CardinalityEstimationTask implements NodeTask {
 
   protected static final ESLogger logger = Loggers.getLogger(CardinalityEstimationTask.class);
 
+  private static final String MIN_AGGREGATION = "siren_min_value";
+  private static final String MAX_AGGREGATION = "siren_max_value";
+
   @Override
   public void execute(NodeTaskContext context, NodeTaskReporter reporter) {
-    // Executes the cardinality estimation only for bloom encoding
-    if (context.getNode().getTermsEncoding().equals(TermsByQueryRequest.TermsEncoding.BLOOM)) {
-      this.executeCardinalityRequest(context, reporter);
+    // Executes the cardinality estimation only for bloom encoding, or to select the encoding
+    if (context.getNode().isAutoTermsEncoding()) {
+      this.executeFieldMappingsRequest(context, reporter);
+    }
+    else if (context.getNode().getTermsEncoding().equals(TermsByQueryRequest.TermsEncoding.BLOOM)) {
+      this.executeCardinalityRequest(context, reporter, null, null);
     }
     else {
       reporter.success(context);
     }
   }
 
-  protected void executeCardinalityRequest(final NodeTaskContext context, final NodeTaskReporter reporter) {
+  protected void executeFieldMappingsRequest(final NodeTaskContext context, final NodeTaskReporter reporter) {
+    logger.debug("Executing async field mappings action");
+    final FilterJoinNode node = context.getNode();
+    GetFieldMappingsRequest mappingsRequest = new GetFieldMappingsRequest()
+            .indices(node.getLookupIndices())
+            .types(node.getLookupTypes())
+            .fields(node.getLookupPath());
+    mappingsRequest.copyContextAndHeadersFrom(context.getVisitor().getParentRequest());
+    context.getClient().execute(GetFieldMappingsAction.INSTANCE, mappingsRequest, new ActionListener<GetFieldMappingsResponse>() {
+
+      @Override
+      public void onResponse(GetFieldMappingsResponse response) {
+        executeTargetFieldMappingsRequest(context, reporter, getFieldType(response, node.getLookupPath()));
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        reporter.failure(e);
+      }
+
+    });
+  }
+
+  /**
+   * Retrieves the mapping of the target field of the node in the target indices, which restricts the encodings that
+   * can be selected.
+   */
+  protected void executeTargetFieldMappingsRequest(final NodeTaskContext context, final NodeTaskReporter reporter,
+                                                   final TermsEncodingSelector.FieldType fieldType) {
+    logger.debug("Executing async target field mappings action");
+    final FilterJoinNode node = context.getNode();
+    GetFieldMappingsRequest mappingsRequest = new GetFieldMappingsRequest()
+            .indices(context.getTargetIndices())
+            .types(context.getTargetTypes())
+            .fields(node.getField());
+    mappingsRequest.copyContextAndHeadersFrom(context.getVisitor().getParentRequest());
+    context.getClient().execute(GetFieldMappingsAction.INSTANCE, mappingsRequest, new ActionListener<GetFieldMappingsResponse>() {
+
+      @Override
+      public void onResponse(GetFieldMappingsResponse response) {
+        executeCardinalityRequest(context, reporter, fieldType, getFieldType(response, node.getField()));
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        reporter.failure(e);
+      }
+
+    });
+  }
+
+  /**
+   * Executes the cardinality request. If the field type is not null, the range of the values of a numeric field is
+   * requested as well, and the terms encoding is selected.
+   */
+  protected void executeCardinalityRequest(final NodeTaskContext context, final NodeTaskReporter reporter,
+                                           final TermsEncodingSelector.FieldType fieldType,
+                                           final TermsEncodingSelector.FieldType targetFieldType) {
     logger.debug("Executing async cardinality action");
-    final SearchRequest cardinalityRequest = this.getCardinalityRequest(context.getNode(), context.getVisitor().getParentRequest());
+    final FilterJoinNode node = context.getNode();
+    final SearchRequest cardinalityRequest = this.getCardinalityRequest(node, context.getVisitor().getParentRequest(),
+            isNumeric(fieldType));
     context.getClient().execute(SearchAction.INSTANCE, cardinalityRequest, new ActionListener<SearchResponse>() {
 
       @Override
       public void onResponse(SearchResponse searchResponse) {
-        Cardinality c = searchResponse.getAggregations().get(context.getNode().getLookupPath());
-        context.getNode().setCardinality(c.getValue());
+        Cardinality c = searchResponse.getAggregations().get(node.getLookupPath());
+        node.setCardinality(c.getValue());
+        if (fieldType != null) {
+          selectTermsEncoding(context, searchResponse, fieldType, targetFieldType);
+        }
         reporter.success(context);
       }
 
@@ -73,7 +155,55 @@ public class CardinalityEstimationTask implements NodeTask {
     });
   }
 
-  protected SearchRequest getCardinalityRequest(FilterJoinNode node, ActionRequest parentRequest) {
+  private void selectTermsEncoding(NodeTaskContext context, SearchResponse searchResponse,
+                                   TermsEncodingSelector.FieldType fieldType,
+                                   TermsEncodingSelector.FieldType targetFieldType) {
+    FilterJoinNode node = context.getNode();
+    double min = 0;
+    double max = 0;
+    if (isNumeric(fieldType)) {
+      min = searchResponse.getAggregations().<Min>get(MIN_AGGREGATION).getValue();
+      max = searchResponse.getAggregations().<Max>get(MAX_AGGREGATION).getValue();
+    }
+
+    CircuitBreaker breaker = context.getVisitor().getBreaker();
+    long availableMemory = breaker.getLimit() < 0 ? Long.MAX_VALUE : breaker.getLimit() - breaker.getUsed();
+
+    TermsEncodingSelector.Selection selection = TermsEncodingSelector.select(fieldType, targetFieldType,
+            node.getCardinality(), min, max, availableMemory);
+    logger.debug("Selected terms encoding {} for field {} with {} terms: {}", selection.getTermsEncoding(),
+            node.getLookupPath(), node.getCardinality(), selection.getReason());
+    node.setTermsEncoding(selection.getTermsEncoding(), selection.getReason().toString());
+  }
+
+  /**
+   * Returns the widest type of the path across the indices and types of the response, or
+   * {@link TermsEncodingSelector.FieldType#STRING} if the path is not mapped.
+   */
+  @SuppressWarnings("unchecked")
+  private static TermsEncodingSelector.FieldType getFieldType(GetFieldMappingsResponse response, String path) {
+    TermsEncodingSelector.FieldType fieldType = null;
+    for (Map<String, ? extends Map<String, FieldMappingMetaData>> types : response.mappings().values()) {
+      for (Map<String, FieldMappingMetaData> fields : types.values()) {
+        FieldMappingMetaData field = fields.get(path);
+        if (field == null || field.isNull()) {
+          continue;
+        }
+        for (Object mapping : field.sourceAsMap().values()) {
+          String type = (String) ((Map<String, Object>) mapping).get("type");
+          TermsEncodingSelector.FieldType current = TermsEncodingSelector.FieldType.fromMappingType(type);
+          fieldType = fieldType == null ? current : fieldType.widen(current);
+        }
+      }
+    }
+    return fieldType == null ? TermsEncodingSelector.FieldType.STRING : fieldType;
+  }
+
+  private static boolean isNumeric(TermsEncodingSelector.FieldType fieldType) {
+    return fieldType == TermsEncodingSelector.FieldType.INTEGER || fieldType == TermsEncodingSelector.FieldType.LONG;
+  }
+
+  protected SearchRequest getCardinalityRequest(FilterJoinNode node, ActionRequest parentRequest, boolean withRange) {
     String[] lookupIndices = node.getLookupIndices();
     String[] lookupTypes = node.getLookupTypes();
     String lookupPath = node.getLookupPath();
@@ -81,6 +211,10 @@ public class CardinalityEstimationTask implements NodeTask {
     // Build the search source with the aggregate definition
     SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
     sourceBuilder.size(0).aggregation(AggregationBuilders.cardinality(lookupPath).field(lookupPath));
+    if (withRange) {
+      sourceBuilder.aggregation(AggregationBuilders.min(MIN_AGGREGATION).field(lookupPath));
+      sourceBuilder.aggregation(AggregationBuilders.max(MAX_AGGREGATION).field(lookupPath));
+    }
 
     // Build search request with reference to the parent request
     SearchRequest searchRequest = new SearchRequest(parentRequest);
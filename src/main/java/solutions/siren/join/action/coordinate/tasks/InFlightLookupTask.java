@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.tasks;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.coordinate.execution.InFlightFilterJoins;
+import solutions.siren.join.action.coordinate.model.FilterJoinNode;
+import solutions.siren.join.action.coordinate.pipeline.NodeTask;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
+
+/**
+ * A task to lookup a filter join with the same cache id ({@link FilterJoinNode#getCacheId()}) that is being computed.
+ * If there is one, the pipeline is terminated once its terms are computed. This must be executed after
+ * {@link IndicesVersionTask} to ensure that the cache id is correct, and before {@link CacheLookupTask}: the terms are
+ * cached before the completion of a node, therefore a node that is not waiting always finds the terms in the cache.
+ *
+ * @see InFlightFilterJoins
+ */
+public class InFlightLookupTask implements NodeTask {
+
+  protected static final ESLogger logger = Loggers.getLogger(InFlightLookupTask.class);
+
+  @Override
+  public void execute(NodeTaskContext context, NodeTaskReporter reporter) {
+    FilterJoinNode node = context.getNode();
+
+    if (context.getVisitor().getInFlightFilterJoins().register(node, reporter)) {
+      // report success and move to the next task
+      reporter.success(context);
+    }
+    else {
+      logger.debug("Waiting for in-flight terms by query action: {}", node.getCacheId());
+    }
+  }
+
+}
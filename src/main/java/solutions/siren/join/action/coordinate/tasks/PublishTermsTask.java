@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.tasks;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.coordinate.model.FilterJoinNode;
+import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
+import solutions.siren.join.action.coordinate.pipeline.NodeTask;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
+import solutions.siren.join.action.publish.PublishTermsAction;
+import solutions.siren.join.action.publish.PublishTermsRequest;
+import solutions.siren.join.action.publish.PublishTermsResponse;
+
+/**
+ * Task to publish the terms of a {@link FilterJoinNode} on the data nodes with a {@link PublishTermsAction}.
+ * The id of the published terms is stored in the {@link FilterJoinTerms} of the node, and registered in the visitor
+ * to be released once the search is completed. If a data node fails to hold the terms, the id is not stored and the
+ * terms are inlined in the search requests.
+ */
+public class PublishTermsTask implements NodeTask {
+
+  protected static final ESLogger logger = Loggers.getLogger(PublishTermsTask.class);
+
+  @Override
+  public void execute(final NodeTaskContext context, final NodeTaskReporter reporter) {
+    final FilterJoinTerms terms = context.getNode().getTerms();
+    final String termsId = Strings.randomBase64UUID();
+    logger.debug("Executing async publish terms action: {}", termsId);
+
+    PublishTermsRequest request = new PublishTermsRequest(termsId).encodedTerms(terms.getEncodedTerms());
+    // register the id before the execution, so that the terms are released even if some nodes fail
+    context.getVisitor().addPublishedTerms(termsId);
+    context.getClient().execute(PublishTermsAction.INSTANCE, request, new ActionListener<PublishTermsResponse>() {
+
+      @Override
+      public void onResponse(PublishTermsResponse response) {
+        if (!response.getFailures().isEmpty()) {
+          // e.g., the terms exceed the size of the published terms of a node: they are inlined in the search instead
+          logger.debug("Failed to publish terms {} on node [{}], inlining the terms", response.getFailures().get(0),
+                  termsId, response.getFailures().get(0).nodeId());
+          reporter.success(context);
+          return;
+        }
+        terms.setPublishedTermsId(termsId);
+        reporter.success(context);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        reporter.failure(e);
+      }
+
+    });
+  }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.tasks;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.cache.FilterJoinCacheAction;
+import solutions.siren.join.action.cache.FilterJoinCacheRequest;
+import solutions.siren.join.action.cache.FilterJoinCacheResponse;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.action.coordinate.model.FilterJoinNode;
+import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
+import solutions.siren.join.action.coordinate.pipeline.NodeTask;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
+
+/**
+ * A task to lookup the terms of a filter join in the cache of the node owning its cache id, when the cache is
+ * distributed. This must be executed after {@link CacheLookupTask}, which looks up the entries owned by the local
+ * node and the replicated hot entries. A failure of the owner node is considered as a cache miss.
+ */
+public class RemoteCacheLookupTask implements NodeTask {
+
+  protected static final ESLogger logger = Loggers.getLogger(RemoteCacheLookupTask.class);
+
+  @Override
+  public void execute(final NodeTaskContext context, final NodeTaskReporter reporter) {
+    final FilterJoinNode node = context.getNode();
+    final DiscoveryNode owner = context.getVisitor().getCacheService().getOwner(node.getCacheId());
+
+    if (owner == null) { // the entry is owned by the local node
+      reporter.success(context);
+      return;
+    }
+
+    FilterJoinCacheRequest request = new FilterJoinCacheRequest(owner.getId(), node.getCacheId());
+    context.getClient().execute(FilterJoinCacheAction.INSTANCE, request, new ActionListener<FilterJoinCacheResponse>() {
+
+      @Override
+      public void onResponse(FilterJoinCacheResponse response) {
+        FilterJoinCache.CacheEntry cacheEntry = response.getEntry();
+        if (cacheEntry == null) { // if cache miss
+          logger.debug("Remote cache miss on node {} for terms by query action: {}", owner, node.getCacheId());
+          reporter.success(context);
+          return;
+        }
+
+        logger.debug("Remote cache hit on node {} for terms by query action: {}", owner, node.getCacheId());
+        context.getVisitor().getCacheService().onRemoteHit(node.getCacheId(), cacheEntry);
+
+        // Read the terms from the cache entry and update the node
+        FilterJoinTerms terms = new FilterJoinTerms();
+        terms.setEncodedTerms(cacheEntry.encodedTerms);
+        terms.setSize(cacheEntry.size);
+        terms.setPruned(cacheEntry.isPruned);
+        terms.setCacheHit(true);
+        node.setTerms(terms);
+
+        // force termination of the pipeline
+        reporter.terminate();
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        logger.debug("Failed to lookup the cache of node {} for terms by query action: {}", e, owner, node.getCacheId());
+        reporter.success(context);
+      }
+
+    });
+  }
+
+}
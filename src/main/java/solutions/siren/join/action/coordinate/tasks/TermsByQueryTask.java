@@ -20,9 +20,14 @@ package solutions.siren.join.action.coordinate.tasks;
 
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import solutions.siren.join.action.cache.FilterJoinCacheAction;
+import solutions.siren.join.action.cache.FilterJoinCacheRequest;
+import solutions.siren.join.action.cache.FilterJoinCacheResponse;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
 import solutions.siren.join.action.coordinate.pipeline.NodeTask;
@@ -54,20 +59,52 @@ public class TermsByQueryTask implements NodeTask {
         terms.setSize(termsByQueryResponse.getSize());
         terms.setTookInMillis(termsByQueryResponse.getTookInMillis());
 
+        // Update the node with the terms
+        context.getNode().setTerms(terms);
+
         // We cache the list of encoded terms instead of the {@link TermsByQueryResponse} to save the
         // byte serialization computation
-        context.getVisitor().getCache().put(context.getNode().getCacheId(), terms);
+        DiscoveryNode owner = context.getVisitor().getCacheService().getOwner(context.getNode().getCacheId());
+        if (owner == null) {
+          context.getVisitor().getCache().put(context.getNode().getCacheId(), terms);
 
-        // Update the node with the terms
-        context.getNode().setTerms(terms);
+          // reports that the task was successful
+          reporter.success(context);
+        }
+        else {
+          cacheOnOwner(context, reporter, owner, terms);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        reporter.failure(e);
+      }
+
+    });
+  }
 
-        // reports that the task was successful
+  /**
+   * Stores the terms in the cache of the node owning the cache id when the cache is distributed. The task completes
+   * once the terms are stored, so that a following identical filter join finds them in the cache. A failure to store
+   * the terms does not fail the task.
+   */
+  private void cacheOnOwner(final NodeTaskContext context, final NodeTaskReporter reporter, final DiscoveryNode owner,
+                            final FilterJoinTerms terms) {
+    final long cacheId = context.getNode().getCacheId();
+    FilterJoinCacheRequest request = new FilterJoinCacheRequest(owner.getId(), cacheId)
+            .entry(new FilterJoinCache.CacheEntry(terms));
+    context.getClient().execute(FilterJoinCacheAction.INSTANCE, request, new ActionListener<FilterJoinCacheResponse>() {
+
+      @Override
+      public void onResponse(FilterJoinCacheResponse response) {
         reporter.success(context);
       }
 
       @Override
       public void onFailure(Throwable e) {
-        reporter.failure(e);
+        logger.debug("Failed to cache terms by query action {} on node {}", e, cacheId, owner);
+        reporter.success(context);
       }
 
     });
@@ -88,7 +125,11 @@ public class TermsByQueryTask implements NodeTask {
             .query(lookupQuery)
             .orderBy(ordering)
             .maxTermsPerShard(maxTermsPerShard)
-            .termsEncoding(termsEncoding);
+            .maxTerms(node.getMaxTerms())
+            .scoreMode(node.getScoreMode())
+            .termsEncoding(termsEncoding)
+            .streamTerms(node.getStreamTerms())
+            .nodeReduce(node.getNodeReduce());
 
     if (node.hasCardinality()) {
       request.expectedTerms(node.getCardinality());
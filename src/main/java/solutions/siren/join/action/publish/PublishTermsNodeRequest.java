@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+public class PublishTermsNodeRequest extends BaseNodeRequest {
+
+  private PublishTermsRequest request;
+
+  public PublishTermsNodeRequest() {}
+
+  public PublishTermsNodeRequest(String nodeId, PublishTermsRequest request) {
+    super(request, nodeId);
+    this.request = request;
+  }
+
+  public PublishTermsRequest getRequest() {
+    return request;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    request = new PublishTermsRequest();
+    request.readFrom(in);
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    request.writeTo(out);
+  }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * A request to publish a set of encoded terms on the data nodes under a given id. A request without terms releases
+ * the terms previously published under the id.
+ */
+public class PublishTermsRequest extends BaseNodesRequest<PublishTermsRequest> {
+
+  private String termsId;
+
+  @Nullable
+  private BytesRef encodedTerms;
+
+  /**
+   * The nodes on which the terms are published by default
+   */
+  public static final String DATA_NODES = "data:true";
+
+  public PublishTermsRequest() {}
+
+  public PublishTermsRequest(String termsId) {
+    super(DATA_NODES);
+    this.termsId = termsId;
+  }
+
+  /**
+   * The id of the published terms.
+   */
+  public String termsId() {
+    return termsId;
+  }
+
+  /**
+   * Sets the encoded terms to publish.
+   */
+  public PublishTermsRequest encodedTerms(BytesRef encodedTerms) {
+    this.encodedTerms = encodedTerms;
+    return this;
+  }
+
+  /**
+   * The encoded terms to publish, or null if the published terms must be released.
+   */
+  @Nullable
+  public BytesRef encodedTerms() {
+    return encodedTerms;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    termsId = in.readString();
+    if (in.readBoolean()) {
+      encodedTerms = new BytesRef(in.readByteArray());
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeString(termsId);
+    if (encodedTerms == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeVInt(encodedTerms.length);
+      out.writeBytes(encodedTerms.bytes, encodedTerms.offset, encodedTerms.length);
+    }
+  }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class PublishTermsRequestBuilder extends ActionRequestBuilder<PublishTermsRequest, PublishTermsResponse, PublishTermsRequestBuilder> {
+
+  public PublishTermsRequestBuilder(ElasticsearchClient client, PublishTermsAction action) {
+    super(client, action, new PublishTermsRequest());
+  }
+
+  public PublishTermsRequestBuilder(ElasticsearchClient client, PublishTermsAction action, String termsId) {
+    super(client, action, new PublishTermsRequest(termsId));
+  }
+
+  /**
+   * Sets the encoded terms to publish. If not set, the terms published under the id are released.
+   */
+  public PublishTermsRequestBuilder setEncodedTerms(BytesRef encodedTerms) {
+    request.encodedTerms(encodedTerms);
+    return this;
+  }
+
+}
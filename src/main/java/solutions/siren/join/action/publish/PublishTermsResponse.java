@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PublishTermsResponse extends BaseNodesResponse<PublishTermsNodeResponse> {
+
+  private List<FailedNodeException> failures;
+
+  PublishTermsResponse() {}
+
+  PublishTermsResponse(ClusterName clusterName, PublishTermsNodeResponse[] nodes, List<FailedNodeException> failures) {
+    super(clusterName, nodes);
+    this.failures = failures;
+  }
+
+  /**
+   * The failures of the nodes on which the terms could not be published.
+   */
+  public List<FailedNodeException> getFailures() {
+    return failures;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    nodes = new PublishTermsNodeResponse[in.readVInt()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = PublishTermsNodeResponse.readNodeResponse(in);
+    }
+    int size = in.readVInt();
+    failures = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      failures.add((FailedNodeException) in.readThrowable());
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeVInt(nodes.length);
+    for (PublishTermsNodeResponse node : nodes) {
+      node.writeTo(out);
+    }
+    out.writeVInt(failures.size());
+    for (FailedNodeException failure : failures) {
+      out.writeThrowable(failure);
+    }
+  }
+
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.threadpool.ThreadPool;
+import solutions.siren.join.common.CacheCircuitBreaker;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds on a data node the encoded terms published by the coordinating nodes with the {@link PublishTermsAction}.
+ * The terms are retrieved by the query parsers using the id of the published terms. They are removed when released
+ * by the coordinating node, or by a periodic sweep once they have not been accessed for the keep alive period, e.g.,
+ * if the coordinating node left the cluster before releasing them.
+ * <br>
+ * The published terms are never evicted while a search may still use them. Their memory is accounted in the
+ * {@link CacheCircuitBreaker}, and bounded by a maximum size beyond which new terms are rejected. The coordinating
+ * node then inlines the rejected terms in the search requests instead.
+ */
+public class PublishedTermsService extends AbstractLifecycleComponent<PublishedTermsService> {
+
+  private final ConcurrentMap<String, PublishedTerms> terms = ConcurrentCollections.newConcurrentMap();
+
+  /**
+   * The size (in bytes) of the published terms held by the node
+   */
+  private final AtomicLong sizeInBytes = new AtomicLong();
+
+  private final CircuitBreaker breaker;
+
+  private final ThreadPool threadPool;
+
+  private final TimeValue keepAlive;
+
+  private final long maxSizeInBytes;
+
+  private volatile ThreadPool.Cancellable sweeper;
+
+  /**
+   * The time after which unaccessed published terms are removed. Default to 5 minutes.
+   */
+  private static final TimeValue DEFAULT_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+  /**
+   * The maximum size (in bytes) of the published terms held by the node. Default to 256MB.
+   */
+  private static final long DEFAULT_SIZE = 268435456;
+
+  public final static String SIREN_FILTERJOIN_PUBLISHED_TERMS_KEEP_ALIVE = "siren.filterjoin.published_terms.keep_alive";
+  public final static String SIREN_FILTERJOIN_PUBLISHED_TERMS_SIZE = "siren.filterjoin.published_terms.size";
+
+  @Inject
+  public PublishedTermsService(Settings settings, CircuitBreakerService breakerService, ThreadPool threadPool) {
+    super(settings);
+    this.breaker = CacheCircuitBreaker.getBreaker(settings, breakerService);
+    this.threadPool = threadPool;
+    this.keepAlive = settings.getAsTime(SIREN_FILTERJOIN_PUBLISHED_TERMS_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+    ByteSizeValue maxSize = settings.getAsBytesSize(SIREN_FILTERJOIN_PUBLISHED_TERMS_SIZE, new ByteSizeValue(DEFAULT_SIZE));
+    this.maxSizeInBytes = maxSize.bytes();
+  }
+
+  @Override
+  protected void doStart() {
+    // an unaccessed entry is removed between one and two keep alive periods after its last access
+    this.sweeper = threadPool.scheduleWithFixedDelay(new Sweeper(), keepAlive, ThreadPool.Names.SAME);
+  }
+
+  @Override
+  protected void doStop() {
+    if (sweeper != null) {
+      sweeper.cancel();
+    }
+  }
+
+  @Override
+  protected void doClose() {}
+
+  /**
+   * Stores the encoded terms under the given id, and adjusts the circuit breaker. Throws an exception if the terms
+   * exceed the maximum size of the published terms or the circuit breaker.
+   */
+  public void put(String termsId, BytesRef encodedTerms) {
+    logger.debug("{}: Published terms {} - {} bytes", Thread.currentThread().getName(), termsId, encodedTerms.length);
+    // the query parsers expect a byte array with the encoded terms only
+    if (encodedTerms.offset != 0 || encodedTerms.length != encodedTerms.bytes.length) {
+      encodedTerms = BytesRef.deepCopyOf(encodedTerms);
+    }
+
+    long length = encodedTerms.length;
+    if (sizeInBytes.addAndGet(length) > maxSizeInBytes) {
+      sizeInBytes.addAndGet(-length);
+      throw new ElasticsearchException("Published terms [" + termsId + "] of [" + length + "] bytes would exceed " +
+              "the maximum size of [" + maxSizeInBytes + "] bytes");
+    }
+    try {
+      breaker.addEstimateBytesAndMaybeBreak(length, "<published_terms>");
+    }
+    catch (RuntimeException e) {
+      sizeInBytes.addAndGet(-length);
+      throw e;
+    }
+
+    PublishedTerms published = new PublishedTerms(encodedTerms.bytes, threadPool.estimatedTimeInMillis());
+    PublishedTerms previous = terms.put(termsId, published);
+    if (previous != null) {
+      this.released(previous);
+    }
+  }
+
+  /**
+   * Returns the encoded terms published under the given id, or null if they were released or expired.
+   */
+  public byte[] get(String termsId) {
+    PublishedTerms published = terms.get(termsId);
+    if (published == null) {
+      return null;
+    }
+    published.lastAccessTime = threadPool.estimatedTimeInMillis();
+    return published.bytes;
+  }
+
+  /**
+   * Releases the encoded terms published under the given id.
+   */
+  public void release(String termsId) {
+    logger.debug("{}: Released terms {}", Thread.currentThread().getName(), termsId);
+    PublishedTerms published = terms.remove(termsId);
+    if (published != null) {
+      this.released(published);
+    }
+  }
+
+  private void released(PublishedTerms published) {
+    sizeInBytes.addAndGet(-published.bytes.length);
+    breaker.addWithoutBreaking(-published.bytes.length);
+  }
+
+  /**
+   * Returns the number of published terms held by the node.
+   */
+  public long size() {
+    return terms.size();
+  }
+
+  private static final class PublishedTerms {
+
+    private final byte[] bytes;
+    private volatile long lastAccessTime;
+
+    private PublishedTerms(byte[] bytes, long lastAccessTime) {
+      this.bytes = bytes;
+      this.lastAccessTime = lastAccessTime;
+    }
+
+  }
+
+  /**
+   * Removes the published terms which have not been accessed for the keep alive period.
+   */
+  private final class Sweeper implements Runnable {
+
+    @Override
+    public void run() {
+      long expiredTime = threadPool.estimatedTimeInMillis() - keepAlive.millis();
+      Iterator<ConcurrentMap.Entry<String, PublishedTerms>> it = terms.entrySet().iterator();
+      while (it.hasNext()) {
+        ConcurrentMap.Entry<String, PublishedTerms> entry = it.next();
+        PublishedTerms published = entry.getValue();
+        if (published.lastAccessTime < expiredTime && terms.remove(entry.getKey(), published)) {
+          logger.debug("Expired published terms {}", entry.getKey());
+          released(published);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Publishes a set of encoded terms on the data nodes, so that the terms are sent once per node instead of being
+ * inlined in the source of every shard search request.
+ */
+public class TransportPublishTermsAction extends TransportNodesAction<PublishTermsRequest, PublishTermsResponse,
+        PublishTermsNodeRequest, PublishTermsNodeResponse> {
+
+  private final PublishedTermsService publishedTerms;
+
+  @Inject
+  public TransportPublishTermsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                     ClusterService clusterService, PublishedTermsService publishedTerms,
+                                     TransportService transportService, ActionFilters actionFilters,
+                                     IndexNameExpressionResolver indexNameExpressionResolver) {
+    super(settings, PublishTermsAction.NAME, clusterName, threadPool, clusterService, transportService,
+            actionFilters, indexNameExpressionResolver, PublishTermsRequest.class,
+            PublishTermsNodeRequest.class, ThreadPool.Names.GENERIC);
+    this.publishedTerms = publishedTerms;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes") // the overridden method of TransportNodesAction takes a raw AtomicReferenceArray
+  protected PublishTermsResponse newResponse(PublishTermsRequest request, AtomicReferenceArray nodesResponses) {
+    final List<PublishTermsNodeResponse> nodes = new ArrayList<>();
+    final List<FailedNodeException> failures = new ArrayList<>();
+    for (int i = 0; i < nodesResponses.length(); i++) {
+      Object resp = nodesResponses.get(i);
+      if (resp instanceof PublishTermsNodeResponse) {
+        nodes.add((PublishTermsNodeResponse) resp);
+      }
+      else if (resp instanceof FailedNodeException) {
+        failures.add((FailedNodeException) resp);
+      }
+    }
+    return new PublishTermsResponse(clusterName, nodes.toArray(new PublishTermsNodeResponse[nodes.size()]), failures);
+  }
+
+  @Override
+  protected PublishTermsNodeRequest newNodeRequest(String nodeId, PublishTermsRequest request) {
+    return new PublishTermsNodeRequest(nodeId, request);
+  }
+
+  @Override
+  protected PublishTermsNodeResponse newNodeResponse() {
+    return new PublishTermsNodeResponse();
+  }
+
+  @Override
+  protected PublishTermsNodeResponse nodeOperation(PublishTermsNodeRequest nodeRequest) {
+    PublishTermsRequest request = nodeRequest.getRequest();
+    if (request.encodedTerms() != null) {
+      publishedTerms.put(request.termsId(), request.encodedTerms());
+    }
+    else {
+      publishedTerms.release(request.termsId());
+    }
+    return new PublishTermsNodeResponse(clusterService.localNode());
+  }
+
+  @Override
+  protected boolean accumulateExceptions() {
+    return true;
+  }
+
+}
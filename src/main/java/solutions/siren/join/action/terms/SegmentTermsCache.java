@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import solutions.siren.join.common.CacheCircuitBreaker;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A node level cache of the terms collected by a terms by query action in each segment of a shard.
+ * <br>
+ * The terms of a segment are identified by the segment, its deleted documents, the query and the field. When a shard
+ * changes, e.g., after a refresh of an append-mostly index, the terms of the unchanged segments are reused and only
+ * the new segments, or the segments with new deleted documents, are collected again. The entries of a segment are
+ * invalidated once the segment is closed, e.g., after a merge.
+ * <br>
+ * Only the numeric terms, i.e., the long values or the hashes of the terms, are cached. The terms are stored as an
+ * array of longs, so that they can be merged in any numeric {@link solutions.siren.join.action.terms.collector.TermsSet}.
+ * The memory of the cached terms is accounted in the {@link CacheCircuitBreaker}. If the breaker trips, the terms are
+ * not cached.
+ * <br>
+ * A segment is only cached for a query whose matches in the segment do not depend on the other segments, see
+ * {@link #isSegmentLocal(Query)}.
+ */
+public class SegmentTermsCache extends AbstractComponent {
+
+  private final Cache<Key, long[]> cache;
+
+  private final CircuitBreaker breaker;
+
+  private final boolean isEnabled;
+
+  /**
+   * The segment cores for which a listener invalidates the entries once the core is closed
+   */
+  private final Set<Object> registeredCores = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+  /**
+   * The maximum size (in bytes) of the cache. Default to 64MB.
+   */
+  private static final ByteSizeValue DEFAULT_CACHE_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+
+  public final static String SIREN_TERMSBYQUERY_SEGMENT_CACHE_ENABLED = "siren.termsbyquery.segment_cache.enabled";
+  public final static String SIREN_TERMSBYQUERY_SEGMENT_CACHE_SIZE = "siren.termsbyquery.segment_cache.size";
+
+  @Inject
+  public SegmentTermsCache(Settings settings, CircuitBreakerService breakerService) {
+    super(settings);
+    this.breaker = CacheCircuitBreaker.getBreaker(settings, breakerService);
+    this.isEnabled = settings.getAsBoolean(SIREN_TERMSBYQUERY_SEGMENT_CACHE_ENABLED, true);
+    long size = settings.getAsBytesSize(SIREN_TERMSBYQUERY_SEGMENT_CACHE_SIZE, DEFAULT_CACHE_SIZE).bytes();
+
+    this.cache = CacheBuilder.newBuilder()
+            .recordStats()
+            .maximumWeight(isEnabled ? size : 0)
+            .weigher(new Weigher<Key, long[]>() {
+
+              @Override
+              public int weigh(Key key, long[] terms) {
+                return (int) RamUsageEstimator.sizeOf(terms);
+              }
+
+            })
+            .removalListener(new RemovalListener<Key, long[]>() {
+
+              @Override
+              public void onRemoval(RemovalNotification<Key, long[]> notification) {
+                long[] terms = notification.getValue();
+                if (terms != null) {
+                  breaker.addWithoutBreaking(-RamUsageEstimator.sizeOf(terms));
+                }
+              }
+
+            })
+            .build();
+  }
+
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  /**
+   * Returns the terms collected in the segment for the given query and field, or null if they are not cached.
+   */
+  public long[] get(LeafReader reader, Query query, String field) {
+    return cache.getIfPresent(new Key(reader, query, field));
+  }
+
+  /**
+   * Caches the terms collected in the segment for the given query and field, and adjusts the circuit breaker. The
+   * terms are not cached if the circuit breaker trips.
+   */
+  public void put(LeafReader reader, Query query, String field, long[] terms) {
+    try {
+      // the estimate is released by the removal listener
+      breaker.addEstimateBytesAndMaybeBreak(RamUsageEstimator.sizeOf(terms), "<segment_terms>");
+    }
+    catch (CircuitBreakingException e) {
+      logger.debug("Segment terms of field [{}] not cached: {}", field, e.getMessage());
+      return;
+    }
+    Object coreKey = reader.getCoreCacheKey();
+    if (registeredCores.add(coreKey)) {
+      reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+          invalidate(ownerCoreCacheKey);
+        }
+
+      });
+    }
+    cache.put(new Key(reader, query, field), terms);
+  }
+
+  /**
+   * Returns true if the documents matched by the query in a segment only depend on the content of the segment, so
+   * that the terms of the segment can be reused while the other segments of the shard change. This is the case of
+   * the term, terms, prefix and range queries, and of the boolean combinations of these queries. The queries relying
+   * on statistics or on the other documents of the shard, e.g., a join between parent and child documents, are not.
+   */
+  public static boolean isSegmentLocal(Query query) {
+    if (query instanceof TermQuery || query instanceof TermsQuery || query instanceof PrefixQuery ||
+        query instanceof NumericRangeQuery || query instanceof TermRangeQuery || query instanceof MatchAllDocsQuery) {
+      return true;
+    }
+    if (query instanceof ConstantScoreQuery) {
+      return isSegmentLocal(((ConstantScoreQuery) query).getQuery());
+    }
+    if (query instanceof BoostQuery) {
+      return isSegmentLocal(((BoostQuery) query).getQuery());
+    }
+    if (query instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+        if (!isSegmentLocal(clause.getQuery())) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Invalidates the entries of a segment core which has been closed, e.g., after a merge.
+   */
+  private void invalidate(Object coreKey) {
+    registeredCores.remove(coreKey);
+    Iterator<Key> it = cache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().coreKey == coreKey) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Invalidate all cache entries.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Returns a current snapshot of this cache's cumulative statistics.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns the approximate number of entries in this cache.
+   */
+  public long getSize() {
+    return cache.size();
+  }
+
+  /**
+   * The key of the terms of a segment. The documents of a segment core are never undeleted, therefore the number of
+   * live documents of the segment identifies its deleted documents.
+   */
+  private static final class Key {
+
+    private final Object coreKey;
+    private final int numDocs;
+    private final Query query;
+    private final String field;
+
+    private Key(LeafReader reader, Query query, String field) {
+      this.coreKey = reader.getCoreCacheKey();
+      this.numDocs = reader.numDocs();
+      this.query = query;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key other = (Key) o;
+      return coreKey == other.coreKey && numDocs == other.numDocs && query.equals(other.query) &&
+             field.equals(other.field);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = System.identityHashCode(coreKey);
+      result = 31 * result + numDocs;
+      result = 31 * result + query.hashCode();
+      result = 31 * result + field.hashCode();
+      return result;
+    }
+
+  }
+
+}
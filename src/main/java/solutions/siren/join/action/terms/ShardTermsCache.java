@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesLifecycle;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A node level cache of the terms collected by a terms by query action on a shard.
+ * <br>
+ * The terms of a shard are identified by the shard, the version of its searchable content computed by the
+ * {@link solutions.siren.join.action.admin.version.IndexVersionShardService}, and the parameters of the request. A
+ * write to an index only changes the version of the shards it modifies: when a join is recomputed, the shards which
+ * did not change reuse their cached terms instead of executing the query again, and only the modified shards are
+ * collected.
+ * <br>
+ * The terms are cached in their serialized form, and are not accounted in the circuit breaker until they are read
+ * back. Once a newer reader of a shard is searched, the entries of its previous versions are invalidated. The entries
+ * of a shard are also invalidated once the shard is closed on the node, e.g., after a relocation.
+ */
+public class ShardTermsCache extends AbstractComponent {
+
+  private final Cache<Key, BytesReference> cache;
+
+  private final boolean isEnabled;
+
+  /**
+   * The version of the newest reader of each shard put in the cache
+   */
+  private final ConcurrentMap<ShardId, Long> readerVersions = new ConcurrentHashMap<>();
+
+  /**
+   * The maximum size (in bytes) of the cache. Default to 64MB.
+   */
+  private static final ByteSizeValue DEFAULT_CACHE_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+
+  public final static String SIREN_TERMSBYQUERY_SHARD_CACHE_ENABLED = "siren.termsbyquery.shard_cache.enabled";
+  public final static String SIREN_TERMSBYQUERY_SHARD_CACHE_SIZE = "siren.termsbyquery.shard_cache.size";
+
+  @Inject
+  public ShardTermsCache(Settings settings, IndicesLifecycle indicesLifecycle) {
+    super(settings);
+    this.isEnabled = settings.getAsBoolean(SIREN_TERMSBYQUERY_SHARD_CACHE_ENABLED, true);
+    long size = settings.getAsBytesSize(SIREN_TERMSBYQUERY_SHARD_CACHE_SIZE, DEFAULT_CACHE_SIZE).bytes();
+
+    this.cache = CacheBuilder.newBuilder()
+            .recordStats()
+            .maximumWeight(isEnabled ? size : 0)
+            .weigher(new Weigher<Key, BytesReference>() {
+
+              @Override
+              public int weigh(Key key, BytesReference terms) {
+                return terms.length();
+              }
+
+            })
+            .build();
+
+    indicesLifecycle.addListener(new IndicesLifecycle.Listener() {
+
+      @Override
+      public void afterIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard, Settings indexSettings) {
+        readerVersions.remove(shardId);
+        invalidate(shardId, null);
+      }
+
+    });
+  }
+
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  /**
+   * Returns the terms collected on the given version of the shard for the given request, or null if they are not
+   * cached. The returned terms set is accounted in the given circuit breaker, and must be released by the caller.
+   */
+  public TermsSet get(TermsByQueryShardRequest request, long version, CircuitBreaker breaker) throws IOException {
+    BytesReference bytes = cache.getIfPresent(new Key(request, version));
+    if (bytes == null) {
+      return null;
+    }
+    return TermsByQueryShardResponse.readTermsSet(bytes.streamInput(), breaker);
+  }
+
+  /**
+   * Caches the terms collected on the given version of the shard for the given request. The reader version is the
+   * version of the searched reader, see {@link org.apache.lucene.index.DirectoryReader#getVersion()}, which
+   * increases with each change of the shard. The terms collected on an older reader than the newest one already
+   * cached are not cached.
+   */
+  public void put(TermsByQueryShardRequest request, long version, long readerVersion, TermsSet terms)
+  throws IOException {
+    if (!this.updateVersion(request.shardId(), version, readerVersion)) {
+      return;
+    }
+
+    BytesStreamOutput out = new BytesStreamOutput();
+    TermsByQueryShardResponse.writeTermsSet(out, terms);
+    cache.put(new Key(request, version), out.bytes());
+  }
+
+  /**
+   * Records the version of the newest reader of the shard, and invalidates the entries of its previous versions.
+   * Returns false if the reader is older than the newest one.
+   */
+  private boolean updateVersion(ShardId shardId, long version, long readerVersion) {
+    while (true) {
+      Long current = readerVersions.get(shardId);
+      if (current == null) {
+        if (readerVersions.putIfAbsent(shardId, readerVersion) == null) {
+          return true;
+        }
+      }
+      else if (readerVersion < current) {
+        return false;
+      }
+      else if (readerVersion == current) {
+        return true;
+      }
+      else if (readerVersions.replace(shardId, current, readerVersion)) {
+        this.invalidate(shardId, version);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Invalidates the entries of a shard, except the ones of the given version if not null.
+   */
+  private void invalidate(ShardId shardId, @Nullable Long version) {
+    Iterator<Key> it = cache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      Key key = it.next();
+      if (key.shardId.equals(shardId) && (version == null || key.version != version)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Invalidate all cache entries.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+    readerVersions.clear();
+  }
+
+  /**
+   * Returns a current snapshot of this cache's cumulative statistics.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns the approximate number of entries in this cache.
+   */
+  public long getSize() {
+    return cache.size();
+  }
+
+  /**
+   * The key of the terms of a shard. The query is identified by the length and the hash of its source, which is
+   * parsed with the types and the filtering aliases of the request. The other parameters of the request change the
+   * terms collected, or their encoding.
+   */
+  private static final class Key {
+
+    private final ShardId shardId;
+    private final long version;
+    private final int queryLength;
+    private final long queryHash1;
+    private final long queryHash2;
+    private final String[] types;
+    private final String[] filteringAliases;
+    private final String field;
+    private final TermsByQueryRequest.TermsEncoding termsEncoding;
+    private final TermsByQueryRequest.Ordering ordering;
+    private final Integer maxTermsPerShard;
+    private final Float minScore;
+    private final TermsByQueryRequest.ScoreMode scoreMode;
+    private final Long expectedTerms;
+
+    private Key(TermsByQueryShardRequest shardRequest, long version) {
+      TermsByQueryRequest request = shardRequest.request();
+      BytesRef querySource = request.querySource() != null ? request.querySource().toBytesRef() : new BytesRef();
+      MurmurHash3.Hash128 hash = MurmurHash3.hash128(querySource.bytes, querySource.offset, querySource.length, 0,
+              new MurmurHash3.Hash128());
+      this.shardId = shardRequest.shardId();
+      this.version = version;
+      this.queryLength = querySource.length;
+      this.queryHash1 = hash.h1;
+      this.queryHash2 = hash.h2;
+      this.types = request.types();
+      this.filteringAliases = shardRequest.filteringAliases();
+      this.field = request.field();
+      this.termsEncoding = request.termsEncoding();
+      this.ordering = request.getOrderBy() != null ? request.getOrderBy() : TermsByQueryRequest.Ordering.DEFAULT;
+      this.maxTermsPerShard = request.maxTermsPerShard();
+      this.minScore = request.minScore();
+      this.scoreMode = request.scoreMode();
+      this.expectedTerms = request.expectedTerms();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key other = (Key) o;
+      return version == other.version && shardId.equals(other.shardId) && queryLength == other.queryLength &&
+             queryHash1 == other.queryHash1 && queryHash2 == other.queryHash2 &&
+             Arrays.equals(types, other.types) && Arrays.equals(filteringAliases, other.filteringAliases) &&
+             field.equals(other.field) && termsEncoding == other.termsEncoding && ordering == other.ordering &&
+             Objects.equals(maxTermsPerShard, other.maxTermsPerShard) && Objects.equals(minScore, other.minScore) &&
+             scoreMode == other.scoreMode && Objects.equals(expectedTerms, other.expectedTerms);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(shardId, version, queryHash1, Arrays.hashCode(types), Arrays.hashCode(filteringAliases),
+                          field, termsEncoding, ordering, maxTermsPerShard, minScore, scoreMode, expectedTerms);
+    }
+
+  }
+
+}
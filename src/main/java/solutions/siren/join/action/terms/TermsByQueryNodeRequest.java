@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Internal terms by query request executed against all the shards of a node. The original
+ * {@link TermsByQueryRequest} is serialized once for all the shards.
+ */
+public class TermsByQueryNodeRequest extends TransportRequest {
+
+  private TermsByQueryRequest request;
+  private List<ShardId> shardIds;
+  private List<String[]> filteringAliases;
+
+  /**
+   * Default constructor
+   */
+  public TermsByQueryNodeRequest() {}
+
+  /**
+   * Main constructor
+   *
+   * @param request the original {@link TermsByQueryRequest}
+   */
+  public TermsByQueryNodeRequest(TermsByQueryRequest request) {
+    super(request);
+    this.request = request;
+    this.shardIds = new ArrayList<>();
+    this.filteringAliases = new ArrayList<>();
+  }
+
+  /**
+   * Adds a shard to execute the request against
+   *
+   * @param shardId          the id of the shard
+   * @param filteringAliases optional aliases
+   */
+  public void addShard(ShardId shardId, @Nullable String[] filteringAliases) {
+    this.shardIds.add(shardId);
+    this.filteringAliases.add(filteringAliases);
+  }
+
+  /**
+   * Gets the number of shards of this node request
+   */
+  public int numShards() {
+    return shardIds.size();
+  }
+
+  /**
+   * Gets the shard id of the shard at the given position
+   */
+  public ShardId shardId(int i) {
+    return shardIds.get(i);
+  }
+
+  /**
+   * Creates the {@link TermsByQueryShardRequest} of the shard at the given position
+   */
+  public TermsByQueryShardRequest shardRequest(int i) {
+    return new TermsByQueryShardRequest(shardIds.get(i), filteringAliases.get(i), request);
+  }
+
+  /**
+   * Gets the original {@link TermsByQueryRequest}
+   */
+  public TermsByQueryRequest request() {
+    return request;
+  }
+
+  /**
+   * Deserialize
+   *
+   * @param in the input
+   * @throws IOException
+   */
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    request = new TermsByQueryRequest();
+    request.readFrom(in);
+
+    int size = in.readVInt();
+    shardIds = new ArrayList<>(size);
+    filteringAliases = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      shardIds.add(ShardId.readShardId(in));
+      if (in.readBoolean()) {
+        filteringAliases.add(in.readStringArray());
+      }
+      else {
+        filteringAliases.add(null);
+      }
+    }
+  }
+
+  /**
+   * Serialize
+   *
+   * @param out the output
+   * @throws IOException
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    request.writeTo(out);
+
+    out.writeVInt(shardIds.size());
+    for (int i = 0; i < shardIds.size(); i++) {
+      shardIds.get(i).writeTo(out);
+      String[] aliases = filteringAliases.get(i);
+      if (aliases == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        out.writeStringArray(aliases);
+      }
+    }
+  }
+
+}
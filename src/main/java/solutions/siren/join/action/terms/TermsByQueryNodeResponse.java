@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Internal terms by query response of a node terms by query request. It holds the terms of all the successful
+ * shards of the node merged into a single terms set, and the failures of the other shards.
+ */
+class TermsByQueryNodeResponse extends TransportResponse {
+
+  @Nullable
+  private TermsSet termsSet;
+  private int successfulShards;
+  private List<ShardOperationFailedException> shardFailures;
+  private final CircuitBreaker breaker;
+
+  /**
+   * Default constructor
+   */
+  TermsByQueryNodeResponse(final CircuitBreaker breaker) {
+    this.breaker = breaker;
+  }
+
+  /**
+   * Main constructor
+   *
+   * @param termsSet the merged terms of the successful shards, or null if no shard succeeded
+   * @param successfulShards the number of successful shards
+   * @param shardFailures the failures of the other shards
+   */
+  TermsByQueryNodeResponse(@Nullable TermsSet termsSet, int successfulShards, List<ShardOperationFailedException> shardFailures) {
+    this.termsSet = termsSet;
+    this.successfulShards = successfulShards;
+    this.shardFailures = shardFailures;
+    this.breaker = null;
+  }
+
+  /**
+   * Gets the merged terms of the successful shards, or null if no shard succeeded.
+   */
+  @Nullable
+  public TermsSet getTerms() {
+    return termsSet;
+  }
+
+  public int getSuccessfulShards() {
+    return successfulShards;
+  }
+
+  public List<ShardOperationFailedException> getShardFailures() {
+    return shardFailures;
+  }
+
+  /**
+   * Deserialize
+   */
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    successfulShards = in.readVInt();
+    int size = in.readVInt();
+    shardFailures = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      shardFailures.add(DefaultShardOperationFailedException.readShardOperationFailed(in));
+    }
+    if (in.readBoolean()) {
+      termsSet = TermsByQueryShardResponse.readTermsSet(in, breaker);
+    }
+  }
+
+  /**
+   * Serialize and release the terms set.
+   * <p>
+   * If the response is sent through a {@link org.elasticsearch.transport.TransportService.DirectResponseChannel},
+   * this method will not be called and the {@link #termsSet} will be released by the receiver.
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    try {
+      super.writeTo(out);
+      out.writeVInt(successfulShards);
+      out.writeVInt(shardFailures.size());
+      for (ShardOperationFailedException failure : shardFailures) {
+        failure.writeTo(out);
+      }
+      if (termsSet == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        TermsByQueryShardResponse.writeTermsSet(out, termsSet);
+      }
+    }
+    finally {
+      // Releases the resources and adjust the circuit breaker
+      if (termsSet != null) {
+        termsSet.release();
+      }
+    }
+  }
+
+}
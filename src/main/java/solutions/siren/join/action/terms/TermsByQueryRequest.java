@@ -57,9 +57,19 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
   @Nullable
   private Integer maxTermsPerShard;
   @Nullable
+  private Integer maxTerms;
+  @Nullable
+  private Float minScore;
+  @Nullable
+  private ScoreMode scoreMode;
+  @Nullable
   private TermsEncoding termsEncoding;
   @Nullable
   private Long expectedTerms;
+  @Nullable
+  private Boolean streamTerms;
+  @Nullable
+  private Boolean nodeReduce;
 
   /**
    * Default terms encoding
@@ -98,6 +108,18 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
         validationException = ValidateActions.addValidationError("maxTermsPerShard not specified for terms encoding [bytes]", validationException);
       }
     }
+    if (maxTerms != null && ordering != Ordering.DOC_SCORE) {
+      validationException = ValidateActions.addValidationError("maxTerms is only supported by the ordering [doc_score]", validationException);
+    }
+    if (termsEncoding != null && termsEncoding.equals(TermsEncoding.AUTO)) {
+      validationException = ValidateActions.addValidationError("terms encoding [auto] is only supported by the filter join", validationException);
+    }
+    if (termsEncoding != null && termsEncoding.equals(TermsEncoding.SCORED_LONG)) {
+      validationException = ValidateActions.addValidationError("terms encoding [scored_long] is only used internally by the scoreMode", validationException);
+    }
+    if (scoreMode != null && termsEncoding != null && !termsEncoding.equals(TermsEncoding.LONG)) {
+      validationException = ValidateActions.addValidationError("scoreMode is only supported by the terms encoding [long]", validationException);
+    }
     return validationException;
   }
 
@@ -248,10 +270,70 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
   }
 
   /**
-   * The types of terms encoding
+   * The max number of terms to gather across all the shards. The terms are gathered from the documents with the
+   * highest scores across all the shards, with a first phase that computes the score of the last document to
+   * gather, and a second phase that gathers the terms of the documents scoring at least this score. If
+   * {@link #maxTermsPerShard()} is lower, the score computed by the first phase is only a lower bound, and the terms
+   * are gathered from the top documents of each shard above this score.
+   */
+  public TermsByQueryRequest maxTerms(Integer maxTerms) {
+    this.maxTerms = maxTerms;
+    return this;
+  }
+
+  /**
+   * The max number of terms to gather across all the shards
+   */
+  public Integer maxTerms() {
+    return maxTerms;
+  }
+
+  /**
+   * The minimum score of the documents to gather the terms from. This is set internally by the second phase of
+   * a request with {@link #maxTerms()}.
+   */
+  TermsByQueryRequest minScore(Float minScore) {
+    this.minScore = minScore;
+    return this;
+  }
+
+  /**
+   * The minimum score of the documents to gather the terms from, or null if there is no minimum score.
+   */
+  public Float minScore() {
+    return minScore;
+  }
+
+  /**
+   * The modes of aggregation of the scores of the documents sharing a same term.
+   */
+  public enum ScoreMode {
+    MAX, SUM, AVG
+  }
+
+  /**
+   * Sets the mode of aggregation of the scores of the documents sharing a same term. If set, each term carries the
+   * aggregated score of its documents, and the terms are encoded with {@link TermsEncoding#SCORED_LONG}.
+   */
+  public TermsByQueryRequest scoreMode(ScoreMode scoreMode) {
+    this.scoreMode = scoreMode;
+    return this;
+  }
+
+  /**
+   * Returns the mode of aggregation of the scores of the terms, or null if the terms do not carry a score.
+   */
+  public ScoreMode scoreMode() {
+    return scoreMode;
+  }
+
+  /**
+   * The types of terms encoding. The {@link #AUTO} encoding is resolved by the coordinator of a filter join into one
+   * of the other encodings, based on the lookup field and on the estimated number of terms. The
+   * {@link #SCORED_LONG} encoding is used internally for the long terms carrying a score, see {@link #scoreMode()}.
    */
   public enum TermsEncoding {
-    LONG, INTEGER, BLOOM, BYTES
+    LONG, INTEGER, BLOOM, BYTES, PACKED, BITMAP, AUTO, SCORED_LONG
   }
 
   /**
@@ -284,6 +366,38 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
     return expectedTerms;
   }
 
+  /**
+   * Enables or disables the streaming of the shard terms. When enabled, the terms of each shard are merged
+   * as soon as the shard response is received, instead of waiting for the responses of all the shards.
+   */
+  public TermsByQueryRequest streamTerms(Boolean streamTerms) {
+    this.streamTerms = streamTerms;
+    return this;
+  }
+
+  /**
+   * Returns true if the shard terms must be merged as soon as they are received. Default to false.
+   */
+  public boolean streamTerms() {
+    return streamTerms == null ? false : streamTerms;
+  }
+
+  /**
+   * Enables or disables the node level reduce of the shard terms. When enabled, the terms of all the shards
+   * located on a same node are merged on that node, and each node sends a single terms set to the coordinating node.
+   */
+  public TermsByQueryRequest nodeReduce(Boolean nodeReduce) {
+    this.nodeReduce = nodeReduce;
+    return this;
+  }
+
+  /**
+   * Returns true if the shard terms must be merged on each node. Default to false.
+   */
+  public boolean nodeReduce() {
+    return nodeReduce == null ? false : nodeReduce;
+  }
+
 
   /**
    * Deserialize
@@ -326,6 +440,26 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
     if (in.readBoolean()) {
       expectedTerms = in.readVLong();
     }
+
+    if (in.readBoolean()) {
+      streamTerms = in.readBoolean();
+    }
+
+    if (in.readBoolean()) {
+      nodeReduce = in.readBoolean();
+    }
+
+    if (in.readBoolean()) {
+      maxTerms = in.readVInt();
+    }
+
+    if (in.readBoolean()) {
+      minScore = in.readFloat();
+    }
+
+    if (in.readBoolean()) {
+      scoreMode = ScoreMode.values()[in.readVInt()];
+    }
   }
 
   /**
@@ -386,6 +520,46 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
       out.writeBoolean(true);
       out.writeVLong(expectedTerms);
     }
+
+    if (streamTerms == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeBoolean(streamTerms);
+    }
+
+    if (nodeReduce == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeBoolean(nodeReduce);
+    }
+
+    if (maxTerms == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeVInt(maxTerms);
+    }
+
+    if (minScore == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeFloat(minScore);
+    }
+
+    if (scoreMode == null) {
+      out.writeBoolean(false);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeVInt(scoreMode.ordinal());
+    }
   }
 
   /**
@@ -100,6 +100,22 @@ public class TermsByQueryRequestBuilder extends BroadcastOperationRequestBuilder
     return this;
   }
 
+  /**
+   * The max number of terms collected across all the shards, from the documents with the highest scores
+   */
+  public TermsByQueryRequestBuilder setMaxTerms(int maxTerms) {
+    request.maxTerms(maxTerms);
+    return this;
+  }
+
+  /**
+   * The mode of aggregation of the scores of the documents sharing a same term
+   */
+  public TermsByQueryRequestBuilder setScoreMode(TermsByQueryRequest.ScoreMode scoreMode) {
+    request.scoreMode(scoreMode);
+    return this;
+  }
+
   /**
    * The encoding to use for transferring terms.
    */
@@ -116,6 +132,22 @@ public class TermsByQueryRequestBuilder extends BroadcastOperationRequestBuilder
     return this;
   }
 
+  /**
+   * Merges the terms of each shard as soon as they are received.
+   */
+  public TermsByQueryRequestBuilder setStreamTerms(boolean streamTerms) {
+    request.streamTerms(streamTerms);
+    return this;
+  }
+
+  /**
+   * Merges the terms of the shards located on a same node before sending them to the coordinating node.
+   */
+  public TermsByQueryRequestBuilder setNodeReduce(boolean nodeReduce) {
+    request.nodeReduce(nodeReduce);
+    return this;
+  }
+
   @Override
   public void execute(ActionListener<TermsByQueryResponse> listener) {
     client.execute(TermsByQueryAction.INSTANCE, request, listener);
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+import java.io.IOException;
+
+/**
+ * Internal terms by query response of the first phase of a request with
+ * {@link TermsByQueryRequest#maxTerms()}. It holds the highest scores of the documents of the shard, in descending
+ * order, and the number of documents matching the query on the shard.
+ */
+class TermsByQueryScoresShardResponse extends TransportResponse {
+
+  private float[] scores;
+  private int totalHits;
+
+  /**
+   * Default constructor
+   */
+  TermsByQueryScoresShardResponse() {}
+
+  /**
+   * Main constructor
+   *
+   * @param scores the highest scores of the documents of the shard, in descending order
+   * @param totalHits the number of documents matching the query on the shard
+   */
+  TermsByQueryScoresShardResponse(float[] scores, int totalHits) {
+    this.scores = scores;
+    this.totalHits = totalHits;
+  }
+
+  /**
+   * Gets the highest scores of the documents of the shard, in descending order.
+   */
+  public float[] getScores() {
+    return scores;
+  }
+
+  /**
+   * Gets the number of documents matching the query on the shard.
+   */
+  public int getTotalHits() {
+    return totalHits;
+  }
+
+  /**
+   * Deserialize
+   */
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    scores = new float[in.readVInt()];
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = in.readFloat();
+    }
+    totalHits = in.readVInt();
+  }
+
+  /**
+   * Serialize
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeVInt(scores.length);
+    for (float score : scores) {
+      out.writeFloat(score);
+    }
+    out.writeVInt(totalHits);
+  }
+
+}
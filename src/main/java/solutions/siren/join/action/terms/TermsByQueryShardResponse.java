@@ -37,11 +37,17 @@ class TermsByQueryShardResponse extends BroadcastShardResponse {
   private TermsSet termsSet;
   private final CircuitBreaker breaker;
 
+  /**
+   * Flag to indicate if the terms of the shard were already merged on reception
+   */
+  private final boolean isMerged;
+
   /**
    * Default constructor
    */
   TermsByQueryShardResponse(final CircuitBreaker breaker) {
     this.breaker = breaker;
+    this.isMerged = false;
   }
 
   /**
@@ -51,9 +57,22 @@ class TermsByQueryShardResponse extends BroadcastShardResponse {
    * @param termsSet the terms gathered from the shard
    */
   public TermsByQueryShardResponse(ShardId shardId, TermsSet termsSet) {
+    this(shardId, termsSet, false);
+  }
+
+  /**
+   * Constructor used on the coordinating node to keep track of a shard response whose terms were already
+   * merged into the given terms set.
+   *
+   * @param shardId the id of the shard the request executed on
+   * @param termsSet the terms set in which the shard terms were merged
+   * @param isMerged true if the shard terms were merged into the terms set
+   */
+  TermsByQueryShardResponse(ShardId shardId, TermsSet termsSet, boolean isMerged) {
     super(shardId);
     this.termsSet = termsSet;
     this.breaker = null;
+    this.isMerged = isMerged;
   }
 
   /**
@@ -65,61 +84,94 @@ class TermsByQueryShardResponse extends BroadcastShardResponse {
     return this.termsSet;
   }
 
+  /**
+   * Returns true if the terms of the shard were already merged on reception. In this case,
+   * {@link #getTerms()} returns the terms set shared across all the merged shard responses.
+   */
+  boolean isMerged() {
+    return this.isMerged;
+  }
+
   /**
    * Deserialize
    */
   @Override
   public void readFrom(StreamInput in) throws IOException {
     super.readFrom(in);
+    termsSet = readTermsSet(in, breaker);
+  }
+
+  /**
+   * Serialize and release the terms set.
+   * <p>
+   * If the response is sent through a {@link org.elasticsearch.transport.TransportService.DirectResponseChannel},
+   * this method will not be called and the {@link #termsSet} will be released by the receiver, i.e.,
+   * {@link TransportTermsByQueryAction#newResponse(TermsByQueryRequest, AtomicReferenceArray, ClusterState)}.
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    try {
+      super.writeTo(out);
+      writeTermsSet(out, termsSet);
+    }
+    finally {
+      // Releases the resources and adjust the circuit breaker
+      termsSet.release();
+    }
+  }
 
+  /**
+   * Deserializes a terms set written with {@link #writeTermsSet(StreamOutput, TermsSet)}.
+   */
+  static TermsSet readTermsSet(StreamInput in, CircuitBreaker breaker) throws IOException {
+    TermsSet termsSet;
     TermsByQueryRequest.TermsEncoding termsEncoding = TermsByQueryRequest.TermsEncoding.values()[in.readVInt()];
     switch (termsEncoding) {
 
       case LONG:
         termsSet = new LongTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        break;
 
       case INTEGER:
         termsSet = new IntegerTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        break;
 
       case BLOOM:
         termsSet = new BloomFilterTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        break;
 
       case BYTES:
         termsSet = new BytesRefTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        break;
+
+      case PACKED:
+        termsSet = new PackedLongTermsSet(breaker);
+        break;
+
+      case BITMAP:
+        termsSet = new BitmapTermsSet(breaker);
+        break;
+
+      case SCORED_LONG:
+        termsSet = new ScoredLongTermsSet(breaker);
+        break;
 
       default:
         throw new IOException("[termsByQuery] Invalid type of terms encoding: " + termsEncoding.name());
 
     }
+    termsSet.readFrom(in);
+    return termsSet;
   }
 
   /**
-   * Serialize and release the terms set.
-   * <p>
-   * If the response is sent through a {@link org.elasticsearch.transport.TransportService.DirectResponseChannel},
-   * this method will not be called and the {@link #termsSet} will be released by the receiver, i.e.,
-   * {@link TransportTermsByQueryAction#newResponse(TermsByQueryRequest, AtomicReferenceArray, ClusterState)}.
+   * Serializes the type of encoding and the terms of a terms set.
    */
-  @Override
-  public void writeTo(StreamOutput out) throws IOException {
-    try {
-      super.writeTo(out);
-      // Encode type of encoding
-      out.writeVInt(termsSet.getEncoding().ordinal());
-      // Encode terms
-      termsSet.writeTo(out);
-    }
-    finally {
-      // Releases the resources and adjust the circuit breaker
-      termsSet.release();
-    }
+  static void writeTermsSet(StreamOutput out, TermsSet termsSet) throws IOException {
+    // Encode type of encoding
+    out.writeVInt(termsSet.getEncoding().ordinal());
+    // Encode terms
+    termsSet.writeTo(out);
   }
+
 }
\ No newline at end of file
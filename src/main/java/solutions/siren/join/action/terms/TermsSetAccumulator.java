@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges terms sets as soon as they are received. The first terms set received is reused as the target of the
+ * merge, and every subsequent terms set is released right after being merged. This caps the memory used to the
+ * merged terms set and the terms sets in flight.
+ * <br>
+ * If a merge fails, the merged terms set is released, the failure is recorded and all the subsequent terms sets are
+ * released without being merged.
+ * <br>
+ * The terms sets received by a network thread are enqueued with {@link #enqueue(TermsSet, Listener)}, and merged
+ * one at a time by a single task on the executor, so that a long merge never blocks the network thread.
+ */
+class TermsSetAccumulator {
+
+  /**
+   * Notified once an enqueued terms set is merged.
+   */
+  interface Listener {
+
+    /**
+     * Called with the merged terms set, or null if a merge failed.
+     */
+    void onMerged(TermsSet merged);
+
+  }
+
+  /**
+   * The terms set in which the terms are merged
+   */
+  private TermsSet termsSet;
+
+  /**
+   * The first failure that occurred while merging the terms
+   */
+  private Throwable failure;
+
+  /**
+   * The executor merging the enqueued terms sets, or null if they are merged by the calling thread
+   */
+  private final Executor executor;
+
+  /**
+   * The enqueued terms sets that are not merged yet
+   */
+  private final Queue<PendingMerge> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger numPending = new AtomicInteger();
+
+  private static final ESLogger logger = Loggers.getLogger(TermsSetAccumulator.class);
+
+  TermsSetAccumulator() {
+    this(null);
+  }
+
+  TermsSetAccumulator(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Merges the terms set, and returns the merged terms set or null if a merge failed. The accumulator takes the
+   * ownership of the given terms set.
+   */
+  synchronized TermsSet add(TermsSet terms) {
+    if (failure != null) { // a previous merge failed, we just release the terms and adjust the circuit breaker
+      terms.release();
+      return null;
+    }
+
+    if (termsSet == null) { // the first terms set received becomes the target of the merge
+      termsSet = terms;
+      return termsSet;
+    }
+
+    try {
+      termsSet.merge(terms);
+      return termsSet;
+    }
+    catch (Throwable t) {
+      logger.error("[termsByQuery] Error while merging terms", t);
+      failure = t;
+      termsSet.release();
+      termsSet = null;
+      return null;
+    }
+    finally {
+      terms.release(); // release the terms set and adjust the circuit breaker
+    }
+  }
+
+  /**
+   * Enqueues the terms set, which can be null, and merges it on the executor. The listener is notified by the
+   * thread of the executor once the terms set is merged. The accumulator takes the ownership of the given terms set.
+   */
+  void enqueue(TermsSet terms, Listener listener) {
+    pending.add(new PendingMerge(terms, listener));
+    // a single task merges the pending terms sets, the one that finds the queue empty starts it
+    if (numPending.getAndIncrement() == 0) {
+      if (executor == null) {
+        this.mergePending();
+      }
+      else {
+        executor.execute(new AbstractRunnable() {
+
+          @Override
+          protected void doRun() throws Exception {
+            mergePending();
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            logger.error("[termsByQuery] Error while merging enqueued terms", t);
+          }
+
+          @Override
+          public boolean isForceExecution() {
+            // the merge must not be rejected, or the listeners would never be notified
+            return true;
+          }
+
+        });
+      }
+    }
+  }
+
+  private void mergePending() {
+    do {
+      PendingMerge merge = pending.poll();
+      TermsSet merged = merge.terms != null ? this.add(merge.terms) : this.getTermsSet();
+      try {
+        merge.listener.onMerged(merged);
+      }
+      catch (Throwable t) {
+        logger.error("[termsByQuery] Error while notifying the merge of terms", t);
+      }
+    } while (numPending.decrementAndGet() > 0);
+  }
+
+  /**
+   * Returns the merged terms set, or null if no terms set was received or if a merge failed.
+   */
+  synchronized TermsSet getTermsSet() {
+    return termsSet;
+  }
+
+  /**
+   * Returns the first failure that occurred while merging the terms, or null.
+   */
+  synchronized Throwable getFailure() {
+    return failure;
+  }
+
+  private static class PendingMerge {
+
+    private final TermsSet terms;
+    private final Listener listener;
+
+    private PendingMerge(TermsSet terms, Listener listener) {
+      this.terms = terms;
+      this.listener = listener;
+    }
+
+  }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Merges a list of {@link TermsSet} with a parallel tree reduction. At each level of the tree, the sets are
+ * merged pairwise, the smaller set of a pair being merged into the larger one and then released. The pairs of a
+ * level are distributed over at most <code>parallelism</code> workers, one of them being the calling thread, which
+ * also executes the workers rejected by the executor. The calling thread waits for the completion of a level before
+ * starting the next one, so that the workers never block.
+ * <br>
+ * The merger takes the ownership of the given sets: all of them, except the returned one, are released, even
+ * in case of failure.
+ */
+public class TermsSetMerger {
+
+  private final Executor executor;
+
+  /**
+   * The maximum number of workers merging pairs of sets concurrently
+   */
+  private final int parallelism;
+
+  /**
+   * The minimum number of sets to merge before switching to the parallel merge
+   */
+  private final int threshold;
+
+  private static final ESLogger logger = Loggers.getLogger(TermsSetMerger.class);
+
+  public TermsSetMerger(Executor executor, int parallelism, int threshold) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns true if the given number of sets should be merged with {@link #merge(List)}. A negative threshold
+   * disables the parallel merge.
+   */
+  public boolean isParallel(int numSets) {
+    return threshold >= 0 && parallelism > 1 && numSets > 1 && numSets >= threshold;
+  }
+
+  /**
+   * Merges the given sets and returns the merged set.
+   */
+  public TermsSet merge(List<TermsSet> sets) {
+    long start = System.nanoTime();
+    List<TermsSet> level = new ArrayList<>(sets);
+
+    while (level.size() > 1) {
+      level = this.mergeLevel(level);
+    }
+
+    logger.debug("Merged {} terms sets in parallel - took {} ms", sets.size(), (System.nanoTime() - start) / 1000000);
+    return level.get(0);
+  }
+
+  /**
+   * Merges the pairs of sets of one level of the tree, and returns the sets of the next level.
+   */
+  private List<TermsSet> mergeLevel(final List<TermsSet> level) {
+    final int numPairs = level.size() / 2;
+    final int numWorkers = Math.min(numPairs, parallelism);
+
+    // Starts the workers, the first one is executed by the calling thread
+    List<FutureTask<List<TermsSet>>> tasks = new ArrayList<>(numWorkers);
+    for (int i = 0; i < numWorkers; i++) {
+      final int worker = i;
+      tasks.add(new FutureTask<>(new Callable<List<TermsSet>>() {
+
+        @Override
+        public List<TermsSet> call() throws Exception {
+          return mergePairs(level, worker, numWorkers, numPairs);
+        }
+
+      }));
+    }
+    List<FutureTask<List<TermsSet>>> rejected = new ArrayList<>();
+    for (int i = 1; i < numWorkers; i++) {
+      try {
+        executor.execute(tasks.get(i));
+      }
+      catch (RejectedExecutionException e) {
+        rejected.add(tasks.get(i));
+      }
+    }
+    tasks.get(0).run();
+    // The workers rejected by the executor are executed by the calling thread
+    for (FutureTask<List<TermsSet>> task : rejected) {
+      task.run();
+    }
+
+    // Waits for all the workers, even on failure, to not release a set that is still being merged
+    List<TermsSet> next = new ArrayList<>(numPairs + 1);
+    Throwable failure = null;
+    for (FutureTask<List<TermsSet>> task : tasks) {
+      try {
+        next.addAll(Uninterruptibles.getUninterruptibly(task));
+      }
+      catch (ExecutionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      }
+    }
+    // Adds the odd set of the level
+    if (level.size() % 2 == 1) {
+      next.add(level.get(level.size() - 1));
+    }
+
+    if (failure != null) {
+      for (TermsSet terms : next) {
+        terms.release();
+      }
+      throw new ElasticsearchException("Failed to merge terms sets", ExceptionsHelper.unwrapCause(failure));
+    }
+
+    return next;
+  }
+
+  /**
+   * Merges the pairs assigned to a worker. On failure, all the sets of the pairs assigned to the worker are released.
+   */
+  private static List<TermsSet> mergePairs(List<TermsSet> level, int worker, int numWorkers, int numPairs) {
+    List<TermsSet> merged = new ArrayList<>();
+    int pair = worker;
+    try {
+      for (; pair < numPairs; pair += numWorkers) {
+        merged.add(mergePair(level.get(2 * pair), level.get(2 * pair + 1)));
+      }
+      return merged;
+    }
+    catch (Throwable t) {
+      for (TermsSet terms : merged) {
+        terms.release();
+      }
+      // the sets of the failed pair are released by mergePair
+      for (pair += numWorkers; pair < numPairs; pair += numWorkers) {
+        level.get(2 * pair).release();
+        level.get(2 * pair + 1).release();
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Merges the smaller set into the larger one to limit the rehashing, and releases the smaller set.
+   */
+  private static TermsSet mergePair(TermsSet left, TermsSet right) {
+    TermsSet target = left.size() >= right.size() ? left : right;
+    TermsSet source = target == left ? right : left;
+    try {
+      target.merge(source);
+    }
+    catch (Throwable t) {
+      target.release();
+      throw t;
+    }
+    finally {
+      source.release(); // release the source terms set and adjust the circuit breaker
+    }
+    return target;
+  }
+
+}
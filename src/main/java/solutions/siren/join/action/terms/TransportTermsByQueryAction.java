@@ -18,6 +18,7 @@
  */
 package solutions.siren.join.action.terms;
 
+import org.apache.lucene.index.DirectoryReader;
 import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
@@ -26,6 +27,8 @@ import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.search.SearchService;
 import org.elasticsearch.tasks.Task;
+import solutions.siren.join.SirenJoinPlugin;
+import solutions.siren.join.action.admin.version.IndexVersionShardService;
 import solutions.siren.join.action.terms.collector.*;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchParseException;
@@ -41,10 +44,13 @@ import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
 import org.elasticsearch.cluster.routing.GroupShardsIterator;
 import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.IndexService;
@@ -63,9 +69,20 @@ import org.elasticsearch.search.internal.ShardSearchRequest;
 import org.elasticsearch.search.query.QueryPhaseExecutionException;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.action.NoShardAvailableActionException;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestHandler;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -79,6 +96,38 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
   private final BigArrays bigArrays;
   private final CircuitBreakerService breakerService;
   private final Client client;
+  private final TermsSetMerger merger;
+  private final SegmentTermsCache segmentTermsCache;
+  private final ShardTermsCache shardTermsCache;
+
+  /**
+   * The name of the transport action executing the request against all the shards of a node
+   */
+  private final String transportNodeAction;
+
+  /**
+   * The name of the transport action gathering the highest scores of a shard, see {@link TopTermsAction}
+   */
+  private final String transportScoresAction;
+
+  /**
+   * The minimum number of shard terms sets to merge before switching to the parallel merge. A negative value
+   * disables the parallel merge.
+   */
+  public final static String SIREN_TERMSBYQUERY_MERGE_PARALLEL_THRESHOLD = "siren.termsbyquery.merge.parallel_threshold";
+  public final static int DEFAULT_MERGE_PARALLEL_THRESHOLD = 8;
+
+  /**
+   * The minimum number of segments of a shard to collect before switching to the parallel collection of the segments
+   * on the {@link SirenJoinPlugin#TERMS_COLLECT_THREAD_POOL} thread pool. A negative value disables the parallel
+   * collection.
+   */
+  public final static String SIREN_TERMSBYQUERY_COLLECT_PARALLEL_THRESHOLD = "siren.termsbyquery.collect.parallel_threshold";
+  public final static int DEFAULT_COLLECT_PARALLEL_THRESHOLD = 4;
+
+  private final Executor collectExecutor;
+  private final int collectParallelism;
+  private final int collectParallelThreshold;
 
   /**
    * Constructor
@@ -89,17 +138,32 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
                                      CircuitBreakerService breakerService,
                                      ScriptService scriptService, PageCacheRecycler pageCacheRecycler,
                                      BigArrays bigArrays, ActionFilters actionFilters,
-                                     IndexNameExpressionResolver indexNameExpressionResolver, Client client) {
+                                     IndexNameExpressionResolver indexNameExpressionResolver, Client client,
+                                     SegmentTermsCache segmentTermsCache, ShardTermsCache shardTermsCache) {
     super(settings, TermsByQueryAction.NAME, threadPool, clusterService, transportService, actionFilters,
             indexNameExpressionResolver, TermsByQueryRequest.class, TermsByQueryShardRequest.class,
-            // Use the generic threadpool which is cached, as we can end up with deadlock with the SEARCH threadpool
-            ThreadPool.Names.GENERIC);
+            // Use a dedicated threadpool, as we can end up with deadlock with the SEARCH threadpool
+            SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL);
     this.indicesService = indicesService;
     this.scriptService = scriptService;
     this.pageCacheRecycler = pageCacheRecycler;
     this.bigArrays = bigArrays;
     this.breakerService = breakerService;
     this.client = client;
+    this.segmentTermsCache = segmentTermsCache;
+    this.shardTermsCache = shardTermsCache;
+    this.collectExecutor = threadPool.executor(SirenJoinPlugin.TERMS_COLLECT_THREAD_POOL);
+    this.collectParallelism = threadPool.info(SirenJoinPlugin.TERMS_COLLECT_THREAD_POOL).getMax();
+    this.merger = new TermsSetMerger(collectExecutor, collectParallelism,
+            settings.getAsInt(SIREN_TERMSBYQUERY_MERGE_PARALLEL_THRESHOLD, DEFAULT_MERGE_PARALLEL_THRESHOLD));
+    this.collectParallelThreshold = settings.getAsInt(SIREN_TERMSBYQUERY_COLLECT_PARALLEL_THRESHOLD,
+            DEFAULT_COLLECT_PARALLEL_THRESHOLD);
+    this.transportNodeAction = actionName + "[n]";
+    transportService.registerRequestHandler(transportNodeAction, TermsByQueryNodeRequest.class,
+            SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL, new NodeTransportHandler());
+    this.transportScoresAction = actionName + "[t]";
+    transportService.registerRequestHandler(transportScoresAction, TermsByQueryShardRequest.class,
+            SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL, new ScoresTransportHandler());
   }
 
   /**
@@ -108,7 +172,18 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
   @Override
   protected void doExecute(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
     request.nowInMillis(System.currentTimeMillis()); // set time to be used in scripts
-    super.doExecute(task, request, listener);
+    if (request.maxTerms() != null) {
+      new TopTermsAction(task, request, listener).start();
+    }
+    else if (request.nodeReduce()) {
+      new NodeReduceAction(request, listener).start();
+    }
+    else if (request.streamTerms()) {
+      new StreamingBroadcastAction(task, request, listener).start();
+    }
+    else {
+      new ForkingBroadcastAction(task, request, listener).start();
+    }
   }
 
   /**
@@ -155,7 +230,9 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     int successfulShards = 0;
     int failedShards = 0;
     int numTerms = 0;
+    int numTermsSets = 0;
     TermsSet[] termsSets = new TermsSet[shardsResponses.length()];
+    TermsSet mergedTerms = null;
     List<ShardOperationFailedException> shardFailures = null;
 
     // we check each shard response
@@ -175,9 +252,18 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
         // we calculate the total number of terms gathered across each shard so we can use it during
         // initialization of the final TermsResponse below (to avoid rehashing during merging)
         TermsByQueryShardResponse shardResp = ((TermsByQueryShardResponse) shardResponse);
-        TermsSet terms = shardResp.getTerms();
-        termsSets[i] = terms;
-        numTerms += terms.size();
+        if (shardResp.isMerged()) {
+          // the terms were already merged on reception, see StreamingBroadcastAction
+          if (shardResp.getTerms() != null) {
+            mergedTerms = shardResp.getTerms();
+          }
+        }
+        else {
+          TermsSet terms = shardResp.getTerms();
+          termsSets[i] = terms;
+          numTerms += terms.size();
+          numTermsSets++;
+        }
         successfulShards++;
       }
     }
@@ -187,7 +273,16 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     try {
       // NumericTermsSet is responsible for the merge, set size to avoid rehashing on certain implementations.
       long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : numTerms;
-      TermsSet termsSet = TermsSet.newTermsSet(expectedElements, request.termsEncoding(), breakerService.getBreaker(CircuitBreaker.REQUEST));
+      TermsSet termsSet;
+      if (mergedTerms != null) {
+        termsSet = mergedTerms;
+      }
+      else if (merger.isParallel(numTermsSets)) {
+        termsSet = this.parallelMerge(termsSets);
+      }
+      else {
+        termsSet = TermsSet.newTermsSet(expectedElements, request, breakerService.getBreaker(CircuitBreaker.REQUEST));
+      }
 
       TermsByQueryResponse rsp;
       try {
@@ -222,6 +317,611 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     }
   }
 
+  /**
+   * Merges the shard terms sets with the {@link TermsSetMerger}. The merger takes the ownership of the terms sets,
+   * which are removed from the array.
+   */
+  private TermsSet parallelMerge(TermsSet[] termsSets) {
+    List<TermsSet> sets = new ArrayList<>(termsSets.length);
+    for (int i = 0; i < termsSets.length; i++) {
+      if (termsSets[i] != null) {
+        sets.add(termsSets[i]);
+        termsSets[i] = null;
+      }
+    }
+    return merger.merge(sets);
+  }
+
+  /**
+   * A broadcast action that builds the final response on the terms by query thread pool. The last shard response is
+   * delivered by a network thread, which must not merge the shard terms sets nor wait for the workers of the
+   * {@link TermsSetMerger}.
+   */
+  private class ForkingBroadcastAction extends AsyncBroadcastAction {
+
+    private final ActionListener<TermsByQueryResponse> listener;
+
+    ForkingBroadcastAction(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
+      super(task, request, listener);
+      this.listener = listener;
+    }
+
+    @Override
+    protected void finishHim() {
+      threadPool.executor(SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL).execute(new AbstractRunnable() {
+
+        @Override
+        protected void doRun() throws Exception {
+          ForkingBroadcastAction.super.finishHim();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          listener.onFailure(t);
+        }
+
+        @Override
+        public boolean isForceExecution() {
+          // the shard terms sets are only released when building the response, which must always run
+          return true;
+        }
+
+      });
+    }
+
+  }
+
+  /**
+   * A broadcast action that merges the terms of each shard as soon as its response is received, using a
+   * {@link TermsSetAccumulator} on the terms by query thread pool. This caps the memory used on the coordinating node
+   * to the merged terms set and the shard responses in flight, and overlaps the merging with the collection of the
+   * terms on the other shards.
+   * <br>
+   * The merged terms set is then handed over to
+   * {@link #newResponse(TermsByQueryRequest, AtomicReferenceArray, ClusterState)} through the
+   * {@link TermsByQueryShardResponse#isMerged()} responses.
+   */
+  private class StreamingBroadcastAction extends ForkingBroadcastAction {
+
+    private final ActionListener<TermsByQueryResponse> listener;
+    protected final TermsSetAccumulator accumulator = new TermsSetAccumulator(
+            threadPool.executor(SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL));
+
+    StreamingBroadcastAction(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
+      super(task, request, listener);
+      this.listener = listener;
+    }
+
+    /**
+     * Enqueues the terms of the shard, which are merged on the terms by query thread pool. The shard operation is
+     * completed once its terms are merged, so that the response is only built after all the merges.
+     */
+    @Override
+    protected void onOperation(final ShardRouting shard, final int shardIndex, TermsByQueryShardResponse response) {
+      // a shard without terms, see TopTermsBroadcastAction, leaves the merged terms unchanged
+      accumulator.enqueue(response.getTerms(), new TermsSetAccumulator.Listener() {
+
+        @Override
+        public void onMerged(TermsSet merged) {
+          StreamingBroadcastAction.super.onOperation(shard, shardIndex,
+                  new TermsByQueryShardResponse(shard.shardId(), merged, true));
+        }
+
+      });
+    }
+
+    @Override
+    protected void finishHim() {
+      Throwable t = accumulator.getFailure();
+      if (t != null) {
+        listener.onFailure(t);
+      }
+      else {
+        super.finishHim();
+      }
+    }
+
+  }
+
+  /**
+   * An action that collects the terms of the {@link TermsByQueryRequest#maxTerms()} documents with the highest scores
+   * across all the shards, in two phases. The first phase gathers the highest scores of each shard, from which the
+   * coordinating node computes the score of the last document of the global top, i.e., the global threshold. The
+   * threshold is exact, since each shard returns at least as many scores as it has documents in the global top. The
+   * second phase collects on each shard the terms of the documents scoring at least the threshold, and does not query
+   * the shards that have no document above the threshold.
+   * <br>
+   * The number of terms transferred and merged is therefore bounded by <code>maxTerms</code>, plus the documents
+   * scoring exactly the threshold, instead of <code>maxTermsPerShard</code> per shard. Both phases use the same
+   * preference, so that the scores of a shard are computed on the same shard copy.
+   * <br>
+   * If a <code>maxTermsPerShard</code> lower than <code>maxTerms</code> is given, a shard returns at most
+   * <code>maxTermsPerShard</code> scores, and may have more documents in the global top than scores returned. The
+   * threshold is then only a lower bound of the exact threshold, and each shard still collects the terms of at most
+   * <code>maxTermsPerShard</code> documents: the terms are those of the top documents of each shard above the
+   * threshold, which may differ from the global top.
+   */
+  private class TopTermsAction {
+
+    private final Task task;
+    private final TermsByQueryRequest request;
+    private final ActionListener<TermsByQueryResponse> listener;
+    private final ClusterState clusterState;
+    private final List<ShardRouting> shards = new ArrayList<>();
+
+    /**
+     * The highest scores of each shard, in descending order, or null if the first phase failed on the shard
+     */
+    private final AtomicReferenceArray<float[]> shardScores;
+
+    /**
+     * The number of documents matching the query across the shards on which the first phase succeeded
+     */
+    private final AtomicLong totalHits = new AtomicLong();
+    private final AtomicInteger counter = new AtomicInteger();
+
+    TopTermsAction(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
+      this.task = task;
+      this.request = request;
+      this.listener = listener;
+      this.clusterState = clusterService.state();
+
+      // the scores of a shard may differ across its copies, the two phases must then execute on the same copies
+      if (request.preference() == null) {
+        request.preference(Strings.randomBase64UUID());
+      }
+      // a shard never contributes more than maxTerms documents to the global top
+      int maxTerms = request.maxTerms();
+      request.maxTermsPerShard(request.maxTermsPerShard() != null ? Math.min(maxTerms, request.maxTermsPerShard()) : maxTerms);
+
+      ClusterBlockException blockException = checkGlobalBlock(clusterState, request);
+      if (blockException != null) {
+        throw blockException;
+      }
+      String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState, request);
+      blockException = checkRequestBlock(clusterState, request, concreteIndices);
+      if (blockException != null) {
+        throw blockException;
+      }
+
+      for (ShardIterator shardIt : shards(clusterState, request, concreteIndices)) {
+        ShardRouting shard = shardIt.nextOrNull();
+        if (shard != null) { // simply ignore non active shards
+          shards.add(shard);
+        }
+      }
+      this.shardScores = new AtomicReferenceArray<>(shards.size());
+    }
+
+    void start() {
+      if (shards.isEmpty()) {
+        this.collectTerms();
+        return;
+      }
+
+      counter.set(shards.size());
+      for (int i = 0; i < shards.size(); i++) {
+        final int shardIndex = i;
+        final ShardRouting shard = shards.get(i);
+        DiscoveryNode node = clusterState.nodes().get(shard.currentNodeId());
+        if (node == null) {
+          this.onShardDone();
+          continue;
+        }
+
+        TermsByQueryShardRequest shardRequest = newShardRequest(shards.size(), shard, request);
+        transportService.sendRequest(node, transportScoresAction, shardRequest, new BaseTransportResponseHandler<TermsByQueryScoresShardResponse>() {
+
+          @Override
+          public TermsByQueryScoresShardResponse newInstance() {
+            return new TermsByQueryScoresShardResponse();
+          }
+
+          @Override
+          public void handleResponse(TermsByQueryScoresShardResponse response) {
+            shardScores.set(shardIndex, response.getScores());
+            totalHits.addAndGet(response.getTotalHits());
+            onShardDone();
+          }
+
+          @Override
+          public void handleException(TransportException exp) {
+            logger.debug("{}: Failed to gather the scores of the shard", exp, shard.shardId());
+            onShardDone();
+          }
+
+          @Override
+          public String executor() {
+            return ThreadPool.Names.SAME;
+          }
+
+        });
+      }
+    }
+
+    private void onShardDone() {
+      if (counter.decrementAndGet() == 0) {
+        this.collectTerms();
+      }
+    }
+
+    /**
+     * Executes the second phase. The shards on which the first phase failed are collected with the threshold of the
+     * other shards, which is lower than or equal to the exact threshold.
+     */
+    private void collectTerms() {
+      Set<ShardId> skippedShards = new HashSet<>();
+      float threshold;
+      try {
+        threshold = this.getThreshold();
+        for (int i = 0; i < shards.size(); i++) {
+          float[] scores = shardScores.get(i);
+          if (scores != null && (scores.length == 0 || scores[0] < threshold)) {
+            skippedShards.add(shards.get(i).shardId());
+          }
+        }
+      }
+      catch (Throwable t) {
+        listener.onFailure(t);
+        return;
+      }
+
+      logger.debug("Collects the terms of the top {} documents with a score threshold of {}, skipping {} of {} shards",
+        request.maxTerms(), threshold, skippedShards.size(), shards.size());
+      request.minScore(threshold == Float.NEGATIVE_INFINITY ? null : threshold);
+      // the terms are pruned if the top does not include all the documents matching the query
+      boolean isPruned = totalHits.get() > request.maxTerms();
+      new TopTermsBroadcastAction(task, request, listener, skippedShards, isPruned).start();
+    }
+
+    /**
+     * Returns the score of the <code>maxTerms</code>-th highest score across all the shards, or negative infinity
+     * if there are less than <code>maxTerms</code> documents. The threshold is exact if every shard returned the
+     * scores of all its documents in the global top. It is a lower bound if a shard returned fewer scores, i.e., with
+     * a <code>maxTermsPerShard</code> lower than <code>maxTerms</code>, or if the first phase failed on a shard.
+     */
+    private float getThreshold() {
+      int numScores = 0;
+      for (int i = 0; i < shardScores.length(); i++) {
+        float[] scores = shardScores.get(i);
+        numScores += scores != null ? scores.length : 0;
+      }
+      if (numScores < request.maxTerms()) {
+        return Float.NEGATIVE_INFINITY;
+      }
+
+      float[] all = new float[numScores];
+      int offset = 0;
+      for (int i = 0; i < shardScores.length(); i++) {
+        float[] scores = shardScores.get(i);
+        if (scores != null) {
+          System.arraycopy(scores, 0, all, offset, scores.length);
+          offset += scores.length;
+        }
+      }
+      Arrays.sort(all);
+      return all[numScores - request.maxTerms()];
+    }
+
+  }
+
+  /**
+   * The second phase of a {@link TopTermsAction}. The skipped shards are not queried, and are reported as successful
+   * shards without terms. The merged terms are flagged as pruned if the first phase found more documents than the
+   * top.
+   */
+  private class TopTermsBroadcastAction extends StreamingBroadcastAction {
+
+    private final Set<ShardId> skippedShards;
+    private final boolean isPruned;
+
+    TopTermsBroadcastAction(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener,
+                            Set<ShardId> skippedShards, boolean isPruned) {
+      super(task, request, listener);
+      this.skippedShards = skippedShards;
+      this.isPruned = isPruned;
+    }
+
+    @Override
+    protected void finishHim() {
+      TermsSet terms = accumulator.getTermsSet();
+      if (terms != null && isPruned) {
+        terms.setIsPruned(true);
+      }
+      super.finishHim();
+    }
+
+    @Override
+    protected void performOperation(ShardIterator shardIt, ShardRouting shard, int shardIndex) {
+      if (shard != null && skippedShards.contains(shard.shardId())) {
+        this.onOperation(shard, shardIndex, new TermsByQueryShardResponse(shard.shardId(), null, true));
+        return;
+      }
+      super.performOperation(shardIt, shard, shardIndex);
+    }
+
+  }
+
+  /**
+   * Executes the first phase of a {@link TopTermsAction} on a shard.
+   */
+  private class ScoresTransportHandler extends TransportRequestHandler<TermsByQueryShardRequest> {
+
+    @Override
+    public void messageReceived(TermsByQueryShardRequest request, TransportChannel channel) throws Exception {
+      channel.sendResponse(scoresShardOperation(request));
+    }
+
+  }
+
+  /**
+   * An action that groups the shards by node and sends a single {@link TermsByQueryNodeRequest} to each node. Each
+   * node merges the terms of its shards, see {@link NodeOperation}, and the coordinating node merges the terms of each
+   * node as soon as they are received. This reduces the number of terms sets transferred and merged on the
+   * coordinating node by the number of shards per node.
+   * <br>
+   * Non active shards are ignored, as in the shard level broadcast action. If a node fails, all its shards are
+   * reported as failed.
+   */
+  private class NodeReduceAction {
+
+    private final TermsByQueryRequest request;
+    private final ActionListener<TermsByQueryResponse> listener;
+    private final ClusterState clusterState;
+    private final Map<String, TermsByQueryNodeRequest> nodeRequests = new HashMap<>();
+    private final int totalShards;
+
+    private final TermsSetAccumulator accumulator = new TermsSetAccumulator(
+            threadPool.executor(SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL));
+    private final AtomicInteger successfulShards = new AtomicInteger();
+    private final List<ShardOperationFailedException> shardFailures = new ArrayList<>();
+    private final AtomicInteger counter = new AtomicInteger();
+
+    NodeReduceAction(TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
+      this.request = request;
+      this.listener = listener;
+      this.clusterState = clusterService.state();
+
+      ClusterBlockException blockException = checkGlobalBlock(clusterState, request);
+      if (blockException != null) {
+        throw blockException;
+      }
+      String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState, request);
+      blockException = checkRequestBlock(clusterState, request, concreteIndices);
+      if (blockException != null) {
+        throw blockException;
+      }
+
+      GroupShardsIterator shardsIts = shards(clusterState, request, concreteIndices);
+      this.totalShards = shardsIts.size();
+      for (ShardIterator shardIt : shardsIts) {
+        ShardRouting shard = shardIt.nextOrNull();
+        if (shard == null) { // simply ignore non active shards
+          continue;
+        }
+        TermsByQueryNodeRequest nodeRequest = nodeRequests.get(shard.currentNodeId());
+        if (nodeRequest == null) {
+          nodeRequest = new TermsByQueryNodeRequest(request);
+          nodeRequests.put(shard.currentNodeId(), nodeRequest);
+        }
+        String[] filteringAliases = indexNameExpressionResolver.filteringAliases(clusterState, shard.index(), request.indices());
+        nodeRequest.addShard(shard.shardId(), filteringAliases);
+      }
+    }
+
+    void start() {
+      if (nodeRequests.isEmpty()) {
+        this.finish();
+        return;
+      }
+
+      counter.set(nodeRequests.size());
+      for (Map.Entry<String, TermsByQueryNodeRequest> entry : nodeRequests.entrySet()) {
+        final TermsByQueryNodeRequest nodeRequest = entry.getValue();
+        DiscoveryNode node = clusterState.nodes().get(entry.getKey());
+        if (node == null) {
+          this.onNodeFailure(nodeRequest, new NoShardAvailableActionException(nodeRequest.shardId(0)));
+          continue;
+        }
+
+        transportService.sendRequest(node, transportNodeAction, nodeRequest, new BaseTransportResponseHandler<TermsByQueryNodeResponse>() {
+
+          @Override
+          public TermsByQueryNodeResponse newInstance() {
+            return new TermsByQueryNodeResponse(breakerService.getBreaker(CircuitBreaker.REQUEST));
+          }
+
+          @Override
+          public void handleResponse(TermsByQueryNodeResponse response) {
+            onNodeResponse(response);
+          }
+
+          @Override
+          public void handleException(TransportException exp) {
+            onNodeFailure(nodeRequest, exp);
+          }
+
+          @Override
+          public String executor() {
+            return ThreadPool.Names.SAME;
+          }
+
+        });
+      }
+    }
+
+    private void onNodeResponse(TermsByQueryNodeResponse response) {
+      successfulShards.addAndGet(response.getSuccessfulShards());
+      synchronized (shardFailures) {
+        shardFailures.addAll(response.getShardFailures());
+      }
+      // the terms of the node are merged on the terms by query thread pool, not on the network thread
+      accumulator.enqueue(response.getTerms(), new TermsSetAccumulator.Listener() {
+
+        @Override
+        public void onMerged(TermsSet merged) {
+          onNodeDone();
+        }
+
+      });
+    }
+
+    private void onNodeFailure(TermsByQueryNodeRequest nodeRequest, Throwable t) {
+      logger.error("Node operation failed", t);
+      synchronized (shardFailures) {
+        for (int i = 0; i < nodeRequest.numShards(); i++) {
+          ShardId shardId = nodeRequest.shardId(i);
+          shardFailures.add(new DefaultShardOperationFailedException(shardId.getIndex(), shardId.id(), t));
+        }
+      }
+      this.onNodeDone();
+    }
+
+    private void onNodeDone() {
+      if (counter.decrementAndGet() == 0) {
+        this.finish();
+      }
+    }
+
+    private void finish() {
+      Throwable t = accumulator.getFailure();
+      if (t != null) {
+        listener.onFailure(t);
+        return;
+      }
+
+      TermsSet termsSet = accumulator.getTermsSet();
+      if (termsSet == null) { // no successful shards
+        long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : 0;
+        termsSet = TermsSet.newTermsSet(expectedElements, request, breakerService.getBreaker(CircuitBreaker.REQUEST));
+      }
+
+      TermsByQueryResponse rsp;
+      try {
+        long tookInMillis = System.currentTimeMillis() - request.nowInMillis();
+        List<ShardOperationFailedException> failures;
+        synchronized (shardFailures) {
+          failures = new ArrayList<>(shardFailures);
+        }
+        rsp = new TermsByQueryResponse(termsSet, tookInMillis, totalShards, successfulShards.get(), failures.size(), failures);
+      }
+      catch (Throwable e) {
+        listener.onFailure(e);
+        return;
+      }
+      finally {
+        // we can now release the terms set and adjust the circuit breaker, since the TermsByQueryResponse holds an
+        // encoded version of the terms set
+        termsSet.release();
+      }
+
+      listener.onResponse(rsp);
+    }
+
+  }
+
+  /**
+   * Executes a {@link TermsByQueryNodeRequest} on the node.
+   */
+  private class NodeTransportHandler extends TransportRequestHandler<TermsByQueryNodeRequest> {
+
+    @Override
+    public void messageReceived(TermsByQueryNodeRequest request, TransportChannel channel) throws Exception {
+      new NodeOperation(request, channel).start();
+    }
+
+  }
+
+  /**
+   * The operation that executes the query against all the shards of the node, and merges the terms of each shard
+   * as soon as they are collected into a single {@link TermsByQueryNodeResponse}.
+   */
+  private class NodeOperation {
+
+    private final TermsByQueryNodeRequest request;
+    private final TransportChannel channel;
+
+    private final TermsSetAccumulator accumulator = new TermsSetAccumulator();
+    private final AtomicInteger successfulShards = new AtomicInteger();
+    private final List<ShardOperationFailedException> shardFailures = new ArrayList<>();
+    private final AtomicInteger counter;
+
+    NodeOperation(TermsByQueryNodeRequest request, TransportChannel channel) {
+      this.request = request;
+      this.channel = channel;
+      this.counter = new AtomicInteger(request.numShards());
+    }
+
+    void start() {
+      // the first shard is executed by the current thread
+      for (int i = 1; i < request.numShards(); i++) {
+        final int shardIndex = i;
+        try {
+          threadPool.executor(SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL).execute(new Runnable() {
+
+            @Override
+            public void run() {
+              executeShard(shardIndex);
+            }
+
+          });
+        }
+        catch (Throwable t) { // e.g., the executor rejected the execution
+          this.onShardFailure(shardIndex, t);
+          this.onShardDone();
+        }
+      }
+      this.executeShard(0);
+    }
+
+    private void executeShard(int shardIndex) {
+      try {
+        TermsByQueryShardResponse response = shardOperation(request.shardRequest(shardIndex));
+        accumulator.add(response.getTerms());
+        successfulShards.incrementAndGet();
+      }
+      catch (Throwable t) {
+        logger.error("Shard operation failed", t);
+        this.onShardFailure(shardIndex, t);
+      }
+      finally {
+        this.onShardDone();
+      }
+    }
+
+    private void onShardFailure(int shardIndex, Throwable t) {
+      ShardId shardId = request.shardId(shardIndex);
+      synchronized (shardFailures) {
+        shardFailures.add(new DefaultShardOperationFailedException(shardId.getIndex(), shardId.id(), t));
+      }
+    }
+
+    private void onShardDone() {
+      if (counter.decrementAndGet() == 0) {
+        this.finish();
+      }
+    }
+
+    private void finish() {
+      try {
+        Throwable t = accumulator.getFailure();
+        if (t != null) {
+          channel.sendResponse(t);
+          return;
+        }
+        List<ShardOperationFailedException> failures;
+        synchronized (shardFailures) {
+          failures = new ArrayList<>(shardFailures);
+        }
+        channel.sendResponse(new TermsByQueryNodeResponse(accumulator.getTermsSet(), successfulShards.get(), failures));
+      }
+      catch (Throwable e) {
+        logger.warn("[termsByQuery] Failed to send node response", e);
+      }
+    }
+
+  }
+
   /**
    * The operation that executes the query and generates a {@link TermsByQueryShardResponse} for each shard.
    */
@@ -230,20 +930,9 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     IndexService indexService = indicesService.indexServiceSafe(shardRequest.shardId().getIndex());
     IndexShard indexShard = indexService.shardSafe(shardRequest.shardId().id());
     TermsByQueryRequest request = shardRequest.request();
-    OrderByShardOperation orderByOperation = OrderByShardOperation.get(request.getOrderBy(), request.maxTermsPerShard());
-
-    SearchShardTarget shardTarget = new SearchShardTarget(clusterService.localNode().id(),
-                                                          shardRequest.shardId().getIndex(),
-                                                          shardRequest.shardId().id());
-
-    ShardSearchRequest shardSearchRequest = new ShardSearchLocalRequest(request.types(), request.nowInMillis(),
-                                                                        shardRequest.filteringAliases());
-
-    SearchContext context = new DefaultSearchContext(0, shardSearchRequest, shardTarget,
-      indexShard.acquireSearcher("termsByQuery"), indexService, indexShard, scriptService,
-      pageCacheRecycler, bigArrays, threadPool.estimatedTimeInMillisCounter(), parseFieldMatcher,
-      SearchService.NO_TIMEOUT);
-    SearchContext.setCurrent(context);
+    OrderByShardOperation orderByOperation = OrderByShardOperation.get(request.getOrderBy(), request.maxTermsPerShard(),
+            request.minScore());
+    SearchContext context = this.createSearchContext(shardRequest, indexService, indexShard);
 
     try {
       MappedFieldType fieldType = context.smartNameFieldType(request.field());
@@ -254,40 +943,48 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
 
       IndexFieldData indexFieldData = context.fieldData().getForField(fieldType);
 
-      BytesReference querySource = request.querySource();
-      if (querySource != null && querySource.length() > 0) {
-        XContentParser queryParser = null;
-        try {
-          queryParser = XContentFactory.xContent(querySource).createParser(querySource);
-          QueryParseContext.setTypes(request.types());
-          ParsedQuery parsedQuery = orderByOperation.getParsedQuery(queryParser, indexService);
-          if (parsedQuery != null) {
-            context.parsedQuery(parsedQuery);
-          }
-        }
-        finally {
-          QueryParseContext.removeTypes();
-          if (queryParser != null) {
-            queryParser.close();
-          }
+      this.parseQuery(context, request, indexService, orderByOperation);
+
+      // reuse the terms of the shard if its content did not change since they were collected
+      Long shardVersion = this.getShardVersion(indexService, shardRequest.shardId(), context);
+      if (shardVersion != null) {
+        TermsSet terms = shardTermsCache.get(shardRequest, shardVersion,
+                breakerService.getBreaker(CircuitBreaker.REQUEST));
+        if (terms != null) {
+          logger.debug("{}: Returns cached terms response with {} terms for shard {}", Thread.currentThread().getName(),
+            terms.size(), shardRequest.shardId());
+          return new TermsByQueryShardResponse(shardRequest.shardId(), terms);
         }
       }
 
-      context.preProcess();
-
-      // execute the search only gathering the hit count and bitset for each segment
+      // execute the search and collect the terms of the matching documents
       logger.debug("{}: Executes search for collecting terms {}", Thread.currentThread().getName(),
         shardRequest.shardId());
 
-      TermsCollector termsCollector = this.getTermsCollector(request.termsEncoding(), indexFieldData, context);
+      TermsCollector termsCollector = this.getTermsCollector(request, indexFieldData, context);
       if (request.expectedTerms() != null) termsCollector.setExpectedTerms(request.expectedTerms());
       if (request.maxTermsPerShard() != null) termsCollector.setMaxTerms(request.maxTermsPerShard());
-      HitStream hitStream = orderByOperation.getHitStream(context);
-      TermsSet terms = termsCollector.collect(hitStream);
+      termsCollector.setParallelism(collectExecutor, collectParallelism, collectParallelThreshold);
+      TermsSet terms;
+      if (this.isIncremental(request, termsCollector, context)) {
+        terms = ((NumericTermsCollector) termsCollector).collect(context.query(), segmentTermsCache);
+      }
+      else if (this.isSinglePass(request, termsCollector)) {
+        terms = termsCollector.collect(context.query());
+      }
+      else {
+        HitStream hitStream = orderByOperation.getHitStream(context);
+        terms = termsCollector.collect(hitStream);
+      }
 
       logger.debug("{}: Returns terms response with {} terms for shard {}", Thread.currentThread().getName(),
         terms.size(), shardRequest.shardId());
 
+      if (shardVersion != null) {
+        long readerVersion = ((DirectoryReader) context.searcher().getIndexReader()).getVersion();
+        shardTermsCache.put(shardRequest, shardVersion, readerVersion, terms);
+      }
+
       return new TermsByQueryShardResponse(shardRequest.shardId(), terms);
     }
     catch (Throwable e) {
@@ -301,8 +998,136 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     }
   }
 
-  private TermsCollector getTermsCollector(TermsByQueryRequest.TermsEncoding termsEncoding,
-                                           IndexFieldData indexFieldData, SearchContext context) {
+  /**
+   * The operation that executes the query and returns the highest scores of the shard, i.e., the first phase of a
+   * {@link TopTermsAction}.
+   */
+  private TermsByQueryScoresShardResponse scoresShardOperation(TermsByQueryShardRequest shardRequest) {
+    IndexService indexService = indicesService.indexServiceSafe(shardRequest.shardId().getIndex());
+    IndexShard indexShard = indexService.shardSafe(shardRequest.shardId().id());
+    TermsByQueryRequest request = shardRequest.request();
+    OrderByShardOperation orderByOperation = OrderByShardOperation.get(request.getOrderBy(), request.maxTermsPerShard(),
+            request.minScore());
+    SearchContext context = this.createSearchContext(shardRequest, indexService, indexShard);
+
+    try {
+      this.parseQuery(context, request, indexService, orderByOperation);
+      TopHitStream hitStream = (TopHitStream) orderByOperation.getHitStream(context);
+      hitStream.initialize();
+
+      logger.debug("{}: Returns {} scores for shard {}", Thread.currentThread().getName(),
+        hitStream.getHits(), shardRequest.shardId());
+
+      return new TermsByQueryScoresShardResponse(hitStream.getScores(), hitStream.getTotalHits());
+    }
+    catch (Throwable e) {
+      logger.error("[termsByQuery] Error executing scores shard operation", e);
+      throw new QueryPhaseExecutionException(context, "[termsByQuery] Failed to execute query", e);
+    }
+    finally {
+      // this will also release the index searcher
+      context.close();
+      SearchContext.removeCurrent();
+    }
+  }
+
+  /**
+   * Creates the search context of the shard and sets it as the current search context.
+   */
+  private SearchContext createSearchContext(TermsByQueryShardRequest shardRequest, IndexService indexService,
+                                            IndexShard indexShard) {
+    TermsByQueryRequest request = shardRequest.request();
+
+    SearchShardTarget shardTarget = new SearchShardTarget(clusterService.localNode().id(),
+                                                          shardRequest.shardId().getIndex(),
+                                                          shardRequest.shardId().id());
+
+    ShardSearchRequest shardSearchRequest = new ShardSearchLocalRequest(request.types(), request.nowInMillis(),
+                                                                        shardRequest.filteringAliases());
+
+    SearchContext context = new DefaultSearchContext(0, shardSearchRequest, shardTarget,
+      indexShard.acquireSearcher("termsByQuery"), indexService, indexShard, scriptService,
+      pageCacheRecycler, bigArrays, threadPool.estimatedTimeInMillisCounter(), parseFieldMatcher,
+      SearchService.NO_TIMEOUT);
+    SearchContext.setCurrent(context);
+    return context;
+  }
+
+  /**
+   * Parses the query source of the request into the search context, and prepares the context for the search.
+   */
+  private void parseQuery(SearchContext context, TermsByQueryRequest request, IndexService indexService,
+                          OrderByShardOperation orderByOperation) throws IOException {
+    BytesReference querySource = request.querySource();
+    if (querySource != null && querySource.length() > 0) {
+      XContentParser queryParser = null;
+      try {
+        queryParser = XContentFactory.xContent(querySource).createParser(querySource);
+        QueryParseContext.setTypes(request.types());
+        ParsedQuery parsedQuery = orderByOperation.getParsedQuery(queryParser, indexService);
+        if (parsedQuery != null) {
+          context.parsedQuery(parsedQuery);
+        }
+      }
+      finally {
+        QueryParseContext.removeTypes();
+        if (queryParser != null) {
+          queryParser.close();
+        }
+      }
+    }
+
+    context.preProcess();
+  }
+
+  /**
+   * Returns the version of the content searched by the context, or null if the terms of the shard cannot be cached
+   * in the {@link ShardTermsCache}, e.g., if the query depends on the current time.
+   */
+  private Long getShardVersion(IndexService indexService, ShardId shardId, SearchContext context) {
+    if (!shardTermsCache.isEnabled() || context.nowInMillisUsed() ||
+        !(context.searcher().getIndexReader() instanceof DirectoryReader)) {
+      return null;
+    }
+    Injector injector = indexService.shardInjectorSafe(shardId.id());
+    IndexVersionShardService indexVersionService = injector.getBinding(IndexVersionShardService.class).getProvider().get();
+    return indexVersionService.getVersion((DirectoryReader) context.searcher().getIndexReader());
+  }
+
+  /**
+   * Returns true if the terms of the shard can be collected segment by segment with the {@link SegmentTermsCache},
+   * i.e., if the terms are numeric, if all the terms are collected regardless of the score of the documents, and if
+   * the query neither depends on the current time nor on the other segments of the shard.
+   */
+  private boolean isIncremental(TermsByQueryRequest request, TermsCollector termsCollector, SearchContext context) {
+    return segmentTermsCache.isEnabled() &&
+           termsCollector instanceof NumericTermsCollector &&
+           (request.getOrderBy() == null || request.getOrderBy() == TermsByQueryRequest.Ordering.DEFAULT) &&
+           request.maxTermsPerShard() == null &&
+           !context.nowInMillisUsed() &&
+           SegmentTermsCache.isSegmentLocal(context.query());
+  }
+
+  /**
+   * Returns true if the terms of the shard can be collected in a single pass, i.e., if the terms are collected
+   * regardless of the score of the documents, and if the terms set does not need the number of hits.
+   */
+  private boolean isSinglePass(TermsByQueryRequest request, TermsCollector termsCollector) {
+    return (request.getOrderBy() == null || request.getOrderBy() == TermsByQueryRequest.Ordering.DEFAULT) &&
+           termsCollector.isSinglePass();
+  }
+
+  /**
+   * Returns the collector for the terms encoding of the request, or a {@link ScoredLongTermsCollector} if the request
+   * has a score mode.
+   */
+  private TermsCollector getTermsCollector(TermsByQueryRequest request, IndexFieldData indexFieldData,
+                                           SearchContext context) {
+    if (request.scoreMode() != null) {
+      return new ScoredLongTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST),
+              request.scoreMode());
+    }
+    TermsByQueryRequest.TermsEncoding termsEncoding = request.termsEncoding();
     switch (termsEncoding) {
       case LONG:
         return new LongTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
@@ -312,6 +1137,10 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
         return new BloomFilterTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
       case BYTES:
         return new BytesRefTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
+      case PACKED:
+        return new PackedLongTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
+      case BITMAP:
+        return new BitmapTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
       default:
         throw new IllegalArgumentException("[termsByQuery] Invalid terms encoding: " + termsEncoding.name());
     }
@@ -345,7 +1174,8 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
      * {@link TermsByQueryRequest.Ordering}.
      * Default to {@link TermsByQueryRequest.Ordering#DEFAULT}.
      */
-    private static OrderByShardOperation get(final TermsByQueryRequest.Ordering orderBy, final Integer maxTermsPerShard) {
+    private static OrderByShardOperation get(final TermsByQueryRequest.Ordering orderBy, final Integer maxTermsPerShard,
+                                             final Float minScore) {
       // By default, no ordering
       TermsByQueryRequest.Ordering ordering = orderBy != null ? orderBy : TermsByQueryRequest.Ordering.DEFAULT;
       switch (ordering) {
@@ -353,7 +1183,7 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
           return new OrderByDefaultShardOperation(maxTermsPerShard);
 
         case DOC_SCORE:
-          return new OrderByDocScoreShardOperation(maxTermsPerShard);
+          return new OrderByDocScoreShardOperation(maxTermsPerShard, minScore);
 
         default:
           throw new ElasticsearchParseException("[termsByQuery] unknown ordering " + ordering.name());
@@ -381,12 +1211,15 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
 
   /**
    * Order by operation based on document score. Document score will be computed, and documents will be ordered
-   * by their score.
+   * by their score. The documents scoring less than the optional minimum score are ignored.
    */
   private static class OrderByDocScoreShardOperation extends OrderByShardOperation {
 
-    private OrderByDocScoreShardOperation(final Integer maxTermsPerShard) {
+    private final Float minScore;
+
+    private OrderByDocScoreShardOperation(final Integer maxTermsPerShard, final Float minScore) {
       super(maxTermsPerShard);
+      this.minScore = minScore;
     }
 
     @Override
@@ -394,6 +1227,9 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
       if (maxTermsPerShard == null) {
         throw new ElasticsearchParseException("[termsByQuery] maxTermsPerShard parameter is null");
       }
+      if (minScore != null) {
+        return new TopHitStream(maxTermsPerShard, minScore, context.query(), context.searcher());
+      }
       return new TopHitStream(maxTermsPerShard, context.query(), context.searcher());
     }
   }
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.common.Bytes;
+
+import java.io.IOException;
+
+/**
+ * A set of integer terms backed by a compressed bitmap, see {@link RoaringIntSet}. As for the {@link IntegerTermsSet},
+ * the terms are truncated to integers.
+ */
+public class BitmapTermsSet extends NumericTermsSet {
+
+  private transient RoaringIntSet set;
+
+  /**
+   * The size of the header: four bytes for the terms encoding ordinal,
+   * 1 byte for the {@link #isPruned} flag, and four bytes for the size.
+   */
+  private static final int HEADER_SIZE = 9;
+
+  private static final ESLogger logger = Loggers.getLogger(BitmapTermsSet.class);
+
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}
+   */
+  public BitmapTermsSet(final CircuitBreaker breaker) {
+    super(breaker);
+  }
+
+  public BitmapTermsSet(final long expectedElements, final CircuitBreaker breaker) {
+    super(breaker);
+    this.set = new RoaringIntSet(breaker);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms.
+   * Used in {@link solutions.siren.join.index.query.FieldDataTermsQuery}.
+   */
+  public BitmapTermsSet(BytesRef bytes) {
+    super(null);
+    this.readFromBytes(bytes);
+  }
+
+  @Override
+  public void add(long term) {
+    this.set.add((int) term);
+  }
+
+  @Override
+  public boolean contains(long term) {
+    return this.set.contains((int) term);
+  }
+
+  @Override
+  protected void addAll(TermsSet terms) {
+    if (!(terms instanceof BitmapTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: BitmapTermsSet expected.");
+    }
+    this.set.or(((BitmapTermsSet) terms).set);
+  }
+
+  @Override
+  public int size() {
+    return this.set.cardinality();
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    this.setIsPruned(in.readBoolean());
+
+    BytesRef bytes = new BytesRef(in.readVInt());
+    in.readBytes(bytes.bytes, 0, bytes.bytes.length);
+    bytes.length = bytes.bytes.length;
+    set = RoaringIntSet.readFrom(bytes, breaker);
+  }
+
+  /**
+   * Serialize the list of terms to the {@link StreamOutput}.
+   *
+   * @param out the output
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    // Encode flag
+    out.writeBoolean(this.isPruned());
+
+    // Encode bitmap
+    BytesRef bytes = new BytesRef(new byte[set.sizeInBytes()]);
+    set.writeTo(bytes);
+    out.writeVInt(bytes.offset);
+    out.writeBytes(bytes.bytes, 0, bytes.offset);
+  }
+
+  @Override
+  public BytesRef writeToBytes() {
+    long start = System.nanoTime();
+
+    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + set.sizeInBytes()]);
+
+    // Encode encoding type
+    Bytes.writeInt(bytes, this.getEncoding().ordinal());
+
+    // Encode flag
+    bytes.bytes[bytes.offset++] = (byte) (this.isPruned() ? 1 : 0);
+
+    // Encode size of the set
+    Bytes.writeInt(bytes, set.cardinality());
+
+    // Encode bitmap
+    set.writeTo(bytes);
+
+    logger.debug("Serialized {} terms in {} bytes - took {} ms", this.size(), bytes.offset, (System.nanoTime() - start) / 1000000);
+
+    bytes.length = bytes.offset;
+    bytes.offset = 0;
+    return bytes;
+  }
+
+  private void readFromBytes(BytesRef bytes) {
+    // Read pruned flag
+    this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
+
+    // Skip size of the set, it is given by the bitmap
+    Bytes.readInt(bytes);
+
+    // Read bitmap
+    set = RoaringIntSet.readFrom(bytes, null);
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return TermsByQueryRequest.TermsEncoding.BITMAP;
+  }
+
+  @Override
+  protected long[] toSortedArray() {
+    int[] values = set.toArray();
+    long[] terms = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      terms[i] = values[i];
+    }
+    return terms;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long size = set == null ? 0 : set.ramBytesUsed();
+    return size + this.sortedTermsRamBytesUsed();
+  }
+
+  @Override
+  public void release() {
+    if (set != null) {
+      set.release();
+    }
+  }
+
+}
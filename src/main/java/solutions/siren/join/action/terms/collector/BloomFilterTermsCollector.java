@@ -37,4 +37,20 @@ public class BloomFilterTermsCollector extends NumericTermsCollector {
     return new BloomFilterTermsSet(expectedElements, breaker);
   }
 
+  /**
+   * The bloom filter is sized with the expected number of terms, or with the number of hits if not set.
+   */
+  @Override
+  public boolean isSinglePass() {
+    return this.expectedTerms != -1;
+  }
+
+  /**
+   * The bloom filters of the slices would each be sized with the expected number of terms.
+   */
+  @Override
+  protected boolean isParallel() {
+    return false;
+  }
+
 }
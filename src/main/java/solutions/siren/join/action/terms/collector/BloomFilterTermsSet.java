@@ -194,6 +194,16 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     return TermsByQueryRequest.TermsEncoding.BLOOM;
   }
 
+  @Override
+  protected long[] toSortedArray() {
+    return null; // a bloom filter cannot enumerate its terms
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return set == null ? 0 : set.getSizeInBytes();
+  }
+
   @Override
   public void release() {
     if (set != null) {
@@ -18,11 +18,18 @@
  */
 package solutions.siren.join.action.terms.collector;
 
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Collects {@link org.apache.lucene.util.BytesRef} terms for a given field based on a {@link HitStream}.
@@ -63,4 +70,56 @@ public class BytesRefTermsCollector extends TermsCollector {
     }
   }
 
+  /**
+   * Collects the terms in a single pass. If the segments are collected in parallel, each slice of segments is
+   * collected into its own terms set, and the terms sets are merged at the end.
+   */
+  @Override
+  public TermsSet collect(Query query) throws IOException {
+    final List<List<LeafReaderContext>> slices = this.getSlices(context.searcher().getIndexReader().leaves());
+    final List<BytesRefTermsSet> sets = new ArrayList<>(slices.size());
+    try {
+      List<Collector> collectors = new ArrayList<>(slices.size());
+      for (int i = 0; i < slices.size(); i++) {
+        final BytesRefTermsSet terms = new BytesRefTermsSet(breaker);
+        sets.add(terms);
+        final BytesRefTermStream termStream = BytesRefTermStream.get(context.searcher().getIndexReader(), indexFieldData);
+        collectors.add(new SinglePassCollector(terms) {
+
+          @Override
+          protected void setDocument(int atomicReaderId, int atomicDocId) {
+            termStream.set(atomicReaderId, atomicDocId);
+          }
+
+          @Override
+          protected boolean hasNextTerm() {
+            return termStream.hasNext();
+          }
+
+          @Override
+          protected boolean addNextTerm(boolean isFull) {
+            BytesRef term = termStream.next();
+            if (isFull && !terms.contains(term)) {
+              return false;
+            }
+            terms.add(term);
+            return true;
+          }
+
+        });
+      }
+
+      // wraps the query into a ConstantScoreQuery since we do not need the score
+      this.search(new ConstantScoreQuery(query), slices, collectors);
+      return merge(sets);
+    }
+    catch (Throwable t) {
+      // If something happens during the term collection, release the terms sets and adjust the circuit breaker
+      for (BytesRefTermsSet terms : sets) {
+        terms.release();
+      }
+      throw t;
+    }
+  }
+
 }
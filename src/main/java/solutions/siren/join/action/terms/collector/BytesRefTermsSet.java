@@ -41,6 +41,11 @@ public class BytesRefTermsSet extends TermsSet {
   private transient ByteBlockPool pool;
   private transient BytesRefHash set;
 
+  /**
+   * The ordinals of the terms in unicode order, computed once by {@link #getSortedOrds()}
+   */
+  private transient int[] sortedOrds;
+
   /**
    * The size of the header: four bytes for the terms encoding ordinal,
    * 1 byte for the {@link #isPruned} flag, and four bytes for the size.
@@ -91,14 +96,24 @@ public class BytesRefTermsSet extends TermsSet {
     return set;
   }
 
+  /**
+   * Returns the ordinals of the terms sorted in unicode order. The sort is performed once, as the set can be shared
+   * by concurrent queries. The sort is destructive: after this call, the terms can only be retrieved by ordinal
+   * with {@link BytesRefHash#get(int, BytesRef)}.
+   */
+  public synchronized int[] getSortedOrds() {
+    if (sortedOrds == null) {
+      sortedOrds = set.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
+    }
+    return sortedOrds;
+  }
+
   @Override
   public int size() {
     return this.set.size();
   }
 
-  /**
-   * Return the memory usage of this object in bytes.
-   */
+  @Override
   public long ramBytesUsed() {
     return bytesUsed.get();
   }
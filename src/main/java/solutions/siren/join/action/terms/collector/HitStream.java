@@ -84,6 +84,13 @@ public abstract class HitStream {
    */
   protected abstract int getAtomicReaderId();
 
+  /**
+   * Returns the score of the current hit. Default to 1 for the streams which do not compute the scores.
+   */
+  public float getScore() {
+    return 1f;
+  }
+
   /**
    * Get the {@link TermStream} for the current hit.
    */
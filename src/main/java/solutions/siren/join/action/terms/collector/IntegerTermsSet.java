@@ -33,6 +33,7 @@ import solutions.siren.join.common.Bytes;
 import solutions.siren.join.common.Math;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 
 public class IntegerTermsSet extends NumericTermsSet {
@@ -181,6 +182,23 @@ public class IntegerTermsSet extends NumericTermsSet {
     return TermsByQueryRequest.TermsEncoding.INTEGER;
   }
 
+  @Override
+  protected long[] toSortedArray() {
+    int[] values = set.toArray();
+    Arrays.sort(values);
+    long[] terms = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      terms[i] = values[i];
+    }
+    return terms;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long size = set == null || set.keys == null ? 0 : set.keys.length * 4l;
+    return size + this.sortedTermsRamBytesUsed();
+  }
+
   @Override
   public void release() {
     if (set != null) {
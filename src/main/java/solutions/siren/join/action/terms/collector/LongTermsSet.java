@@ -33,11 +33,12 @@ import solutions.siren.join.common.Math;
 import solutions.siren.join.common.Bytes;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 
 public class LongTermsSet extends NumericTermsSet {
 
-  private transient LongHashSet set;
+  protected transient LongHashSet set;
 
   /**
    * The size of the header: four bytes for the terms encoding ordinal,
@@ -77,7 +78,7 @@ public class LongTermsSet extends NumericTermsSet {
   }
 
   /**
-   * Used by unit-tests
+   * Returns the underlying set of terms
    */
   public LongHashSet getLongHashSet() {
     return set;
@@ -193,6 +194,19 @@ public class LongTermsSet extends NumericTermsSet {
     return TermsByQueryRequest.TermsEncoding.LONG;
   }
 
+  @Override
+  protected long[] toSortedArray() {
+    long[] terms = set.toArray();
+    Arrays.sort(terms);
+    return terms;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long size = set == null || set.keys == null ? 0 : set.keys.length * 8l;
+    return size + this.sortedTermsRamBytesUsed();
+  }
+
   @Override
   public void release() {
     if (set != null) {
@@ -206,7 +220,7 @@ public class LongTermsSet extends NumericTermsSet {
    * <p>
    * This set must not be reused after a call to {@link #release()}.
    */
-  private final class CircuitBreakerLongHashSet extends LongHashSet {
+  final class CircuitBreakerLongHashSet extends LongHashSet {
 
     public CircuitBreakerLongHashSet(int expectedElements) {
       super(expectedElements);
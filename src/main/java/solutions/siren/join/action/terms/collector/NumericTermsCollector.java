@@ -19,11 +19,21 @@
 package solutions.siren.join.action.terms.collector;
 
 import com.carrotsearch.hppc.LongHashSet;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.internal.SearchContext;
+import solutions.siren.join.action.terms.SegmentTermsCache;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Collects numeric terms for a given field based on a {@link HitStream}.
@@ -68,4 +78,178 @@ public abstract class NumericTermsCollector extends TermsCollector {
     }
   }
 
+  /**
+   * Collects the terms in a single pass. If the segments are collected in parallel, each slice of segments is
+   * collected into its own terms set, and the terms sets are merged at the end.
+   */
+  @Override
+  public NumericTermsSet collect(Query query) throws IOException {
+    final List<List<LeafReaderContext>> slices = this.getSlices(context.searcher().getIndexReader().leaves());
+    final int expectedElements = this.expectedTerms != -1 ? this.expectedTerms / slices.size() : 0;
+    final List<NumericTermsSet> sets = new ArrayList<>(slices.size());
+    try {
+      List<Collector> collectors = new ArrayList<>(slices.size());
+      for (int i = 0; i < slices.size(); i++) {
+        final NumericTermsSet terms = this.newTermsSet(expectedElements, breaker);
+        sets.add(terms);
+        final NumericTermStream termStream = NumericTermStream.get(context.searcher().getIndexReader(), indexFieldData);
+        collectors.add(new SinglePassCollector(terms) {
+
+          @Override
+          protected void setDocument(int atomicReaderId, int atomicDocId) {
+            termStream.set(atomicReaderId, atomicDocId);
+          }
+
+          @Override
+          protected boolean hasNextTerm() {
+            return termStream.hasNext();
+          }
+
+          @Override
+          protected boolean addNextTerm(boolean isFull) {
+            long term = termStream.next();
+            if (isFull && !terms.contains(term)) {
+              return false;
+            }
+            terms.add(term);
+            return true;
+          }
+
+        });
+      }
+
+      // wraps the query into a ConstantScoreQuery since we do not need the score
+      this.search(new ConstantScoreQuery(query), slices, collectors);
+      return merge(sets);
+    }
+    catch (Throwable t) {
+      // If something happens during the term collection, release the terms sets and adjust the circuit breaker
+      for (NumericTermsSet terms : sets) {
+        terms.release();
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Collects all the terms of the documents matching the query, segment by segment. The terms of the segments found
+   * in the cache are reused, and only the other segments are searched. The terms collected in these segments are then
+   * cached. The terms are never pruned.
+   */
+  public NumericTermsSet collect(Query query, SegmentTermsCache cache) throws IOException {
+    final String field = indexFieldData.getFieldNames().indexName();
+    final IndexSearcher searcher = context.searcher();
+    final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+    final long[][] segmentTerms = new long[leaves.size()][];
+    int numCached = 0;
+    for (LeafReaderContext leaf : leaves) {
+      segmentTerms[leaf.ord] = cache.get(leaf.reader(), query, field);
+      numCached += segmentTerms[leaf.ord] != null ? 1 : 0;
+    }
+
+    if (numCached < leaves.size()) {
+      final LongTermsSet[] collected = new LongTermsSet[leaves.size()];
+      try {
+        final List<LeafReaderContext> uncached = new ArrayList<>(leaves.size() - numCached);
+        for (LeafReaderContext leaf : leaves) {
+          if (segmentTerms[leaf.ord] == null) {
+            uncached.add(leaf);
+          }
+        }
+
+        // each slice of segments reads the terms with its own term stream
+        final List<List<LeafReaderContext>> slices = this.getSlices(uncached);
+        List<Collector> collectors = new ArrayList<>(slices.size());
+        for (int i = 0; i < slices.size(); i++) {
+          collectors.add(new SegmentCollector(NumericTermStream.get(searcher.getIndexReader(), indexFieldData),
+                  collected, breaker));
+        }
+
+        // wraps the query into a ConstantScoreQuery since we do not need the score
+        this.search(new ConstantScoreQuery(query), slices, collectors);
+
+        for (LeafReaderContext leaf : leaves) {
+          if (segmentTerms[leaf.ord] == null) {
+            LongTermsSet terms = collected[leaf.ord];
+            segmentTerms[leaf.ord] = terms != null ? terms.getLongHashSet().toArray() : new long[0];
+            cache.put(leaf.reader(), query, field, segmentTerms[leaf.ord]);
+          }
+        }
+      }
+      finally {
+        // release the terms sets of the segments and adjust the circuit breaker
+        for (LongTermsSet terms : collected) {
+          if (terms != null) {
+            terms.release();
+          }
+        }
+      }
+    }
+
+    int numTerms = 0;
+    for (long[] terms : segmentTerms) {
+      numTerms += terms.length;
+    }
+
+    NumericTermsSet termsSet = this.newTermsSet(this.expectedTerms != -1 ? this.expectedTerms : numTerms, breaker);
+    try {
+      for (long[] terms : segmentTerms) {
+        for (long term : terms) {
+          termsSet.add(term);
+        }
+      }
+      termsSet.setIsPruned(false);
+      return termsSet;
+    }
+    catch (Throwable t) {
+      // If something happens during the merge of the terms, release the terms set and adjust the circuit breaker
+      termsSet.release();
+      throw t;
+    }
+  }
+
+  /**
+   * Collects the terms of each segment into its own {@link LongTermsSet}, accounted in the circuit breaker.
+   */
+  private static class SegmentCollector implements Collector {
+
+    private final NumericTermStream termStream;
+    private final LongTermsSet[] collected;
+    private final CircuitBreaker breaker;
+
+    private SegmentCollector(NumericTermStream termStream, LongTermsSet[] collected, CircuitBreaker breaker) {
+      this.termStream = termStream;
+      this.collected = collected;
+      this.breaker = breaker;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(final LeafReaderContext leaf) throws IOException {
+      final LongTermsSet terms = new LongTermsSet(0, breaker);
+      collected[leaf.ord] = terms;
+
+      return new LeafCollector() {
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {}
+
+        @Override
+        public void collect(int doc) throws IOException {
+          termStream.set(leaf.ord, doc);
+          while (termStream.hasNext()) {
+            terms.add(termStream.next());
+          }
+        }
+
+      };
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+
+  }
+
 }
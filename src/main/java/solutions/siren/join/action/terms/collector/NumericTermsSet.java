@@ -25,6 +25,11 @@ import org.elasticsearch.common.breaker.CircuitBreaker;
  */
 public abstract class NumericTermsSet extends TermsSet {
 
+  /**
+   * The terms sorted in ascending order, computed once by {@link #getSortedTerms()}
+   */
+  private transient long[] sortedTerms;
+
   protected NumericTermsSet(final CircuitBreaker breaker) {
     super(breaker);
   }
@@ -33,4 +38,28 @@ public abstract class NumericTermsSet extends TermsSet {
 
   public abstract boolean contains(long term);
 
+  /**
+   * Returns the terms sorted in ascending order, or null if the set cannot enumerate its terms, e.g., a bloom filter.
+   * The array is computed once, as the set can be shared by concurrent queries.
+   */
+  public synchronized long[] getSortedTerms() {
+    if (sortedTerms == null) {
+      sortedTerms = this.toSortedArray();
+    }
+    return sortedTerms;
+  }
+
+  /**
+   * Returns an estimate of the memory usage of the sorted terms in bytes, or 0 if they were not computed by
+   * {@link #getSortedTerms()}. To be included in {@link #ramBytesUsed()}.
+   */
+  protected synchronized long sortedTermsRamBytesUsed() {
+    return sortedTerms == null ? 0 : sortedTerms.length * 8l;
+  }
+
+  /**
+   * Returns a new array with the terms sorted in ascending order, or null if the set cannot enumerate its terms.
+   */
+  protected abstract long[] toSortedArray();
+
 }
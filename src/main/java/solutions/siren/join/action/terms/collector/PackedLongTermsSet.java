@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongScatterSet;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.PackedInts;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.common.Bytes;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A {@link LongTermsSet} that is encoded in a compact form: the terms are sorted, and the gaps between two
+ * consecutive terms are bit-packed by blocks of {@link #BLOCK_SIZE} with the minimum number of bits required
+ * by the largest gap of the block. Dense ranges of terms, e.g., incremental identifiers, are encoded with a few bits
+ * per term instead of eight bytes.
+ * <br>
+ * The encoded form is: the first term (8 bytes), then for each block, the number of bits per value (1 byte) followed
+ * by the packed gaps minus one. The last block is padded with zeros.
+ */
+public class PackedLongTermsSet extends LongTermsSet {
+
+  /**
+   * The number of gaps per block
+   */
+  static final int BLOCK_SIZE = 128;
+
+  /**
+   * The size of the header: four bytes for the terms encoding ordinal,
+   * 1 byte for the {@link #isPruned} flag, and four bytes for the size.
+   */
+  private static final int HEADER_SIZE = 9;
+
+  private static final ESLogger logger = Loggers.getLogger(PackedLongTermsSet.class);
+
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}
+   */
+  public PackedLongTermsSet(final CircuitBreaker breaker) {
+    super(breaker);
+  }
+
+  public PackedLongTermsSet(final long expectedElements, final CircuitBreaker breaker) {
+    super(expectedElements, breaker);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms.
+   * Used in {@link solutions.siren.join.index.query.FieldDataTermsQuery}.
+   */
+  public PackedLongTermsSet(BytesRef bytes) {
+    super((CircuitBreaker) null);
+    this.readFromBytes(bytes);
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    this.setIsPruned(in.readBoolean());
+    int size = in.readInt();
+    set = new CircuitBreakerLongHashSet(size);
+
+    BytesRef bytes = new BytesRef(in.readVInt());
+    in.readBytes(bytes.bytes, 0, bytes.bytes.length);
+    bytes.length = bytes.bytes.length;
+    decode(bytes, size, set);
+  }
+
+  /**
+   * Serialize the list of terms to the {@link StreamOutput}.
+   *
+   * @param out the output
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    // Encode flag
+    out.writeBoolean(this.isPruned());
+
+    // Encode size of list
+    out.writeInt(set.size());
+
+    // Encode packed terms
+    BytesRef bytes = new BytesRef(new byte[maxEncodedSize(set.size())]);
+    encode(set, bytes);
+    out.writeVInt(bytes.offset);
+    out.writeBytes(bytes.bytes, 0, bytes.offset);
+  }
+
+  @Override
+  public BytesRef writeToBytes() {
+    long start = System.nanoTime();
+    int size = set.size();
+
+    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + maxEncodedSize(size)]);
+
+    // Encode encoding type
+    Bytes.writeInt(bytes, this.getEncoding().ordinal());
+
+    // Encode flag
+    bytes.bytes[bytes.offset++] = (byte) (this.isPruned() ? 1 : 0);
+
+    // Encode size of the set
+    Bytes.writeInt(bytes, size);
+
+    // Encode packed terms
+    encode(set, bytes);
+
+    logger.debug("Serialized {} terms in {} bytes - took {} ms", this.size(), bytes.offset, (System.nanoTime() - start) / 1000000);
+
+    // the array is sized for the worst case, it is trimmed since it is inlined in the queries and cached as is
+    bytes.bytes = Arrays.copyOf(bytes.bytes, bytes.offset);
+    bytes.length = bytes.offset;
+    bytes.offset = 0;
+    return bytes;
+  }
+
+  private void readFromBytes(BytesRef bytes) {
+    // Read pruned flag
+    this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
+
+    // Read size fo the set
+    int size = Bytes.readInt(bytes);
+
+    // Read terms
+
+    // Scatter set is slightly more efficient than the hash set, but should be used only for lookups,
+    // not for merging
+    set = new LongScatterSet(size);
+    decode(bytes, size, set);
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return TermsByQueryRequest.TermsEncoding.PACKED;
+  }
+
+  /**
+   * Returns the maximum number of bytes required to encode the given number of terms.
+   */
+  static int maxEncodedSize(int size) {
+    if (size == 0) {
+      return 0;
+    }
+    int numBlocks = (size - 1 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    return 8 + numBlocks * (1 + BLOCK_SIZE * 8);
+  }
+
+  /**
+   * Sorts the terms and encodes them into the given {@link BytesRef}, starting at its offset.
+   * The offset is moved at the end of the encoded terms.
+   */
+  static void encode(LongHashSet set, BytesRef bytes) {
+    int size = set.size();
+    if (size == 0) {
+      return;
+    }
+
+    long[] terms = set.toArray();
+    Arrays.sort(terms);
+
+    // Encode first term
+    Bytes.writeLong(bytes, terms[0]);
+
+    // Encode the gaps by blocks. The terms are unique, therefore a gap is always greater than 0.
+    long[] gaps = new long[BLOCK_SIZE];
+    for (int i = 1; i < size; i += BLOCK_SIZE) {
+      int length = Math.min(BLOCK_SIZE, size - i);
+      long or = 0;
+      for (int j = 0; j < length; j++) {
+        gaps[j] = terms[i + j] - terms[i + j - 1] - 1;
+        or |= gaps[j];
+      }
+      Arrays.fill(gaps, length, BLOCK_SIZE, 0);
+
+      int bitsPerValue = PackedInts.unsignedBitsRequired(or);
+      bytes.bytes[bytes.offset++] = (byte) bitsPerValue;
+
+      PackedInts.Encoder encoder = PackedInts.getEncoder(PackedInts.Format.PACKED, PackedInts.VERSION_CURRENT, bitsPerValue);
+      int iterations = BLOCK_SIZE / encoder.byteValueCount();
+      encoder.encode(gaps, 0, bytes.bytes, bytes.offset, iterations);
+      bytes.offset += iterations * encoder.byteBlockCount();
+    }
+  }
+
+  /**
+   * Decodes the given number of terms from the {@link BytesRef}, starting at its offset, and adds them to the set.
+   * The offset is moved at the end of the encoded terms.
+   */
+  static void decode(BytesRef bytes, int size, LongHashSet set) {
+    if (size == 0) {
+      return;
+    }
+
+    // Decode first term
+    long term = Bytes.readLong(bytes);
+    set.add(term);
+
+    // Decode the gaps by blocks
+    long[] gaps = new long[BLOCK_SIZE];
+    for (int i = 1; i < size; i += BLOCK_SIZE) {
+      int length = Math.min(BLOCK_SIZE, size - i);
+      int bitsPerValue = bytes.bytes[bytes.offset++];
+
+      PackedInts.Decoder decoder = PackedInts.getDecoder(PackedInts.Format.PACKED, PackedInts.VERSION_CURRENT, bitsPerValue);
+      int iterations = BLOCK_SIZE / decoder.byteValueCount();
+      decoder.decode(bytes.bytes, bytes.offset, gaps, 0, iterations);
+      bytes.offset += iterations * decoder.byteBlockCount();
+
+      for (int j = 0; j < length; j++) {
+        term += gaps[j] + 1;
+        set.add(term);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,536 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import solutions.siren.join.common.Bytes;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of integers based on the Roaring bitmap layout. The integers are partitioned by their 16 high bits,
+ * and the 16 low bits of each partition are stored in a container: a sorted array for sparse partitions, or a bitmap
+ * of 2^16 bits when the partition holds more than {@link #ARRAY_MAX_SIZE} integers. Dense ranges of integers
+ * are therefore encoded with about one bit per integer.
+ * <br>
+ * The memory allocated by the set is accounted in the {@link CircuitBreaker}, if one is provided.
+ * This set must not be reused after a call to {@link #release()}.
+ */
+class RoaringIntSet {
+
+  /**
+   * The maximum number of integers of an array container, above which it is converted into a bitmap container.
+   * An array container of this size uses as much memory as a bitmap container.
+   */
+  static final int ARRAY_MAX_SIZE = 4096;
+
+  private static final int BITMAP_WORDS = 1 << 10;
+
+  /**
+   * The sorted 16 high bits of the partitions
+   */
+  private char[] keys;
+
+  /**
+   * The containers of the partitions
+   */
+  private Container[] containers;
+
+  /**
+   * The number of partitions
+   */
+  private int size = 0;
+
+  /**
+   * The number of integers
+   */
+  private int cardinality = 0;
+
+  private final CircuitBreaker breaker;
+
+  /**
+   * The number of bytes accounted in the circuit breaker
+   */
+  private long allocatedBytes = 0;
+
+  RoaringIntSet(final CircuitBreaker breaker) {
+    this.breaker = breaker;
+    this.adjustBreaker(4 * (2 + 8));
+    this.keys = new char[4];
+    this.containers = new Container[4];
+  }
+
+  /**
+   * Adds the integer, and returns true if it was not already in the set.
+   */
+  boolean add(int x) {
+    char high = (char) (x >>> 16);
+    int i = this.indexOf(high);
+    if (i < 0) {
+      i = -i - 1;
+      this.insert(i, high, new ArrayContainer());
+    }
+    Container container = containers[i];
+    long before = container.ramBytesUsed();
+    int cardinality = container.cardinality();
+
+    containers[i] = container = container.add((char) x);
+
+    this.adjustBreaker(container.ramBytesUsed() - before);
+    this.cardinality += container.cardinality() - cardinality;
+    return container.cardinality() != cardinality;
+  }
+
+  boolean contains(int x) {
+    int i = this.indexOf((char) (x >>> 16));
+    return i >= 0 && containers[i].contains((char) x);
+  }
+
+  /**
+   * Adds all the integers of the other set into this set.
+   */
+  void or(RoaringIntSet other) {
+    for (int j = 0; j < other.size; j++) {
+      int i = this.indexOf(other.keys[j]);
+      if (i < 0) {
+        i = -i - 1;
+        this.insert(i, other.keys[j], new ArrayContainer());
+      }
+      Container container = containers[i];
+      long before = container.ramBytesUsed();
+      int cardinality = container.cardinality();
+
+      containers[i] = container = container.or(other.containers[j]);
+
+      this.adjustBreaker(container.ramBytesUsed() - before);
+      this.cardinality += container.cardinality() - cardinality;
+    }
+  }
+
+  /**
+   * Returns the integers of the set in ascending order.
+   */
+  int[] toArray() {
+    int[] values = new int[cardinality];
+    // the partitions are sorted by their unsigned high bits, the partitions of the negative integers come last
+    int firstNegative = 0;
+    while (firstNegative < size && keys[firstNegative] < 0x8000) {
+      firstNegative++;
+    }
+    int n = 0;
+    for (int i = firstNegative; i < size; i++) {
+      n = containers[i].fill(values, n, keys[i] << 16);
+    }
+    for (int i = 0; i < firstNegative; i++) {
+      n = containers[i].fill(values, n, keys[i] << 16);
+    }
+    return values;
+  }
+
+  /**
+   * The number of integers in the set
+   */
+  int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * Releases all the containers and adjusts the circuit breaker.
+   */
+  void release() {
+    keys = null;
+    containers = null;
+    size = 0;
+    cardinality = 0;
+    this.adjustBreaker(-allocatedBytes);
+  }
+
+  /**
+   * Returns the number of bytes allocated by the containers.
+   */
+  long ramBytesUsed() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Returns the number of bytes needed by {@link #writeTo(BytesRef)}.
+   */
+  int sizeInBytes() {
+    int bytes = 4;
+    for (int i = 0; i < size; i++) {
+      bytes += 2 + containers[i].sizeInBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes the set into the given {@link BytesRef}, starting at its offset. The offset is moved at the end of the
+   * encoded set.
+   */
+  void writeTo(BytesRef bytes) {
+    Bytes.writeInt(bytes, size);
+    for (int i = 0; i < size; i++) {
+      writeChar(bytes, keys[i]);
+      containers[i].writeTo(bytes);
+    }
+  }
+
+  /**
+   * Decodes a set encoded with {@link #writeTo(BytesRef)}, starting at the offset of the given {@link BytesRef}. The
+   * offset is moved at the end of the encoded set.
+   */
+  static RoaringIntSet readFrom(BytesRef bytes, CircuitBreaker breaker) {
+    RoaringIntSet set = new RoaringIntSet(breaker);
+    int size = Bytes.readInt(bytes);
+    set.grow(size);
+    for (int i = 0; i < size; i++) {
+      char key = readChar(bytes);
+      Container container = bytes.bytes[bytes.offset++] == ArrayContainer.TYPE ?
+              ArrayContainer.readFrom(bytes) : BitmapContainer.readFrom(bytes);
+      set.adjustBreaker(container.ramBytesUsed());
+      set.keys[i] = key;
+      set.containers[i] = container;
+      set.cardinality += container.cardinality();
+      set.size++;
+    }
+    return set;
+  }
+
+  private int indexOf(char key) {
+    // fast path for consecutive adds in the last partition
+    if (size > 0 && keys[size - 1] == key) {
+      return size - 1;
+    }
+    return Arrays.binarySearch(keys, 0, size, key);
+  }
+
+  private void insert(int i, char key, Container container) {
+    this.grow(size + 1);
+    this.adjustBreaker(container.ramBytesUsed());
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(containers, i, containers, i + 1, size - i);
+    keys[i] = key;
+    containers[i] = container;
+    size++;
+  }
+
+  private void grow(int minSize) {
+    if (keys.length < minSize) {
+      int newLength = Math.max(minSize, keys.length * 2);
+      // the keys and the references to the containers
+      this.adjustBreaker((long) (newLength - keys.length) * (2 + 8));
+      keys = Arrays.copyOf(keys, newLength);
+      containers = Arrays.copyOf(containers, newLength);
+    }
+  }
+
+  private void adjustBreaker(long bytes) {
+    if (bytes == 0) {
+      return;
+    }
+    if (breaker != null) {
+      if (bytes > 0) {
+        breaker.addEstimateBytesAndMaybeBreak(bytes, "<terms_set>");
+      }
+      else {
+        breaker.addWithoutBreaking(bytes);
+      }
+    }
+    allocatedBytes += bytes;
+  }
+
+  private static void writeChar(BytesRef dst, char c) {
+    dst.bytes[dst.offset++] = (byte) (c >> 8);
+    dst.bytes[dst.offset++] = (byte) c;
+  }
+
+  private static char readChar(BytesRef src) {
+    return (char) (((src.bytes[src.offset++] & 0xFF) << 8) | (src.bytes[src.offset++] & 0xFF));
+  }
+
+  /**
+   * A container of the 16 low bits of the integers of a partition.
+   */
+  private static abstract class Container {
+
+    /**
+     * Adds the value and returns the container holding it, which might be a new container.
+     */
+    abstract Container add(char x);
+
+    abstract boolean contains(char x);
+
+    /**
+     * Adds all the values of the other container and returns the container holding them, which might be
+     * a new container.
+     */
+    abstract Container or(Container other);
+
+    abstract int cardinality();
+
+    abstract long ramBytesUsed();
+
+    abstract int sizeInBytes();
+
+    abstract void writeTo(BytesRef bytes);
+
+    /**
+     * Writes the values in ascending order, combined with the given high bits, into the array starting at
+     * the given offset. Returns the offset following the last value written.
+     */
+    abstract int fill(int[] values, int offset, int high);
+
+  }
+
+  /**
+   * A sorted array of values
+   */
+  private static final class ArrayContainer extends Container {
+
+    static final byte TYPE = 0;
+
+    private char[] values;
+    private int cardinality;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char x) {
+      // fast path for values added in increasing order
+      int i = cardinality > 0 && values[cardinality - 1] < x ? -cardinality - 1 : Arrays.binarySearch(values, 0, cardinality, x);
+      if (i >= 0) {
+        return this;
+      }
+      if (cardinality == ARRAY_MAX_SIZE) {
+        return this.toBitmap().add(x);
+      }
+      i = -i - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX_SIZE, values.length * 2));
+      }
+      System.arraycopy(values, i, values, i + 1, cardinality - i);
+      values[i] = x;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    boolean contains(char x) {
+      return Arrays.binarySearch(values, 0, cardinality, x) >= 0;
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof BitmapContainer) {
+        return ((BitmapContainer) other).copy().or(this);
+      }
+      ArrayContainer array = (ArrayContainer) other;
+      if (cardinality + array.cardinality > ARRAY_MAX_SIZE) {
+        return this.toBitmap().or(other);
+      }
+
+      // merge the two sorted arrays
+      char[] merged = new char[cardinality + array.cardinality];
+      int i = 0, j = 0, k = 0;
+      while (i < cardinality && j < array.cardinality) {
+        char a = values[i], b = array.values[j];
+        if (a < b) {
+          merged[k++] = a; i++;
+        }
+        else if (a > b) {
+          merged[k++] = b; j++;
+        }
+        else {
+          merged[k++] = a; i++; j++;
+        }
+      }
+      while (i < cardinality) {
+        merged[k++] = values[i++];
+      }
+      while (j < array.cardinality) {
+        merged[k++] = array.values[j++];
+      }
+      return new ArrayContainer(merged, k);
+    }
+
+    private BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < cardinality; i++) {
+        bitmap.add(values[i]);
+      }
+      return bitmap;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return 2l * values.length;
+    }
+
+    @Override
+    int sizeInBytes() {
+      return 1 + 4 + 2 * cardinality;
+    }
+
+    @Override
+    int fill(int[] dest, int offset, int high) {
+      for (int i = 0; i < cardinality; i++) {
+        dest[offset++] = high | values[i];
+      }
+      return offset;
+    }
+
+    @Override
+    void writeTo(BytesRef bytes) {
+      bytes.bytes[bytes.offset++] = TYPE;
+      Bytes.writeInt(bytes, cardinality);
+      for (int i = 0; i < cardinality; i++) {
+        writeChar(bytes, values[i]);
+      }
+    }
+
+    static ArrayContainer readFrom(BytesRef bytes) {
+      int cardinality = Bytes.readInt(bytes);
+      char[] values = new char[Math.max(4, cardinality)];
+      for (int i = 0; i < cardinality; i++) {
+        values[i] = readChar(bytes);
+      }
+      return new ArrayContainer(values, cardinality);
+    }
+
+  }
+
+  /**
+   * A bitmap of 2^16 bits
+   */
+  private static final class BitmapContainer extends Container {
+
+    static final byte TYPE = 1;
+
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer() {
+      this(new long[BITMAP_WORDS], 0);
+    }
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char x) {
+      long word = words[x >>> 6];
+      long newWord = word | (1L << x);
+      if (word != newWord) {
+        words[x >>> 6] = newWord;
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    boolean contains(char x) {
+      return (words[x >>> 6] & (1L << x)) != 0;
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer) other;
+        for (int i = 0; i < array.cardinality; i++) {
+          this.add(array.values[i]);
+        }
+        return this;
+      }
+      long[] otherWords = ((BitmapContainer) other).words;
+      int cardinality = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        words[i] |= otherWords[i];
+        cardinality += Long.bitCount(words[i]);
+      }
+      this.cardinality = cardinality;
+      return this;
+    }
+
+    BitmapContainer copy() {
+      return new BitmapContainer(Arrays.copyOf(words, BITMAP_WORDS), cardinality);
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return 8l * BITMAP_WORDS;
+    }
+
+    @Override
+    int sizeInBytes() {
+      return 1 + 8 * BITMAP_WORDS;
+    }
+
+    @Override
+    int fill(int[] dest, int offset, int high) {
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        long word = words[i];
+        while (word != 0) {
+          dest[offset++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+        }
+      }
+      return offset;
+    }
+
+    @Override
+    void writeTo(BytesRef bytes) {
+      bytes.bytes[bytes.offset++] = TYPE;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        Bytes.writeLong(bytes, words[i]);
+      }
+    }
+
+    static BitmapContainer readFrom(BytesRef bytes) {
+      long[] words = new long[BITMAP_WORDS];
+      int cardinality = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        words[i] = Bytes.readLong(bytes);
+        cardinality += Long.bitCount(words[i]);
+      }
+      return new BitmapContainer(words, cardinality);
+    }
+
+  }
+
+}
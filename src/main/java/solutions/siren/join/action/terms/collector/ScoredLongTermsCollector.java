@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.internal.SearchContext;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects long terms for a given field together with the scores of their documents. The scores of the documents
+ * sharing a same term are aggregated according to a {@link TermsByQueryRequest.ScoreMode}.
+ */
+public class ScoredLongTermsCollector extends TermsCollector {
+
+  private final TermsByQueryRequest.ScoreMode scoreMode;
+
+  public ScoredLongTermsCollector(final IndexFieldData<?> indexFieldData, final SearchContext context,
+                                  final CircuitBreaker breaker, final TermsByQueryRequest.ScoreMode scoreMode) {
+    super(indexFieldData, context, breaker);
+    this.scoreMode = scoreMode;
+  }
+
+  /**
+   * Collects the terms of the hits with the score returned by {@link HitStream#getScore()}.
+   */
+  @Override
+  public ScoredLongTermsSet collect(HitStream hitStream) throws IOException {
+    hitStream.initialize(); // initialise the stream
+    int nHits = hitStream.getHits();
+    ScoredLongTermsSet terms = new ScoredLongTermsSet(this.expectedTerms != -1 ? this.expectedTerms : nHits, scoreMode, breaker);
+    try {
+      NumericTermStream reusableTermStream = NumericTermStream.get(context.searcher().getIndexReader(), indexFieldData);
+
+      while (terms.size() < this.maxTerms && hitStream.hasNext()) {
+        hitStream.next();
+        float score = hitStream.getScore();
+        reusableTermStream = hitStream.getTermStream(reusableTermStream);
+
+        while (terms.size() < this.maxTerms && reusableTermStream.hasNext()) {
+          terms.add(reusableTermStream.next(), score);
+        }
+      }
+
+      boolean isPruned = hitStream.getTotalHits() > hitStream.getHits();
+      isPruned |= this.maxTerms < nHits;
+      terms.setIsPruned(isPruned);
+      return terms;
+    }
+    catch (Throwable t) {
+      // If something happens during the term collection, release the terms set and adjust the circuit breaker
+      terms.release();
+      throw t;
+    }
+  }
+
+  /**
+   * Collects the terms and the scores in a single pass. Contrary to the other collectors, the query is not wrapped
+   * into a constant score query, since the score of each matching document is needed.
+   */
+  @Override
+  public ScoredLongTermsSet collect(Query query) throws IOException {
+    final List<List<LeafReaderContext>> slices = this.getSlices(context.searcher().getIndexReader().leaves());
+    final int expectedElements = this.expectedTerms != -1 ? this.expectedTerms / slices.size() : 0;
+    final List<ScoredLongTermsSet> sets = new ArrayList<>(slices.size());
+    try {
+      List<Collector> collectors = new ArrayList<>(slices.size());
+      for (int i = 0; i < slices.size(); i++) {
+        final ScoredLongTermsSet terms = new ScoredLongTermsSet(expectedElements, scoreMode, breaker);
+        sets.add(terms);
+        final NumericTermStream termStream = NumericTermStream.get(context.searcher().getIndexReader(), indexFieldData);
+        collectors.add(new SinglePassCollector(terms) {
+
+          private float score;
+
+          @Override
+          protected void setDocument(int atomicReaderId, int atomicDocId) throws IOException {
+            termStream.set(atomicReaderId, atomicDocId);
+            score = scorer.score();
+          }
+
+          @Override
+          protected boolean hasNextTerm() {
+            return termStream.hasNext();
+          }
+
+          @Override
+          protected boolean addNextTerm(boolean isFull) {
+            long term = termStream.next();
+            if (isFull && !terms.contains(term)) {
+              return false;
+            }
+            terms.add(term, score); // the score of a term already in the set is still aggregated
+            return true;
+          }
+
+          @Override
+          public boolean needsScores() {
+            return true;
+          }
+
+        });
+      }
+
+      this.search(query, slices, collectors);
+      return merge(sets);
+    }
+    catch (Throwable t) {
+      // If something happens during the term collection, release the terms sets and adjust the circuit breaker
+      for (ScoredLongTermsSet terms : sets) {
+        terms.release();
+      }
+      throw t;
+    }
+  }
+
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import com.carrotsearch.hppc.BufferAllocationException;
+import com.carrotsearch.hppc.LongFloatHashMap;
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.cursors.LongFloatCursor;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.common.Bytes;
+import solutions.siren.join.common.Math;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of long terms where each term carries the aggregated score of the documents it was collected from. The
+ * scores are aggregated according to a {@link TermsByQueryRequest.ScoreMode}. For the
+ * {@link TermsByQueryRequest.ScoreMode#AVG} mode, the sum of the scores and the number of documents are kept until
+ * the set is encoded, so that the sets of the shards can be merged.
+ */
+public class ScoredLongTermsSet extends NumericTermsSet {
+
+  private TermsByQueryRequest.ScoreMode scoreMode;
+
+  /**
+   * The score of each term, i.e., the sum of the scores for the {@link TermsByQueryRequest.ScoreMode#AVG} mode
+   */
+  private transient LongFloatHashMap scores;
+
+  /**
+   * The number of documents of each term, only used by the {@link TermsByQueryRequest.ScoreMode#AVG} mode before
+   * the set is encoded
+   */
+  private transient LongIntHashMap counts;
+
+  /**
+   * The size of the header: four bytes for the terms encoding ordinal, 1 byte for the {@link #isPruned} flag,
+   * four bytes for the score mode ordinal and four bytes for the size.
+   */
+  private static final int HEADER_SIZE = 13;
+
+  private static final ESLogger logger = Loggers.getLogger(ScoredLongTermsSet.class);
+
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}
+   */
+  public ScoredLongTermsSet(final CircuitBreaker breaker) {
+    super(breaker);
+  }
+
+  public ScoredLongTermsSet(final long expectedElements, final TermsByQueryRequest.ScoreMode scoreMode,
+                            final CircuitBreaker breaker) {
+    super(breaker);
+    this.scoreMode = scoreMode;
+    this.allocate(Math.toIntExact(expectedElements));
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms.
+   * Used in {@link solutions.siren.join.index.query.FieldDataTermsQuery}.
+   */
+  public ScoredLongTermsSet(BytesRef bytes) {
+    super(null);
+    this.readFromBytes(bytes);
+  }
+
+  private void allocate(int expectedElements) {
+    this.scores = new CircuitBreakerLongFloatHashMap(expectedElements);
+    if (scoreMode == TermsByQueryRequest.ScoreMode.AVG) {
+      this.counts = new CircuitBreakerLongIntHashMap(expectedElements);
+    }
+  }
+
+  public TermsByQueryRequest.ScoreMode getScoreMode() {
+    return scoreMode;
+  }
+
+  /**
+   * Adds a term with a score of 1.
+   */
+  @Override
+  public void add(long term) {
+    this.add(term, 1f);
+  }
+
+  /**
+   * Adds a term with the score of one of its documents.
+   */
+  public void add(long term, float score) {
+    this.add(term, score, 1);
+  }
+
+  private void add(long term, float score, int count) {
+    switch (scoreMode) {
+      case MAX:
+        int index = scores.indexOf(term);
+        if (index < 0) {
+          scores.indexInsert(index, term, score);
+        }
+        else if (score > scores.indexGet(index)) {
+          scores.indexReplace(index, score);
+        }
+        break;
+
+      case SUM:
+        scores.addTo(term, score);
+        break;
+
+      case AVG:
+        scores.addTo(term, score);
+        counts.addTo(term, count);
+        break;
+    }
+  }
+
+  @Override
+  protected void addAll(TermsSet terms) {
+    if (!(terms instanceof ScoredLongTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: ScoredLongTermsSet expected.");
+    }
+    ScoredLongTermsSet other = (ScoredLongTermsSet) terms;
+    if (other.scoreMode != scoreMode) {
+      throw new UnsupportedOperationException("Invalid score mode: " + scoreMode + " expected.");
+    }
+    for (LongFloatCursor cursor : other.scores) {
+      this.add(cursor.key, cursor.value, other.counts == null ? 1 : other.counts.get(cursor.key));
+    }
+  }
+
+  @Override
+  public boolean contains(long term) {
+    return scores.containsKey(term);
+  }
+
+  /**
+   * Returns the aggregated score of the term, or {@link Float#NaN} if the set does not contain the term. This does
+   * not allocate any object, and can be called for each matching document.
+   */
+  public float getScore(long term) {
+    int index = scores.indexOf(term);
+    if (index < 0) {
+      return Float.NaN;
+    }
+    float score = scores.indexGet(index);
+    return counts == null ? score : score / counts.get(term);
+  }
+
+  @Override
+  public int size() {
+    return scores.size();
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    this.setIsPruned(in.readBoolean());
+    this.scoreMode = TermsByQueryRequest.ScoreMode.values()[in.readVInt()];
+    int size = in.readInt();
+    this.allocate(size);
+    for (int i = 0; i < size; i++) {
+      long term = in.readLong();
+      scores.put(term, in.readFloat());
+      if (counts != null) {
+        counts.put(term, in.readVInt());
+      }
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    out.writeBoolean(this.isPruned());
+    out.writeVInt(scoreMode.ordinal());
+    out.writeInt(scores.size());
+    for (LongFloatCursor cursor : scores) {
+      out.writeLong(cursor.key);
+      out.writeFloat(cursor.value);
+      if (counts != null) {
+        out.writeVInt(counts.get(cursor.key));
+      }
+    }
+  }
+
+  /**
+   * Encodes the terms with their final score, i.e., the average score for the
+   * {@link TermsByQueryRequest.ScoreMode#AVG} mode.
+   */
+  @Override
+  public BytesRef writeToBytes() {
+    long start = System.nanoTime();
+    int size = scores.size();
+
+    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + 12 * size]);
+
+    // Encode encoding type
+    Bytes.writeInt(bytes, this.getEncoding().ordinal());
+
+    // Encode flag
+    bytes.bytes[bytes.offset++] = (byte) (this.isPruned() ? 1 : 0);
+
+    // Encode score mode
+    Bytes.writeInt(bytes, scoreMode.ordinal());
+
+    // Encode size of the set
+    Bytes.writeInt(bytes, size);
+
+    // Encode the terms and their scores
+    for (LongFloatCursor cursor : scores) {
+      Bytes.writeLong(bytes, cursor.key);
+      float score = counts == null ? cursor.value : cursor.value / counts.get(cursor.key);
+      Bytes.writeInt(bytes, Float.floatToIntBits(score));
+    }
+
+    logger.debug("Serialized {} scored terms - took {} ms", this.size(), (System.nanoTime() - start) / 1000000);
+
+    bytes.length = bytes.offset;
+    bytes.offset = 0;
+    return bytes;
+  }
+
+  private void readFromBytes(BytesRef bytes) {
+    // Read pruned flag
+    this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
+
+    // Read score mode
+    this.scoreMode = TermsByQueryRequest.ScoreMode.values()[Bytes.readInt(bytes)];
+
+    // Read size of the set
+    int size = Bytes.readInt(bytes);
+
+    // Read terms and their final scores, the counts are not needed anymore
+    scores = new LongFloatHashMap(size);
+    for (int i = 0; i < size; i++) {
+      long term = Bytes.readLong(bytes);
+      scores.put(term, Float.intBitsToFloat(Bytes.readInt(bytes)));
+    }
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return TermsByQueryRequest.TermsEncoding.SCORED_LONG;
+  }
+
+  @Override
+  protected long[] toSortedArray() {
+    long[] terms = scores.keys().toArray();
+    Arrays.sort(terms);
+    return terms;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long size = scores == null || scores.keys == null ? 0 : scores.keys.length * 12l;
+    size += counts == null || counts.keys == null ? 0 : counts.keys.length * 12l;
+    return size + this.sortedTermsRamBytesUsed();
+  }
+
+  @Override
+  public void release() {
+    if (scores != null) {
+      scores.release();
+    }
+    if (counts != null) {
+      counts.release();
+    }
+  }
+
+  /**
+   * A {@link LongFloatHashMap} integrated with the {@link CircuitBreaker}. It will adjust the circuit breaker
+   * for every new call to {@link #allocateBuffers(int)}.
+   * <p>
+   * This map must not be reused after a call to {@link #release()}.
+   */
+  final class CircuitBreakerLongFloatHashMap extends LongFloatHashMap {
+
+    public CircuitBreakerLongFloatHashMap(int expectedElements) {
+      super(expectedElements);
+    }
+
+    @Override
+    protected void allocateBuffers(int arraySize) {
+      long newMemSize = (arraySize + 1) * 12l; // array size + emptyElementSlot, for the keys and the values
+      long oldMemSize = keys == null ? 0 : keys.length * 12l;
+
+      // Adjust the breaker with the new memory size
+      breaker.addEstimateBytesAndMaybeBreak(newMemSize, "<terms_set>");
+
+      try {
+        // Allocate the new buffers
+        super.allocateBuffers(arraySize);
+        // Adjust the breaker by removing old memory size
+        breaker.addWithoutBreaking(-oldMemSize);
+      }
+      catch (BufferAllocationException e) {
+        // If the allocation failed, remove
+        breaker.addWithoutBreaking(-newMemSize);
+        throw e;
+      }
+    }
+
+    @Override
+    public void release() {
+      long memSize = keys == null ? 0 : keys.length * 12l;
+
+      // Release - do not allocate new minimal buffers
+      assigned = 0;
+      hasEmptyKey = false;
+      keys = null;
+      values = null;
+
+      // Adjust breaker
+      breaker.addWithoutBreaking(-memSize);
+    }
+
+  }
+
+  /**
+   * A {@link LongIntHashMap} integrated with the {@link CircuitBreaker}, see {@link CircuitBreakerLongFloatHashMap}.
+   */
+  final class CircuitBreakerLongIntHashMap extends LongIntHashMap {
+
+    public CircuitBreakerLongIntHashMap(int expectedElements) {
+      super(expectedElements);
+    }
+
+    @Override
+    protected void allocateBuffers(int arraySize) {
+      long newMemSize = (arraySize + 1) * 12l; // array size + emptyElementSlot, for the keys and the values
+      long oldMemSize = keys == null ? 0 : keys.length * 12l;
+
+      breaker.addEstimateBytesAndMaybeBreak(newMemSize, "<terms_set>");
+
+      try {
+        super.allocateBuffers(arraySize);
+        breaker.addWithoutBreaking(-oldMemSize);
+      }
+      catch (BufferAllocationException e) {
+        breaker.addWithoutBreaking(-newMemSize);
+        throw e;
+      }
+    }
+
+    @Override
+    public void release() {
+      long memSize = keys == null ? 0 : keys.length * 12l;
+
+      assigned = 0;
+      hasEmptyKey = false;
+      keys = null;
+      values = null;
+
+      breaker.addWithoutBreaking(-memSize);
+    }
+
+  }
+
+}
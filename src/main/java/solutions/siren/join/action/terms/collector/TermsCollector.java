@@ -18,12 +18,33 @@
  */
 package solutions.siren.join.action.terms.collector;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.internal.SearchContext;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.common.Math;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Collects terms for a given field based on a {@link HitStream}.
@@ -37,6 +58,14 @@ public abstract class TermsCollector {
   protected int expectedTerms = -1;
   protected int maxTerms = Integer.MAX_VALUE;
 
+  /**
+   * The executor, the maximum number of workers and the minimum number of segments used to collect the segments of
+   * the shard in parallel
+   */
+  private Executor executor;
+  private int parallelism = 1;
+  private int parallelThreshold = -1;
+
   public TermsCollector(final IndexFieldData indexFieldData, final SearchContext context,
                         final CircuitBreaker breaker) {
     this.indexFieldData = indexFieldData;
@@ -58,9 +87,254 @@ public abstract class TermsCollector {
     this.maxTerms = maxTerms;
   }
 
+  /**
+   * Sets the executor and the maximum number of workers used to collect the segments of the shard in parallel. The
+   * segments are collected in parallel only if there are at least <code>threshold</code> segments to collect, and
+   * if the number of terms is not limited. A negative threshold disables the parallel collection.
+   */
+  public void setParallelism(Executor executor, int parallelism, int threshold) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.parallelThreshold = threshold;
+  }
+
+  /**
+   * Returns true if the segments can be collected in parallel, i.e., if the terms sets of the slices of segments can
+   * be merged without exceeding the maximum number of terms or the memory of a single terms set.
+   */
+  protected boolean isParallel() {
+    return this.maxTerms == Integer.MAX_VALUE;
+  }
+
   /**
    * Collects the terms into a {@link TermsSet}.
    */
   public abstract TermsSet collect(HitStream hitStream) throws IOException;
 
+  /**
+   * Collects the terms of the documents matching the query into a {@link TermsSet} in a single pass. Used for the
+   * {@link TermsByQueryRequest.Ordering#DEFAULT} ordering instead of {@link #collect(HitStream)}, which first
+   * materialises the hits of each segment into a bitset.
+   */
+  public abstract TermsSet collect(Query query) throws IOException;
+
+  /**
+   * Returns true if the terms can be collected with {@link #collect(Query)}, i.e., if the {@link TermsSet} does not
+   * need to be sized with the number of hits.
+   */
+  public boolean isSinglePass() {
+    return true;
+  }
+
+  /**
+   * Splits the segments into the slices to collect in parallel. The segments are assigned from the largest to the
+   * smallest to the slice with the fewest documents. Returns a single slice if the segments must be collected by the
+   * calling thread.
+   */
+  protected List<List<LeafReaderContext>> getSlices(List<LeafReaderContext> leaves) {
+    int numSlices = java.lang.Math.min(parallelism, leaves.size());
+    if (executor == null || parallelThreshold < 0 || numSlices < 2 || leaves.size() < parallelThreshold ||
+        !this.isParallel()) {
+      return Collections.singletonList(leaves);
+    }
+
+    List<LeafReaderContext> segments = new ArrayList<>(leaves);
+    Collections.sort(segments, new Comparator<LeafReaderContext>() {
+
+      @Override
+      public int compare(LeafReaderContext o1, LeafReaderContext o2) {
+        return Integer.compare(o2.reader().maxDoc(), o1.reader().maxDoc());
+      }
+
+    });
+
+    List<List<LeafReaderContext>> slices = new ArrayList<>(numSlices);
+    long[] numDocs = new long[numSlices];
+    for (int i = 0; i < numSlices; i++) {
+      slices.add(new ArrayList<LeafReaderContext>());
+    }
+    for (LeafReaderContext segment : segments) {
+      int smallest = 0;
+      for (int i = 1; i < numSlices; i++) {
+        smallest = numDocs[i] < numDocs[smallest] ? i : smallest;
+      }
+      slices.get(smallest).add(segment);
+      numDocs[smallest] += segment.reader().maxDoc();
+    }
+    return slices;
+  }
+
+  /**
+   * Searches the slices of segments, the hits of each slice being collected by the collector at the same position.
+   * The slices are searched in parallel on the executor, the first one being searched by the calling thread. The
+   * slices rejected by the executor are searched by the calling thread as well.
+   */
+  protected void search(Query query, List<List<LeafReaderContext>> slices, List<? extends Collector> collectors)
+  throws IOException {
+    final Weight weight = context.searcher().createNormalizedWeight(query, collectors.get(0).needsScores());
+    if (slices.size() == 1) {
+      search(weight, slices.get(0), collectors.get(0));
+      return;
+    }
+
+    List<FutureTask<Void>> tasks = new ArrayList<>(slices.size());
+    for (int i = 0; i < slices.size(); i++) {
+      final List<LeafReaderContext> slice = slices.get(i);
+      final Collector collector = collectors.get(i);
+      tasks.add(new FutureTask<>(new Callable<Void>() {
+
+        @Override
+        public Void call() throws Exception {
+          search(weight, slice, collector);
+          return null;
+        }
+
+      }));
+    }
+
+    List<FutureTask<Void>> rejected = new ArrayList<>();
+    for (int i = 1; i < tasks.size(); i++) {
+      try {
+        executor.execute(tasks.get(i));
+      }
+      catch (RejectedExecutionException e) {
+        rejected.add(tasks.get(i));
+      }
+    }
+    tasks.get(0).run();
+    for (FutureTask<Void> task : rejected) {
+      task.run();
+    }
+
+    // Waits for all the slices, even on failure, to not release a terms set that is still being filled
+    Throwable failure = null;
+    for (FutureTask<Void> task : tasks) {
+      try {
+        Uninterruptibles.getUninterruptibly(task);
+      }
+      catch (ExecutionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure != null) {
+      throw new ElasticsearchException("Failed to collect the terms of the segments", failure);
+    }
+  }
+
+  /**
+   * Searches the segments with the weight, and collects their hits with the collector.
+   */
+  private static void search(Weight weight, List<LeafReaderContext> leaves, Collector collector) throws IOException {
+    for (LeafReaderContext leaf : leaves) {
+      final LeafCollector leafCollector;
+      try {
+        leafCollector = collector.getLeafCollector(leaf);
+      }
+      catch (CollectionTerminatedException e) {
+        continue; // the collector does not need the hits of this segment
+      }
+      BulkScorer scorer = weight.bulkScorer(leaf);
+      if (scorer != null) {
+        try {
+          scorer.score(leafCollector, leaf.reader().getLiveDocs());
+        }
+        catch (CollectionTerminatedException e) {
+          // the collector does not need the remaining hits of this segment
+        }
+      }
+    }
+  }
+
+  /**
+   * Merges the terms sets of the slices into the largest one, and releases the others. The released sets are removed
+   * from the list, so that the caller can release the remaining ones on failure.
+   */
+  protected static <T extends TermsSet> T merge(List<T> sets) {
+    T target = sets.get(0);
+    for (T terms : sets) {
+      target = terms.size() > target.size() ? terms : target;
+    }
+    Iterator<T> it = sets.iterator();
+    while (it.hasNext()) {
+      T terms = it.next();
+      if (terms != target) {
+        target.merge(terms);
+        it.remove();
+        terms.release(); // release the terms set and adjust the circuit breaker
+      }
+    }
+    return target;
+  }
+
+  /**
+   * A {@link Collector} that reads the terms of a document as soon as it is collected. Once the maximum number of
+   * terms is reached, only the terms already in the set are added. The collection is terminated on the first new term
+   * which is dropped, and the terms set is then flagged as pruned.
+   */
+  protected abstract class SinglePassCollector implements Collector {
+
+    private final TermsSet set;
+
+    protected SinglePassCollector(TermsSet set) {
+      this.set = set;
+    }
+
+    /**
+     * The scorer of the current segment, only used if {@link #needsScores()} returns true
+     */
+    protected Scorer scorer;
+
+    /**
+     * Sets the term stream to the given document.
+     */
+    protected abstract void setDocument(int atomicReaderId, int atomicDocId) throws IOException;
+
+    /**
+     * Returns true if the current document has at least one remaining term.
+     */
+    protected abstract boolean hasNextTerm();
+
+    /**
+     * Adds the next term of the current document to the terms set. If the terms set is full, the term is only added
+     * if it is already in the set. Returns false if the term was dropped.
+     */
+    protected abstract boolean addNextTerm(boolean isFull);
+
+    @Override
+    public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+      if (set.isPruned()) { // skip the remaining segments
+        throw new CollectionTerminatedException();
+      }
+
+      return new LeafCollector() {
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+          SinglePassCollector.this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+          setDocument(context.ord, doc);
+          while (hasNextTerm()) {
+            if (!addNextTerm(set.size() >= maxTerms)) {
+              set.setIsPruned(true);
+              throw new CollectionTerminatedException();
+            }
+          }
+        }
+
+      };
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+
+  }
+
 }
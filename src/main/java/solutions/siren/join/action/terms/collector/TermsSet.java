@@ -81,6 +81,11 @@ public abstract class TermsSet implements Streamable {
    */
   public abstract int size();
 
+  /**
+   * Returns an estimate of the memory usage of the set of terms in bytes.
+   */
+  public abstract long ramBytesUsed();
+
   /**
    * Deserialize the set of terms from the {@link StreamInput}.
    *
@@ -112,6 +117,17 @@ public abstract class TermsSet implements Streamable {
    */
   public abstract void release();
 
+  /**
+   * Used by {@link solutions.siren.join.action.terms.TransportTermsByQueryAction}. Returns a
+   * {@link ScoredLongTermsSet} if the request has a score mode.
+   */
+  public static TermsSet newTermsSet(long expectedElements, TermsByQueryRequest request, CircuitBreaker breaker) {
+    if (request.scoreMode() != null) {
+      return new ScoredLongTermsSet(expectedElements, request.scoreMode(), breaker);
+    }
+    return newTermsSet(expectedElements, request.termsEncoding(), breaker);
+  }
+
   /**
    * Used by {@link solutions.siren.join.action.terms.TransportTermsByQueryAction}
    */
@@ -125,6 +141,10 @@ public abstract class TermsSet implements Streamable {
         return new BloomFilterTermsSet(expectedElements, breaker);
       case BYTES:
         return new BytesRefTermsSet(breaker);
+      case PACKED:
+        return new PackedLongTermsSet(expectedElements, breaker);
+      case BITMAP:
+        return new BitmapTermsSet(expectedElements, breaker);
       default:
         throw new IllegalArgumentException("[termsByQuery] Invalid terms encoding: " + termsEncoding.name());
     }
@@ -144,6 +164,12 @@ public abstract class TermsSet implements Streamable {
         return new BloomFilterTermsSet(in);
       case BYTES:
         return new BytesRefTermsSet(in);
+      case PACKED:
+        return new PackedLongTermsSet(in);
+      case BITMAP:
+        return new BitmapTermsSet(in);
+      case SCORED_LONG:
+        return new ScoredLongTermsSet(in);
       default:
         throw new IllegalArgumentException("[termsByQuery] Invalid terms encoding: " + termsEncoding.name());
     }
@@ -33,13 +33,23 @@ public class TopHitStream extends HitStream {
 
   private final int numHit;
   private ScoreDoc[] topHits;
+  private float[] scores;
 
   private int count = 0;
   private int currentAtomicReaderId = 0;
   private int currentAtomicDocId = -1;
+  private float currentScore;
 
   public TopHitStream(final int numHit, final Query query, final IndexSearcher searcher) throws IOException {
-    super(query, new TopHitCollector(new HitQueue(numHit)), searcher);
+    this(numHit, Float.NEGATIVE_INFINITY, query, searcher);
+  }
+
+  /**
+   * Creates a stream over the <code>numHit</code> documents with the highest scores, ignoring the documents
+   * scoring less than <code>minScore</code>.
+   */
+  public TopHitStream(final int numHit, final float minScore, final Query query, final IndexSearcher searcher) throws IOException {
+    super(query, new TopHitCollector(new HitQueue(numHit), minScore), searcher);
     this.numHit = numHit;
   }
 
@@ -47,6 +57,11 @@ public class TopHitStream extends HitStream {
   public void initialize() throws IOException {
     super.initialize();
     this.topHits = ((TopHitCollector) this.getCollector()).topDocs().scoreDocs;
+    // Keep the scores in descending order before reordering the hits
+    this.scores = new float[this.topHits.length];
+    for (int i = 0; i < this.topHits.length; i++) {
+      this.scores[i] = this.topHits[i].score;
+    }
     // Sort the hits by atomicReaderId in order to optimise lookup to field data cache. If the atomicReaderIds
     // are random, the atomic reader will likely change for each hit which is not very optimal when loading
     // values for the field data cache.
@@ -66,6 +81,13 @@ public class TopHitStream extends HitStream {
     return ((TopHitCollector) this.getCollector()).getTotalHits();
   }
 
+  /**
+   * Returns the scores of the hits in descending order.
+   */
+  public float[] getScores() {
+    return this.scores;
+  }
+
   @Override
   public int getHits() {
     return this.topHits.length;
@@ -84,9 +106,15 @@ public class TopHitStream extends HitStream {
     ScoreHit scoreHit = (ScoreHit) this.topHits[this.count];
     this.currentAtomicReaderId = scoreHit.atomicReaderId;
     this.currentAtomicDocId = scoreHit.doc;
+    this.currentScore = scoreHit.score;
     this.count++;
   }
 
+  @Override
+  public float getScore() {
+    return currentScore;
+  }
+
   @Override
   public int getAtomicDocId() {
     return currentAtomicDocId;
@@ -109,8 +137,12 @@ public class TopHitStream extends HitStream {
     /** The priority queue */
     private ScoreHit pqTop;
 
-    public TopHitCollector(HitQueue hq) {
+    /** The minimum score of a hit */
+    private final float minScore;
+
+    public TopHitCollector(HitQueue hq, float minScore) {
       super(hq);
+      this.minScore = minScore;
       // HitQueue implements getSentinelObject to return a ScoreHit, so we know
       // that at this point top() is already initialized.
       pqTop = pq.top();
@@ -142,6 +174,10 @@ public class TopHitStream extends HitStream {
           assert score != Float.NEGATIVE_INFINITY;
           assert !Float.isNaN(score);
 
+          if (score < minScore) {
+            // Not counted, so that the hits below the minimum score are never returned by topDocs
+            return;
+          }
           totalHits++;
           if (score <= pqTop.score) {
             // Since docs are returned in-order (i.e., increasing doc Id), a document
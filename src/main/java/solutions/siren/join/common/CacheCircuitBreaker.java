@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.common;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+
+/**
+ * Helper class to retrieve the circuit breaker of the node level caches of the plugin. The memory of a cache entry
+ * outlives the request which created it, and is therefore not accounted in the request circuit breaker, which is
+ * expected to be released once a request completes. The breaker is registered on first use. Its limit is configured
+ * with <code>siren.breaker.cache.limit</code> (default to 20% of the heap), and it is also bounded by the parent
+ * circuit breaker.
+ */
+public class CacheCircuitBreaker {
+
+  public static final String NAME = "siren_cache";
+
+  public static final String SIREN_BREAKER_CACHE_LIMIT = "siren.breaker.cache.limit";
+
+  private static final String DEFAULT_LIMIT = "20%";
+
+  private CacheCircuitBreaker() {}
+
+  /**
+   * Returns the circuit breaker of the caches, and registers it if it does not exist yet. A breaker must be
+   * registered only once, as registering it again replaces the instance held by the other caches.
+   */
+  public static CircuitBreaker getBreaker(Settings settings, CircuitBreakerService breakerService) {
+    synchronized (breakerService) {
+      CircuitBreaker breaker = breakerService.getBreaker(NAME);
+      if (breaker == null) {
+        long limit = settings.getAsMemory(SIREN_BREAKER_CACHE_LIMIT, DEFAULT_LIMIT).bytes();
+        breakerService.registerBreaker(new BreakerSettings(NAME, limit, 1.0));
+        breaker = breakerService.getBreaker(NAME);
+      }
+      return breaker;
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.common;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+/**
+ * Helper class to free the memory of a direct {@link ByteBuffer} without waiting for the garbage collector, which may
+ * never run a full collection for the direct memory if explicit garbage collections are disabled.
+ * <br>
+ * The buffer is freed with its cleaner, which is reached by reflection as there is no public API: through
+ * <code>sun.misc.Unsafe#invokeCleaner</code> on Java 9 and later, or through <code>DirectBuffer#cleaner()</code>
+ * on Java 8. If neither is available, the buffer is left to the garbage collector.
+ */
+public class DirectBuffers {
+
+  private static final ESLogger logger = Loggers.getLogger(DirectBuffers.class);
+
+  private static final Cleaner CLEANER = AccessController.doPrivileged(new PrivilegedAction<Cleaner>() {
+
+    @Override
+    public Cleaner run() {
+      return newCleaner();
+    }
+
+  });
+
+  private DirectBuffers() {}
+
+  /**
+   * Returns true if the direct buffers can be freed with {@link #free(ByteBuffer)}.
+   */
+  public static boolean isFreeSupported() {
+    return CLEANER != null;
+  }
+
+  /**
+   * Frees the memory of the direct buffer. The buffer must not be accessed afterwards, including through its
+   * duplicates.
+   */
+  public static void free(final ByteBuffer buffer) {
+    if (CLEANER == null || !buffer.isDirect()) {
+      return;
+    }
+    AccessController.doPrivileged(new PrivilegedAction<Void>() {
+
+      @Override
+      public Void run() {
+        try {
+          CLEANER.clean(buffer);
+        }
+        catch (Exception e) {
+          logger.warn("Failed to free direct buffer", e);
+        }
+        return null;
+      }
+
+    });
+  }
+
+  private static Cleaner newCleaner() {
+    try { // Java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      final Object unsafe = theUnsafe.get(null);
+      return new Cleaner() {
+
+        @Override
+        public void clean(ByteBuffer buffer) throws Exception {
+          invokeCleaner.invoke(unsafe, buffer);
+        }
+
+      };
+    }
+    catch (Exception e) {
+      // not available, try with the cleaner of the buffer
+    }
+
+    try { // Java 8
+      Class<?> directBufferClass = Class.forName("sun.nio.ch.DirectBuffer");
+      final Method cleaner = directBufferClass.getMethod("cleaner");
+      final Method clean = cleaner.getReturnType().getMethod("clean");
+      return new Cleaner() {
+
+        @Override
+        public void clean(ByteBuffer buffer) throws Exception {
+          Object bufferCleaner = cleaner.invoke(buffer);
+          if (bufferCleaner != null) {
+            clean.invoke(bufferCleaner);
+          }
+        }
+
+      };
+    }
+    catch (Exception e) {
+      logger.warn("Direct buffers cannot be freed explicitly, they are left to the garbage collector", e);
+      return null;
+    }
+  }
+
+  private interface Cleaner {
+
+    void clean(ByteBuffer buffer) throws Exception;
+
+  }
+
+}
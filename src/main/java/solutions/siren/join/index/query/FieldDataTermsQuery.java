@@ -26,15 +26,23 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.IndexNumericFieldData;
 import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import solutions.siren.join.action.terms.collector.BloomFilterTermsSet;
 import solutions.siren.join.action.terms.collector.LongBloomFilter;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.action.terms.collector.NumericTermsSet;
+import solutions.siren.join.action.terms.collector.ScoredLongTermsSet;
 import solutions.siren.join.action.terms.collector.TermsSet;
 
 /**
@@ -42,8 +50,12 @@ import solutions.siren.join.action.terms.collector.TermsSet;
  * {@link IndexFieldData} to collect documents ids.
  * It behaves like a {@link ConstantScoreQuery} over a {@link BooleanQuery} containing only
  * {@link org.apache.lucene.search.BooleanClause.Occur#SHOULD} clauses.
+ * <br>
+ * If the terms carry a score, i.e., if they are encoded in a {@link ScoredLongTermsSet}, and if the scores are
+ * needed, a document is scored with the scores of its matching terms aggregated according to the
+ * {@link TermsByQueryRequest.ScoreMode} of the set.
  */
-public abstract class FieldDataTermsQuery extends Query implements Accountable {
+public abstract class FieldDataTermsQuery extends Query implements Accountable, Releasable {
 
   private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(FieldDataTermsQuery.class);
 
@@ -57,6 +69,16 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
    */
   private NumericTermsSet termsSet;
 
+  /**
+   * The node level cache of decoded terms, or null if the terms are decoded by this query
+   */
+  private TermsSetCache termsSetCache;
+
+  /**
+   * The reference to the cached set of terms, released by {@link #close()}
+   */
+  private TermsSetCache.Reference termsSetReference;
+
   /**
    * The field data for the field
    */
@@ -137,17 +159,211 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
   protected synchronized NumericTermsSet getTermsSet() {
     if (encodedTerms != null) { // late decoding of the encoded terms
       long start = System.nanoTime();
-      termsSet = (NumericTermsSet) TermsSet.readFrom(new BytesRef(encodedTerms));
+      if (termsSetCache != null) {
+        termsSetReference = termsSetCache.acquire(cacheKey, encodedTerms);
+        termsSet = (NumericTermsSet) termsSetReference.get();
+      }
+      else {
+        termsSet = (NumericTermsSet) TermsSet.readFrom(new BytesRef(encodedTerms));
+      }
       logger.debug("{}: Deserialized {} terms - took {} ms", new Object[] { Thread.currentThread().getName(), termsSet.size(), (System.nanoTime() - start) / 1000000 });
       encodedTerms = null; // release reference to the byte array to be able to reclaim memory
     }
     return termsSet;
   }
 
+  /**
+   * Returns the terms sorted in ascending order. The memory of the sorted terms of a shared set is accounted by the
+   * node level cache.
+   */
+  protected synchronized long[] getSortedTerms() {
+    NumericTermsSet termsSet = this.getTermsSet();
+    return termsSetReference != null ? termsSetReference.getSortedTerms() : termsSet.getSortedTerms();
+  }
+
+  /**
+   * Shares the decoded set of terms with the queries of the other shards through the node level cache. The caller
+   * must {@link #close()} the query once the search is done, to release the reference to the cached set.
+   */
+  public synchronized void setTermsSetCache(TermsSetCache termsSetCache) {
+    this.termsSetCache = termsSetCache;
+  }
+
+  /**
+   * Decodes the terms before cloning the query, so that the clone shares the reference to the cached set of terms
+   * of this query, which is released by {@link #close()}, instead of acquiring its own reference that would never
+   * be released. A scored query is not wrapped into a constant score query, and can therefore be cloned.
+   */
+  @Override
+  @SuppressWarnings("deprecation") // Query#clone is deprecated, but the clones must still share the decoded terms
+  public synchronized Query clone() {
+    this.getTermsSet();
+    return super.clone();
+  }
+
+  /**
+   * Releases the reference to the cached set of terms, if any.
+   */
+  @Override
+  public synchronized void close() {
+    if (termsSetReference != null) {
+      termsSetReference.close();
+      termsSetReference = null;
+      termsSet = null;
+    }
+  }
+
   public abstract DocIdSet getDocIdSet(LeafReaderContext context) throws IOException;
 
+  /**
+   * Returns the set of documents matching the scored terms, which probes the field data values of every document
+   * and aggregates the scores of its matching terms.
+   */
+  protected abstract ScoredDocIdSet getScoredDocIdSet(LeafReaderContext context, ScoredLongTermsSet termsSet)
+  throws IOException;
+
+  /**
+   * A {@link DocValuesDocIdSet} which computes the score of a document while matching it. The score of the last
+   * matched document is returned by {@link #score()}. The aggregation of the scores does not allocate any object.
+   */
+  protected static abstract class ScoredDocIdSet extends DocValuesDocIdSet {
+
+    private final ScoredLongTermsSet termsSet;
+    private final TermsByQueryRequest.ScoreMode scoreMode;
+    private float score;
+    private int count;
+
+    protected ScoredDocIdSet(int maxDoc, Bits acceptDocs, ScoredLongTermsSet termsSet) {
+      super(maxDoc, acceptDocs);
+      this.termsSet = termsSet;
+      this.scoreMode = termsSet.getScoreMode();
+    }
+
+    /**
+     * Resets the score before matching the terms of a document.
+     */
+    protected final void startDocument() {
+      this.score = 0;
+      this.count = 0;
+    }
+
+    /**
+     * Aggregates the score of the term into the score of the current document, if the term is in the set.
+     */
+    protected final void matchTerm(long term) {
+      float termScore = termsSet.getScore(term);
+      if (Float.isNaN(termScore)) {
+        return;
+      }
+      if (scoreMode == TermsByQueryRequest.ScoreMode.MAX) {
+        score = count == 0 ? termScore : Math.max(score, termScore);
+      }
+      else {
+        score += termScore;
+      }
+      count++;
+    }
+
+    /**
+     * Returns true if at least one term of the current document is in the set, and finalizes its score.
+     */
+    protected final boolean endDocument() {
+      if (count == 0) {
+        return false;
+      }
+      if (scoreMode == TermsByQueryRequest.ScoreMode.AVG) {
+        score /= count;
+      }
+      return true;
+    }
+
+    /**
+     * Returns the score of the last matched document.
+     */
+    public final float score() {
+      return score;
+    }
+
+  }
+
+  /**
+   * The execution strategy of the query on a segment.
+   */
+  protected enum Execution {
+
+    /**
+     * Probes the set of terms with the field data values of every document
+     */
+    DOC_VALUES,
+
+    /**
+     * Scans the terms dictionary of the segment, and probes the set of terms once per unique value
+     */
+    TERMS_SCAN,
+
+    /**
+     * Intersects the sorted set of terms with the terms dictionary of the segment by seeking
+     */
+    TERMS_SEEK
+
+  }
+
+  /**
+   * The cost of decoding a term of the dictionary and probing the set of terms, relative to a probe
+   */
+  private static final int SCAN_COST = 2;
+
+  /**
+   * The cost of a seek in the terms dictionary, relative to a probe
+   */
+  private static final int SEEK_COST = 8;
+
+  /**
+   * Selects the cheapest execution on a segment based on its statistics. Probing the documents costs one probe per
+   * document having a value, scanning the dictionary costs one probe per unique term of the segment, and seeking the
+   * dictionary costs one seek per term of the set. The cost of reading the postings of the matching terms is not
+   * considered, as it is bounded by the number of matching documents.
+   *
+   * @param terms     The terms of the field in the segment, or null if the field is not indexed
+   * @param numTerms  The number of terms in the set of terms
+   * @param canSeek   Whether the set of terms can be enumerated in sorted order
+   */
+  protected static Execution selectExecution(Terms terms, int numTerms, boolean canSeek) throws IOException {
+    if (terms == null || terms.getDocCount() < 0) { // field not indexed or statistics not available
+      return Execution.DOC_VALUES;
+    }
+    long docCost = terms.getDocCount();
+    long scanCost = terms.size() < 0 ? Long.MAX_VALUE : terms.size() * SCAN_COST;
+    long seekCost = canSeek ? (long) numTerms * SEEK_COST : Long.MAX_VALUE;
+
+    if (docCost <= Math.min(scanCost, seekCost)) {
+      return Execution.DOC_VALUES;
+    }
+    return seekCost < scanCost ? Execution.TERMS_SEEK : Execution.TERMS_SCAN;
+  }
+
+  /**
+   * Returns the index of the first element of the sorted array, starting from the given index, which is greater than
+   * or equal to the key. It gallops over the array before a binary search, as the key is expected to be close.
+   */
+  static int gallop(long[] sorted, int from, long key) {
+    int bound = 1;
+    int hi = from;
+    while (hi < sorted.length && sorted[hi] < key) {
+      from = hi + 1;
+      hi = from + bound;
+      bound <<= 1;
+    }
+    hi = Math.min(hi, sorted.length);
+    int i = Arrays.binarySearch(sorted, from, hi, key);
+    return i < 0 ? -i - 1 : i;
+  }
+
   @Override
   public Weight createWeight(final IndexSearcher searcher, final boolean needsScores) throws IOException {
+    if (needsScores && this.getTermsSet() instanceof ScoredLongTermsSet) {
+      return this.createScoredWeight((ScoredLongTermsSet) this.getTermsSet());
+    }
     return new ConstantScoreWeight(new CacheKeyFieldDataTermsQuery(cacheKey)) {
 
       @Override
@@ -185,6 +401,83 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
     };
   }
 
+  /**
+   * Creates a weight which scores the documents with the scores of their matching terms, multiplied by the boost of
+   * the query. The weight is not cached by the query cache, as the query cache only applies to the non-scoring
+   * weights.
+   */
+  private Weight createScoredWeight(final ScoredLongTermsSet termsSet) {
+    return new ConstantScoreWeight(this) {
+
+      @Override
+      public void extractTerms(Set<Term> terms) {
+        // no-op, see the non-scoring weight
+      }
+
+      private Scorer scorer(final ScoredDocIdSet set) throws IOException {
+        if (set == null) {
+          return null;
+        }
+        final DocIdSetIterator disi = set.iterator();
+        if (disi == null) {
+          return null;
+        }
+        final float boost = score();
+        return new Scorer(this) {
+
+          @Override
+          public int docID() {
+            return disi.docID();
+          }
+
+          @Override
+          public float score() throws IOException {
+            return boost * set.score();
+          }
+
+          @Override
+          public int freq() throws IOException {
+            return 1;
+          }
+
+          @Override
+          public DocIdSetIterator iterator() {
+            return disi;
+          }
+
+        };
+      }
+
+      @Override
+      public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+        final Scorer scorer = this.scorer(context);
+        if (scorer == null) {
+          return null;
+        }
+        return new DefaultBulkScorer(scorer);
+      }
+
+      @Override
+      public Scorer scorer(LeafReaderContext context) throws IOException {
+        return scorer(FieldDataTermsQuery.this.getScoredDocIdSet(context, termsSet));
+      }
+
+      @Override
+      public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+        ScoredDocIdSet set = FieldDataTermsQuery.this.getScoredDocIdSet(context, termsSet);
+        DocIdSetIterator disi = set == null ? null : set.iterator();
+        if (disi != null && disi.advance(doc) == doc) {
+          return Explanation.match(score() * set.score(), "scored terms, product of:",
+                  Explanation.match(set.score(), termsSet.getScoreMode().name().toLowerCase(Locale.ROOT) +
+                          " of the scores of the matching terms"),
+                  Explanation.match(score(), "boost"));
+        }
+        return Explanation.noMatch("no matching term");
+      }
+
+    };
+  }
+
   /**
    * Filters on non-floating point numeric fields.
    */
@@ -226,6 +519,22 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
 
       IndexNumericFieldData numericFieldData = (IndexNumericFieldData) fieldData;
       if (!numericFieldData.getNumericType().isFloatingPoint()) {
+        final boolean isLong = numericFieldData.getNumericType() == IndexNumericFieldData.NumericType.LONG;
+        final Terms terms = context.reader().terms(fieldData.getFieldNames().indexName());
+        final boolean canSeek = termsSet.getClass() != BloomFilterTermsSet.class;
+
+        switch (selectExecution(terms, termsSet.size(), canSeek)) {
+          case TERMS_SCAN:
+            return this.scanTerms(context, terms, termsSet, isLong);
+
+          case TERMS_SEEK:
+            long[] sortedTerms = this.getSortedTerms();
+            if (sortedTerms != null) {
+              return this.seekTerms(context, terms, sortedTerms, isLong);
+            }
+            return this.scanTerms(context, terms, termsSet, isLong);
+        }
+
         final SortedNumericDocValues values = numericFieldData.load(context).getLongValues(); // load fielddata
         return new DocValuesDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs()) {
           @Override
@@ -248,6 +557,102 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
       return null;
     }
 
+    @Override
+    protected ScoredDocIdSet getScoredDocIdSet(LeafReaderContext context, ScoredLongTermsSet termsSet) throws IOException {
+      // make sure there are terms to filter on
+      if (termsSet.isEmpty()) return null;
+
+      IndexNumericFieldData numericFieldData = (IndexNumericFieldData) fieldData;
+      if (numericFieldData.getNumericType().isFloatingPoint()) {
+        return null;
+      }
+
+      final SortedNumericDocValues values = numericFieldData.load(context).getLongValues(); // load fielddata
+      return new ScoredDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs(), termsSet) {
+        @Override
+        protected boolean matchDoc(int doc) {
+          values.setDocument(doc);
+          this.startDocument();
+          final int numVals = values.count();
+          for (int i = 0; i < numVals; i++) {
+            this.matchTerm(values.valueAt(i));
+          }
+          return this.endDocument();
+        }
+      };
+    }
+
+    /**
+     * Scans the full precision terms of the numeric field, and probes the set of terms with each of them.
+     */
+    private DocIdSet scanTerms(LeafReaderContext context, Terms terms, NumericTermsSet termsSet, boolean isLong)
+    throws IOException {
+      TermsEnum termsEnum = terms.iterator();
+      DocIdSetBuilder builder = new DocIdSetBuilder(context.reader().maxDoc());
+      PostingsEnum docs = null;
+      BytesRef term;
+      // the full precision terms are sorted before the lower precision terms
+      while ((term = termsEnum.next()) != null && getShift(term, isLong) == 0) {
+        if (termsSet.contains(decode(term, isLong))) {
+          docs = termsEnum.postings(docs, PostingsEnum.NONE);
+          builder.add(docs);
+        }
+      }
+      return builder.build();
+    }
+
+    /**
+     * Intersects the sorted terms with the full precision terms of the numeric field. Each term of the set is seeked
+     * in the dictionary. When the dictionary jumps ahead of the set, the set gallops to the term of the dictionary.
+     */
+    private DocIdSet seekTerms(LeafReaderContext context, Terms terms, long[] sortedTerms, boolean isLong)
+    throws IOException {
+      TermsEnum termsEnum = terms.iterator();
+      DocIdSetBuilder builder = new DocIdSetBuilder(context.reader().maxDoc());
+      BytesRefBuilder seekTerm = new BytesRefBuilder();
+      PostingsEnum docs = null;
+
+      int i = isLong ? 0 : gallop(sortedTerms, 0, Integer.MIN_VALUE); // skip the terms out of the integer range
+      while (i < sortedTerms.length) {
+        if (!isLong && sortedTerms[i] > Integer.MAX_VALUE) {
+          break;
+        }
+        encode(sortedTerms[i], seekTerm, isLong);
+        TermsEnum.SeekStatus status = termsEnum.seekCeil(seekTerm.get());
+        if (status == TermsEnum.SeekStatus.END || getShift(termsEnum.term(), isLong) != 0) {
+          break; // no more full precision terms
+        }
+        if (status == TermsEnum.SeekStatus.NOT_FOUND) {
+          long term = decode(termsEnum.term(), isLong);
+          i = gallop(sortedTerms, i + 1, term);
+          if (i == sortedTerms.length || sortedTerms[i] != term) {
+            continue;
+          }
+        }
+        docs = termsEnum.postings(docs, PostingsEnum.NONE);
+        builder.add(docs);
+        i++;
+      }
+      return builder.build();
+    }
+
+    private static int getShift(BytesRef term, boolean isLong) {
+      return isLong ? NumericUtils.getPrefixCodedLongShift(term) : NumericUtils.getPrefixCodedIntShift(term);
+    }
+
+    private static long decode(BytesRef term, boolean isLong) {
+      return isLong ? NumericUtils.prefixCodedToLong(term) : NumericUtils.prefixCodedToInt(term);
+    }
+
+    private static void encode(long term, BytesRefBuilder builder, boolean isLong) {
+      if (isLong) {
+        NumericUtils.longToPrefixCoded(term, 0, builder);
+      }
+      else {
+        NumericUtils.intToPrefixCoded((int) term, 0, builder);
+      }
+    }
+
   }
 
   /**
@@ -291,6 +696,12 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
       // make sure there are terms to filter on
       if (termsSet == null || termsSet.isEmpty()) return null;
 
+      final Terms terms = context.reader().terms(fieldData.getFieldNames().indexName());
+      // the set contains hashes of the terms, the dictionary can only be scanned
+      if (selectExecution(terms, termsSet.size(), false) == Execution.TERMS_SCAN) {
+        return this.scanTerms(context, terms, termsSet);
+      }
+
       final SortedBinaryDocValues values = fieldData.load(context).getBytesValues(); // load fielddata
       return new DocValuesDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs()) {
         @Override
@@ -310,6 +721,45 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
       };
     }
 
+    @Override
+    protected ScoredDocIdSet getScoredDocIdSet(LeafReaderContext context, ScoredLongTermsSet termsSet) throws IOException {
+      // make sure there are terms to filter on
+      if (termsSet.isEmpty()) return null;
+
+      final SortedBinaryDocValues values = fieldData.load(context).getBytesValues(); // load fielddata
+      return new ScoredDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs(), termsSet) {
+        @Override
+        protected boolean matchDoc(int doc) {
+          values.setDocument(doc);
+          this.startDocument();
+          final int numVals = values.count();
+          for (int i = 0; i < numVals; i++) {
+            final BytesRef term = values.valueAt(i);
+            this.matchTerm(LongBloomFilter.hash3_x64_128(term.bytes, term.offset, term.length, 0));
+          }
+          return this.endDocument();
+        }
+      };
+    }
+
+    /**
+     * Scans the terms of the field, and probes the set of terms with the hash of each of them.
+     */
+    private DocIdSet scanTerms(LeafReaderContext context, Terms terms, NumericTermsSet termsSet) throws IOException {
+      TermsEnum termsEnum = terms.iterator();
+      DocIdSetBuilder builder = new DocIdSetBuilder(context.reader().maxDoc());
+      PostingsEnum docs = null;
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        long termHash = LongBloomFilter.hash3_x64_128(term.bytes, term.offset, term.length, 0);
+        if (termsSet.contains(termHash)) {
+          docs = termsEnum.postings(docs, PostingsEnum.NONE);
+          builder.add(docs);
+        }
+      }
+      return builder.build();
+    }
+
   }
 
   /**
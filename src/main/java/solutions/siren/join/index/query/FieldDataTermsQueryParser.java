@@ -21,6 +21,7 @@ package solutions.siren.join.index.query;
 import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
 import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.xcontent.XContentParser;
@@ -32,6 +33,8 @@ import org.elasticsearch.index.mapper.core.StringFieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.search.internal.SearchContext;
+import solutions.siren.join.action.publish.PublishedTermsService;
 
 import java.io.IOException;
 
@@ -44,7 +47,15 @@ public class FieldDataTermsQueryParser implements QueryParser {
 
   private static final ESLogger logger = Loggers.getLogger(FieldDataTermsQueryParser.class);
 
-  public FieldDataTermsQueryParser() {}
+  private final TermsSetCache termsSetCache;
+
+  private final PublishedTermsService publishedTerms;
+
+  @Inject
+  public FieldDataTermsQueryParser(TermsSetCache termsSetCache, PublishedTermsService publishedTerms) {
+    this.termsSetCache = termsSetCache;
+    this.publishedTerms = publishedTerms;
+  }
 
   @Override
   public String[] names() {
@@ -63,6 +74,7 @@ public class FieldDataTermsQueryParser implements QueryParser {
 
     String queryName = null;
     byte[] value = null;
+    String termsId = null;
     Long cacheKey = null;
 
     token = parser.nextToken();
@@ -78,6 +90,8 @@ public class FieldDataTermsQueryParser implements QueryParser {
             queryName = parser.text();
           } else if ("_cache_key".equals(currentFieldName) || "_cacheKey".equals(currentFieldName)) {
             cacheKey = parser.longValue();
+          } else if ("_terms_id".equals(currentFieldName) || "_termsId".equals(currentFieldName)) {
+            termsId = parser.text();
           } else {
             throw new QueryParsingException(parseContext, "[fielddata_terms] filter does not support [" + currentFieldName + "]");
           }
@@ -90,6 +104,12 @@ public class FieldDataTermsQueryParser implements QueryParser {
       parser.nextToken();
     }
 
+    if (value == null && termsId != null) { // the terms were published on the node
+      value = publishedTerms.get(termsId);
+      if (value == null) {
+        throw new QueryParsingException(parseContext, "[fielddata_terms] published terms [" + termsId + "] not found");
+      }
+    }
     if (value == null) {
       throw new QueryParsingException(parseContext, "[fielddata_terms] a binary value is required");
     }
@@ -107,7 +127,8 @@ public class FieldDataTermsQueryParser implements QueryParser {
     }
 
     IndexFieldData fieldData = parseContext.getForField(fieldType);
-    Query query = this.toFieldDataTermsQuery(fieldType, fieldData, value, cacheKey);
+    FieldDataTermsQuery query = this.toFieldDataTermsQuery(fieldType, fieldData, value, cacheKey);
+    this.shareTermsSet(query);
 
     if (queryName != null) {
       parseContext.addNamedQuery(queryName, query);
@@ -116,9 +137,9 @@ public class FieldDataTermsQueryParser implements QueryParser {
     return query;
   }
 
-  private final Query toFieldDataTermsQuery(MappedFieldType fieldType, IndexFieldData fieldData,
-                                            byte[] encodedTerms, long cacheKey) {
-    Query query = null;
+  private final FieldDataTermsQuery toFieldDataTermsQuery(MappedFieldType fieldType, IndexFieldData fieldData,
+                                                          byte[] encodedTerms, long cacheKey) {
+    FieldDataTermsQuery query = null;
 
     if (fieldType instanceof NumberFieldMapper.NumberFieldType) {
       query = FieldDataTermsQuery.newLongs(encodedTerms, (IndexNumericFieldData) fieldData, cacheKey);
@@ -131,4 +152,16 @@ public class FieldDataTermsQueryParser implements QueryParser {
     return query;
   }
 
+  /**
+   * Decodes the terms through the node level cache when the query is parsed within a search context, which releases
+   * the reference to the cached terms when the search is done. Otherwise, the query decodes its own terms.
+   */
+  private void shareTermsSet(FieldDataTermsQuery query) {
+    SearchContext context = SearchContext.current();
+    if (context != null) {
+      query.setTermsSetCache(termsSetCache);
+      context.addReleasable(query, SearchContext.Lifetime.CONTEXT);
+    }
+  }
+
 }
@@ -38,8 +38,14 @@ public class FilterJoinBuilder extends QueryBuilder implements BoostableQueryBui
   private QueryBuilder query;
   private TermsByQueryRequest.Ordering orderBy;
   private Integer maxTermsPerShard;
+  private Integer maxTerms;
+  private TermsByQueryRequest.ScoreMode scoreMode;
   private String filterName;
   private TermsByQueryRequest.TermsEncoding termsEncoding;
+  private Boolean streamTerms;
+  private Boolean nodeReduce;
+  private Boolean publishTerms;
+  private Boolean reorder;
   private float boost = -1;
 
   public static final String NAME = "filterjoin";
@@ -105,6 +111,25 @@ public class FilterJoinBuilder extends QueryBuilder implements BoostableQueryBui
     return this;
   }
 
+  /**
+   * Sets the maximum number of terms to lookup across all the shards, from the documents with the highest scores.
+   * Requires the ordering {@link TermsByQueryRequest.Ordering#DOC_SCORE}.
+   */
+  public FilterJoinBuilder maxTerms(int maxTerms) {
+    this.maxTerms = maxTerms;
+    return this;
+  }
+
+  /**
+   * Sets the mode of aggregation of the scores of the lookup documents sharing a same term. The documents matching
+   * the filter join are then scored with the aggregated scores of their matching terms, instead of a constant score.
+   * Requires the terms encoding {@link TermsByQueryRequest.TermsEncoding#LONG}.
+   */
+  public FilterJoinBuilder scoreMode(TermsByQueryRequest.ScoreMode scoreMode) {
+    this.scoreMode = scoreMode;
+    return this;
+  }
+
   /**
    * Sets the encoding to use for transferring terms across shards.
    */
@@ -113,6 +138,42 @@ public class FilterJoinBuilder extends QueryBuilder implements BoostableQueryBui
     return this;
   }
 
+  /**
+   * Sets whether the terms of each shard are merged as soon as they are received by the coordinating node.
+   */
+  public FilterJoinBuilder streamTerms(boolean streamTerms) {
+    this.streamTerms = streamTerms;
+    return this;
+  }
+
+  /**
+   * Sets whether the terms of the shards located on a same node are merged on that node before being sent to the
+   * coordinating node.
+   */
+  public FilterJoinBuilder nodeReduce(boolean nodeReduce) {
+    this.nodeReduce = nodeReduce;
+    return this;
+  }
+
+  /**
+   * Sets whether the terms are published once to each data node, instead of being inlined in the source of the
+   * search request.
+   */
+  public FilterJoinBuilder publishTerms(boolean publishTerms) {
+    this.publishTerms = publishTerms;
+    return this;
+  }
+
+  /**
+   * Sets whether the coordinating node may reorder this filter join with its sibling filter joins on the same field
+   * of a bool <code>must</code> or <code>filter</code> clause, and restrict its lookup with the terms of a more
+   * selective sibling. This requires the field to be single-valued.
+   */
+  public FilterJoinBuilder reorder(boolean reorder) {
+    this.reorder = reorder;
+    return this;
+  }
+
   /**
    * Sets the filter name for the filter that can be used when searching for matched_filters per hit.
    */
@@ -143,9 +204,27 @@ public class FilterJoinBuilder extends QueryBuilder implements BoostableQueryBui
     if (maxTermsPerShard != null) {
       builder.field("maxTermsPerShard", maxTermsPerShard);
     }
+    if (maxTerms != null) {
+      builder.field("maxTerms", maxTerms);
+    }
+    if (scoreMode != null) {
+      builder.field("scoreMode", scoreMode);
+    }
     if (termsEncoding != null) {
       builder.field("termsEncoding", termsEncoding);
     }
+    if (streamTerms != null) {
+      builder.field("streamTerms", streamTerms);
+    }
+    if (nodeReduce != null) {
+      builder.field("nodeReduce", nodeReduce);
+    }
+    if (publishTerms != null) {
+      builder.field("publishTerms", publishTerms);
+    }
+    if (reorder != null) {
+      builder.field("reorder", reorder);
+    }
     builder.endObject();
 
     if (filterName != null) {
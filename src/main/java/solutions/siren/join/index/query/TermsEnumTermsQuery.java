@@ -21,6 +21,7 @@ package solutions.siren.join.index.query;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.util.*;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import solutions.siren.join.action.terms.collector.*;
@@ -36,7 +37,7 @@ import java.util.Set;
  * It behaves like a {@link ConstantScoreQuery} over a {@link BooleanQuery} containing only
  * {@link org.apache.lucene.search.BooleanClause.Occur#SHOULD} clauses.
  */
-public class TermsEnumTermsQuery extends Query implements Accountable {
+public class TermsEnumTermsQuery extends Query implements Accountable, Releasable {
 
   private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(TermsEnumTermsQuery.class);
 
@@ -50,6 +51,16 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
    */
   private BytesRefTermsSet termsSet;
 
+  /**
+   * The node level cache of decoded terms, or null if the terms are decoded by this query
+   */
+  private TermsSetCache termsSetCache;
+
+  /**
+   * The reference to the cached set of terms, released by {@link #close()}
+   */
+  private TermsSetCache.Reference termsSetReference;
+
   /**
    * The field to enumerate
    */
@@ -60,6 +71,11 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
    */
   protected final long cacheKey;
 
+  /**
+   * The cost of a seek in the terms dictionary, relative to a move to the next term
+   */
+  private static final int SEEK_COST = 8;
+
   private static final ESLogger logger = Loggers.getLogger(TermsEnumTermsQuery.class);
 
   /**
@@ -126,13 +142,39 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
   protected synchronized BytesRefTermsSet getTermsSet() {
     if (encodedTerms != null) { // late decoding of the encoded terms
       long start = System.nanoTime();
-      termsSet = (BytesRefTermsSet) TermsSet.readFrom(new BytesRef(encodedTerms));
+      if (termsSetCache != null) {
+        termsSetReference = termsSetCache.acquire(cacheKey, encodedTerms);
+        termsSet = (BytesRefTermsSet) termsSetReference.get();
+      }
+      else {
+        termsSet = (BytesRefTermsSet) TermsSet.readFrom(new BytesRef(encodedTerms));
+      }
       logger.debug("{}: Deserialized {} terms - took {} ms", new Object[] { Thread.currentThread().getName(), termsSet.size(), (System.nanoTime() - start) / 1000000 });
       encodedTerms = null; // release reference to the byte array to be able to reclaim memory
     }
     return termsSet;
   }
 
+  /**
+   * Shares the decoded set of terms with the queries of the other shards through the node level cache. The caller
+   * must {@link #close()} the query once the search is done, to release the reference to the cached set.
+   */
+  public synchronized void setTermsSetCache(TermsSetCache termsSetCache) {
+    this.termsSetCache = termsSetCache;
+  }
+
+  /**
+   * Releases the reference to the cached set of terms, if any.
+   */
+  @Override
+  public synchronized void close() {
+    if (termsSetReference != null) {
+      termsSetReference.close();
+      termsSetReference = null;
+      termsSet = null;
+    }
+  }
+
   public DocIdSet getDocIdSet(LeafReaderContext context) throws IOException {
     final Terms terms = context.reader().terms(field);
     // make sure the field exists
@@ -142,7 +184,9 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
     // make sure there are terms to filter on
     if (termsSet == null || termsSet.isEmpty()) return null;
 
-    SeekingTermSetTermsEnum termsEnum = new SeekingTermSetTermsEnum(terms.iterator(), termsSet);
+    // seek the terms of the set only if the set is sparse compared to the dictionary
+    boolean seek = terms.size() < 0 || (long) termsSet.size() * SEEK_COST < terms.size();
+    SeekingTermSetTermsEnum termsEnum = new SeekingTermSetTermsEnum(terms.iterator(), termsSet, seek);
 
     DocIdSetBuilder builder = new DocIdSetBuilder(context.reader().maxDoc());
     PostingsEnum docs = null;
@@ -243,25 +287,36 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
 
   }
 
+  /**
+   * Intersects the sorted set of terms with the terms dictionary, the sparser side driving the intersection.
+   * If the set is sparse compared to the dictionary, the terms of the set are seeked in the dictionary. Otherwise,
+   * the dictionary is scanned. In both cases, the set gallops to the current term of the dictionary.
+   */
   static class SeekingTermSetTermsEnum extends FilteredTermsEnum {
 
     private final BytesRefHash terms;
     private final int[] ords;
     private final int lastElement;
+    private final boolean seek;
 
     private final BytesRef lastTerm;
     private final BytesRef spare = new BytesRef();
+    private final BytesRef probe = new BytesRef();
 
     private BytesRef seekTerm;
     private int upto = 0;
 
-    SeekingTermSetTermsEnum(TermsEnum tenum, BytesRefTermsSet termsSet) {
+    /**
+     * @param seek  Whether to seek the terms of the set, or to scan the dictionary
+     */
+    SeekingTermSetTermsEnum(TermsEnum tenum, BytesRefTermsSet termsSet, boolean seek) {
       super(tenum);
       this.terms = termsSet.getBytesRefHash();
-      this.ords = this.terms.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
+      this.ords = termsSet.getSortedOrds();
+      this.seek = seek;
       lastElement = terms.size() - 1;
       lastTerm = terms.get(ords[lastElement], new BytesRef());
-      seekTerm = terms.get(ords[upto], spare);
+      seekTerm = terms.get(ords[upto], spare); // in both cases, seek to the first term of the set
     }
 
     @Override
@@ -277,38 +332,49 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
         return AcceptStatus.END;
       }
 
-      BytesRef currentTerm = terms.get(ords[upto], spare);
-      if (term.compareTo(currentTerm) == 0) {
+      // the term is lower or equal to the last term, so there is always a term of the set greater or equal to it
+      upto = this.gallop(upto, term);
+      if (terms.get(ords[upto], probe).compareTo(term) == 0) {
         if (upto == lastElement) {
           return AcceptStatus.YES;
-        } else {
-          seekTerm = terms.get(ords[++upto], spare);
+        }
+        upto++;
+        if (seek) {
+          seekTerm = terms.get(ords[upto], spare);
           return AcceptStatus.YES_AND_SEEK;
         }
-      } else {
-        if (upto == lastElement) {
-          return AcceptStatus.NO;
-        } else { // Our current term doesn't match the the given term.
-          int cmp;
-          do { // We maybe are behind the given term by more than one step. Keep incrementing till we're the same or higher.
-            if (upto == lastElement) {
-              return AcceptStatus.NO;
-            }
-            // typically the terms dict is a superset of query's terms so it's unusual that we have to skip many of
-            // our terms so we don't do a binary search here
-            seekTerm = terms.get(ords[++upto], spare);
-          } while ((cmp = seekTerm.compareTo(term)) < 0);
-          if (cmp == 0) {
-            if (upto == lastElement) {
-              return AcceptStatus.YES;
-            }
-            seekTerm = terms.get(ords[++upto], spare);
-            return AcceptStatus.YES_AND_SEEK;
-          } else {
-            return AcceptStatus.NO_AND_SEEK;
-          }
+        return AcceptStatus.YES;
+      }
+      if (seek) { // the set is ahead of the dictionary
+        seekTerm = terms.get(ords[upto], spare);
+        return AcceptStatus.NO_AND_SEEK;
+      }
+      return AcceptStatus.NO;
+    }
+
+    /**
+     * Returns the position of the first term of the set, starting from the given position, which is greater than or
+     * equal to the given term. It gallops over the set before a binary search, as the term is expected to be close.
+     */
+    private int gallop(int from, BytesRef term) {
+      int bound = 1;
+      int hi = from;
+      while (hi <= lastElement && terms.get(ords[hi], probe).compareTo(term) < 0) {
+        from = hi + 1;
+        hi = from + bound;
+        bound <<= 1;
+      }
+      hi = Math.min(hi, lastElement + 1);
+      while (from < hi) {
+        int mid = (from + hi) >>> 1;
+        if (terms.get(ords[mid], probe).compareTo(term) < 0) {
+          from = mid + 1;
+        }
+        else {
+          hi = mid;
         }
       }
+      return from;
     }
 
   }
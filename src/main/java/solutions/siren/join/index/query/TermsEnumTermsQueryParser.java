@@ -20,6 +20,7 @@ package solutions.siren.join.index.query;
 
 import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.xcontent.XContentParser;
@@ -27,6 +28,8 @@ import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.search.internal.SearchContext;
+import solutions.siren.join.action.publish.PublishedTermsService;
 
 import java.io.IOException;
 
@@ -39,7 +42,15 @@ public class TermsEnumTermsQueryParser implements QueryParser {
 
   private static final ESLogger logger = Loggers.getLogger(TermsEnumTermsQueryParser.class);
 
-  public TermsEnumTermsQueryParser() {}
+  private final TermsSetCache termsSetCache;
+
+  private final PublishedTermsService publishedTerms;
+
+  @Inject
+  public TermsEnumTermsQueryParser(TermsSetCache termsSetCache, PublishedTermsService publishedTerms) {
+    this.termsSetCache = termsSetCache;
+    this.publishedTerms = publishedTerms;
+  }
 
   @Override
   public String[] names() {
@@ -58,6 +69,7 @@ public class TermsEnumTermsQueryParser implements QueryParser {
 
     String queryName = null;
     byte[] value = null;
+    String termsId = null;
     Long cacheKey = null;
 
     token = parser.nextToken();
@@ -73,6 +85,8 @@ public class TermsEnumTermsQueryParser implements QueryParser {
               queryName = parser.text();
           } else if ("_cache_key".equals(currentFieldName) || "_cacheKey".equals(currentFieldName)) {
               cacheKey = parser.longValue();
+          } else if ("_terms_id".equals(currentFieldName) || "_termsId".equals(currentFieldName)) {
+              termsId = parser.text();
           } else {
             throw new QueryParsingException(parseContext, "[termsenum_terms] filter does not support [" + currentFieldName + "]");
           }
@@ -85,6 +99,12 @@ public class TermsEnumTermsQueryParser implements QueryParser {
       parser.nextToken();
     }
 
+    if (value == null && termsId != null) { // the terms were published on the node
+      value = publishedTerms.get(termsId);
+      if (value == null) {
+        throw new QueryParsingException(parseContext, "[termsenum_terms] published terms [" + termsId + "] not found");
+      }
+    }
     if (value == null) {
       throw new QueryParsingException(parseContext, "[termsenum_terms] a binary value is required");
     }
@@ -101,7 +121,8 @@ public class TermsEnumTermsQueryParser implements QueryParser {
       return new MatchNoDocsQuery();
     }
 
-    Query query = new TermsEnumTermsQuery(value, fieldName, cacheKey);
+    TermsEnumTermsQuery query = new TermsEnumTermsQuery(value, fieldName, cacheKey);
+    this.shareTermsSet(query);
 
     if (queryName != null) {
       parseContext.addNamedQuery(queryName, query);
@@ -110,4 +131,16 @@ public class TermsEnumTermsQueryParser implements QueryParser {
     return query;
   }
 
+  /**
+   * Decodes the terms through the node level cache when the query is parsed within a search context, which releases
+   * the reference to the cached terms when the search is done. Otherwise, the query decodes its own terms.
+   */
+  private void shareTermsSet(TermsEnumTermsQuery query) {
+    SearchContext context = SearchContext.current();
+    if (context != null) {
+      query.setTermsSetCache(termsSetCache);
+      context.addReleasable(query, SearchContext.Lifetime.CONTEXT);
+    }
+  }
+
 }
@@ -0,0 +1,370 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.index.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRefCounted;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import solutions.siren.join.action.terms.collector.NumericTermsSet;
+import solutions.siren.join.action.terms.collector.TermsSet;
+import solutions.siren.join.common.CacheCircuitBreaker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A node level cache of the decoded {@link TermsSet} used by the {@link FieldDataTermsQuery} and the
+ * {@link TermsEnumTermsQuery}. The queries of a filter join are sent to every shard of the target indices with the
+ * same encoded terms. With this cache, the terms are decoded once per node instead of once per shard.
+ * <br>
+ * The cache is keyed by the cache key of the query and a hash of the encoded terms, since a cache key
+ * provided by a user is not guaranteed to identify a unique set of terms. The memory of the cached sets is accounted
+ * in the {@link CacheCircuitBreaker}. The sets are reference counted: a set evicted from the cache is only released
+ * once the last query using it has released its {@link Reference}.
+ * <br>
+ * A set larger than a segment of the cache would be evicted as soon as it is loaded. Such a set is not cached, and
+ * is accounted in the request circuit breaker until its reference is released.
+ */
+public class TermsSetCache extends AbstractComponent {
+
+  private final Cache<Key, CacheEntry> cache;
+
+  private final CircuitBreaker cacheBreaker;
+
+  private final CircuitBreaker requestBreaker;
+
+  private final boolean isEnabled;
+
+  /**
+   * The maximum weight of a cached set, i.e., the minimum capacity of a segment of the cache
+   */
+  private final long maxEntryWeight;
+
+  private static final int CONCURRENCY_LEVEL = 4;
+
+  /**
+   * The maximum size (in bytes) of the cache. Default to 256MB.
+   */
+  private static final long DEFAULT_CACHE_SIZE = 268435456;
+
+  public final static String SIREN_TERMSSET_CACHE_ENABLED = "siren.termsset.cache.enabled";
+  public final static String SIREN_TERMSSET_CACHE_SIZE = "siren.termsset.cache.size";
+
+  @Inject
+  public TermsSetCache(Settings settings, CircuitBreakerService breakerService) {
+    super(settings);
+    this.cacheBreaker = CacheCircuitBreaker.getBreaker(settings, breakerService);
+    this.requestBreaker = breakerService.getBreaker(CircuitBreaker.REQUEST);
+    this.isEnabled = settings.getAsBoolean(SIREN_TERMSSET_CACHE_ENABLED, true);
+    long size = settings.getAsBytesSize(SIREN_TERMSSET_CACHE_SIZE, new ByteSizeValue(DEFAULT_CACHE_SIZE)).bytes();
+    this.maxEntryWeight = size / CONCURRENCY_LEVEL;
+
+    this.cache = CacheBuilder.newBuilder()
+            .recordStats()
+            .concurrencyLevel(CONCURRENCY_LEVEL)
+            .maximumWeight(isEnabled ? size : 0)
+            .weigher(new CacheEntryWeigher())
+            .removalListener(new CacheEntryRemovalListener())
+            .build();
+  }
+
+  /**
+   * Returns a reference to the decoded set of terms. The set is decoded only if it is not already cached. The
+   * reference must be released once the set of terms is not used anymore.
+   */
+  public Reference acquire(final long cacheKey, final byte[] encodedTerms) {
+    // a decoded set is at least as large as its encoding
+    if (!isEnabled || encodedTerms.length > maxEntryWeight) {
+      return new Reference(this.load(null, encodedTerms));
+    }
+
+    Key key = new Key(cacheKey, encodedTerms);
+    while (true) {
+      Loader loader = new Loader(key, encodedTerms);
+      CacheEntry entry;
+      try {
+        entry = this.get(key, loader);
+      }
+      catch (CircuitBreakingException e) {
+        // the cache breaker is full, the set is not cached
+        return new Reference(this.load(null, encodedTerms));
+      }
+      if (entry.tryIncRef()) {
+        return new Reference(entry);
+      }
+      // the entry loaded by this call was evicted at once as it is larger than a segment of the cache
+      if (entry == loader.entry) {
+        return new Reference(this.load(null, encodedTerms));
+      }
+      // the entry was evicted and released concurrently, in which case we load it again
+    }
+  }
+
+  private CacheEntry get(final Key key, final Loader loader) {
+    try {
+      return cache.get(key, loader);
+    }
+    catch (ExecutionException | UncheckedExecutionException e) {
+      Throwable cause = ExceptionsHelper.unwrapCause(e.getCause());
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new ElasticsearchException("Failed to decode terms", cause);
+    }
+  }
+
+  /**
+   * Decodes the set of terms and adjusts the circuit breaker: the cache breaker if the set is cached, the request
+   * breaker otherwise.
+   */
+  private CacheEntry load(Key key, byte[] encodedTerms) {
+    long start = System.nanoTime();
+    TermsSet termsSet = TermsSet.readFrom(new BytesRef(encodedTerms));
+    long ramBytesUsed = termsSet.ramBytesUsed();
+    CircuitBreaker breaker = key != null ? cacheBreaker : requestBreaker;
+    try {
+      breaker.addEstimateBytesAndMaybeBreak(ramBytesUsed, "<terms_set>");
+    }
+    catch (RuntimeException e) {
+      termsSet.release();
+      throw e;
+    }
+    logger.debug("{}: Decoded {} terms - took {} ms", Thread.currentThread().getName(), termsSet.size(), (System.nanoTime() - start) / 1000000);
+    return new CacheEntry(key, termsSet, ramBytesUsed, breaker);
+  }
+
+  /**
+   * Invalidate all cache entries. The sets still in use are released with their last reference.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Returns a current snapshot of this cache's cumulative statistics.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns the approximate number of entries in this cache.
+   */
+  public long getSize() {
+    return cache.size();
+  }
+
+  /**
+   * Loads a cache entry, and keeps the loaded entry to detect if it has been evicted at once.
+   */
+  private final class Loader implements Callable<CacheEntry> {
+
+    private final Key key;
+    private final byte[] encodedTerms;
+    private CacheEntry entry;
+
+    private Loader(Key key, byte[] encodedTerms) {
+      this.key = key;
+      this.encodedTerms = encodedTerms;
+    }
+
+    @Override
+    public CacheEntry call() throws Exception {
+      entry = load(key, encodedTerms);
+      return entry;
+    }
+
+  }
+
+  /**
+   * A reference to a decoded set of terms. Releasing a reference more than once has no effect.
+   */
+  public static class Reference implements Releasable {
+
+    private final CacheEntry entry;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private Reference(CacheEntry entry) {
+      this.entry = entry;
+    }
+
+    public TermsSet get() {
+      return entry.termsSet;
+    }
+
+    /**
+     * Returns the sorted terms of the numeric set, see {@link NumericTermsSet#getSortedTerms()}. Their memory is
+     * accounted in the circuit breaker and in the weight of the cache entry.
+     */
+    public long[] getSortedTerms() {
+      return entry.getSortedTerms();
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        entry.decRef();
+      }
+    }
+
+  }
+
+  /**
+   * A cache entry holds a decoded set of terms. Its initial reference is owned by the cache, and is released
+   * on eviction.
+   */
+  final class CacheEntry extends AbstractRefCounted {
+
+    /**
+     * The key of the entry, or null if the entry is not cached
+     */
+    private final Key key;
+    private final TermsSet termsSet;
+    private volatile long ramBytesUsed;
+    private final CircuitBreaker breaker;
+    private boolean hasSortedTerms = false;
+
+    private CacheEntry(Key key, TermsSet termsSet, long ramBytesUsed, CircuitBreaker breaker) {
+      super("terms_set");
+      this.key = key;
+      this.termsSet = termsSet;
+      this.ramBytesUsed = ramBytesUsed;
+      this.breaker = breaker;
+    }
+
+    /**
+     * Computes the sorted terms once, adjusts the circuit breaker, and updates the weight of the entry in the cache.
+     */
+    private long[] getSortedTerms() {
+      NumericTermsSet numericTermsSet = (NumericTermsSet) termsSet;
+      synchronized (this) {
+        if (!hasSortedTerms) {
+          long estimate = numericTermsSet.size() * 8l;
+          breaker.addEstimateBytesAndMaybeBreak(estimate, "<terms_set>");
+          try {
+            numericTermsSet.getSortedTerms();
+          }
+          finally {
+            // replace the estimate by the actual memory usage of the sorted terms, e.g., none for a bloom filter
+            long delta = numericTermsSet.ramBytesUsed() - ramBytesUsed;
+            breaker.addWithoutBreaking(delta - estimate);
+            ramBytesUsed += delta;
+            hasSortedTerms = true;
+          }
+          this.reweigh();
+        }
+      }
+      return numericTermsSet.getSortedTerms();
+    }
+
+    /**
+     * Replaces the entry by itself, so that the cache computes its new weight. The reference released by the removal
+     * listener on replacement is acquired beforehand.
+     */
+    private void reweigh() {
+      if (key != null && this.tryIncRef()) {
+        if (!cache.asMap().replace(key, this, this)) {
+          this.decRef();
+        }
+      }
+    }
+
+    @Override
+    protected void closeInternal() {
+      termsSet.release();
+      breaker.addWithoutBreaking(-ramBytesUsed);
+    }
+
+  }
+
+  private final class CacheEntryRemovalListener implements RemovalListener<Key, CacheEntry> {
+
+    @Override
+    public void onRemoval(RemovalNotification<Key, CacheEntry> notification) {
+      CacheEntry entry = notification.getValue();
+      if (entry != null) {
+        entry.decRef();
+      }
+    }
+
+  }
+
+  static class CacheEntryWeigher implements Weigher<Key, CacheEntry> {
+
+    @Override
+    public int weigh(Key key, CacheEntry value) {
+      return (int) Math.min(value.ramBytesUsed, Integer.MAX_VALUE);
+    }
+
+  }
+
+  /**
+   * The key of a cache entry: the cache key of the query, and the length and hash of the encoded terms.
+   */
+  static class Key {
+
+    private final long cacheKey;
+    private final int length;
+    private final long h1;
+    private final long h2;
+
+    Key(long cacheKey, byte[] encodedTerms) {
+      MurmurHash3.Hash128 hash = MurmurHash3.hash128(encodedTerms, 0, encodedTerms.length, 0, new MurmurHash3.Hash128());
+      this.cacheKey = cacheKey;
+      this.length = encodedTerms.length;
+      this.h1 = hash.h1;
+      this.h2 = hash.h2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return cacheKey == other.cacheKey && length == other.length && h1 == other.h1 && h2 == other.h2;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = (int) (cacheKey ^ (cacheKey >>> 32));
+      result = 31 * result + (int) (h1 ^ (h1 >>> 32));
+      return result;
+    }
+
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.admin.cache;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESIntegTestCase;
+import org.junit.Test;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.hamcrest.Matchers.*;
+
+@ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=2, numClientNodes=0, transportClientRatio=0)
+public class FilterJoinCacheDistributedTest extends FilterJoinCacheTestCase {
+
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    return settingsBuilder()
+            .put(FilterJoinCacheService.SIREN_FILTERJOIN_CACHE_DISTRIBUTED, true)
+            .put(FilterJoinCacheService.SIREN_FILTERJOIN_CACHE_REPLICATE_AFTER, 2)
+            .put(super.nodeSettings(nodeOrdinal)).build();
+  }
+
+  @Test
+  public void testEntriesAreSharedAcrossNodes() throws Exception {
+    this.loadData();
+    String[] nodes = internalCluster().getNodeNames();
+
+    // computed once, and stored on its owner node
+    assertThat(this.runQuery(internalCluster().client(nodes[0])), is(equalTo(false)));
+    final String owner = this.getOwner();
+    String other = owner.equals(nodes[0]) ? nodes[1] : nodes[0];
+
+    // the entry is retrieved from the owner node
+    assertThat(this.runQuery(internalCluster().client(other)), is(equalTo(true)));
+    assertThat(this.getCacheSize(), equalTo(1L));
+
+    // the second remote hit replicates the entry on the local node
+    assertThat(this.runQuery(internalCluster().client(other)), is(equalTo(true)));
+    assertThat(this.getCacheSize(), equalTo(2L));
+    assertThat(this.runQuery(internalCluster().client(other)), is(equalTo(true)));
+
+    // the entries are invalidated on all the nodes
+    new ClearFilterJoinCacheRequestBuilder(client(), ClearFilterJoinCacheAction.INSTANCE).get();
+    assertThat(this.getCacheSize(), equalTo(0L));
+    assertThat(this.runQuery(internalCluster().client(other)), is(equalTo(false)));
+  }
+
+  /**
+   * Returns the name of the node holding the cache entry
+   */
+  private String getOwner() {
+    StatsFilterJoinCacheResponse rsp = new StatsFilterJoinCacheRequestBuilder(client(), StatsFilterJoinCacheAction.INSTANCE).get();
+    String owner = null;
+    for (StatsFilterJoinCacheNodeResponse nodeResponse : rsp.getNodeResponses()) {
+      if (nodeResponse.getCacheStats().getSize() == 1) {
+        assertThat(owner, nullValue());
+        owner = nodeResponse.getNode().getName();
+      }
+    }
+    assertThat(owner, notNullValue());
+    return owner;
+  }
+
+  /**
+   * Returns the number of cache entries across all the nodes
+   */
+  private long getCacheSize() {
+    StatsFilterJoinCacheResponse rsp = new StatsFilterJoinCacheRequestBuilder(client(), StatsFilterJoinCacheAction.INSTANCE).get();
+    long size = 0;
+    for (StatsFilterJoinCacheNodeResponse nodeResponse : rsp.getNodeResponses()) {
+      size += nodeResponse.getCacheStats().getSize();
+    }
+    return size;
+  }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.admin.cache;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESIntegTestCase;
+import org.junit.Test;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.hamcrest.Matchers.*;
+
+@ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1, numClientNodes=0, transportClientRatio=0)
+public class FilterJoinCacheOffHeapTest extends FilterJoinCacheTestCase {
+
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    return settingsBuilder()
+            .put(FilterJoinCache.SIREN_FILTERJOIN_CACHE_SIZE, "1b") // every entry is evicted from the heap
+            .put(FilterJoinCache.SIREN_FILTERJOIN_CACHE_OFF_HEAP_SIZE, "1mb")
+            .put(super.nodeSettings(nodeOrdinal)).build();
+  }
+
+  @Test
+  public void testOffHeapTier() throws Exception {
+    this.loadData();
+    for (int i = 0; i < 3; i++) {
+      this.runQueries();
+    }
+
+    StatsFilterJoinCacheResponse rsp = new StatsFilterJoinCacheRequestBuilder(client(), StatsFilterJoinCacheAction.INSTANCE).get();
+    assertThat(rsp.getNodeResponses().length, equalTo(1));
+    FilterJoinCache.FilterJoinCacheStats stats = rsp.getNodeResponses()[0].getCacheStats();
+    assertThat(stats.getSize(), equalTo(0L));
+    assertThat(stats.getOffHeapSize(), equalTo(2L));
+    assertThat(stats.getOffHeapSizeInBytes(), greaterThan(0L));
+    assertThat(stats.getOffHeapCacheStats().hitCount(), equalTo(4L));
+
+    new ClearFilterJoinCacheRequestBuilder(client(), ClearFilterJoinCacheAction.INSTANCE).get();
+    rsp = new StatsFilterJoinCacheRequestBuilder(client(), StatsFilterJoinCacheAction.INSTANCE).get();
+    stats = rsp.getNodeResponses()[0].getCacheStats();
+    assertThat(stats.getOffHeapSize(), equalTo(0L));
+    assertThat(stats.getOffHeapSizeInBytes(), equalTo(0L));
+  }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.admin.cache;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.test.InternalTestCluster;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.hamcrest.Matchers.*;
+
+@ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.TEST, numDataNodes=1, numClientNodes=0, transportClientRatio=0)
+public class FilterJoinCachePersistenceTest extends FilterJoinCacheTestCase {
+
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    return settingsBuilder()
+            .put(FilterJoinCacheService.SIREN_FILTERJOIN_CACHE_PERSISTENT, true)
+            .put(super.nodeSettings(nodeOrdinal)).build();
+  }
+
+  @Test
+  public void testCacheSurvivesRestart() throws Exception {
+    this.loadData();
+
+    assertThat(this.runQuery(client()), is(equalTo(false)));
+    assertThat(this.runQuery(client()), is(equalTo(true)));
+
+    internalCluster().fullRestart();
+    ensureGreen();
+
+    // the indices did not change, the reloaded entry is reused
+    assertThat(this.runQuery(client()), is(equalTo(true)));
+
+    // the indices changed, the reloaded entry is stale
+    indexRandom(true, false, client().prepareIndex("index2", "type", "5").setSource("id", "5", "tag", "ddd"));
+    assertThat(this.runQuery(client()), is(equalTo(false)));
+  }
+
+  @Test
+  public void testCorruptedFileIsIgnored() throws Exception {
+    this.loadData();
+
+    assertThat(this.runQuery(client()), is(equalTo(false)));
+    String node = internalCluster().getNodeNames()[0];
+    final Path cacheFile = internalCluster().getInstance(NodeEnvironment.class, node).nodeDataPaths()[0]
+            .resolve("siren").resolve("filterjoin_cache.dat");
+
+    internalCluster().fullRestart(new InternalTestCluster.RestartCallback() {
+
+      @Override
+      public Settings onNodeStopped(String nodeName) throws Exception {
+        // truncate the file, and make the number of entries as large as possible
+        byte[] bytes = Files.readAllBytes(cacheFile);
+        byte[] corrupted = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, corrupted, 0, 4); // the version header
+        for (int i = 4; i < corrupted.length; i++) {
+          corrupted[i] = (byte) 0xFF;
+        }
+        Files.write(cacheFile, corrupted);
+        return super.onNodeStopped(nodeName);
+      }
+
+    });
+    ensureGreen();
+
+    // the file is ignored, and the node starts with an empty cache
+    assertThat(this.runQuery(client()), is(equalTo(false)));
+    assertThat(this.runQuery(client()), is(equalTo(true)));
+  }
+
+  @Override
+  protected void loadData() throws ExecutionException, InterruptedException {
+    super.loadData();
+    // commit the segments, so that the same segments are opened after a restart
+    flushAndRefresh();
+  }
+
+}
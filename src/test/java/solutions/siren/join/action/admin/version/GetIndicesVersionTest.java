@@ -56,6 +56,9 @@ public class GetIndicesVersionTest extends SirenJoinTestCase {
 
     client().prepareDelete("index1", "type", "1").execute().get();
 
+    // the version only changes once the delete is visible to the searches
+    refresh();
+
     rsp = new GetIndicesVersionRequestBuilder(client(), GetIndicesVersionAction.INSTANCE).get();
     assertThat(rsp.getVersion(), is(not(equalTo(version))));
 
@@ -34,6 +34,7 @@ import org.hamcrest.Matcher;
 import org.junit.After;
 import org.junit.Before;
 import solutions.siren.join.SirenJoinTestCase;
+import solutions.siren.join.action.terms.SegmentTermsCache;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.index.query.QueryBuilders;
 import org.elasticsearch.common.settings.Settings;
@@ -51,6 +52,15 @@ import static org.hamcrest.Matchers.*;
 @ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.TEST, numDataNodes=1, randomDynamicTemplates=false)
 public class CircuitBreakerTest extends SirenJoinTestCase {
 
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    // the segment terms cache collects each segment into its own terms set, which trips the breaker on the shard
+    // instead of the coordinator when the index has several segments
+    return settingsBuilder()
+            .put(super.nodeSettings(nodeOrdinal))
+            .put(SegmentTermsCache.SIREN_TERMSBYQUERY_SEGMENT_CACHE_ENABLED, false).build();
+  }
+
   @Before
   public void setup() throws ExecutionException, InterruptedException {
     Settings.Builder builder = Settings.builder().put("index.number_of_shards", 1);
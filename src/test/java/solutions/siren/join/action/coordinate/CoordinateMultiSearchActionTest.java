@@ -23,6 +23,7 @@ import solutions.siren.join.SirenJoinTestCase;
 import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.junit.Test;
+import solutions.siren.join.action.coordinate.execution.CoordinateSearchMetadata;
 import solutions.siren.join.index.query.QueryBuilders;
 
 import static org.elasticsearch.index.query.QueryBuilders.*;
@@ -95,4 +96,49 @@ public class CoordinateMultiSearchActionTest extends SirenJoinTestCase {
     assertSearchHits(rsp.getResponses()[1].getResponse(), "1");
   }
 
+  @Test
+  public void testIdenticalJoinsAreComputedOnce() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+      client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+      client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"1", "4"}),
+
+      client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "bbb"),
+      client().prepareIndex("index2", "type", "4").setSource("id", "4", "tag", "ccc"));
+
+    CoordinateMultiSearchRequestBuilder builder = new CoordinateMultiSearchRequestBuilder(client());
+    int numRequests = 5;
+    for (int i = 0; i < numRequests; i++) {
+      builder.add(
+        client().prepareSearch("index1").setQuery(
+          boolQuery().filter(
+            QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+              boolQuery().filter(termQuery("tag", "aaa"))
+            )
+          )
+        )
+      );
+    }
+    MultiSearchResponse rsp = builder.execute().actionGet();
+
+    assertEquals(numRequests, rsp.getResponses().length);
+    int numComputed = 0;
+    for (MultiSearchResponse.Item item : rsp.getResponses()) {
+      assertHitCount(item.getResponse(), 3L);
+      assertSearchHits(item.getResponse(), "1", "3", "4");
+      CoordinateSearchMetadata metadata = ((CoordinateSearchResponse) item.getResponse()).getCoordinateSearchMetadata();
+      numComputed += metadata.getActions().get(0).cacheHit() ? 0 : 1;
+    }
+    // the other requests waited for the in-flight filter join, or found its terms in the cache
+    assertEquals(1, numComputed);
+  }
+
 }
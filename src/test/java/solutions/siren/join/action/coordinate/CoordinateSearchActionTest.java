@@ -18,16 +18,26 @@
  */
 package solutions.siren.join.action.coordinate;
 
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.test.ESIntegTestCase;
 import solutions.siren.join.SirenJoinTestCase;
+import solutions.siren.join.action.coordinate.execution.CoordinateSearchMetadata;
+import solutions.siren.join.action.publish.PublishedTermsService;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.index.query.QueryBuilders;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.elasticsearch.index.query.QueryBuilders.*;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.*;
+import static org.hamcrest.Matchers.equalTo;
 
 @ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1)
 public class CoordinateSearchActionTest extends SirenJoinTestCase {
@@ -553,6 +563,89 @@ public class CoordinateSearchActionTest extends SirenJoinTestCase {
     assertHitCount(searchResponse, 0L);
   }
 
+  @Test
+  public void testSimpleJoinWithPackedEncoding() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=string", "foreign_key", "type=string"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=string", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+            client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+            client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+            client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"1", "4"}),
+
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "bbb"),
+            client().prepareIndex("index2", "type", "4").setSource("id", "4", "tag", "ccc") );
+
+    // Joining index1.foreign_key with index2.id
+    SearchResponse searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+            QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.PACKED)
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertSearchHits(searchResponse, "1", "3", "4");
+
+    // Joining index1.foreign_key with empty index2 relation
+    searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+            QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "ddd"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.PACKED)
+    ).get();
+    assertHitCount(searchResponse, 0L);
+  }
+
+  @Test
+  public void testSimpleJoinWithPublishedTerms() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=string", "foreign_key", "type=string"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=string", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+            client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+            client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+            client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"1", "4"}),
+
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "bbb"),
+            client().prepareIndex("index2", "type", "4").setSource("id", "4", "tag", "ccc") );
+
+    // Joining index1.foreign_key with index2.id
+    SearchResponse searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+            QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).publishTerms(true)
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertSearchHits(searchResponse, "1", "3", "4");
+
+    // Joining index1.foreign_key with index2.id using the terms enum based terms query
+    searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+            QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.BYTES).maxTermsPerShard(1000).publishTerms(true)
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertSearchHits(searchResponse, "1", "3", "4");
+
+    // The published terms are released once the searches are completed
+    assertBusy(new Runnable() {
+      @Override
+      public void run() {
+        for (PublishedTermsService publishedTerms : internalCluster().getDataNodeInstances(PublishedTermsService.class)) {
+          assertThat(publishedTerms.size(), equalTo(0L));
+        }
+      }
+    });
+  }
+
   public void testInvalidTargetField() throws Exception {
     assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
     assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
@@ -850,4 +943,180 @@ public class CoordinateSearchActionTest extends SirenJoinTestCase {
     assertSearchHits(searchResponse, "1", "3", "4");
   }
 
+  @Test
+  public void testConcurrentJoins() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+      client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+      client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"1", "4"}),
+
+      client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "bbb"),
+      client().prepareIndex("index2", "type", "4").setSource("id", "4", "tag", "ccc") );
+
+    // The coordinated searches are in flight at the same time, none of them blocks a thread while waiting for its joins
+    // All the searches are coordinated by the same node
+    Client client = internalCluster().masterClient();
+    List<ListenableActionFuture<SearchResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      String tag = i % 2 == 0 ? "aaa" : "bbb";
+      futures.add(new CoordinateSearchRequestBuilder(client).setIndices("index1").setQuery(
+        QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+          boolQuery().filter(termQuery("tag", tag))
+        )
+      ).execute());
+    }
+
+    int numComputed = 0;
+    for (int i = 0; i < futures.size(); i++) {
+      SearchResponse searchResponse = futures.get(i).get();
+      CoordinateSearchMetadata metadata = ((CoordinateSearchResponse) searchResponse).getCoordinateSearchMetadata();
+      numComputed += metadata.getActions().get(0).cacheHit() ? 0 : 1;
+      if (i % 2 == 0) {
+        assertHitCount(searchResponse, 3L);
+        assertSearchHits(searchResponse, "1", "3", "4");
+      }
+      else {
+        assertHitCount(searchResponse, 1L);
+        assertSearchHits(searchResponse, "1");
+      }
+    }
+    // the identical filter joins are computed once, the other searches wait for them or find them in the cache
+    assertEquals(2, numComputed);
+  }
+
+  @Test
+  public void testReorderedSiblingJoins() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+    assertAcked(prepareCreate("index3").addMapping("type", "id", "type=integer", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", "1"),
+      client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", "2"),
+      client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", "4"),
+
+      client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "aaa"),
+      client().prepareIndex("index2", "type", "4").setSource("id", "4", "tag", "aaa"),
+
+      client().prepareIndex("index3", "type", "1").setSource("id", "1", "tag", "bbb"),
+      client().prepareIndex("index3", "type", "2").setSource("id", "2", "tag", "aaa"),
+      client().prepareIndex("index3", "type", "3").setSource("id", "3", "tag", "bbb") );
+
+    // Joining index1.foreign_key with index2.id and index3.id - the join with index3 is the most selective and is
+    // executed first, its terms restricting the lookup of the join with index2
+    Client client = internalCluster().masterClient();
+    SearchRequestBuilder builder = new CoordinateSearchRequestBuilder(client).setIndices("index1").setQuery(
+      boolQuery()
+        .must(QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").reorder(true).query(
+          boolQuery().filter(termQuery("tag", "aaa"))
+        ))
+        .must(QueryBuilders.filterJoin("foreign_key").indices("index3").types("type").path("id").reorder(true).query(
+          boolQuery().filter(termQuery("tag", "aaa"))
+        ))
+    );
+
+    SearchResponse searchResponse = builder.get();
+    assertHitCount(searchResponse, 1L);
+    assertSearchHits(searchResponse, "3");
+
+    List<CoordinateSearchMetadata.Action> actions = ((CoordinateSearchResponse) searchResponse).getCoordinateSearchMetadata().getActions();
+    assertThat(actions.size(), equalTo(2));
+    for (CoordinateSearchMetadata.Action action : actions) {
+      assertThat(action.size(), equalTo(1));
+      assertFalse(action.cacheHit());
+    }
+
+    // The reordered joins are reused from the cache
+    searchResponse = builder.get();
+    assertHitCount(searchResponse, 1L);
+    assertSearchHits(searchResponse, "3");
+
+    actions = ((CoordinateSearchResponse) searchResponse).getCoordinateSearchMetadata().getActions();
+    assertThat(actions.size(), equalTo(2));
+    for (CoordinateSearchMetadata.Action action : actions) {
+      assertTrue(action.cacheHit());
+    }
+  }
+
+  @Test
+  public void testScoredJoin() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "score", "type=integer"));
+
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+      client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+      client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"1", "4"}),
+
+      client().prepareIndex("index2", "type", "1").setSource("id", "1", "score", "1"),
+      client().prepareIndex("index2", "type", "2").setSource("id", "2", "score", "2"),
+      client().prepareIndex("index2", "type", "3").setSource("id", "3", "score", "3"),
+      client().prepareIndex("index2", "type", "4").setSource("id", "4", "score", "4"),
+      client().prepareIndex("index2", "type", "5").setSource("id", "4", "score", "2") );
+
+    // Joining index1.foreign_key with index2.id, the lookup documents being scored with their score field
+    // Term scores with max: 1 -> 1, 2 -> 2, 3 -> 3, 4 -> 4
+    SearchResponse searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+      QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id")
+        .scoreMode(TermsByQueryRequest.ScoreMode.MAX)
+        .query(functionScoreQuery(ScoreFunctionBuilders.fieldValueFactorFunction("score")).boostMode("replace"))
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertOrderedSearchHits(searchResponse, "4", "1", "3");
+    assertThat(searchResponse.getHits().getAt(0).getScore(), equalTo(4f));
+    assertThat(searchResponse.getHits().getAt(1).getScore(), equalTo(3f));
+    assertThat(searchResponse.getHits().getAt(2).getScore(), equalTo(2f));
+
+    // Term scores with sum: 1 -> 1, 2 -> 2, 3 -> 3, 4 -> 6
+    searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+      QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id")
+        .scoreMode(TermsByQueryRequest.ScoreMode.SUM)
+        .query(functionScoreQuery(ScoreFunctionBuilders.fieldValueFactorFunction("score")).boostMode("replace"))
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertOrderedSearchHits(searchResponse, "4", "1", "3");
+    assertThat(searchResponse.getHits().getAt(0).getScore(), equalTo(7f));
+    assertThat(searchResponse.getHits().getAt(1).getScore(), equalTo(4f));
+    assertThat(searchResponse.getHits().getAt(2).getScore(), equalTo(2f));
+
+    // Term scores with avg, without the term 1: 2 -> 2, 3 -> 3, 4 -> 3
+    searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+      QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id")
+        .scoreMode(TermsByQueryRequest.ScoreMode.AVG)
+        .query(boolQuery().filter(rangeQuery("id").gte(2)).must(
+          functionScoreQuery(ScoreFunctionBuilders.fieldValueFactorFunction("score")).boostMode("replace")))
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertThat(searchResponse.getHits().getAt(0).getScore(), equalTo(3f));
+    assertThat(searchResponse.getHits().getAt(1).getScore(), equalTo(3f));
+    assertThat(searchResponse.getHits().getAt(2).getId(), equalTo("3"));
+    assertThat(searchResponse.getHits().getAt(2).getScore(), equalTo(2f));
+
+    // Without score mode, the documents have a constant score
+    searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(
+      QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id")
+        .query(functionScoreQuery(ScoreFunctionBuilders.fieldValueFactorFunction("score")).boostMode("replace"))
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    for (int i = 0; i < 3; i++) {
+      assertThat(searchResponse.getHits().getAt(i).getScore(), equalTo(1f));
+    }
+  }
+
 }
@@ -18,6 +18,7 @@
  */
 package solutions.siren.join.action.coordinate.execution;
 
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentHelper;
@@ -29,6 +30,8 @@ import org.elasticsearch.test.rest.client.RestException;
 import org.elasticsearch.test.rest.client.http.HttpResponse;
 import org.junit.Test;
 import solutions.siren.join.SirenJoinTestCase;
+import solutions.siren.join.action.coordinate.CoordinateSearchRequestBuilder;
+import solutions.siren.join.action.coordinate.CoordinateSearchResponse;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 
 import java.io.IOException;
@@ -40,6 +43,7 @@ import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.hamcrest.Matchers.contains;
@@ -240,6 +244,92 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
     }});
   }
 
+  @Test
+  public void testAutoTermsEncoding() throws IOException, RestException, ExecutionException, InterruptedException {
+    ElasticsearchAssertions.assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    ElasticsearchAssertions.assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+            client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+            client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+            client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"1", "4"}),
+
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "bbb"),
+            client().prepareIndex("index2", "type", "4").setSource("id", "4", "tag", "ccc"));
+
+    String q = boolQuery().filter(
+            filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.AUTO)).toString();
+    String body = "{ \"query\" : " + q + "}";
+
+    // the encoding is selected on the first execution
+    Map action = this.getFirstAction(body);
+    String key = CoordinateSearchMetadata.Action.Fields.TERMS_ENCODING.underscore().getValue();
+    assertThat((String) action.get(key), equalTo("long"));
+    key = CoordinateSearchMetadata.Action.Fields.TERMS_ENCODING_REASON.underscore().getValue();
+    assertThat((String) action.get(key), equalTo(TermsEncodingSelector.Reason.SMALL_SET.toString()));
+
+    // the cached terms keep the selected encoding
+    action = this.getFirstAction(body);
+    key = CoordinateSearchMetadata.Action.Fields.CACHE_HIT.underscore().getValue();
+    assertThat((Boolean) action.get(key), equalTo(true));
+    key = CoordinateSearchMetadata.Action.Fields.TERMS_ENCODING.underscore().getValue();
+    assertThat((String) action.get(key), equalTo("long"));
+    key = CoordinateSearchMetadata.Action.Fields.TERMS_ENCODING_REASON.underscore().getValue();
+    assertThat((String) action.get(key), equalTo(TermsEncodingSelector.Reason.REUSED.toString()));
+  }
+
+  /**
+   * The integer encodings must not be selected for a long target field, as its values would be truncated to integers:
+   * the document with the value <code>(1L << 32) + 5</code> would match the term <code>5</code>.
+   */
+  @Test
+  public void testAutoTermsEncodingWithLongTargetField() throws Exception {
+    ElasticsearchAssertions.assertAcked(prepareCreate("index1").addMapping("type", "foreign_key", "type=long"));
+    ElasticsearchAssertions.assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer"));
+
+    ensureGreen();
+
+    // a dense range of integers, large enough to not be encoded as a small set
+    int numTerms = 2000;
+    IndexRequestBuilder[] builders = new IndexRequestBuilder[numTerms + 2];
+    for (int i = 0; i < numTerms; i++) {
+      builders[i] = client().prepareIndex("index2", "type", "" + i).setSource("id", i);
+    }
+    builders[numTerms] = client().prepareIndex("index1", "type", "1").setSource("foreign_key", 5L);
+    builders[numTerms + 1] = client().prepareIndex("index1", "type", "2").setSource("foreign_key", (1L << 32) + 5);
+    indexRandom(true, builders);
+
+    CoordinateSearchResponse rsp = (CoordinateSearchResponse) new CoordinateSearchRequestBuilder(client())
+            .setIndices("index1").setQuery(
+              boolQuery().filter(
+                filterJoin("foreign_key").indices("index2").types("type").path("id")
+                        .query(matchAllQuery()).termsEncoding(TermsByQueryRequest.TermsEncoding.AUTO)
+              )).get();
+
+    ElasticsearchAssertions.assertHitCount(rsp, 1L);
+    ElasticsearchAssertions.assertSearchHits(rsp, "1");
+    CoordinateSearchMetadata.Action action = rsp.getCoordinateSearchMetadata().getActions().get(0);
+    assertThat(action.termsEncoding(), equalTo(TermsByQueryRequest.TermsEncoding.PACKED));
+    assertThat(action.termsEncodingReason(), equalTo(TermsEncodingSelector.Reason.DENSE_RANGE.toString()));
+  }
+
+  private Map getFirstAction(String body) throws IOException, RestException {
+    HttpResponse response = httpClient().method("GET").path("/_coordinate_search").body(body).execute();
+    assertThat(response.getStatusCode(), equalTo(RestStatus.OK.getStatus()));
+    Map<String, Object> map = XContentHelper.convertToMap(new BytesArray(response.getBody().getBytes("UTF-8")), false).v2();
+    Map coordinateSearch = (Map) map.get(CoordinateSearchMetadata.Fields.COORDINATE_SEARCH.underscore().getValue());
+    List actions = (List) coordinateSearch.get(CoordinateSearchMetadata.Fields.ACTIONS.underscore().getValue());
+    assertThat(actions.size(), equalTo(1));
+    return (Map) actions.get(0);
+  }
+
   @Test
   public void testOrdering() throws IOException, RestException, ExecutionException, InterruptedException {
     ElasticsearchAssertions.assertAcked(prepareCreate("index1").addMapping("type", "id", "type=string", "foreign_key", "type=string"));
@@ -536,43 +626,30 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
     assertThat((Integer) ((Map) ((Map) responses.get(0)).get("hits")).get("total"), equalTo(3));
     assertThat((Integer) ((Map) ((Map) responses.get(1)).get("hits")).get("total"), equalTo(3));
 
-    // First query
-    String key = CoordinateSearchMetadata.Fields.COORDINATE_SEARCH.underscore().getValue();
-    Map coordinateSearch = (Map) ((Map) responses.get(0)).get(key);
-
-    key = CoordinateSearchMetadata.Fields.ACTIONS.underscore().getValue();
-    assertTrue(coordinateSearch.containsKey(key));
-    List actions = (List) coordinateSearch.get(key);
-    assertThat(actions.size(), equalTo(1));
-    Map action = (Map) actions.get(0);
-
-    key = CoordinateSearchMetadata.Action.Fields.IS_PRUNED.underscore().getValue();
-    assertThat((Boolean) action.get(key), equalTo(false));
-
-    key = CoordinateSearchMetadata.Action.Fields.SIZE.underscore().getValue();
-    assertThat((Integer) action.get(key), equalTo(2));
+    // The queries are converted concurrently: one of them computes the terms, and the other one reuses them
+    int cacheHits = 0;
+    for (Object r : responses) {
+      String key = CoordinateSearchMetadata.Fields.COORDINATE_SEARCH.underscore().getValue();
+      Map coordinateSearch = (Map) ((Map) r).get(key);
 
-    key = CoordinateSearchMetadata.Action.Fields.CACHE_HIT.underscore().getValue();
-    assertThat((Boolean) action.get(key), equalTo(false));
+      key = CoordinateSearchMetadata.Fields.ACTIONS.underscore().getValue();
+      assertTrue(coordinateSearch.containsKey(key));
+      List actions = (List) coordinateSearch.get(key);
+      assertThat(actions.size(), equalTo(1));
+      Map action = (Map) actions.get(0);
 
-    // Second query
-    key = CoordinateSearchMetadata.Fields.COORDINATE_SEARCH.underscore().getValue();
-    coordinateSearch = (Map) ((Map) responses.get(1)).get(key);
+      key = CoordinateSearchMetadata.Action.Fields.IS_PRUNED.underscore().getValue();
+      assertThat((Boolean) action.get(key), equalTo(false));
 
-    key = CoordinateSearchMetadata.Fields.ACTIONS.underscore().getValue();
-    assertTrue(coordinateSearch.containsKey(key));
-    actions = (List) coordinateSearch.get(key);
-    assertThat(actions.size(), equalTo(1));
-    action = (Map) actions.get(0);
+      key = CoordinateSearchMetadata.Action.Fields.SIZE.underscore().getValue();
+      assertThat((Integer) action.get(key), equalTo(2));
 
-    key = CoordinateSearchMetadata.Action.Fields.IS_PRUNED.underscore().getValue();
-    assertThat((Boolean) action.get(key), equalTo(false));
-
-    key = CoordinateSearchMetadata.Action.Fields.SIZE.underscore().getValue();
-    assertThat((Integer) action.get(key), equalTo(2));
-
-    key = CoordinateSearchMetadata.Action.Fields.CACHE_HIT.underscore().getValue();
-    assertThat((Boolean) action.get(key), equalTo(true));
+      key = CoordinateSearchMetadata.Action.Fields.CACHE_HIT.underscore().getValue();
+      if ((Boolean) action.get(key)) {
+        cacheHits++;
+      }
+    }
+    assertThat(cacheHits, equalTo(1));
   }
 
 }
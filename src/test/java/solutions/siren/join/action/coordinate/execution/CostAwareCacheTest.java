@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import com.google.common.cache.Weigher;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+public class CostAwareCacheTest extends ESTestCase {
+
+  private final List<Long> evicted = new ArrayList<>();
+
+  @Test
+  public void testLargeAndRareEntryIsNotAdmitted() {
+    CostAwareCache<Long, Value> cache = this.newCache(100);
+    for (long key = 0; key < 10; key++) {
+      this.access(cache, key, new Value(10, 50), 3);
+    }
+    assertThat(cache.size(), equalTo(10L));
+
+    // would flush all the small and hot entries
+    this.access(cache, 100, new Value(80, 50), 1);
+    assertThat(cache.getIfPresent(100L), nullValue());
+    assertThat(evicted, contains(100L));
+    assertThat(cache.size(), equalTo(10L));
+
+    // an entry which does not fit in the cache is never admitted
+    evicted.clear();
+    this.access(cache, 101, new Value(200, 1000), 1);
+    assertThat(evicted, contains(101L));
+    assertThat(cache.weight(), equalTo(100L));
+  }
+
+  @Test
+  public void testCheapEntryIsEvictedFirst() {
+    CostAwareCache<Long, Value> cache = this.newCache(20);
+    this.access(cache, 1, new Value(10, 500), 1);
+    this.access(cache, 2, new Value(10, 5), 1);
+    this.access(cache, 3, new Value(10, 500), 1);
+
+    assertThat(evicted, contains(2L));
+    assertThat(cache.getIfPresent(1L), notNullValue());
+    assertThat(cache.getIfPresent(3L), notNullValue());
+    assertThat(cache.stats().evictionCount(), equalTo(1L));
+  }
+
+  @Test
+  public void testUnusedEntriesAge() {
+    CostAwareCache<Long, Value> cache = this.newCache(20);
+    // a hot entry which is not accessed anymore
+    this.access(cache, 1, new Value(10, 50), 10);
+
+    // the clock advances with each eviction, until the new entries have a higher priority than the old hot entry
+    for (long key = 2; key < 100 && cache.snapshot().containsKey(1L); key++) {
+      this.access(cache, key, new Value(10, 50), 2);
+    }
+    assertThat(evicted, hasItem(1L));
+  }
+
+  @Test
+  public void testFrequencySketch() {
+    CostAwareCache.FrequencySketch sketch = new CostAwareCache.FrequencySketch(16);
+    for (int i = 0; i < 5; i++) {
+      sketch.increment(42);
+    }
+    assertThat(sketch.frequency(42), equalTo(5));
+
+    // the counters are halved after 10 * width increments
+    for (int i = 0; i < 160; i++) {
+      sketch.increment(i);
+    }
+    assertThat(sketch.frequency(42), lessThanOrEqualTo(10));
+    assertThat(sketch.frequency(42), greaterThanOrEqualTo(2));
+  }
+
+  /**
+   * Simulates identical joins: a cache lookup, then the computation of the terms on a miss.
+   */
+  private void access(CostAwareCache<Long, Value> cache, long key, Value value, int times) {
+    for (int i = 0; i < times; i++) {
+      if (cache.getIfPresent(key) == null) {
+        cache.put(key, value);
+      }
+    }
+  }
+
+  private CostAwareCache<Long, Value> newCache(long maxWeight) {
+    return new CostAwareCache<>(maxWeight, 1024, new Weigher<Long, Value>() {
+
+      @Override
+      public int weigh(Long key, Value value) {
+        return value.weight;
+      }
+
+    }, new CostAwareCache.CostFunction<Value>() {
+
+      @Override
+      public long cost(Value value) {
+        return value.cost;
+      }
+
+    }, new CostAwareCache.EvictionListener<Long, Value>() {
+
+      @Override
+      public void onEviction(Long key, Value value) {
+        evicted.add(key);
+      }
+
+    });
+  }
+
+  private static class Value {
+
+    private final int weight;
+    private final long cost;
+
+    private Value(int weight, long cost) {
+      this.weight = weight;
+      this.cost = cost;
+    }
+
+  }
+
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a trace of filter join cache accesses against the size-weighted LRU policy of a Guava cache and against
+ * the {@link CostAwareCache} policy, and reports for each the hit ratio and the time spent recomputing the joins.
+ * <br>
+ * A trace can be recorded on a coordinating node by setting the log level of the logger
+ * <code>solutions.siren.join.action.coordinate.execution.FilterJoinCache.trace</code> to <code>TRACE</code>. The
+ * benchmark takes as arguments the path of the log file and optionally the size of the cache, e.g.,
+ * <code>FilterJoinCacheReplayBenchmark elasticsearch.log 256mb</code>. Without arguments, a synthetic trace is
+ * generated, where the popularity of the joins follows a Zipf distribution and a few rarely used joins are very large.
+ */
+public class FilterJoinCacheReplayBenchmark {
+
+  // synthetic trace settings
+  public static final int NUM_KEYS = 10000;
+  public static final int NUM_ACCESSES = 500000;
+  public static final double ZIPF_EXPONENT = 0.9;
+  public static final double LARGE_JOIN_RATIO = 0.02;
+  public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+  private static final Pattern TRACE_PATTERN = Pattern.compile("\\b(get|put) (-?\\d+)(?: (\\d+) (\\d+))?\\s*$");
+
+  /**
+   * The sequence of accessed keys
+   */
+  private final List<Long> accesses = new ArrayList<>();
+
+  /**
+   * The size in bytes and the time in ms to compute the terms of each key
+   */
+  private final Map<Long, Join> joins = new HashMap<>();
+
+  public static void main(String[] args) throws IOException {
+    FilterJoinCacheReplayBenchmark bench = new FilterJoinCacheReplayBenchmark();
+    long cacheSize = DEFAULT_CACHE_SIZE;
+    if (args.length > 0) {
+      bench.readTrace(args[0]);
+      if (args.length > 1) {
+        cacheSize = ByteSizeValue.parseBytesSizeValue(args[1], "cache size").bytes();
+      }
+    }
+    else {
+      bench.generateTrace(new Random(42));
+    }
+
+    System.out.println("Replaying " + bench.accesses.size() + " accesses to " + bench.joins.size() +
+            " joins with a cache of " + new ByteSizeValue(cacheSize));
+    bench.replay("lru", new LruPolicy(cacheSize));
+    bench.replay("cost-aware", new CostAwarePolicy(cacheSize));
+  }
+
+  private void replay(String name, Policy policy) {
+    long hits = 0;
+    long misses = 0;
+    long recomputeTime = 0;
+    long totalTime = 0;
+
+    for (Long key : accesses) {
+      Join join = joins.get(key);
+      totalTime += join.tookInMillis;
+      if (policy.get(key)) {
+        hits++;
+      }
+      else {
+        misses++;
+        recomputeTime += join.tookInMillis;
+        policy.put(key, join);
+      }
+    }
+
+    System.out.println(String.format("--> %-10s hit ratio %.2f%%, recompute time %d ms (%.2f%% of %d ms)", name,
+            100.0 * hits / (hits + misses), recomputeTime, 100.0 * recomputeTime / Math.max(1, totalTime), totalTime));
+  }
+
+  /**
+   * Reads the trace from a log file. The accesses to keys which were never computed are ignored, as their size and
+   * cost are unknown.
+   */
+  private void readTrace(String path) throws IOException {
+    List<Long> gets = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Matcher matcher = TRACE_PATTERN.matcher(line);
+        if (!matcher.find()) {
+          continue;
+        }
+        long key = Long.parseLong(matcher.group(2));
+        if (matcher.group(1).equals("get")) {
+          gets.add(key);
+        }
+        else if (matcher.group(3) != null) {
+          joins.put(key, new Join(Integer.parseInt(matcher.group(3)), Long.parseLong(matcher.group(4))));
+        }
+      }
+    }
+    for (Long key : gets) {
+      if (joins.containsKey(key)) {
+        accesses.add(key);
+      }
+    }
+  }
+
+  /**
+   * Generates a trace where most joins are small, and where a few rarely used joins are very large. The time to
+   * compute a join grows with its size, but varies largely as it also depends on the cost of the lookup query.
+   */
+  private void generateTrace(Random random) {
+    for (long key = 0; key < NUM_KEYS; key++) {
+      boolean isLarge = key > NUM_KEYS / 2 && random.nextDouble() < 2 * LARGE_JOIN_RATIO;
+      int size = isLarge ? (1 + random.nextInt(16)) * 1024 * 1024 : 1024 + random.nextInt(64 * 1024);
+      long tookInMillis = 1 + size / (64 * 1024) + (long) (random.nextDouble() * random.nextDouble() * 2000);
+      joins.put(key, new Join(size, tookInMillis));
+    }
+
+    double[] cumulative = new double[NUM_KEYS];
+    double sum = 0;
+    for (int i = 0; i < NUM_KEYS; i++) {
+      sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+      cumulative[i] = sum;
+    }
+    for (int i = 0; i < NUM_ACCESSES; i++) {
+      int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+      accesses.add((long) Math.min(NUM_KEYS - 1, index < 0 ? -index - 1 : index));
+    }
+  }
+
+  private static class Join {
+
+    private final int size;
+    private final long tookInMillis;
+
+    private Join(int size, long tookInMillis) {
+      this.size = size;
+      this.tookInMillis = tookInMillis;
+    }
+
+  }
+
+  private interface Policy {
+
+    boolean get(long key);
+
+    void put(long key, Join join);
+
+  }
+
+  private static class LruPolicy implements Policy {
+
+    private final Cache<Long, Join> cache;
+
+    private LruPolicy(long size) {
+      cache = CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(size).weigher(new Weigher<Long, Join>() {
+
+        @Override
+        public int weigh(Long key, Join value) {
+          return value.size;
+        }
+
+      }).build();
+    }
+
+    @Override
+    public boolean get(long key) {
+      return cache.getIfPresent(key) != null;
+    }
+
+    @Override
+    public void put(long key, Join join) {
+      cache.put(key, join);
+    }
+
+  }
+
+  private static class CostAwarePolicy implements Policy {
+
+    private final CostAwareCache<Long, Join> cache;
+
+    private CostAwarePolicy(long size) {
+      cache = new CostAwareCache<>(size, new Weigher<Long, Join>() {
+
+        @Override
+        public int weigh(Long key, Join value) {
+          return value.size;
+        }
+
+      }, new CostAwareCache.CostFunction<Join>() {
+
+        @Override
+        public long cost(Join value) {
+          return value.tookInMillis;
+        }
+
+      }, new CostAwareCache.EvictionListener<Long, Join>() {
+
+        @Override
+        public void onEviction(Long key, Join value) {}
+
+      });
+    }
+
+    @Override
+    public boolean get(long key) {
+      return cache.getIfPresent(key) != null;
+    }
+
+    @Override
+    public void put(long key, Join join) {
+      cache.put(key, join);
+    }
+
+  }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+
+public class FilterJoinCacheTest extends ESTestCase {
+
+  /**
+   * An entry larger than a quarter of the off-heap tier must not be evicted as soon as it is moved off-heap.
+   */
+  @Test
+  public void testLargeEntryIsMovedOffHeap() {
+    FilterJoinCache cache = this.newCache();
+    cache.put(1, new FilterJoinCache.CacheEntry(new BytesRef(new byte[300]), 10, false, 100));
+
+    FilterJoinCache.CacheEntry entry = cache.get(1);
+    assertThat(entry, notNullValue());
+    assertThat(entry.encodedTerms.length, equalTo(300));
+    assertThat(cache.getStats().getOffHeapSizeInBytes(), equalTo(300L));
+    cache.invalidateAll();
+  }
+
+  @Test
+  public void testEntryLargerThanOffHeapTierIsDropped() {
+    FilterJoinCache cache = this.newCache();
+    cache.put(1, new FilterJoinCache.CacheEntry(new BytesRef(new byte[2000]), 10, false, 100));
+
+    assertThat(cache.get(1), nullValue());
+    assertThat(cache.getStats().getOffHeapSize(), equalTo(0L));
+    assertThat(cache.getStats().getOffHeapSizeInBytes(), equalTo(0L));
+  }
+
+  private FilterJoinCache newCache() {
+    return new FilterJoinCache(Settings.builder()
+            .put(FilterJoinCache.SIREN_FILTERJOIN_CACHE_SIZE, "100b")
+            .put(FilterJoinCache.SIREN_FILTERJOIN_CACHE_OFF_HEAP_SIZE, "1000b")
+            .build());
+  }
+
+}
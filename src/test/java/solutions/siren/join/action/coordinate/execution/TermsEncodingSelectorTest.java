@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.execution;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+import solutions.siren.join.action.coordinate.execution.TermsEncodingSelector.FieldType;
+import solutions.siren.join.action.coordinate.execution.TermsEncodingSelector.Reason;
+import solutions.siren.join.action.coordinate.execution.TermsEncodingSelector.Selection;
+import solutions.siren.join.action.terms.TermsByQueryRequest.TermsEncoding;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class TermsEncodingSelectorTest extends ESTestCase {
+
+  private static final long MEMORY = 1L << 30;
+
+  @Test
+  public void testSmallSet() {
+    this.assertSelection(TermsEncodingSelector.select(FieldType.STRING, FieldType.STRING, 100, 0, 0, MEMORY),
+            TermsEncoding.LONG, Reason.SMALL_SET);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.INTEGER, 100, 0, 100, MEMORY),
+            TermsEncoding.LONG, Reason.SMALL_SET);
+  }
+
+  @Test
+  public void testFieldType() {
+    this.assertSelection(TermsEncodingSelector.select(FieldType.STRING, FieldType.STRING, 100000, 0, 0, MEMORY),
+            TermsEncoding.LONG, Reason.STRING_FIELD);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.DOUBLE, FieldType.DOUBLE, 100000, 0, 1e12, MEMORY),
+            TermsEncoding.LONG, Reason.LONG_FIELD);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.INTEGER,
+            100000, 0, Integer.MAX_VALUE, MEMORY),
+            TermsEncoding.INTEGER, Reason.INTEGER_FIELD);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.LONG, FieldType.LONG,
+            100000, 0, Long.MAX_VALUE, MEMORY),
+            TermsEncoding.LONG, Reason.LONG_FIELD);
+    // the values of a long field fit in an integer
+    this.assertSelection(TermsEncodingSelector.select(FieldType.LONG, FieldType.INTEGER,
+            100000, 0, Integer.MAX_VALUE, MEMORY),
+            TermsEncoding.INTEGER, Reason.INTEGER_FIELD);
+  }
+
+  @Test
+  public void testDenseRange() {
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.INTEGER, 100000, 0, 200000, MEMORY),
+            TermsEncoding.BITMAP, Reason.DENSE_RANGE);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.INTEGER,
+            100000, 0, 10000000, MEMORY),
+            TermsEncoding.PACKED, Reason.DENSE_RANGE);
+    // the values do not fit in an integer
+    this.assertSelection(TermsEncodingSelector.select(FieldType.LONG, FieldType.LONG,
+            100000, 1L << 40, (1L << 40) + 200000, MEMORY),
+            TermsEncoding.PACKED, Reason.DENSE_RANGE);
+  }
+
+  @Test
+  public void testTargetFieldType() {
+    // the values of a long target field would be truncated by the integer encodings
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.LONG,
+            100000, 0, Integer.MAX_VALUE, MEMORY),
+            TermsEncoding.LONG, Reason.LONG_FIELD);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.LONG, 100000, 0, 200000, MEMORY),
+            TermsEncoding.PACKED, Reason.DENSE_RANGE);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.STRING, 100000, 0, 200000, MEMORY),
+            TermsEncoding.PACKED, Reason.DENSE_RANGE);
+  }
+
+  @Test
+  public void testMemory() {
+    this.assertSelection(TermsEncodingSelector.select(FieldType.STRING, FieldType.STRING, 100000000, 0, 0, MEMORY),
+            TermsEncoding.BLOOM, Reason.MEMORY);
+    this.assertSelection(TermsEncodingSelector.select(FieldType.STRING, FieldType.STRING, 100000, 0, 0, 1024),
+            TermsEncoding.BLOOM, Reason.MEMORY);
+    // the bitmap uses less memory than a set of longs
+    this.assertSelection(TermsEncodingSelector.select(FieldType.INTEGER, FieldType.INTEGER,
+            100000000, 0, 200000000, MEMORY),
+            TermsEncoding.BITMAP, Reason.DENSE_RANGE);
+  }
+
+  @Test
+  public void testFieldTypeFromMapping() {
+    assertThat(FieldType.fromMappingType("integer"), equalTo(FieldType.INTEGER));
+    assertThat(FieldType.fromMappingType("date"), equalTo(FieldType.LONG));
+    assertThat(FieldType.fromMappingType("double"), equalTo(FieldType.DOUBLE));
+    assertThat(FieldType.fromMappingType("string"), equalTo(FieldType.STRING));
+    assertThat(FieldType.fromMappingType(null), equalTo(FieldType.STRING));
+    assertThat(FieldType.INTEGER.widen(FieldType.LONG), equalTo(FieldType.LONG));
+    assertThat(FieldType.STRING.widen(FieldType.INTEGER), equalTo(FieldType.STRING));
+  }
+
+  private void assertSelection(Selection selection, TermsEncoding termsEncoding, Reason reason) {
+    assertThat(selection.getTermsEncoding(), equalTo(termsEncoding));
+    assertThat(selection.getReason(), equalTo(reason));
+  }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.publish;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Test;
+import solutions.siren.join.common.CacheCircuitBreaker;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+
+public class PublishedTermsServiceTest extends ESTestCase {
+
+  private final HierarchyCircuitBreakerService breakerService = new HierarchyCircuitBreakerService(Settings.EMPTY,
+          new NodeSettingsService(Settings.EMPTY));
+
+  private final ThreadPool threadPool = new ThreadPool("test");
+
+  @After
+  public void terminateThreadPool() {
+    ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTermsArePinnedUntilReleased() {
+    PublishedTermsService service = new PublishedTermsService(Settings.builder()
+            .put(PublishedTermsService.SIREN_FILTERJOIN_PUBLISHED_TERMS_SIZE, 100, ByteSizeUnit.BYTES)
+            .build(), breakerService, threadPool);
+    CircuitBreaker breaker = breakerService.getBreaker(CacheCircuitBreaker.NAME);
+
+    service.put("1", new BytesRef(new byte[60]));
+    try {
+      service.put("2", new BytesRef(new byte[60]));
+      fail("Expected the terms to exceed the maximum size");
+    }
+    catch (ElasticsearchException e) {
+      assertThat(e.getMessage(), containsString("would exceed the maximum size"));
+    }
+
+    // the terms published first are not evicted by the new terms
+    assertThat(service.get("1").length, equalTo(60));
+    assertThat(service.get("2"), is(nullValue()));
+    assertThat(breaker.getUsed(), equalTo(60L));
+
+    service.release("1");
+    assertThat(service.get("1"), is(nullValue()));
+    assertThat(service.size(), equalTo(0L));
+    assertThat(breaker.getUsed(), equalTo(0L));
+    assertThat(breakerService.getBreaker(CircuitBreaker.REQUEST).getUsed(), equalTo(0L));
+  }
+
+  @Test
+  public void testUnaccessedTermsExpire() throws Exception {
+    final PublishedTermsService service = new PublishedTermsService(Settings.builder()
+            .put(PublishedTermsService.SIREN_FILTERJOIN_PUBLISHED_TERMS_KEEP_ALIVE, "100ms")
+            .build(), breakerService, threadPool);
+    service.start();
+    try {
+      service.put("1", new BytesRef(new byte[60]));
+      assertThat(service.size(), equalTo(1L));
+
+      assertBusy(new Runnable() {
+        @Override
+        public void run() {
+          assertThat(service.size(), equalTo(0L));
+        }
+      });
+      assertThat(breakerService.getBreaker(CacheCircuitBreaker.NAME).getUsed(), equalTo(0L));
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+}
@@ -20,14 +20,23 @@ package solutions.siren.join.action.terms;
 
 import com.carrotsearch.hppc.cursors.LongCursor;
 import com.carrotsearch.randomizedtesting.RandomizedTest;
+import com.google.common.cache.CacheStats;
 import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+import solutions.siren.join.SirenJoinPlugin;
 import solutions.siren.join.SirenJoinTestCase;
+import solutions.siren.join.action.terms.collector.BitmapTermsSet;
 import solutions.siren.join.action.terms.collector.LongBloomFilter;
 import solutions.siren.join.action.terms.collector.LongTermsSet;
 import solutions.siren.join.action.terms.collector.NumericTermsSet;
+import solutions.siren.join.action.terms.collector.PackedLongTermsSet;
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.elasticsearch.test.hamcrest.ElasticsearchAssertions;
 import org.junit.Test;
 import solutions.siren.join.action.terms.collector.TermsSet;
@@ -43,6 +52,16 @@ import static org.hamcrest.Matchers.*;
 @ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1)
 public class TermsByQueryActionTest extends SirenJoinTestCase {
 
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    // collects the segments of the shards in parallel as soon as there are two segments
+    return Settings.builder()
+            .put(super.nodeSettings(nodeOrdinal))
+            .put(TransportTermsByQueryAction.SIREN_TERMSBYQUERY_COLLECT_PARALLEL_THRESHOLD, 2)
+            .put("threadpool." + SirenJoinPlugin.TERMS_COLLECT_THREAD_POOL + ".size", 3)
+            .build();
+  }
+
   /**
    * Tests that the terms by query action returns the correct terms against string fields
    */
@@ -120,6 +139,165 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
     }
   }
 
+  /**
+   * Tests that the terms by query action returns the correct terms when the shard terms are streamed
+   */
+  @Test
+  public void testTermsByQueryWithStreamTerms() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder().put("number_of_shards", 4)));
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .field("int", i)
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+                                                                        .setStreamTerms(true)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getSuccessfulShards(), is(4));
+    assertThat(resp.getEncodedTermsSet(), notNullValue());
+    assertThat(resp.getSize(), is(numDocs));
+    TermsSet lTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms instanceof LongTermsSet, is(true));
+    assertThat(lTerms.size(), is(numDocs));
+    for (int i = 0; i < numDocs; i++) {
+      assertThat(((LongTermsSet) lTerms).contains(Long.valueOf(i)), is(true));
+    }
+  }
+
+  /**
+   * Tests that the terms by query action returns the correct terms when the shard terms are merged on each node
+   */
+  @Test
+  public void testTermsByQueryWithNodeReduce() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder().put("number_of_shards", 4)));
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .field("int", i % 100) // duplicate terms across shards
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+                                                                        .setNodeReduce(true)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getTotalShards(), is(4));
+    assertThat(resp.getSuccessfulShards(), is(4));
+    assertThat(resp.getEncodedTermsSet(), notNullValue());
+    assertThat(resp.getSize(), is(100));
+    TermsSet lTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms instanceof LongTermsSet, is(true));
+    assertThat(lTerms.size(), is(100));
+    for (int i = 0; i < 100; i++) {
+      assertThat(((LongTermsSet) lTerms).contains(Long.valueOf(i)), is(true));
+    }
+  }
+
+  /**
+   * Tests that the terms by query action returns the correct terms with the packed terms encoding
+   */
+  @Test
+  public void testTermsByQueryWithPackedTermsEncoding() throws Exception {
+    createIndex("test");
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .field("int", i)
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.PACKED)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getEncodedTermsSet(), notNullValue());
+    assertThat(resp.getSize(), is(numDocs));
+    // a dense range of integers is packed with one bit per gap
+    assertThat(resp.getEncodedTermsSet().length, lessThan(numDocs));
+    TermsSet lTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms instanceof PackedLongTermsSet, is(true));
+    assertThat(lTerms.size(), is(numDocs));
+    for (int i = 0; i < numDocs; i++) {
+      assertThat(((PackedLongTermsSet) lTerms).contains(Long.valueOf(i)), is(true));
+    }
+  }
+
+  /**
+   * Tests that the terms by query action returns the correct terms with the bitmap terms encoding
+   */
+  @Test
+  public void testTermsByQueryWithBitmapTermsEncoding() throws Exception {
+    createIndex("test");
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .field("int", i)
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.BITMAP)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getEncodedTermsSet(), notNullValue());
+    assertThat(resp.getSize(), is(numDocs));
+    TermsSet lTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms instanceof BitmapTermsSet, is(true));
+    assertThat(lTerms.size(), is(numDocs));
+    for (int i = 0; i < numDocs; i++) {
+      assertThat(((BitmapTermsSet) lTerms).contains(Long.valueOf(i)), is(true));
+    }
+  }
+
   /**
    * Tests that the limit for the number of terms retrieved is properly applied.
    */
@@ -157,6 +335,53 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
     assertThat(lTerms instanceof LongTermsSet, is(true));
   }
 
+  /**
+   * Tests that the terms are not flagged as pruned when the limit is reached, but the remaining documents only contain
+   * terms already collected.
+   */
+  @Test
+  public void testTermsByQueryWithLimitAndDuplicateTerms() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder()
+            .put("index.number_of_shards", 1)
+            .put("index.number_of_replicas", 0)));
+
+    // each of the 5 terms appears in 10 documents
+    for (int i = 0; i < 50; i++) {
+      client().prepareIndex("test", "type", "" + i).setSource("int", i % 5).get();
+    }
+    client().admin().indices().prepareRefresh("test").get();
+
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+            .setField("int")
+            .setQuery(QueryBuilders.matchAllQuery())
+            .setOrderBy(TermsByQueryRequest.Ordering.DEFAULT)
+            .setMaxTermsPerShard(5)
+            .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+            .get();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    TermsSet terms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(terms.size(), is(5));
+    assertThat(terms.isPruned(), is(false));
+
+    // a sixth term is dropped
+    client().prepareIndex("test", "type", "50").setSource("int", 5).get();
+    client().admin().indices().prepareRefresh("test").get();
+
+    resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+            .setField("int")
+            .setQuery(QueryBuilders.matchAllQuery())
+            .setOrderBy(TermsByQueryRequest.Ordering.DEFAULT)
+            .setMaxTermsPerShard(5)
+            .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+            .get();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    terms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(terms.size(), is(5));
+    assertThat(terms.isPruned(), is(true));
+  }
+
   /**
    * Tests the ordering by document score.
    */
@@ -218,6 +443,232 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
     }
   }
 
+  /**
+   * Tests the global top terms by document score. The score of a document is its value, so that the scores are
+   * identical across the shards and the top is known. The documents of the top are routed to a single shard, so that
+   * the other shards are skipped in the second phase.
+   */
+  @Test
+  public void testTermsByQueryWithGlobalLimitOrderByDocScore() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder().put("number_of_shards", 4)));
+
+    int numDocs = 200;
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setRouting(i < numDocs - 10 ? null : "top")
+              .setSource(jsonBuilder().startObject().field("int", i).endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup top 10 terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+            .setField("int")
+            .setQuery(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.fieldValueFactorFunction("int")).boostMode("replace"))
+            .setOrderBy(TermsByQueryRequest.Ordering.DOC_SCORE)
+            .setMaxTerms(10)
+            .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+            .execute()
+            .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.isPruned(), is(true));
+    LongTermsSet lTerms = (LongTermsSet) NumericTermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms.size(), equalTo(10));
+    for (int i = numDocs - 10; i < numDocs; i++) {
+      assertThat(lTerms.contains(i), is(true));
+    }
+
+    logger.info("--> lookup top terms in field [int] with a limit larger than the number of documents");
+    resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+            .setField("int")
+            .setQuery(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.fieldValueFactorFunction("int")).boostMode("replace"))
+            .setOrderBy(TermsByQueryRequest.Ordering.DOC_SCORE)
+            .setMaxTerms(numDocs + 10)
+            .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+            .execute()
+            .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.isPruned(), is(false));
+    assertThat(resp.getSize(), equalTo(numDocs));
+  }
+
+  /**
+   * Tests that the terms of the unchanged segments are reused after an update of the index, and that the segments with
+   * new deleted documents are collected again
+   */
+  @Test
+  public void testTermsByQueryIncrementalSegments() throws Exception {
+    // the segments are only changed by the explicit refreshes, and all the documents are in the same shard
+    assertAcked(prepareCreate("test").setSettings(Settings.builder()
+            .put("index.refresh_interval", -1)
+            .put("index.number_of_shards", 1)
+            .put("index.number_of_replicas", 0)));
+
+    this.indexIntegers(0, 100);
+    this.assertIntegerTerms(0, 100);
+
+    // the new segments are collected and merged with the cached terms of the previous segments
+    long hits = this.getSegmentCacheStats().hitCount();
+    this.indexIntegers(100, 150);
+    this.assertIntegerTerms(0, 150);
+    assertThat(this.getSegmentCacheStats().hitCount(), greaterThan(hits));
+
+    // the segment with the deleted document is collected again
+    client().prepareDelete("test", "type", "0").get();
+    client().admin().indices().prepareRefresh("test").get();
+    this.assertIntegerTerms(1, 150);
+  }
+
+  /**
+   * Tests that the terms of the segments are not cached for a query whose matches in a segment are not only
+   * determined by the segment
+   */
+  @Test
+  public void testTermsByQueryIncrementalSegmentsNonLocalQuery() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder()
+            .put("index.refresh_interval", -1)
+            .put("index.number_of_shards", 1)
+            .put("index.number_of_replicas", 0)));
+
+    this.indexIntegers(0, 100);
+
+    CacheStats stats = this.getSegmentCacheStats();
+    this.assertIntegerTerms(QueryBuilders.functionScoreQuery(QueryBuilders.matchAllQuery()), 0, 100);
+    assertThat(this.getSegmentCacheStats().missCount(), equalTo(stats.missCount()));
+    assertThat(this.getSegmentCacheStats().hitCount(), equalTo(stats.hitCount()));
+  }
+
+  /**
+   * Tests that the shards are collected on the dedicated thread pool, and that their segments are collected in
+   * parallel on the dedicated thread pool
+   */
+  @Test
+  public void testTermsByQueryParallelSegments() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder()
+            .put("index.refresh_interval", -1)
+            .put("index.number_of_shards", 1)
+            .put("index.number_of_replicas", 0)));
+
+    // creates one segment per refresh
+    for (int i = 0; i < 5; i++) {
+      this.indexIntegers(i * 50, (i + 1) * 50);
+    }
+
+    final long shardCompleted = this.getThreadPoolCompleted(SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL);
+    final long segmentCompleted = this.getThreadPoolCompleted(SirenJoinPlugin.TERMS_COLLECT_THREAD_POOL);
+    this.assertIntegerTerms(0, 250);
+
+    // a task is counted as completed once its thread is released, possibly after the response is sent
+    assertBusy(new Runnable() {
+
+      @Override
+      public void run() {
+        assertThat(getThreadPoolCompleted(SirenJoinPlugin.TERMS_BY_QUERY_THREAD_POOL), greaterThan(shardCompleted));
+        assertThat(getThreadPoolCompleted(SirenJoinPlugin.TERMS_COLLECT_THREAD_POOL), greaterThan(segmentCompleted));
+      }
+
+    });
+  }
+
+  private long getThreadPoolCompleted(String name) {
+    long completed = 0;
+    for (NodeStats nodeStats : client().admin().cluster().prepareNodesStats().setThreadPool(true).get().getNodes()) {
+      for (ThreadPoolStats.Stats stats : nodeStats.getThreadPool()) {
+        if (stats.getName().equals(name)) {
+          completed += stats.getCompleted();
+        }
+      }
+    }
+    return completed;
+  }
+
+  /**
+   * Tests that the terms of the shards which did not change are reused, and that only the modified shards are
+   * collected again.
+   */
+  @Test
+  public void testTermsByQueryShardCache() throws Exception {
+    assertAcked(prepareCreate("test").setSettings(Settings.builder()
+            .put("index.refresh_interval", -1)
+            .put("index.number_of_shards", 2)
+            .put("index.number_of_replicas", 0)));
+
+    this.indexIntegers(0, 100);
+    this.assertIntegerTerms(0, 100);
+
+    // the second lookup reuses the terms of both shards
+    CacheStats stats = this.getShardCacheStats();
+    this.assertIntegerTerms(0, 100);
+    assertThat(this.getShardCacheStats().missCount(), equalTo(stats.missCount()));
+    assertThat(this.getShardCacheStats().hitCount(), equalTo(stats.hitCount() + 2));
+
+    // only the shard of the new document is collected again
+    stats = this.getShardCacheStats();
+    this.indexIntegers(100, 101);
+    this.assertIntegerTerms(0, 101);
+    assertThat(this.getShardCacheStats().missCount(), equalTo(stats.missCount() + 1));
+    assertThat(this.getShardCacheStats().hitCount(), equalTo(stats.hitCount() + 1));
+
+    // the terms of the shards are dropped once the shards are closed
+    assertAcked(client().admin().indices().prepareDelete("test"));
+    assertBusy(new Runnable() {
+      @Override
+      public void run() {
+        for (ShardTermsCache cache : internalCluster().getInstances(ShardTermsCache.class)) {
+          assertThat(cache.getSize(), equalTo(0L));
+        }
+      }
+    });
+  }
+
+  private CacheStats getSegmentCacheStats() {
+    CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+    for (SegmentTermsCache cache : internalCluster().getInstances(SegmentTermsCache.class)) {
+      stats = stats.plus(cache.getStats());
+    }
+    return stats;
+  }
+
+  private CacheStats getShardCacheStats() {
+    CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+    for (ShardTermsCache cache : internalCluster().getInstances(ShardTermsCache.class)) {
+      stats = stats.plus(cache.getStats());
+    }
+    return stats;
+  }
+
+  private void indexIntegers(int from, int to) {
+    for (int i = from; i < to; i++) {
+      client().prepareIndex("test", "type", "" + i).setSource("int", i).get();
+    }
+    client().admin().indices().prepareRefresh("test").get();
+  }
+
+  private void assertIntegerTerms(int from, int to) {
+    this.assertIntegerTerms(QueryBuilders.matchAllQuery(), from, to);
+  }
+
+  private void assertIntegerTerms(QueryBuilder query, int from, int to) {
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+            .setField("int")
+            .setQuery(query)
+            .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+            .get();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    LongTermsSet lTerms = (LongTermsSet) TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms.size(), is(to - from));
+    assertThat(lTerms.isPruned(), is(false));
+    for (int i = from; i < to; i++) {
+      assertThat(lTerms.contains(i), is(true));
+    }
+    assertThat(lTerms.contains(from - 1), is(false));
+  }
+
   /**
    * Tests the validation of the request when terms encodign si set to bytes. If no maxTermsPerShard is specified,
    * it should fail with a {@link ActionRequestValidationException}.
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import solutions.siren.join.action.terms.collector.NumericTermsSet;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the sequential merge of the shard terms sets performed by {@link TransportTermsByQueryAction} with the
+ * parallel merge of the {@link TermsSetMerger}.
+ */
+public class TermsSetMergeBenchmark {
+
+  // test settings
+  public static final int NUM_SHARDS = 32;
+  public static final int NUM_TERMS_PER_SHARD = 500000;
+  public static final int NUM_UNIQUE_TERMS = 4000000;
+  public static final int NUM_WARMUPS = 5;
+  public static final int NUM_RUNS = 20;
+  public static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  private final CircuitBreaker breaker = new NoopCircuitBreaker(CircuitBreaker.REQUEST);
+  private final Random random = new Random(42);
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final TermsSetMerger merger = new TermsSetMerger(executor, PARALLELISM, 0);
+
+  public static void main(String[] args) throws Exception {
+    TermsSetMergeBenchmark bench = new TermsSetMergeBenchmark();
+    try {
+      for (TermsByQueryRequest.TermsEncoding encoding : new TermsByQueryRequest.TermsEncoding[] {
+        TermsByQueryRequest.TermsEncoding.LONG,
+        TermsByQueryRequest.TermsEncoding.INTEGER,
+        TermsByQueryRequest.TermsEncoding.BLOOM
+      }) {
+        bench.benchmark(encoding);
+      }
+    }
+    finally {
+      bench.executor.shutdown();
+    }
+  }
+
+  private void benchmark(TermsByQueryRequest.TermsEncoding encoding) {
+    System.out.println("Warming up " + encoding + " merge...");
+    for (int i = 0; i < NUM_WARMUPS; i++) {
+      this.sequentialMerge(this.newShardTermsSets(encoding), encoding).release();
+      merger.merge(this.newShardTermsSets(encoding)).release();
+    }
+
+    long sequential = 0;
+    long parallel = 0;
+    for (int i = 0; i < NUM_RUNS; i++) {
+      List<TermsSet> sets = this.newShardTermsSets(encoding);
+      StopWatch watch = new StopWatch().start();
+      this.sequentialMerge(sets, encoding).release();
+      sequential += watch.stop().totalTime().millis();
+
+      sets = this.newShardTermsSets(encoding);
+      watch = new StopWatch().start();
+      merger.merge(sets).release();
+      parallel += watch.stop().totalTime().millis();
+    }
+
+    System.out.println("--> " + encoding + " merge of " + NUM_SHARDS + " shards: sequential " +
+            (sequential / NUM_RUNS) + " ms, parallel " + (parallel / NUM_RUNS) + " ms (" + PARALLELISM + " workers)");
+  }
+
+  /**
+   * Reproduces the sequential merge of {@link TransportTermsByQueryAction#newResponse}
+   */
+  private TermsSet sequentialMerge(List<TermsSet> sets, TermsByQueryRequest.TermsEncoding encoding) {
+    long numTerms = 0;
+    for (TermsSet terms : sets) {
+      numTerms += terms.size();
+    }
+    // bloom filters can only be merged if they have the same size, i.e., the expected terms of the request
+    long expectedElements = encoding == TermsByQueryRequest.TermsEncoding.BLOOM ? NUM_TERMS_PER_SHARD : numTerms;
+    TermsSet termsSet = TermsSet.newTermsSet(expectedElements, encoding, breaker);
+    for (TermsSet terms : sets) {
+      termsSet.merge(terms);
+      terms.release();
+    }
+    return termsSet;
+  }
+
+  private List<TermsSet> newShardTermsSets(TermsByQueryRequest.TermsEncoding encoding) {
+    List<TermsSet> sets = new ArrayList<>(NUM_SHARDS);
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      NumericTermsSet terms = (NumericTermsSet) TermsSet.newTermsSet(NUM_TERMS_PER_SHARD, encoding, breaker);
+      for (int j = 0; j < NUM_TERMS_PER_SHARD; j++) {
+        terms.add(random.nextInt(NUM_UNIQUE_TERMS));
+      }
+      sets.add(terms);
+    }
+    return sets;
+  }
+
+}
@@ -18,16 +18,28 @@
  */
 package solutions.siren.join.action.terms;
 
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
 import org.elasticsearch.node.settings.NodeSettingsService;
 import org.elasticsearch.test.ESSingleNodeTestCase;
 import org.junit.Test;
+import solutions.siren.join.action.terms.collector.BitmapTermsSet;
 import solutions.siren.join.action.terms.collector.IntegerTermsSet;
 import solutions.siren.join.action.terms.collector.LongTermsSet;
+import solutions.siren.join.action.terms.collector.PackedLongTermsSet;
+import solutions.siren.join.action.terms.collector.ScoredLongTermsSet;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hamcrest.Matchers.*;
 
@@ -105,4 +117,218 @@ public class TermsSetTest extends ESSingleNodeTestCase {
     assertThat(breaker.getUsed(), is(equalTo(0L)));
   }
 
+  @Test
+  public void testParallelMergeOfLongTermsSets() throws Exception {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // 11 sets to have an odd set at the first level of the tree
+    List<TermsSet> sets = new ArrayList<>();
+    for (int i = 0; i < 11; i++) {
+      LongTermsSet termsSet = new LongTermsSet(8, breaker);
+      for (int j = 0; j < 100; j++) {
+        termsSet.add(i * 50 + j); // overlapping terms
+      }
+      sets.add(termsSet);
+    }
+    sets.get(3).setIsPruned(true);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      TermsSetMerger merger = new TermsSetMerger(executor, 3, 4);
+      assertThat(merger.isParallel(sets.size()), is(true));
+      assertThat(merger.isParallel(3), is(false));
+
+      TermsSet merged = merger.merge(sets);
+      assertThat(merged.size(), is(equalTo(10 * 50 + 100)));
+      assertThat(merged.isPruned(), is(true));
+      for (int i = 0; i < 10 * 50 + 100; i++) {
+        assertThat(((LongTermsSet) merged).contains(i), is(true));
+      }
+
+      merged.release();
+      assertThat(breaker.getUsed(), is(equalTo(0L)));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testPackedLongTermsSetEncoding() throws Exception {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // a dense range, sparse values and the extreme values to test gaps larger than Long.MAX_VALUE
+    PackedLongTermsSet termsSet = new PackedLongTermsSet(8, breaker);
+    for (int i = 0; i < 1000; i++) {
+      termsSet.add(i);
+    }
+    long[] values = new long[] { Long.MIN_VALUE, Long.MAX_VALUE, -1, 5000, 1L << 40, -(1L << 50) };
+    for (long value : values) {
+      termsSet.add(value);
+    }
+    termsSet.setIsPruned(true);
+
+    // encoding used by the field data terms query
+    TermsSet decoded = TermsSet.readFrom(termsSet.writeToBytes());
+    assertThat(decoded instanceof PackedLongTermsSet, is(true));
+    this.assertPackedTerms((PackedLongTermsSet) decoded, values);
+
+    // encoding used by the shard response
+    BytesStreamOutput out = new BytesStreamOutput();
+    termsSet.writeTo(out);
+    PackedLongTermsSet read = new PackedLongTermsSet(breaker);
+    read.readFrom(StreamInput.wrap(out.bytes()));
+    this.assertPackedTerms(read, values);
+
+    read.release();
+    termsSet.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testPackedLongTermsSetPayloadSize() throws Exception {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    PackedLongTermsSet packed = new PackedLongTermsSet(8, breaker);
+    LongTermsSet longs = new LongTermsSet(8, breaker);
+    for (int i = 0; i < 10000; i++) {
+      packed.add(i * 3);
+      longs.add(i * 3);
+    }
+
+    // the whole array is inlined in the field data terms query
+    BytesRef packedBytes = packed.writeToBytes();
+    BytesRef longBytes = longs.writeToBytes();
+    assertThat(packedBytes.bytes.length, is(equalTo(packedBytes.length)));
+    assertThat(packedBytes.bytes.length < longBytes.bytes.length / 10, is(true));
+
+    packed.release();
+    longs.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testBitmapTermsSet() throws Exception {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // a dense range converted into bitmap containers, and a sparse range kept in array containers
+    BitmapTermsSet dense = new BitmapTermsSet(8, breaker);
+    for (int i = 0; i < 100000; i++) {
+      dense.add(i);
+    }
+    BitmapTermsSet sparse = new BitmapTermsSet(8, breaker);
+    for (int i = 0; i < 1000; i++) {
+      sparse.add(i * 1000);
+    }
+    sparse.add(-1);
+    sparse.add(Integer.MIN_VALUE);
+    sparse.setIsPruned(true);
+    assertThat(breaker.getUsed(), greaterThan(0L));
+
+    dense.merge(sparse);
+    sparse.release();
+
+    // encoding used by the field data terms query
+    TermsSet decoded = TermsSet.readFrom(dense.writeToBytes());
+    assertThat(decoded instanceof BitmapTermsSet, is(true));
+    this.assertBitmapTerms((BitmapTermsSet) decoded);
+
+    // encoding used by the shard response
+    BytesStreamOutput out = new BytesStreamOutput();
+    dense.writeTo(out);
+    BitmapTermsSet read = new BitmapTermsSet(breaker);
+    read.readFrom(StreamInput.wrap(out.bytes()));
+    this.assertBitmapTerms(read);
+
+    read.release();
+    dense.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testScoredLongTermsSet() throws Exception {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // the scores of two shards, merged after a transfer over the wire
+    ScoredLongTermsSet shard1 = new ScoredLongTermsSet(8, TermsByQueryRequest.ScoreMode.AVG, breaker);
+    shard1.add(1, 1f);
+    shard1.add(2, 2f);
+    shard1.add(2, 4f);
+    ScoredLongTermsSet shard2 = new ScoredLongTermsSet(8, TermsByQueryRequest.ScoreMode.AVG, breaker);
+    shard2.add(2, 6f);
+    shard2.add(3, 3f);
+
+    BytesStreamOutput out = new BytesStreamOutput();
+    shard2.writeTo(out);
+    ScoredLongTermsSet read = new ScoredLongTermsSet(breaker);
+    read.readFrom(StreamInput.wrap(out.bytes()));
+    shard2.release();
+
+    shard1.merge(read);
+    read.release();
+    assertThat(shard1.size(), is(equalTo(3)));
+    assertThat(shard1.getScore(1), is(equalTo(1f)));
+    assertThat(shard1.getScore(2), is(equalTo(4f)));
+    assertThat(shard1.getScore(3), is(equalTo(3f)));
+    assertThat(Float.isNaN(shard1.getScore(4)), is(true));
+
+    // encoding used by the field data terms query, with the final scores
+    TermsSet decoded = TermsSet.readFrom(shard1.writeToBytes());
+    assertThat(decoded instanceof ScoredLongTermsSet, is(true));
+    assertThat(((ScoredLongTermsSet) decoded).getScoreMode(), is(equalTo(TermsByQueryRequest.ScoreMode.AVG)));
+    assertThat(((ScoredLongTermsSet) decoded).getScore(2), is(equalTo(4f)));
+    assertThat(((ScoredLongTermsSet) decoded).contains(3), is(true));
+    assertThat(((ScoredLongTermsSet) decoded).contains(4), is(false));
+
+    shard1.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  private void assertBitmapTerms(BitmapTermsSet termsSet) {
+    assertThat(termsSet.isPruned(), is(true));
+    assertThat(termsSet.size(), is(equalTo(100000 + 900 + 2)));
+    for (int i = 0; i < 100000; i++) {
+      assertThat(termsSet.contains(i), is(true));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertThat(termsSet.contains(i * 1000), is(true));
+    }
+    assertThat(termsSet.contains(-1), is(true));
+    assertThat(termsSet.contains(Integer.MIN_VALUE), is(true));
+    assertThat(termsSet.contains(100001), is(false));
+    assertThat(termsSet.contains(-2), is(false));
+  }
+
+  private void assertPackedTerms(PackedLongTermsSet termsSet, long[] values) {
+    assertThat(termsSet.isPruned(), is(true));
+    assertThat(termsSet.size(), is(equalTo(1000 + values.length)));
+    for (int i = 0; i < 1000; i++) {
+      assertThat(termsSet.contains(i), is(true));
+    }
+    for (long value : values) {
+      assertThat(termsSet.contains(value), is(true));
+    }
+    assertThat(termsSet.contains(1000), is(false));
+  }
+
 }
@@ -20,6 +20,7 @@ package solutions.siren.join.index.query;
 
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.index.cache.IndexCacheModule;
 import org.elasticsearch.index.cache.query.QueryCacheStats;
 import org.elasticsearch.test.ESIntegTestCase;
@@ -133,6 +134,79 @@ public class FieldDataTermsQueryTest extends SirenJoinTestCase {
     assertThat(queryCacheStats.getHitCount(), is(equalTo(1L)));
   }
 
+  @Test
+  public void testTermsSetCacheSharedAcrossShards() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer"));
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1"),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3"),
+      client().prepareIndex("index2", "type", "7").setSource("id", "7"));
+
+    TermsSetCache cache = internalCluster().getDataNodeInstance(TermsSetCache.class);
+    long loads = cache.getStats().loadCount();
+
+    SearchResponse searchResponse = client().prepareSearch("index1", "index2").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("id", new long[] { 1, 2, 4, 8, 10, 7, 6, 11, 5 }, CACHE_KEY))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+
+    // the terms are decoded once for the two shards of the data node
+    assertThat(cache.getStats().loadCount() - loads, is(equalTo(1L)));
+    assertThat(cache.getSize(), is(equalTo(1L)));
+  }
+
+  @Test
+  public void testTermsDictionaryIntersection() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "lid", "type=long", "name", "type=string,index=not_analyzed"));
+    ensureGreen();
+
+    // values from -10 to 9, each one shared by 20 documents
+    int numDocs = 400;
+    IndexRequestBuilder[] builders = new IndexRequestBuilder[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      int value = (i % 20) - 10;
+      builders[i] = client().prepareIndex("index1", "type", Integer.toString(i))
+                            .setSource("id", value, "lid", value * 1000000000000L, "name", "name" + value);
+    }
+    indexRandom(true, builders);
+
+    // few terms: the terms of the set are seeked in the dictionary
+    SearchResponse searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("id", new long[] { -10, -3, 7, 1000, Long.MIN_VALUE }, 1))
+    ).get();
+    assertHitCount(searchResponse, 60L);
+
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("lid", new long[] { -10000000000000L, 7000000000000L, 7 }, 2))
+    ).get();
+    assertHitCount(searchResponse, 40L);
+
+    // many terms: the dictionary is scanned
+    long[] terms = new long[1000];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = i * 2 - 500;
+    }
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("id", terms, 3))
+    ).get();
+    assertHitCount(searchResponse, 200L);
+
+    // string terms are always scanned
+    long[] hashes = new long[] { this.hash("name-10"), this.hash("name0"), this.hash("name10") };
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("name", hashes, 4))
+    ).get();
+    assertHitCount(searchResponse, 40L);
+  }
+
+  private long hash(String term) {
+    BytesRef bytes = new BytesRef(term);
+    return LongBloomFilter.hash3_x64_128(bytes.bytes, bytes.offset, bytes.length, 0);
+  }
+
   private QueryCacheStats getQueryCacheStats(String index) {
     IndicesStatsResponse statsResponse = client().admin().indices().prepareStats(index).setQueryCache(true).setRefresh(true).get();
     return statsResponse.getIndex(index).getTotal().getQueryCache();
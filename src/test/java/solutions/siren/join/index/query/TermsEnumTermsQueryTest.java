@@ -22,6 +22,7 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.NumericUtils;
 import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.cache.IndexCacheModule;
@@ -31,6 +32,8 @@ import org.junit.Test;
 import solutions.siren.join.SirenJoinTestCase;
 import solutions.siren.join.action.terms.collector.LongBloomFilter;
 
+import java.util.Locale;
+
 import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
@@ -98,6 +101,37 @@ public class TermsEnumTermsQueryTest extends SirenJoinTestCase {
     assertHitCount(searchResponse, 2L);
   }
 
+  @Test
+  public void testSparseAndDenseTermsSets() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=string,index=not_analyzed"));
+    ensureGreen();
+
+    int numDocs = 200;
+    IndexRequestBuilder[] builders = new IndexRequestBuilder[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      builders[i] = client().prepareIndex("index1", "type", Integer.toString(i)).setSource("id", String.format(Locale.ROOT, "%05d", i));
+    }
+    indexRandom(true, builders);
+
+    // sparse set: the terms of the set are seeked in the dictionary
+    SearchResponse searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(termsEnumTermsQuery("id", new BytesRef[] {
+              new BytesRef("00000"), new BytesRef("00042"), new BytesRef("00199"), new BytesRef("01000")
+      }, 1))
+    ).get();
+    assertHitCount(searchResponse, 3L);
+
+    // dense set: the dictionary is scanned, and the set gallops over the missing terms
+    BytesRef[] terms = new BytesRef[10000];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = new BytesRef(String.format(Locale.ROOT, "%05d", i * 3));
+    }
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(termsEnumTermsQuery("id", terms, 2))
+    ).get();
+    assertHitCount(searchResponse, 67L);
+  }
+
   /**
    * Converts a list of long value to their bytes ref representation as performed by
    * {@link org.apache.lucene.analysis.NumericTokenStream}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.index.query;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+import solutions.siren.join.action.terms.collector.LongTermsSet;
+import solutions.siren.join.common.CacheCircuitBreaker;
+
+import static org.hamcrest.Matchers.*;
+
+public class TermsSetCacheTest extends ESTestCase {
+
+  private static final long CACHE_SIZE = 40000;
+
+  private HierarchyCircuitBreakerService breakerService = new HierarchyCircuitBreakerService(Settings.EMPTY,
+          new NodeSettingsService(Settings.EMPTY));
+
+  private TermsSetCache cache = new TermsSetCache(Settings.builder()
+          .put(TermsSetCache.SIREN_TERMSSET_CACHE_SIZE, CACHE_SIZE, ByteSizeUnit.BYTES)
+          .build(), breakerService);
+
+  @Test
+  public void testCachedTermsSet() {
+    byte[] encodedTerms = encode(10);
+
+    TermsSetCache.Reference ref1 = cache.acquire(1, encodedTerms);
+    TermsSetCache.Reference ref2 = cache.acquire(1, encodedTerms);
+    assertThat(ref2.get(), is(sameInstance(ref1.get())));
+    assertThat(ref1.get().size(), equalTo(10));
+    assertThat(cache.getSize(), equalTo(1L));
+
+    CircuitBreaker cacheBreaker = breakerService.getBreaker(CacheCircuitBreaker.NAME);
+    assertThat(cacheBreaker.getUsed(), equalTo(ref1.get().ramBytesUsed()));
+    assertThat(breakerService.getBreaker(CircuitBreaker.REQUEST).getUsed(), equalTo(0L));
+
+    ref1.close();
+    ref2.close();
+    cache.invalidateAll();
+    assertThat(cacheBreaker.getUsed(), equalTo(0L));
+  }
+
+  /**
+   * A set larger than a segment of the cache is evicted as soon as it is loaded, and must be returned uncached.
+   */
+  @Test(timeout = 10000)
+  public void testTermsSetLargerThanCacheSegment() {
+    byte[] encodedTerms = encode(1000);
+    assertThat((long) encodedTerms.length, lessThan(CACHE_SIZE / 4));
+
+    TermsSetCache.Reference ref = cache.acquire(1, encodedTerms);
+    assertThat(ref.get().ramBytesUsed(), greaterThan(CACHE_SIZE / 4));
+    assertThat(ref.get().size(), equalTo(1000));
+    assertThat(cache.getSize(), equalTo(0L));
+
+    CircuitBreaker requestBreaker = breakerService.getBreaker(CircuitBreaker.REQUEST);
+    assertThat(requestBreaker.getUsed(), equalTo(ref.get().ramBytesUsed()));
+    assertThat(breakerService.getBreaker(CacheCircuitBreaker.NAME).getUsed(), equalTo(0L));
+
+    ref.close();
+    assertThat(requestBreaker.getUsed(), equalTo(0L));
+  }
+
+  private static byte[] encode(int size) {
+    LongTermsSet termsSet = new LongTermsSet(size, new NoopCircuitBreaker(CircuitBreaker.REQUEST));
+    for (int i = 0; i < size; i++) {
+      termsSet.add(i);
+    }
+    return termsSet.writeToBytes().bytes;
+  }
+
+}